@@ -1,5 +1,6 @@
 package org.wattdepot.client;
 
+import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.ArrayList;
@@ -11,9 +12,11 @@ import javax.xml.bind.Unmarshaller;
 import javax.xml.datatype.XMLGregorianCalendar;
 import org.restlet.data.ChallengeResponse;
 import org.restlet.data.ChallengeScheme;
+import org.restlet.data.MediaType;
 import org.restlet.data.Reference;
 import org.restlet.data.Status;
 import org.restlet.resource.ClientResource;
+import org.restlet.representation.Representation;
 import org.restlet.resource.ResourceException;
 import org.wattdepot.resource.ResourceInterface;
 import org.wattdepot.resource.sensordata.jaxb.SensorData;
@@ -1499,6 +1502,100 @@ public class WattDepotClient {
     }
   }
 
+  /**
+   * Stores many SensorData objects for the named Source in the server with a single request. This
+   * is much faster than calling storeSensorData for each SensorData, such as when loading a backlog
+   * of sensor readings. SensorData that already exists on the server (or that the server otherwise
+   * cannot store) does not prevent the rest from being stored, and is reported in the returned
+   * index instead.
+   * 
+   * @param source The name of the Source all of the SensorData belongs to.
+   * @param datas The SensorData objects to be stored.
+   * @return A SensorDataIndex referring to each SensorData that was not stored, which is empty if
+   * all of the SensorData was stored.
+   * @throws JAXBException If there are problems marshalling the objects for upload.
+   * @throws NotAuthorizedException If the client is not authorized to store the SensorData.
+   * @throws ResourceNotFoundException If the source name doesn't exist on the server.
+   * @throws BadXmlException If the server reports that the XML sent was bad, or there was no XML,
+   * or the source of some SensorData doesn't match the given source name, or the response from the
+   * server could not be unmarshalled.
+   * @throws MiscClientException If the server indicates an unexpected problem has occurred.
+   */
+  public SensorDataIndex storeSensorDatas(String source, List<SensorData> datas)
+      throws JAXBException, NotAuthorizedException, ResourceNotFoundException, BadXmlException,
+      MiscClientException {
+    if (datas == null || datas.isEmpty()) {
+      return new SensorDataIndex();
+    }
+    SensorDatas sensorDatas = new SensorDatas();
+    sensorDatas.getSensorData().addAll(datas);
+    Marshaller marshaller = sensorDataJAXB.createMarshaller();
+    StringWriter writer = new StringWriter();
+    marshaller.marshal(sensorDatas, writer);
+
+    String uri = Server.SOURCES_URI + "/" + source + "/" + Server.SENSORDATA_URI;
+    ClientResource client = null;
+    Status status;
+    String xmlString = null;
+
+    try {
+      client = makeClient(uri);
+      Representation response = client.put(writer.toString());
+      status = client.getStatus();
+      if (response != null) {
+        xmlString = response.getText();
+      }
+    }
+    catch (ResourceException e) {
+      Status exceptionStatus = e.getStatus();
+
+      if (exceptionStatus.equals(Status.CLIENT_ERROR_UNAUTHORIZED)) {
+        // credentials were unacceptable to server
+        throw new NotAuthorizedException(exceptionStatus);
+      }
+      if (exceptionStatus.equals(Status.CLIENT_ERROR_NOT_FOUND)) {
+        // an unknown source name was specified
+        throw new ResourceNotFoundException(exceptionStatus);
+      }
+      if (exceptionStatus.equals(Status.CLIENT_ERROR_BAD_REQUEST)) {
+        // bad XML in entity body, or sources in the XML don't match the URI
+        throw new BadXmlException(exceptionStatus);
+      }
+      else {
+        // Some totally unexpected non-success status code, just throw generic client exception
+        throw new MiscClientException(exceptionStatus);
+      }
+    }
+    catch (IOException e) {
+      // Could not read the response entity
+      throw new MiscClientException(client.getStatus(), e);
+    }
+    finally {
+      if (client != null) {
+        client.release();
+      }
+    }
+
+    if (status.isSuccess()) {
+      if (xmlString == null) {
+        return new SensorDataIndex();
+      }
+      try {
+        Unmarshaller unmarshaller = sensorDataJAXB.createUnmarshaller();
+        return (SensorDataIndex) unmarshaller.unmarshal(new StringReader(xmlString));
+      }
+      catch (JAXBException e) {
+        // Got some XML we can't parse
+        throw new BadXmlException(status, e);
+      }
+    }
+    else {
+      // Some unexpected type of error received, so punt
+      throw new MiscClientException(status);
+    }
+  }
+
+
   /**
    * Deletes a SensorData resource from the server.
    * 
@@ -2255,9 +2352,10 @@ public class WattDepotClient {
 
   /**
    * Attempts to make a snapshot of the database on the server. Requires admin privileges to
-   * complete.
+   * complete. The server makes the snapshot in the background, so its progress and result are
+   * found with getSnapshotStatus.
    * 
-   * @return True if the snapshot could be created, false otherwise.
+   * @return True if the snapshot was started or is already being made, false otherwise.
    * @throws NotAuthorizedException If the client is not authorized to create the snapshot.
    * @throws MiscClientException If the server rejected the snapshot request for some other reason.
    */
@@ -2303,6 +2401,40 @@ public class WattDepotClient {
     }
   }
 
+  /**
+   * Returns the progress of the current or most recent database snapshot on the server, as lines
+   * of "name: value" giving its state, start and finish times, and the files and bytes copied.
+   * Requires admin privileges.
+   * 
+   * @return The snapshot status.
+   * @throws NotAuthorizedException If the client is not authorized to see the snapshot status.
+   * @throws MiscClientException If the server rejected the request for some other reason.
+   */
+  public String getSnapshotStatus() throws NotAuthorizedException, MiscClientException {
+    ClientResource client = makeClient(Server.DATABASE_URI + "/" + "snapshot");
+    try {
+      Representation response = client.get(MediaType.TEXT_PLAIN);
+      return (response == null) ? null : response.getText();
+    }
+    catch (ResourceException e) {
+      Status status = e.getStatus();
+      if (status.equals(Status.CLIENT_ERROR_UNAUTHORIZED)) {
+        // credentials were unacceptable to server, perhaps not admin?
+        throw new NotAuthorizedException(status);
+      }
+      else {
+        throw new MiscClientException(status);
+      }
+    }
+    catch (IOException e) {
+      // Could not read the response entity
+      throw new MiscClientException(client.getStatus(), e);
+    }
+    finally {
+      client.release();
+    }
+  }
+
   /**
    * Retrieves the WattDepot URI used by this client. This is useful for creating resource objects
    * that have URIs in their fields (and thus need the WattDepot URI to construct those URIs).
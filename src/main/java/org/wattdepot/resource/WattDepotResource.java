@@ -535,6 +535,32 @@ public class WattDepotResource extends ServerResource {
     return (SensorData) unmarshaller.unmarshal(new StringReader(xmlString));
   }
 
+  /**
+   * Takes a String encoding of a SensorDatas in XML format and converts it to an instance.
+   *
+   * @param xmlString The XML string representing a SensorDatas.
+   * @return The corresponding SensorDatas instance.
+   * @throws JAXBException If problems occur during unmarshalling.
+   */
+  public SensorDatas makeSensorDatas(String xmlString) throws JAXBException {
+    Unmarshaller unmarshaller = sensorDataJaxbContext.createUnmarshaller();
+    return (SensorDatas) unmarshaller.unmarshal(new StringReader(xmlString));
+  }
+
+  /**
+   * Returns an XML string representation of the given SensorDataIndex.
+   *
+   * @param index The SensorDataIndex to marshal.
+   * @return The XML string representing the SensorDataIndex.
+   * @throws JAXBException If there are problems mashalling the SensorDataIndex.
+   */
+  public String makeSensorDataIndexXml(SensorDataIndex index) throws JAXBException {
+    Marshaller marshaller = sensorDataJaxbContext.createMarshaller();
+    StringWriter writer = new StringWriter();
+    marshaller.marshal(index, writer);
+    return writer.toString();
+  }
+
   /**
    * Returns the XML string containing the power in SensorData format for the Source name given in
    * the URI and the given timestamp, or null if no power data exists.
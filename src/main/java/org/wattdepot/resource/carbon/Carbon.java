@@ -45,10 +45,20 @@ public class Carbon extends Energy {
    * @return The carbon emitted between the straddles in lbs CO2 equivalent.
    */
   public double getCarbonEmitted() {
-    double energyGenerated = this.getEnergyGenerated();
+    return getCarbonFromEnergy(this.getEnergyGenerated(), this.carbonIntensity);
+  }
 
+  /**
+   * Computes the carbon emitted by generating the given amount of energy at the given carbon
+   * intensity. The resulting value is in lbs of CO2 equivalent.
+   * 
+   * @param energyGenerated The energy generated in Wh.
+   * @param carbonIntensity The carbon intensity in lbs CO2 equivalent per MWh.
+   * @return The carbon emitted in lbs CO2 equivalent.
+   */
+  public static double getCarbonFromEnergy(double energyGenerated, double carbonIntensity) {
     // carbonIntensity is in lbs per MWh, so convert to MWh and then multiply
-    return (energyGenerated / MEGA) * this.carbonIntensity;
+    return (energyGenerated / MEGA) * carbonIntensity;
   }
 
   /**
@@ -59,8 +69,8 @@ public class Carbon extends Energy {
   public SensorData getCarbon() {
     double carbonEmittedValue = getCarbonEmitted();
 
-    return makeCarbonSensorData(this.startStraddle.getTimestamp(), this.startStraddle
-        .getBeforeData().getSource(), carbonEmittedValue, true);
+    return makeCarbonSensorData(this.startStraddle.getTimestamp(), this.startStraddle.getSource(),
+        carbonEmittedValue, true);
   }
 
   /**
@@ -4,8 +4,10 @@
 package org.wattdepot.resource.db;
 
 import org.restlet.data.Status;
+import org.restlet.resource.Get;
 import org.restlet.resource.Put;
 import org.wattdepot.resource.WattDepotResource;
+import org.wattdepot.server.db.RetentionScheduler;
 
 /**
  * The Database resource is used by an administrator to perform certain actions on the database that
@@ -28,7 +30,9 @@ public class DatabaseResource extends WattDepotResource {
   }
 
   /**
-   * Implement the PUT method that executes the method provided.
+   * Implement the PUT method that executes the method provided. A snapshot or retention run is made
+   * in the background, so the response only says it has been accepted; its progress is returned by
+   * GET.
    * 
    * @param entity The entity to be posted.
    */
@@ -36,13 +40,17 @@ public class DatabaseResource extends WattDepotResource {
   public void snapshot(String entity) {
     if (isAdminUser()) {
       if ("snapshot".equalsIgnoreCase(this.methodString)) {
-        if (super.dbManager.makeSnapshot()) {
-          getResponse().setStatus(Status.SUCCESS_CREATED);
+        // If a snapshot is already being made, the request is satisfied by that one
+        super.dbManager.startSnapshot();
+        getResponse().setStatus(Status.SUCCESS_ACCEPTED);
+      }
+      else if ("retention".equalsIgnoreCase(this.methodString)) {
+        RetentionScheduler retention = super.server.getRetentionScheduler();
+        if ((retention != null) && retention.startRun()) {
+          getResponse().setStatus(Status.SUCCESS_ACCEPTED);
         }
         else {
-          // all inputs have been validated by this point, so must be internal error
-          setStatusInternalError("Unable to create database snapshot");
-          return;
+          setStatusMiscError("Retention is not enabled on this server");
         }
       }
       else {
@@ -55,4 +63,33 @@ public class DatabaseResource extends WattDepotResource {
       return;
     }
   }
+
+  /**
+   * Implement the GET method that returns the status of the method provided: the state and
+   * progress of the current or most recent snapshot or retention run, as lines of "name: value".
+   * 
+   * @return The status, or null if the request is not allowed.
+   */
+  @Get("txt")
+  public String getTxt() {
+    if (!isAdminUser()) {
+      setStatusBadCredentials();
+      return null;
+    }
+    if ("snapshot".equalsIgnoreCase(this.methodString)) {
+      return super.dbManager.getSnapshotStatus().toString();
+    }
+    else if ("retention".equalsIgnoreCase(this.methodString)) {
+      RetentionScheduler retention = super.server.getRetentionScheduler();
+      if (retention == null) {
+        setStatusMiscError("Retention is not enabled on this server");
+        return null;
+      }
+      return retention.toString();
+    }
+    else {
+      setStatusMiscError("Bad method passed to Database resource");
+      return null;
+    }
+  }
 }
@@ -114,8 +114,8 @@ public class Energy {
     double energyGeneratedValue = getEnergyGenerated();
     double energyConsumedValue = getEnergyConsumed();
 
-    return makeEnergySensorData(this.startStraddle.getTimestamp(), this.startStraddle
-        .getBeforeData().getSource(), energyGeneratedValue, energyConsumedValue, true);
+    return makeEnergySensorData(this.startStraddle.getTimestamp(), this.startStraddle.getSource(),
+        energyGeneratedValue, energyConsumedValue, true);
   }
 
   /**
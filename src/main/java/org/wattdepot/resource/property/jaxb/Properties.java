@@ -7,10 +7,19 @@
 
 package org.wattdepot.resource.property.jaxb;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlElement;
@@ -47,12 +56,21 @@ public class Properties implements Serializable {
   @XmlElement(name = "Property")
   protected List<Property> property;
 
+  /** Lists longer than this are looked up through an index. */
+  private static final int INDEX_THRESHOLD = 8;
+
+  /**
+   * The index of a long property list by key, built by the first lookup after the list or the key
+   * of one of its Property objects changes. Null until then.
+   */
+  private transient volatile Index index;
+
   /**
    * Creates the new object, creates the property list.
    */
   public Properties() {
     super();
-    this.property = new ArrayList<Property>();
+    this.property = new PropertyList();
   }
 
   /**
@@ -78,7 +96,7 @@ public class Properties implements Serializable {
    */
   public List<Property> getProperty() {
     if (property == null) {
-      property = new ArrayList<Property>();
+      property = new PropertyList();
     }
     return this.property;
   }
@@ -161,17 +179,8 @@ public class Properties implements Serializable {
    * @return The key's value as an int.
    */
   public int getPropertyAsInt(String key) {
-    if (this.property == null) {
-      return 0;
-    }
-    else {
-      for (Property prop : this.property) {
-        if (key.equals(prop.getKey())) {
-          return Integer.valueOf(prop.getValue());
-        }
-      }
-      return 0;
-    }
+    Property prop = find(key);
+    return (prop == null) ? 0 : prop.getValueAsInt();
   }
   
   /**
@@ -182,17 +191,8 @@ public class Properties implements Serializable {
    * @return The key's value as a double.
    */
   public double getPropertyAsDouble(String key) {
-    if (this.property == null) {
-      return 0;
-    }
-    else {
-      for (Property prop : this.property) {
-        if (key.equals(prop.getKey())) {
-          return Double.valueOf(prop.getValue());
-        }
-      }
-      return 0;
-    }
+    Property prop = find(key);
+    return (prop == null) ? 0 : prop.getValueAsDouble();
   }
 
   /**
@@ -203,17 +203,8 @@ public class Properties implements Serializable {
    * @return The key's value as a long.
    */
   public long getPropertyAsLong(String key) {
-    if (this.property == null) {
-      return 0;
-    }
-    else {
-      for (Property prop : this.property) {
-        if (key.equals(prop.getKey())) {
-          return Long.valueOf(prop.getValue());
-        }
-      }
-      return 0;
-    }
+    Property prop = find(key);
+    return (prop == null) ? 0 : prop.getValueAsLong();
   }
 
   /**
@@ -224,17 +215,8 @@ public class Properties implements Serializable {
    * @return The key's value as a String.
    */
   public String getProperty(String key) {
-    if (this.property == null) {
-      return null;
-    }
-    else {
-      for (Property prop : this.property) {
-        if (key.equals(prop.getKey())) {
-          return prop.getValue();
-        }
-      }
-      return null;
-    }
+    Property prop = find(key);
+    return (prop == null) ? null : prop.getValue();
   }
 
   /**
@@ -261,16 +243,206 @@ public class Properties implements Serializable {
    * @return The key's value as a double.
    */
   public boolean isPropertyTrue(String key) {
-    if (this.property == null) {
-      return false;
+    Property prop = find(key);
+    return (prop != null) && "true".equalsIgnoreCase(prop.getValue());
+  }
+
+  /**
+   * Returns the first Property with the given key. Long lists are looked up through an index built
+   * the first time it is needed after the list or the key of one of its Property objects changes,
+   * and short lists, where hashing the key costs more than comparing it, are scanned.
+   * 
+   * @param key The key.
+   * @return The Property, or null if the key is not found.
+   */
+  private Property find(String key) {
+    List<Property> list = this.property;
+    if (list == null) {
+      return null;
+    }
+    else if ((list.size() > INDEX_THRESHOLD) && (list instanceof PropertyList)) {
+      PropertyList properties = (PropertyList) list;
+      Index current = this.index;
+      if ((current == null) || !current.isCurrent(properties)) {
+        current = new Index(properties);
+        this.index = current;
+      }
+      return current.properties.get(key);
     }
     else {
-      for (Property prop : this.property) {
+      for (Property prop : list) {
         if (key.equals(prop.getKey())) {
-          return "true".equalsIgnoreCase(prop.getValue());
+          return prop;
         }
       }
-      return false;
+      return null;
+    }
+  }
+
+  /**
+   * Writes the property list as a plain ArrayList, so the serialized form does not depend on
+   * PropertyList.
+   * 
+   * @param out The stream to write to.
+   * @throws IOException If there are problems writing.
+   */
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    ObjectOutputStream.PutField fields = out.putFields();
+    fields.put("property", (this.property == null) ? null : new ArrayList<Property>(this.property));
+    out.writeFields();
+  }
+
+  /**
+   * Reads the property list back into a PropertyList, so lookups on it can be indexed.
+   * 
+   * @param in The stream to read from.
+   * @throws IOException If there are problems reading.
+   * @throws ClassNotFoundException If a class in the stream cannot be found.
+   */
+  @SuppressWarnings("unchecked")
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    List<Property> list = (List<Property>) in.readFields().get("property", null);
+    this.property = (list == null) ? null : new PropertyList(list);
+  }
+
+  /**
+   * The property list, which can tell when it has been changed. Only ever held in memory: it is
+   * serialized as a plain ArrayList, and JAXB fills it in place. Every change, including replacing
+   * an element and changes to the keys of its Property objects, is counted by a counter the list
+   * owns. Replacing elements through iterators, sublists, sort and replaceAll all goes through set,
+   * which ArrayList's own views and bulk operations would not.
+   */
+  private static final class PropertyList extends AbstractList<Property> implements RandomAccess {
+
+    /** The properties. */
+    private final ArrayList<Property> elements;
+
+    /** Counts changes to the list and to the keys of the Property objects indexed in it. */
+    private final AtomicInteger changes = new AtomicInteger();
+
+    /**
+     * Creates an empty list.
+     */
+    PropertyList() {
+      this.elements = new ArrayList<Property>();
+    }
+
+    /**
+     * Creates a list holding the given properties.
+     * 
+     * @param properties The properties.
+     */
+    PropertyList(Collection<Property> properties) {
+      this.elements = new ArrayList<Property>(properties);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Property get(int index) {
+      return this.elements.get(index);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int size() {
+      return this.elements.size();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Property set(int index, Property element) {
+      Property old = this.elements.set(index, element);
+      this.changes.incrementAndGet();
+      return old;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void add(int index, Property element) {
+      this.elements.add(index, element);
+      this.modCount++;
+      this.changes.incrementAndGet();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Property remove(int index) {
+      Property old = this.elements.remove(index);
+      this.modCount++;
+      this.changes.incrementAndGet();
+      return old;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+      this.elements.subList(fromIndex, toIndex).clear();
+      this.modCount++;
+      this.changes.incrementAndGet();
+    }
+
+    /**
+     * Returns the counter of changes to the list, which Property objects indexed in it also
+     * increment when their keys change.
+     * 
+     * @return The counter.
+     */
+    AtomicInteger getChanges() {
+      return this.changes;
+    }
+  }
+
+  /**
+   * The first Property with each key in a property list, as it was when the index was built.
+   */
+  private static final class Index {
+
+    /** The list indexed. */
+    private final PropertyList list;
+
+    /** The number of changes made to the list when it was indexed. */
+    private final int modifications;
+
+    /** Whether the list holds a Property that is also indexed in another list. */
+    private final boolean shared;
+
+    /** The number of changes made to the keys of such Property objects when it was indexed. */
+    private final int sharedChanges;
+
+    /** The first Property with each key. */
+    private final Map<String, Property> properties;
+
+    /**
+     * Indexes a property list.
+     * 
+     * @param list The list.
+     */
+    Index(PropertyList list) {
+      this.list = list;
+      // Read before the list, so a change made while the index is built forces another build
+      this.modifications = list.getChanges().get();
+      this.sharedChanges = Property.getSharedKeyChanges();
+      this.properties = new HashMap<String, Property>(2 * list.size());
+      boolean anyShared = false;
+      for (Property prop : list) {
+        anyShared |= prop.setIndexed(list.getChanges());
+        String key = prop.getKey();
+        if ((key != null) && !this.properties.containsKey(key)) {
+          this.properties.put(key, prop);
+        }
+      }
+      this.shared = anyShared;
+    }
+
+    /**
+     * Returns whether this index still matches the given list.
+     * 
+     * @param current The list of the Properties the index belongs to.
+     * @return True if the index is of that list and nothing in it has changed since.
+     */
+    boolean isCurrent(PropertyList current) {
+      return (this.list == current) && (this.modifications == current.getChanges().get())
+          && (!this.shared || (this.sharedChanges == Property.getSharedKeyChanges()));
     }
   }
 }
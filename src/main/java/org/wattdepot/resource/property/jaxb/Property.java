@@ -8,6 +8,7 @@
 package org.wattdepot.resource.property.jaxb;
 
 import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlElement;
@@ -47,6 +48,21 @@ public class Property implements Serializable {
   @XmlElement(name = "Value", required = true)
   protected String value;
 
+  /**
+   * Counts changes to the keys of Property objects indexed in more than one Properties list, so
+   * that the indexes holding them can tell they are out of date.
+   */
+  private static final AtomicInteger SHARED_KEY_CHANGES = new AtomicInteger();
+
+  /**
+   * The change counter of the Properties list whose index holds this Property's key, which changes
+   * to the key increment, SHARED_KEY_CHANGES if more than one does, or null if none does.
+   */
+  private transient volatile AtomicInteger keyChanges;
+
+  /** The value as last parsed as a number, or null if it has not been. */
+  private transient ParsedValue parsed;
+
   /**
    * Default no-argument constructor, apparently needed by JAXB. Don't use this, use the one with
    * all the parameters.
@@ -108,6 +124,10 @@ public class Property implements Serializable {
    */
   public void setKey(String value) {
     this.key = value;
+    AtomicInteger changes = this.keyChanges;
+    if (changes != null) {
+      changes.incrementAndGet();
+    }
   }
 
   public boolean isSetKey() {
@@ -138,6 +158,83 @@ public class Property implements Serializable {
     return (this.value != null);
   }
 
+  /**
+   * Marks this Property as held in the index of a Properties list, so that later changes to its key
+   * are counted by the list. A Property indexed in a second list is counted by SHARED_KEY_CHANGES
+   * instead, and the first list is told it has changed so that its index learns that too.
+   * 
+   * @param listChanges The change counter of the list.
+   * @return True if the Property is indexed in more than one list.
+   */
+  synchronized boolean setIndexed(AtomicInteger listChanges) {
+    AtomicInteger current = this.keyChanges;
+    if ((current == null) || (current == listChanges)) {
+      this.keyChanges = listChanges;
+      return false;
+    }
+    if (current != SHARED_KEY_CHANGES) {
+      this.keyChanges = SHARED_KEY_CHANGES;
+      current.incrementAndGet();
+    }
+    return true;
+  }
+
+  /**
+   * Returns the number of changes made to the keys of Property objects indexed in more than one
+   * Properties list.
+   * 
+   * @return The number of changes so far.
+   */
+  static int getSharedKeyChanges() {
+    return SHARED_KEY_CHANGES.get();
+  }
+
+  /**
+   * Returns the value as a double, parsing it only the first time it is asked for.
+   * 
+   * @return The value.
+   * @throws NumberFormatException If the value is not a double.
+   */
+  double getValueAsDouble() {
+    ParsedValue current = this.parsed;
+    if ((current == null) || (current.value != this.value)
+        || (current.kind != ParsedValue.DOUBLE)) {
+      current = new ParsedValue(this.value, ParsedValue.DOUBLE, Double.parseDouble(this.value), 0);
+      this.parsed = current;
+    }
+    return current.doubleValue;
+  }
+
+  /**
+   * Returns the value as an int, parsing it only the first time it is asked for.
+   * 
+   * @return The value.
+   * @throws NumberFormatException If the value is not an int.
+   */
+  int getValueAsInt() {
+    ParsedValue current = this.parsed;
+    if ((current == null) || (current.value != this.value) || (current.kind != ParsedValue.INT)) {
+      current = new ParsedValue(this.value, ParsedValue.INT, 0, Integer.parseInt(this.value));
+      this.parsed = current;
+    }
+    return (int) current.longValue;
+  }
+
+  /**
+   * Returns the value as a long, parsing it only the first time it is asked for.
+   * 
+   * @return The value.
+   * @throws NumberFormatException If the value is not a long.
+   */
+  long getValueAsLong() {
+    ParsedValue current = this.parsed;
+    if ((current == null) || (current.value != this.value) || (current.kind != ParsedValue.LONG)) {
+      current = new ParsedValue(this.value, ParsedValue.LONG, 0, Long.parseLong(this.value));
+      this.parsed = current;
+    }
+    return current.longValue;
+  }
+
   // Broke down and added these manually to the generated code. It would be better if they were
   // automatically generated via XJC plugins, but that required a bunch of dependencies that I
   // was unwilling to deal with right now. If the schema files change, this code will be blown
@@ -203,4 +300,48 @@ public class Property implements Serializable {
   public String toString() {
     return "Property [key=" + key + ", value=" + value + "]";
   }
+
+  /**
+   * A value string and the number parsed from it. Immutable, so threads racing to parse a value
+   * are harmless. It is matched to the value by identity, so a value changed by setValue is parsed
+   * again.
+   */
+  private static final class ParsedValue {
+
+    /** The kind of a value parsed as a double. */
+    static final int DOUBLE = 0;
+
+    /** The kind of a value parsed as an int. */
+    static final int INT = 1;
+
+    /** The kind of a value parsed as a long. */
+    static final int LONG = 2;
+
+    /** The value string parsed. */
+    private final String value;
+
+    /** How the value was parsed: DOUBLE, INT or LONG. */
+    private final int kind;
+
+    /** The value parsed as a double. */
+    private final double doubleValue;
+
+    /** The value parsed as an int or long. */
+    private final long longValue;
+
+    /**
+     * Creates a new ParsedValue.
+     * 
+     * @param value The value string parsed.
+     * @param kind How the value was parsed: DOUBLE, INT or LONG.
+     * @param doubleValue The value parsed as a double, if kind is DOUBLE.
+     * @param longValue The value parsed as an int or long, if kind is INT or LONG.
+     */
+    ParsedValue(String value, int kind, double doubleValue, long longValue) {
+      this.value = value;
+      this.kind = kind;
+      this.doubleValue = doubleValue;
+      this.longValue = longValue;
+    }
+  }
 }
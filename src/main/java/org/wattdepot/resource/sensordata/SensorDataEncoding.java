@@ -0,0 +1,74 @@
+package org.wattdepot.resource.sensordata;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+import org.wattdepot.resource.property.jaxb.Property;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.util.tstamp.Tstamp;
+
+/**
+ * Writes SensorData to and reads it from a compact binary form, for the server's own journals and
+ * logs. The form holds the timestamp, tool, source and properties, and is not meant to be read by
+ * anything but this class.
+ */
+public final class SensorDataEncoding {
+
+  /** Not instantiable. */
+  private SensorDataEncoding() {
+    // Static methods only.
+  }
+
+  /**
+   * Writes a SensorData.
+   *
+   * @param data The SensorData.
+   * @param output Where to write it.
+   * @throws IOException If it cannot be written.
+   */
+  public static void write(SensorData data, DataOutput output) throws IOException {
+    output.writeUTF(data.getTimestamp().toXMLFormat());
+    output.writeBoolean(data.getTool() != null);
+    if (data.getTool() != null) {
+      output.writeUTF(data.getTool());
+    }
+    output.writeUTF(data.getSource());
+    if (data.isSetProperties()) {
+      List<Property> props = data.getProperties().getProperty();
+      output.writeInt(props.size());
+      for (Property p : props) {
+        output.writeUTF(p.getKey());
+        output.writeUTF(p.getValue());
+      }
+    }
+    else {
+      output.writeInt(0);
+    }
+  }
+
+  /**
+   * Reads a SensorData written by write.
+   *
+   * @param input Where to read it from.
+   * @return The SensorData.
+   * @throws IOException If it cannot be read or is malformed.
+   */
+  public static SensorData read(DataInput input) throws IOException {
+    String timestamp = input.readUTF();
+    String tool = input.readBoolean() ? input.readUTF() : null;
+    String source = input.readUTF();
+    SensorData data;
+    try {
+      data = new SensorData(Tstamp.makeTimestamp(timestamp), tool, source);
+    }
+    catch (Exception e) {
+      throw new IOException("Bad SensorData timestamp: " + timestamp);
+    }
+    int count = input.readInt();
+    for (int i = 0; i < count; i++) {
+      data.addProperty(new Property(input.readUTF(), input.readUTF()));
+    }
+    return data;
+  }
+}
@@ -0,0 +1,495 @@
+package org.wattdepot.resource.sensordata;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.xml.datatype.DatatypeConstants;
+import javax.xml.datatype.XMLGregorianCalendar;
+import org.wattdepot.resource.property.jaxb.Properties;
+import org.wattdepot.resource.property.jaxb.Property;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.util.tstamp.Tstamp;
+
+/**
+ * A compact, immutable copy of a SensorData for holding readings in memory inside the server. The
+ * timestamp is kept as epoch milliseconds and a timezone offset, the tool and source URI strings
+ * are shared between all the records that use them, and the standard power and energy properties
+ * are kept as doubles, so interpolating a straddle parses nothing. Any other properties are kept
+ * as key and value strings.
+ *
+ * toSensorData() rebuilds a SensorData equal to the one the record was made from, with the same
+ * timestamp representation and the same properties in the same order. A standard property is
+ * only kept as a double if Double.toString gives back its original value, and only the first
+ * property with a given key is, so that nothing is lost in the round trip.
+ */
+public final class SensorDataRecord {
+
+  /** The keys of the properties kept as doubles, in slot order. */
+  private static final String[] STANDARD_KEYS =
+      { SensorData.POWER_CONSUMED, SensorData.POWER_GENERATED,
+          SensorData.ENERGY_CONSUMED_TO_DATE, SensorData.ENERGY_GENERATED_TO_DATE };
+
+  /**
+   * The shared copy of each tool, source URI and property key string in use. These strings come
+   * from clients, so the map holds them weakly: a string no record uses any more is cleared and
+   * its entry removed. The map is concurrent, so threads storing readings do not contend on a
+   * lock to make records.
+   */
+  private static final ConcurrentMap<String, SharedString> STRINGS =
+      new ConcurrentHashMap<String, SharedString>();
+
+  /** The queue the references in STRINGS are put on once their strings have been collected. */
+  private static final ReferenceQueue<String> CLEARED = new ReferenceQueue<String>();
+
+  /** The timestamp in milliseconds. */
+  private final long millis;
+
+  /** The timezone offset of the timestamp in minutes. */
+  private final int timezone;
+
+  /** Whether the timestamp has milliseconds, which it does unless it was given without. */
+  private final boolean millisecondSet;
+
+  /** The original timestamp, if millis and timezone cannot reproduce it exactly, otherwise null. */
+  private final XMLGregorianCalendar exactTimestamp;
+
+  /** The tool that made the SensorData. */
+  private final String tool;
+
+  /** The URI of the Source the SensorData belongs to. */
+  private final String source;
+
+  /** The powerConsumed property, or NaN if it is not kept as a double. */
+  private final double powerConsumed;
+
+  /** The powerGenerated property, or NaN if it is not kept as a double. */
+  private final double powerGenerated;
+
+  /** The energyConsumedToDate property, or NaN if it is not kept as a double. */
+  private final double energyConsumedToDate;
+
+  /** The energyGeneratedToDate property, or NaN if it is not kept as a double. */
+  private final double energyGeneratedToDate;
+
+  /** The keys and values of the other properties, alternating, or null if there are none. */
+  private final String[] extras;
+
+  /**
+   * The order of the properties: a standard slot number, or STANDARD_KEYS.length plus the index of
+   * a pair in extras, for each property. Null if the SensorData had no Properties at all.
+   */
+  private final short[] layout;
+
+  /**
+   * Creates a new SensorDataRecord from a SensorData.
+   *
+   * @param data The SensorData, which must have a timestamp.
+   */
+  private SensorDataRecord(SensorData data) {
+    XMLGregorianCalendar timestamp = data.getTimestamp();
+    this.millis = Tstamp.toMillis(timestamp);
+    if (isReproducible(timestamp)) {
+      this.timezone = timestamp.getTimezone();
+      this.millisecondSet = (timestamp.getFractionalSecond() != null);
+      this.exactTimestamp = null;
+    }
+    else {
+      this.timezone = 0;
+      this.millisecondSet = true;
+      this.exactTimestamp = timestamp;
+    }
+    this.tool = share(data.getTool());
+    this.source = share(data.getSource());
+
+    double[] slots = { Double.NaN, Double.NaN, Double.NaN, Double.NaN };
+    if (data.isSetProperties()) {
+      List<Property> properties = data.getProperties().getProperty();
+      short[] order = new short[properties.size()];
+      String[] others = new String[2 * properties.size()];
+      boolean[] seen = new boolean[STANDARD_KEYS.length];
+      int otherCount = 0;
+      for (int i = 0; i < order.length; i++) {
+        Property property = properties.get(i);
+        int slot = slotOf(property.getKey());
+        if ((slot >= 0) && !seen[slot]) {
+          seen[slot] = true;
+          double value = parseExactly(property.getValue());
+          if (!Double.isNaN(value)) {
+            slots[slot] = value;
+            order[i] = (short) slot;
+            continue;
+          }
+        }
+        others[2 * otherCount] = share(property.getKey());
+        others[2 * otherCount + 1] = property.getValue();
+        order[i] = (short) (STANDARD_KEYS.length + otherCount);
+        otherCount++;
+      }
+      this.layout = order;
+      this.extras = (otherCount == 0) ? null : Arrays.copyOf(others, 2 * otherCount);
+    }
+    else {
+      this.layout = null;
+      this.extras = null;
+    }
+    this.powerConsumed = slots[0];
+    this.powerGenerated = slots[1];
+    this.energyConsumedToDate = slots[2];
+    this.energyGeneratedToDate = slots[3];
+  }
+
+  /**
+   * Returns a SensorDataRecord holding the contents of a SensorData.
+   *
+   * @param data The SensorData.
+   * @return The record, or null if data is null or has no timestamp.
+   */
+  public static SensorDataRecord fromSensorData(SensorData data) {
+    if ((data == null) || (data.getTimestamp() == null)) {
+      return null;
+    }
+    return new SensorDataRecord(data);
+  }
+
+  /**
+   * Returns a new SensorData equal to the one this record was made from.
+   *
+   * @return The SensorData.
+   */
+  public SensorData toSensorData() {
+    Properties properties = null;
+    if (this.layout != null) {
+      properties = new Properties();
+      List<Property> list = properties.getProperty();
+      for (short entry : this.layout) {
+        if (entry < STANDARD_KEYS.length) {
+          list.add(new Property(STANDARD_KEYS[entry], Double.toString(getSlot(entry))));
+        }
+        else {
+          int pair = 2 * (entry - STANDARD_KEYS.length);
+          list.add(new Property(this.extras[pair], this.extras[pair + 1]));
+        }
+      }
+    }
+    return new SensorData(getTimestamp(), this.tool, this.source, properties);
+  }
+
+  /**
+   * Returns the timestamp as a new XMLGregorianCalendar, in its original timezone.
+   *
+   * @return The timestamp.
+   */
+  public XMLGregorianCalendar getTimestamp() {
+    if (this.exactTimestamp != null) {
+      return (XMLGregorianCalendar) this.exactTimestamp.clone();
+    }
+    XMLGregorianCalendar timestamp = Tstamp.makeTimestamp(this.millis, this.timezone);
+    if (!this.millisecondSet) {
+      timestamp.setMillisecond(DatatypeConstants.FIELD_UNDEFINED);
+    }
+    return timestamp;
+  }
+
+  /**
+   * Returns the timestamp in milliseconds.
+   *
+   * @return The timestamp in milliseconds since the epoch.
+   */
+  public long getMillis() {
+    return this.millis;
+  }
+
+  /**
+   * Returns the tool that made the SensorData.
+   *
+   * @return The tool.
+   */
+  public String getTool() {
+    return this.tool;
+  }
+
+  /**
+   * Returns the URI of the Source the SensorData belongs to.
+   *
+   * @return The source URI.
+   */
+  public String getSource() {
+    return this.source;
+  }
+
+  /**
+   * Returns the value of the Property with the given key as a String, like
+   * SensorData.getProperty.
+   *
+   * @param key The key.
+   * @return The key's value, or null if the key is not found.
+   */
+  public String getProperty(String key) {
+    int slot = slotOf(key);
+    if ((slot >= 0) && !Double.isNaN(getSlot(slot))) {
+      return Double.toString(getSlot(slot));
+    }
+    return getExtra(key);
+  }
+
+  /**
+   * Returns whether there is a Property with the given key.
+   *
+   * @param key The key.
+   * @return True if the key is found, false otherwise.
+   */
+  public boolean hasProperty(String key) {
+    int slot = slotOf(key);
+    return ((slot >= 0) && !Double.isNaN(getSlot(slot))) || (getExtra(key) != null);
+  }
+
+  /**
+   * Returns the value of the Property with the given key as a double, like
+   * SensorData.getPropertyAsDouble. The standard power and energy properties are not parsed.
+   *
+   * @param key The key.
+   * @return The key's value as a double, or 0 if the key is not found.
+   * @throws NumberFormatException If the value is not a number.
+   */
+  public double getPropertyAsDouble(String key) {
+    int slot = slotOf(key);
+    if ((slot >= 0) && !Double.isNaN(getSlot(slot))) {
+      return getSlot(slot);
+    }
+    String value = getExtra(key);
+    return (value == null) ? 0 : Double.valueOf(value);
+  }
+
+  /**
+   * Returns the estimated number of bytes this record takes up, not counting the tool and source
+   * strings, which are shared.
+   *
+   * @return The estimated size in bytes.
+   */
+  public int estimateBytes() {
+    // Header, fields and the layout array
+    int bytes = 96;
+    if (this.layout != null) {
+      bytes += 16 + 2 * this.layout.length;
+    }
+    if (this.extras != null) {
+      bytes += 16 + 8 * this.extras.length;
+      for (int i = 1; i < this.extras.length; i += 2) {
+        // Keys are shared, values are not
+        bytes += 40 + 2 * ((this.extras[i] == null) ? 0 : this.extras[i].length());
+      }
+    }
+    if (this.exactTimestamp != null) {
+      bytes += 128;
+    }
+    return bytes;
+  }
+
+  /**
+   * Returns whether another object is a SensorDataRecord holding the same SensorData.
+   *
+   * @param obj The object to compare.
+   * @return True if toSensorData() would give equal SensorData.
+   */
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof SensorDataRecord)) {
+      return false;
+    }
+    SensorDataRecord other = (SensorDataRecord) obj;
+    return (this.millis == other.millis) && equal(this.tool, other.tool)
+        && equal(this.source, other.source)
+        && (Double.compare(this.powerConsumed, other.powerConsumed) == 0)
+        && (Double.compare(this.powerGenerated, other.powerGenerated) == 0)
+        && (Double.compare(this.energyConsumedToDate, other.energyConsumedToDate) == 0)
+        && (Double.compare(this.energyGeneratedToDate, other.energyGeneratedToDate) == 0)
+        && Arrays.equals(this.layout, other.layout) && Arrays.equals(this.extras, other.extras);
+  }
+
+  /**
+   * Returns a hash code consistent with equals.
+   *
+   * @return The hash code.
+   */
+  @Override
+  public int hashCode() {
+    int hash = (int) (this.millis ^ (this.millis >>> 32));
+    hash = 31 * hash + ((this.source == null) ? 0 : this.source.hashCode());
+    long bits = Double.doubleToLongBits(this.powerConsumed);
+    hash = 31 * hash + (int) (bits ^ (bits >>> 32));
+    bits = Double.doubleToLongBits(this.powerGenerated);
+    return 31 * hash + (int) (bits ^ (bits >>> 32));
+  }
+
+  /**
+   * Returns the value of a standard slot.
+   *
+   * @param slot The slot number.
+   * @return Its value, or NaN if it is not set.
+   */
+  private double getSlot(int slot) {
+    switch (slot) {
+    case 0:
+      return this.powerConsumed;
+    case 1:
+      return this.powerGenerated;
+    case 2:
+      return this.energyConsumedToDate;
+    default:
+      return this.energyGeneratedToDate;
+    }
+  }
+
+  /**
+   * Returns the value of the first of the other properties with the given key.
+   *
+   * @param key The key.
+   * @return The value, or null if there is none.
+   */
+  private String getExtra(String key) {
+    if (this.extras != null) {
+      for (int i = 0; i < this.extras.length; i += 2) {
+        if (key.equals(this.extras[i])) {
+          return this.extras[i + 1];
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the slot number of a standard property key.
+   *
+   * @param key The key.
+   * @return The slot number, or -1 if the key is not standard.
+   */
+  private static int slotOf(String key) {
+    for (int i = 0; i < STANDARD_KEYS.length; i++) {
+      if (STANDARD_KEYS[i].equals(key)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Parses a property value that Double.toString gives back unchanged.
+   *
+   * @param value The value.
+   * @return The number, or NaN if value is not a number in that form.
+   */
+  private static double parseExactly(String value) {
+    if (value == null) {
+      return Double.NaN;
+    }
+    try {
+      double number = Double.parseDouble(value);
+      return Double.toString(number).equals(value) ? number : Double.NaN;
+    }
+    catch (NumberFormatException e) {
+      return Double.NaN;
+    }
+  }
+
+  /**
+   * Returns whether millis and the timezone offset reproduce a timestamp exactly.
+   *
+   * @param timestamp The timestamp.
+   * @return True if getTimestamp() can rebuild it from millis and its timezone.
+   */
+  private static boolean isReproducible(XMLGregorianCalendar timestamp) {
+    BigDecimal fraction = timestamp.getFractionalSecond();
+    // Tstamp converts times before the Gregorian calendar through GregorianCalendar, which uses
+    // the Julian calendar for them
+    return (timestamp.getEon() == null) && (timestamp.getYear() > 1582)
+        && (timestamp.getMonth() != DatatypeConstants.FIELD_UNDEFINED)
+        && (timestamp.getDay() != DatatypeConstants.FIELD_UNDEFINED)
+        && (timestamp.getHour() != DatatypeConstants.FIELD_UNDEFINED)
+        && (timestamp.getHour() < 24)
+        && (timestamp.getMinute() != DatatypeConstants.FIELD_UNDEFINED)
+        && (timestamp.getSecond() != DatatypeConstants.FIELD_UNDEFINED)
+        && (timestamp.getSecond() < 60)
+        && (timestamp.getTimezone() != DatatypeConstants.FIELD_UNDEFINED)
+        && ((fraction == null) || (fraction.scale() == 3));
+  }
+
+  /**
+   * Returns the shared copy of a string.
+   *
+   * @param string The string.
+   * @return An equal string, shared with every other record that uses it.
+   */
+  private static String share(String string) {
+    if (string == null) {
+      return null;
+    }
+    removeCleared();
+    SharedString reference = STRINGS.get(string);
+    String shared = (reference == null) ? null : reference.get();
+    while (shared == null) {
+      // Absent or collected: try to make this string the shared copy, unless another thread
+      // just did so for an equal one
+      SharedString fresh = new SharedString(string);
+      if ((reference == null) ? (STRINGS.putIfAbsent(fresh.key, fresh) == null) : STRINGS
+          .replace(string, reference, fresh)) {
+        return string;
+      }
+      reference = STRINGS.get(string);
+      shared = (reference == null) ? null : reference.get();
+    }
+    return shared;
+  }
+
+  /**
+   * Removes the entries of STRINGS whose strings have been collected.
+   */
+  private static void removeCleared() {
+    Reference<? extends String> cleared = CLEARED.poll();
+    while (cleared != null) {
+      SharedString reference = (SharedString) cleared;
+      STRINGS.remove(reference.key, reference);
+      cleared = CLEARED.poll();
+    }
+  }
+
+  /**
+   * Compares two strings that may be null.
+   *
+   * @param a One string.
+   * @param b The other string.
+   * @return True if they are both null or equal.
+   */
+  private static boolean equal(String a, String b) {
+    return (a == null) ? (b == null) : a.equals(b);
+  }
+
+  /**
+   * A weak reference to the shared copy of a string, as held in STRINGS.
+   */
+  private static final class SharedString extends WeakReference<String> {
+
+    /**
+     * The key of the entry in STRINGS, an equal string that is not the shared copy, so the map
+     * does not keep the shared copy from being collected.
+     */
+    private final String key;
+
+    /**
+     * Creates a reference to the given string, put on CLEARED once the string is collected.
+     *
+     * @param string The string to share.
+     */
+    SharedString(String string) {
+      super(string, CLEARED);
+      this.key = new String(string);
+    }
+  }
+}
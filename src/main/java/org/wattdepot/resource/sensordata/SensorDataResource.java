@@ -1,11 +1,16 @@
 package org.wattdepot.resource.sensordata;
 
+import java.util.List;
 import javax.xml.bind.JAXBException;
 import javax.xml.datatype.XMLGregorianCalendar;
+import org.restlet.data.MediaType;
 import org.restlet.data.Status;
 import org.wattdepot.resource.ResourceInterface;
 import org.wattdepot.resource.WattDepotResource;
 import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.resource.sensordata.jaxb.SensorDataIndex;
+import org.wattdepot.resource.sensordata.jaxb.SensorDataRef;
+import org.wattdepot.resource.sensordata.jaxb.SensorDatas;
 import org.wattdepot.resource.source.jaxb.Source;
 import org.wattdepot.server.Server;
 import org.wattdepot.server.db.DbBadIntervalException;
@@ -215,7 +220,8 @@ public class SensorDataResource extends WattDepotResource implements ResourceInt
   }
 
   /**
-   * Implement the PUT method that creates a SensorData resource.
+   * Implement the PUT method that creates a SensorData resource. If no timestamp is given in the
+   * URI, the entity is expected to be a SensorDatas containing many SensorData to be stored at once.
    * 
    * @param entity The entity to be put.
    */
@@ -224,6 +230,11 @@ public class SensorDataResource extends WattDepotResource implements ResourceInt
     Source source = validateKnownSource();
 
     if (source != null && validateSourceOwnerOrAdmin(source)) {
+      // No timestamp in the URI means the entity holds a batch of SensorData
+      if (this.timestamp == null) {
+        storeSensorDatas(entity, source);
+        return;
+      }
       XMLGregorianCalendar timestampObj = null;
       // check if timestamp is OK
       try {
@@ -270,4 +281,64 @@ public class SensorDataResource extends WattDepotResource implements ResourceInt
       }
     }
   }
+
+  /**
+   * Stores each SensorData in the given SensorDatas entity. SensorData that already exists, or
+   * that otherwise could not be stored, does not prevent the rest from being stored. The response
+   * entity is a SensorDataIndex referring to every SensorData that was not stored: the status is
+   * 201 if that index is empty and 200 otherwise.
+   * 
+   * @param entity The SensorDatas entity to be put.
+   * @param source The Source given in the URI.
+   */
+  private void storeSensorDatas(String entity, Source source) {
+    SensorDatas datas;
+    if ((entity == null) || ("".equals(entity))) {
+      setStatusMiscError("Entity body was empty");
+      return;
+    }
+    try {
+      datas = makeSensorDatas(entity);
+    }
+    catch (JAXBException e) {
+      setStatusMiscError("Invalid SensorDatas representation: " + entity);
+      return;
+    }
+    String sourceUri = source.toUri(server);
+    for (SensorData data : datas.getSensorData()) {
+      if (data.getTimestamp() == null) {
+        setStatusMiscError("SensorData in SensorDatas is missing a timestamp.");
+        return;
+      }
+      // Return failure if any SensorData Source doesn't match the uriSource
+      if (!sourceUri.equals(data.getSource())) {
+        setStatusMiscError("The source given in the URI (" + sourceUri
+            + ") does not match the source given in the payload (" + data.getSource() + ")");
+        return;
+      }
+    }
+
+    List<SensorData> rejected = dbManager.storeSensorDatas(datas.getSensorData(), source);
+    if (rejected == null) {
+      setStatusInternalError("Unable to create SensorDatas");
+      return;
+    }
+    SensorDataIndex index = new SensorDataIndex();
+    for (SensorData data : rejected) {
+      index.getSensorDataRef().add(new SensorDataRef(data));
+    }
+    try {
+      getResponse().setEntity(makeSensorDataIndexXml(index), MediaType.TEXT_XML);
+    }
+    catch (JAXBException e) {
+      setStatusInternalError(e);
+      return;
+    }
+    if (rejected.isEmpty()) {
+      getResponse().setStatus(Status.SUCCESS_CREATED);
+    }
+    else {
+      getResponse().setStatus(Status.SUCCESS_OK);
+    }
+  }
 }
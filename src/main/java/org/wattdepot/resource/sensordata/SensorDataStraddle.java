@@ -1,10 +1,12 @@
 package org.wattdepot.resource.sensordata;
 
+import java.util.ArrayList;
 import java.util.List;
 import javax.xml.datatype.DatatypeConstants;
 import javax.xml.datatype.XMLGregorianCalendar;
 import org.wattdepot.resource.property.jaxb.Property;
 import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.util.tstamp.Tstamp;
 
 /**
  * Provides a representation for a pair of SensorData objects that "straddle" a particular
@@ -18,6 +20,10 @@ import org.wattdepot.resource.sensordata.jaxb.SensorData;
  * It also provides methods for computing various interpolated values based on the properties
  * specified in the straddling SensorData objects.
  * 
+ * A straddle can also be made from SensorDataRecords, as the in-memory stores keep them, in which
+ * case the interpolation reads their power and energy values without parsing anything, and
+ * getBeforeData and getAfterData only build SensorData when they are called.
+ * 
  * @author Robert Brewer
  */
 public class SensorDataStraddle {
@@ -25,11 +31,26 @@ public class SensorDataStraddle {
   /** The timestamp of interest. */
   private XMLGregorianCalendar timestamp;
 
-  /** The SensorData that comes before the timestamp. */
-  private final SensorData beforeData;
+  /** The timestamp of interest in milliseconds. */
+  private long timestampMillis;
+
+  /** The SensorData that comes before the timestamp, or null until it is built from before. */
+  private SensorData beforeData;
+
+  /** The SensorData that comes after the timestamp, or null until it is built from after. */
+  private SensorData afterData;
+
+  /** The record that comes before the timestamp, or null if made from SensorData. */
+  private final SensorDataRecord before;
+
+  /** The record that comes after the timestamp, or null if made from SensorData. */
+  private final SensorDataRecord after;
 
-  /** The SensorData that comes after the timestamp. */
-  private final SensorData afterData;
+  /** The timestamp of the data before the timestamp of interest, in milliseconds. */
+  private final long beforeMillis;
+
+  /** The timestamp of the data after the timestamp of interest, in milliseconds. */
+  private final long afterMillis;
 
   /** Whether this straddle is degenerate or not. */
   private final boolean degenerate;
@@ -57,37 +78,67 @@ public class SensorDataStraddle {
     else {
       this.beforeData = beforeData;
       this.afterData = afterData;
+      this.before = null;
+      this.after = null;
+      this.beforeMillis = Tstamp.toMillis(beforeData.getTimestamp());
+      this.afterMillis = Tstamp.toMillis(afterData.getTimestamp());
       this.degenerate = beforeData.equals(afterData);
     }
-    if (validateTimestamp(timestamp)) {
-      this.timestamp = timestamp;
+    assignTimestamp(timestamp);
+  }
+
+  /**
+   * Creates the new SensorDataStraddle from records.
+   * 
+   * @param timestamp The timestamp of interest in the straddle.
+   * @param before The record that comes before the timestamp.
+   * @param after The record that comes after the timestamp.
+   * @param degenerate Whether before and after hold the same SensorData.
+   */
+  private SensorDataStraddle(XMLGregorianCalendar timestamp, SensorDataRecord before,
+      SensorDataRecord after, boolean degenerate) {
+    this.before = before;
+    this.after = after;
+    this.beforeMillis = before.getMillis();
+    this.afterMillis = after.getMillis();
+    this.degenerate = degenerate;
+    assignTimestamp(timestamp);
+  }
+
+  /**
+   * Returns a new SensorDataStraddle made from records, such as those kept by the in-memory
+   * stores. Pass the same record as before and after for the degenerate case.
+   * 
+   * @param timestamp The timestamp of interest in the straddle.
+   * @param before The record that comes before the timestamp.
+   * @param after The record that comes after the timestamp.
+   * @return The new SensorDataStraddle.
+   * @throws IllegalArgumentException If before or after are null, if before is after after (order
+   * swapped), or if the timestamp is not between before and after.
+   */
+  public static SensorDataStraddle fromRecords(XMLGregorianCalendar timestamp,
+      SensorDataRecord before, SensorDataRecord after) {
+    if ((before == null) || (after == null)) {
+      throw new IllegalArgumentException(
+          "Attempt to create SensorDataStraddle with null SensorData");
     }
-    else {
-      throw new IllegalArgumentException("Attempt to set timestamp outside of straddle range");
+    else if (before.getMillis() > after.getMillis()) {
+      throw new IllegalArgumentException(
+          "Attempt to create SensorDataStraddle with beforeData after afterData");
     }
+    return new SensorDataStraddle(timestamp, before, after, before.equals(after));
   }
 
   /**
    * Checks whether the given timestamp is inside the straddle range.
    * 
-   * @param timestamp The timestamp to be checked.
+   * @param timestamp The timestamp to be checked, in milliseconds.
    * @return True if the timestamp is after (or equal to) the start of the straddle and before (or
    * equal to) the end of the straddle, false otherwise.
    */
-  private boolean validateTimestamp(XMLGregorianCalendar timestamp) {
-    XMLGregorianCalendar before = this.beforeData.getTimestamp(), after =
-        this.afterData.getTimestamp();
-    int compareBefore = timestamp.compare(before);
-    int compareAfter = timestamp.compare(after);
-    // valid if timestamp equal to beforeData or afterData timestamp
-    if ((compareBefore == DatatypeConstants.EQUAL) || (compareAfter == DatatypeConstants.EQUAL)) {
-      return true;
-    }
-    // valid if timestamp between beforeData and afterData timestamps
-    else {
-      return (compareBefore == DatatypeConstants.GREATER)
-          && (compareAfter == DatatypeConstants.LESSER);
-    }
+  private boolean validateTimestamp(long timestamp) {
+    // valid if timestamp equal to or between beforeData and afterData timestamps
+    return (this.beforeMillis <= timestamp) && (timestamp <= this.afterMillis);
   }
 
   /**
@@ -106,8 +157,20 @@ public class SensorDataStraddle {
    * @throws IllegalArgumentException If the timestamp is not between beforeData and afterData.
    */
   public void setTimestamp(XMLGregorianCalendar timestamp) {
-    if (validateTimestamp(timestamp)) {
+    assignTimestamp(timestamp);
+  }
+
+  /**
+   * Sets the timestamp, for the constructors and setTimestamp.
+   * 
+   * @param timestamp the timestamp to set
+   * @throws IllegalArgumentException If the timestamp is not between beforeData and afterData.
+   */
+  private void assignTimestamp(XMLGregorianCalendar timestamp) {
+    long millis = Tstamp.toMillis(timestamp);
+    if (validateTimestamp(millis)) {
       this.timestamp = timestamp;
+      this.timestampMillis = millis;
     }
     else {
       throw new IllegalArgumentException("Attempt to set timestamp outside of straddle range");
@@ -120,7 +183,10 @@ public class SensorDataStraddle {
    * @return the beforeData
    */
   public SensorData getBeforeData() {
-    return beforeData;
+    if (this.beforeData == null) {
+      this.beforeData = this.before.toSensorData();
+    }
+    return this.beforeData;
   }
 
   /**
@@ -129,7 +195,37 @@ public class SensorDataStraddle {
    * @return the afterData
    */
   public SensorData getAfterData() {
-    return afterData;
+    if (this.afterData == null) {
+      this.afterData = (this.after == this.before) ? getBeforeData() : this.after.toSensorData();
+    }
+    return this.afterData;
+  }
+
+  /**
+   * Returns the URI of the Source of the straddling SensorData.
+   * 
+   * @return The source URI.
+   */
+  public String getSource() {
+    return (this.before == null) ? this.beforeData.getSource() : this.before.getSource();
+  }
+
+  /**
+   * Returns the timestamp of the SensorData that is before the timestamp.
+   * 
+   * @return The timestamp in milliseconds.
+   */
+  public long getBeforeMillis() {
+    return this.beforeMillis;
+  }
+
+  /**
+   * Returns the timestamp of the SensorData that is after the timestamp.
+   * 
+   * @return The timestamp in milliseconds.
+   */
+  public long getAfterMillis() {
+    return this.afterMillis;
   }
 
   /**
@@ -154,30 +250,35 @@ public class SensorDataStraddle {
     if (isDegenerate()) {
       // degenerate case: timestamp matched actual sensor data, so just return property from
       // sensor data
-      return beforeData.getProperties().getPropertyAsDouble(propertyKey);
+      return (this.before == null) ? beforeData.getProperties().getPropertyAsDouble(propertyKey)
+          : this.before.getPropertyAsDouble(propertyKey);
     }
-    else {
+    double beforeValue, afterValue;
+    if (this.before == null) {
       String beforeString = this.beforeData.getProperty(propertyKey);
       String afterString = this.afterData.getProperty(propertyKey);
       // If the property is missing from either SensorData, return 0
       if ((beforeString == null) || (afterString == null)) {
         return 0;
       }
-      else {
-        double beforeValue = Double.valueOf(beforeString);
-        double afterValue = Double.valueOf(afterString);
-        // convert from milliseconds to seconds
-        double beforeTime =
-            this.beforeData.getTimestamp().toGregorianCalendar().getTimeInMillis() / 1000.0;
-        double afterTime =
-            this.afterData.getTimestamp().toGregorianCalendar().getTimeInMillis() / 1000.0;
-        double timestampTime = this.timestamp.toGregorianCalendar().getTimeInMillis() / 1000.0;
-
-        // linear interpolation time!
-        return ((afterValue - beforeValue) / (afterTime - beforeTime))
-            * (timestampTime - beforeTime) + beforeValue;
+      beforeValue = Double.valueOf(beforeString);
+      afterValue = Double.valueOf(afterString);
+    }
+    else {
+      if (!this.before.hasProperty(propertyKey) || !this.after.hasProperty(propertyKey)) {
+        return 0;
       }
+      beforeValue = this.before.getPropertyAsDouble(propertyKey);
+      afterValue = this.after.getPropertyAsDouble(propertyKey);
     }
+    // convert from milliseconds to seconds
+    double beforeTime = this.beforeMillis / 1000.0;
+    double afterTime = this.afterMillis / 1000.0;
+    double timestampTime = this.timestampMillis / 1000.0;
+
+    // linear interpolation time!
+    return ((afterValue - beforeValue) / (afterTime - beforeTime)) * (timestampTime - beforeTime)
+        + beforeValue;
   }
 
   // /**
@@ -268,13 +369,13 @@ public class SensorDataStraddle {
   public SensorData getPower() {
     if (isDegenerate()) {
       // degenerate case: timestamp matched actual sensor data, so just return that sensor data
-      return beforeData;
+      return getBeforeData();
     }
     else {
       double powerGeneratedValue = getPowerGenerated();
       double powerConsumedValue = getPowerConsumed();
 
-      return makePowerSensorData(this.timestamp, this.beforeData.getSource(), powerGeneratedValue,
+      return makePowerSensorData(this.timestamp, getSource(), powerGeneratedValue,
           powerConsumedValue, true);
     }
   }
@@ -361,12 +462,9 @@ public class SensorDataStraddle {
       timestamp = straddleList.get(0).getTimestamp();
       for (SensorDataStraddle straddle : straddleList) {
         if (straddle.isDegenerate()) {
-          powerGenerated +=
-              straddle.getBeforeData().getProperties().getPropertyAsDouble(
-                  SensorData.POWER_GENERATED);
-          powerConsumed +=
-              straddle.getBeforeData().getProperties().getPropertyAsDouble(
-                  SensorData.POWER_CONSUMED);
+          // The value of the SensorData at the timestamp
+          powerGenerated += straddle.getPowerGenerated();
+          powerConsumed += straddle.getPowerConsumed();
         }
         else {
           // If any of the straddles were non-degenerate, then set the whole thing to interpolated
@@ -378,4 +476,52 @@ public class SensorDataStraddle {
       return makePowerSensorData(timestamp, source, powerGenerated, powerConsumed, wasInterpolated);
     }
   }
+
+  /**
+   * Builds a SensorDataStraddle for each of the given timestamps from a List of SensorData sorted
+   * by ascending timestamp, such as the result of a single range query that covers all of the
+   * timestamps. Each straddle uses the closest SensorData on either side of its timestamp, or is
+   * degenerate if there is SensorData at exactly that timestamp.
+   * 
+   * @param sortedDatas The SensorData to build the straddles from, sorted by ascending timestamp.
+   * @param timestampList The timestamps of interest, in any order.
+   * @return A List with one entry for each timestamp, in the same order as timestampList. An entry
+   * is null if there is no SensorData on one side of its timestamp.
+   */
+  public static List<SensorDataStraddle> getStraddlesFromList(List<SensorData> sortedDatas,
+      List<XMLGregorianCalendar> timestampList) {
+    List<SensorDataStraddle> straddleList =
+        new ArrayList<SensorDataStraddle>(timestampList.size());
+    for (XMLGregorianCalendar timestamp : timestampList) {
+      // Binary search for the first SensorData at or after the timestamp
+      int low = 0, high = sortedDatas.size();
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (sortedDatas.get(mid).getTimestamp().compare(timestamp) == DatatypeConstants.LESSER) {
+          low = mid + 1;
+        }
+        else {
+          high = mid;
+        }
+      }
+      if (low == sortedDatas.size()) {
+        // No data at or after the timestamp, so no straddle
+        straddleList.add(null);
+      }
+      else {
+        SensorData afterData = sortedDatas.get(low);
+        if (afterData.getTimestamp().compare(timestamp) == DatatypeConstants.EQUAL) {
+          straddleList.add(new SensorDataStraddle(timestamp, afterData, afterData));
+        }
+        else if (low == 0) {
+          // No data before the timestamp, so no straddle
+          straddleList.add(null);
+        }
+        else {
+          straddleList.add(new SensorDataStraddle(timestamp, sortedDatas.get(low - 1), afterData));
+        }
+      }
+    }
+    return straddleList;
+  }
 }
\ No newline at end of file
@@ -94,6 +94,16 @@ public class Source implements Serializable, Comparable<Source> {
    * store sensor data to persistant disk storage (as opposed to cache).
    */
   public static final String CACHE_CHECKPOINT_INTERVAL = "cacheCheckpointInterval";
+  /**
+   * Property key for raw data retention in days. SensorData older than this is downsampled to the
+   * DOWNSAMPLE_INTERVAL by the server's retention scheduler.
+   */
+  public static final String RAW_RETENTION_DAYS = "rawRetentionDays";
+  /**
+   * Property key for downsample interval in minutes. This specifies how coarse SensorData older
+   * than RAW_RETENTION_DAYS becomes.
+   */
+  public static final String DOWNSAMPLE_INTERVAL = "downsampleInterval";
 
   /**
    * Default no-argument constructor, apparently needed by JAXB. Don't use this, use the one with
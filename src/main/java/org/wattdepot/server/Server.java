@@ -6,6 +6,10 @@ import static org.wattdepot.server.ServerProperties.DATAINPUT_START_KEY;
 import static org.wattdepot.server.ServerProperties.LOGGING_LEVEL_KEY;
 import static org.wattdepot.server.ServerProperties.MAX_THREADS;
 import static org.wattdepot.server.ServerProperties.PORT_KEY;
+import static org.wattdepot.server.ServerProperties.RETENTION_CHUNK_KEY;
+import static org.wattdepot.server.ServerProperties.RETENTION_INTERVAL_KEY;
+import static org.wattdepot.server.ServerProperties.RETENTION_KEY;
+import static org.wattdepot.server.ServerProperties.RETENTION_PAUSE_KEY;
 import static org.wattdepot.server.ServerProperties.SERVER_HOME_DIR;
 import static org.wattdepot.server.ServerProperties.TEST_INSTALL_KEY;
 import java.io.File;
@@ -46,6 +50,7 @@ import org.wattdepot.resource.user.UserResource;
 import org.wattdepot.resource.user.jaxb.User;
 import org.wattdepot.sensor.MultiThreadedSensor;
 import org.wattdepot.server.db.DbManager;
+import org.wattdepot.server.db.RetentionScheduler;
 import org.wattdepot.util.logger.RestletLoggerUtil;
 import org.wattdepot.util.logger.WattDepotLogger;
 
@@ -119,6 +124,9 @@ public class Server extends Application {
   /** The DbManager for this server. */
   public DbManager dbManager;
 
+  /** Downsamples old SensorData in the background, or null if retention is not enabled. */
+  private RetentionScheduler retention;
+
   /** Users JAXBContext. */
   private static final JAXBContext userJAXB;
   /** SensorData JAXBContext. */
@@ -298,6 +306,14 @@ public class Server extends Application {
         // Note, always setting debug to false when running sensor in server for now
         MultiThreadedSensor.start(server.serverProperties.get(DATAINPUT_FILE_KEY), false, null);
       }
+      if ("true".equals(server.serverProperties.get(RETENTION_KEY))) {
+        server.retention =
+            new RetentionScheduler(server.dbManager, Integer.parseInt(server.serverProperties
+                .get(RETENTION_INTERVAL_KEY)), Integer.parseInt(server.serverProperties
+                .get(RETENTION_CHUNK_KEY)), Long.parseLong(server.serverProperties
+                .get(RETENTION_PAUSE_KEY)), server.logger);
+        server.retention.start();
+      }
       return server;
     }
   }
@@ -574,6 +590,15 @@ public class Server extends Application {
     return this.serverProperties;
   }
 
+  /**
+   * Returns the scheduler that downsamples old SensorData.
+   * 
+   * @return The retention scheduler, or null if retention is not enabled.
+   */
+  public RetentionScheduler getRetentionScheduler() {
+    return this.retention;
+  }
+
   /**
    * Shuts down the WattDepot server, in the hope that it will stop listening for connections.
    * 
@@ -581,6 +606,9 @@ public class Server extends Application {
    */
   public void shutdown() throws Exception {
     this.component.stop();
+    if (this.retention != null) {
+      this.retention.stop();
+    }
     this.dbManager.stop();
   }
 
@@ -37,18 +37,84 @@ public class ServerProperties {
   public static final String DB_PASSWORD_KEY = "wattdepot-server.db.password";
   /** The berkeleyDB database directory key. */
   public static final String BERKELEYDB_DIR_KEY = "wattdepot-server.db.berkeleydb.dir";
+  /** The BerkeleyDB SensorData ingest durability (sync, write-no-sync or no-sync) key. */
+  public static final String BERKELEYDB_DURABILITY_KEY =
+      "wattdepot-server.db.berkeleydb.durability";
+  /** The seconds between BerkeleyDB flushes to disk when ingest is not synced key. */
+  public static final String BERKELEYDB_SYNC_INTERVAL_KEY =
+      "wattdepot-server.db.berkeleydb.syncIntervalSeconds";
+  /** The maximum number of concurrent BerkeleyDB SensorData stores sharing a commit key. */
+  public static final String BERKELEYDB_GROUP_COMMIT_KEY =
+      "wattdepot-server.db.berkeleydb.groupCommitSize";
   /** The derby database directory key. */
   public static final String DERBY_DIR_KEY = "wattdepot-server.db.derby.dir";
   /** The derby database snapshot directory key. */
   public static final String DERBY_SNAPSHOT_KEY = "wattdepot-server.db.derby.snapshot";
+  /** The maximum Derby connection pool size key. */
+  public static final String DERBY_MAX_ACTIVE_KEY = "wattdepot-server.db.derby.maxActive";
+  /** The initial Derby connection pool size key. */
+  public static final String DERBY_INITIAL_SIZE_KEY = "wattdepot-server.db.derby.initialSize";
+  /** The number of prepared statements cached per pooled Derby connection key. */
+  public static final String DERBY_STATEMENT_CACHE_SIZE_KEY =
+      "wattdepot-server.db.derby.statementCacheSize";
   /** The Postgres database snapshot file key. */
   public static final String POSTGRES_SNAPSHOT_KEY = "wattdepot-server.db.postgres.snapshot";
+  /** The number of files copied at once when making a snapshot key. */
+  public static final String SNAPSHOT_THREADS_KEY = "wattdepot-server.db.snapshot.threads";
+  /** Whether files copied into snapshots are gzipped key. */
+  public static final String SNAPSHOT_COMPRESS_KEY = "wattdepot-server.db.snapshot.compress";
   /** The Postgres schema (namespace prefix) key. */
   public static final String POSTGRES_SCHEMA_KEY = "wattdepot-server.db.postgres.schema";
   /** The maximum Postgres connection pool size key. */
   public static final String POSTGRES_MAX_ACTIVE_KEY = "wattdepot-server.db.postgres.maxActive";
   /** The initial Postgres connection pool size key. */
   public static final String POSTGRES_INITIAL_SIZE_KEY = "wattdepot-server.db.postgres.initialSize";
+  /** The estimated number of bytes of SensorData the in-memory cache may hold key. */
+  public static final String CACHE_MAX_BYTES_KEY = "wattdepot-server.cache.maxBytes";
+  /** The shortest range, in minutes, for which energy and carbon are summed from rollups key. */
+  public static final String ROLLUP_MIN_RANGE_KEY = "wattdepot-server.rollup.minRangeMinutes";
+  /** The maximum number of verified credentials cached key. */
+  public static final String CREDENTIAL_CACHE_SIZE_KEY = "wattdepot-server.credentials.cacheSize";
+  /** The number of seconds a verified credential stays cached key. */
+  public static final String CREDENTIAL_CACHE_TTL_KEY =
+      "wattdepot-server.credentials.cacheTtlSeconds";
+  /** The maximum number of computed power, energy and carbon results cached key. */
+  public static final String RESULT_CACHE_SIZE_KEY = "wattdepot-server.resultCache.size";
+  /** The number of threads evaluating the subsources of virtual sources in parallel key. */
+  public static final String SUBSOURCE_PARALLELISM_KEY =
+      "wattdepot-server.subsources.parallelism";
+  /** Where the Derby and PostgreSQL backends store extra SensorData properties key. */
+  public static final String SENSORDATA_PROPERTY_LAYOUT_KEY =
+      "wattdepot-server.db.sensorDataPropertyLayout";
+  /** The number of SensorData properties moved per transaction when migrating layouts key. */
+  public static final String SENSORDATA_PROPERTY_MIGRATION_BATCH_KEY =
+      "wattdepot-server.db.sensorDataPropertyMigrationBatch";
+  /** Whether cached SensorData is persisted in the background by a write-behind queue key. */
+  public static final String WRITE_BEHIND_KEY = "wattdepot-server.writeBehind.enabled";
+  /** The maximum number of SensorData waiting in the write-behind queue key. */
+  public static final String WRITE_BEHIND_CAPACITY_KEY = "wattdepot-server.writeBehind.capacity";
+  /** The maximum number of SensorData the write-behind queue stores at once key. */
+  public static final String WRITE_BEHIND_BATCH_KEY = "wattdepot-server.writeBehind.batchSize";
+  /** The write-behind queue journal file key. */
+  public static final String WRITE_BEHIND_JOURNAL_KEY = "wattdepot-server.writeBehind.journal";
+  /** The size in bytes of each write-behind queue journal segment key. */
+  public static final String WRITE_BEHIND_SEGMENT_BYTES_KEY =
+      "wattdepot-server.writeBehind.segmentBytes";
+  /** Whether SensorData that is cached but not persisted is logged for restarts key. */
+  public static final String CACHE_WAL_KEY = "wattdepot-server.cache.wal.enabled";
+  /** The directory of the cache write-ahead log key. */
+  public static final String CACHE_WAL_DIR_KEY = "wattdepot-server.cache.wal.dir";
+  /** The size in bytes of each cache write-ahead log segment key. */
+  public static final String CACHE_WAL_SEGMENT_BYTES_KEY =
+      "wattdepot-server.cache.wal.segmentBytes";
+  /** Whether old SensorData is downsampled according to Source properties key. */
+  public static final String RETENTION_KEY = "wattdepot-server.retention.enabled";
+  /** The number of minutes between runs of the retention scheduler key. */
+  public static final String RETENTION_INTERVAL_KEY = "wattdepot-server.retention.interval";
+  /** The maximum number of SensorData the retention scheduler deletes between pauses key. */
+  public static final String RETENTION_CHUNK_KEY = "wattdepot-server.retention.chunkSize";
+  /** The number of milliseconds the retention scheduler pauses after each chunk key. */
+  public static final String RETENTION_PAUSE_KEY = "wattdepot-server.retention.pause";
   /** The database implementation class. */
   public static final String DB_IMPL_KEY = "wattdepot-server.db.impl";
   /** The hostname key. */
@@ -166,10 +232,39 @@ public class ServerProperties {
     properties.setProperty(CONTEXT_ROOT_KEY, "wattdepot");
     properties.setProperty(DERBY_DIR_KEY, serverHome + "/Derby");
     properties.setProperty(DERBY_SNAPSHOT_KEY, serverHome + "/Derby-snapshot");
+    properties.setProperty(DERBY_MAX_ACTIVE_KEY, "10");
+    properties.setProperty(DERBY_INITIAL_SIZE_KEY, "2");
+    properties.setProperty(DERBY_STATEMENT_CACHE_SIZE_KEY, "50");
     properties.setProperty(BERKELEYDB_DIR_KEY, serverHome + "/BerkeleyDb");
+    properties.setProperty(BERKELEYDB_DURABILITY_KEY, "sync");
+    properties.setProperty(BERKELEYDB_SYNC_INTERVAL_KEY, "1");
+    properties.setProperty(BERKELEYDB_GROUP_COMMIT_KEY, "100");
     properties.setProperty(POSTGRES_SNAPSHOT_KEY, serverHome + "/Postgres-snapshot");
+    properties.setProperty(SNAPSHOT_THREADS_KEY, "2");
+    properties.setProperty(SNAPSHOT_COMPRESS_KEY, FALSE);
     properties.setProperty(POSTGRES_MAX_ACTIVE_KEY, "19");
     properties.setProperty(POSTGRES_INITIAL_SIZE_KEY, "10");
+    properties.setProperty(CACHE_MAX_BYTES_KEY, "67108864");
+    properties.setProperty(ROLLUP_MIN_RANGE_KEY, "1440");
+    properties.setProperty(CREDENTIAL_CACHE_SIZE_KEY, "1000");
+    properties.setProperty(CREDENTIAL_CACHE_TTL_KEY, "300");
+    properties.setProperty(RESULT_CACHE_SIZE_KEY, "10000");
+    properties.setProperty(SUBSOURCE_PARALLELISM_KEY,
+        String.valueOf(Runtime.getRuntime().availableProcessors()));
+    properties.setProperty(SENSORDATA_PROPERTY_LAYOUT_KEY, "table");
+    properties.setProperty(SENSORDATA_PROPERTY_MIGRATION_BATCH_KEY, "1000");
+    properties.setProperty(WRITE_BEHIND_KEY, FALSE);
+    properties.setProperty(WRITE_BEHIND_CAPACITY_KEY, "10000");
+    properties.setProperty(WRITE_BEHIND_BATCH_KEY, "500");
+    properties.setProperty(WRITE_BEHIND_JOURNAL_KEY, serverHome + "/write-behind.journal");
+    properties.setProperty(WRITE_BEHIND_SEGMENT_BYTES_KEY, String.valueOf(16 * 1024 * 1024));
+    properties.setProperty(CACHE_WAL_KEY, FALSE);
+    properties.setProperty(CACHE_WAL_DIR_KEY, serverHome + "/cache-wal");
+    properties.setProperty(CACHE_WAL_SEGMENT_BYTES_KEY, String.valueOf(16 * 1024 * 1024));
+    properties.setProperty(RETENTION_KEY, FALSE);
+    properties.setProperty(RETENTION_INTERVAL_KEY, "60");
+    properties.setProperty(RETENTION_CHUNK_KEY, "1000");
+    properties.setProperty(RETENTION_PAUSE_KEY, "100");
     properties.setProperty(DB_IMPL_KEY, "org.wattdepot.server.db.derby.DerbyStorageImplementation");
     properties.setProperty(DB_HOSTNAME_KEY, "localhost");
     properties.setProperty(DB_PORT_KEY, "5432");
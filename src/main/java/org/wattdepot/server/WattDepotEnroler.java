@@ -7,7 +7,8 @@ import org.wattdepot.resource.user.jaxb.User;
 import org.wattdepot.server.db.DbManager;
 
 /**
- * Adds security roles to a specific user.
+ * Adds security roles to a specific user. Users verified recently are looked up in the DbManager's
+ * CredentialCache rather than read from storage.
  * 
  * @author Andrea Connell
  * 
@@ -34,11 +35,18 @@ public class WattDepotEnroler implements Enroler {
 
   @Override
   public void enrole(ClientInfo client) {
-    User user = dbManager.getUser(client.getUser().getIdentifier());
-    if (user == null) {
+    String identifier = client.getUser().getIdentifier();
+    Boolean admin = dbManager.getCredentialCache().isAdmin(identifier);
+    if (admin == null) {
+      User user = dbManager.getUser(identifier);
+      if (user != null) {
+        admin = user.isAdmin();
+      }
+    }
+    if (admin == null) {
       client.setAuthenticated(false);
     }
-    else if (user.isAdmin()) {
+    else if (admin) {
       client.getRoles().add(ADMINISTRATOR);
       client.getRoles().add(USER);
     }
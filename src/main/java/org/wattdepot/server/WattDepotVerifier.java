@@ -1,11 +1,13 @@
 package org.wattdepot.server;
 
 import org.wattdepot.resource.user.jaxb.User;
+import org.wattdepot.server.db.CredentialCache;
 import org.wattdepot.server.db.DbManager;
 import org.restlet.security.SecretVerifier;
 
 /**
- * Authenticates a user based on username and password credentials.
+ * Authenticates a user based on username and password credentials. Credentials verified recently
+ * are accepted from the DbManager's CredentialCache without reading the user from storage.
  * 
  * @author Andrea Connell
  * 
@@ -26,11 +28,17 @@ public class WattDepotVerifier extends SecretVerifier {
 
   @Override
   public int verify(String identifier, char[] secret) throws IllegalArgumentException {
+    CredentialCache credentials = dbManager.getCredentialCache();
+    if (credentials.isValid(identifier, secret)) {
+      return RESULT_VALID;
+    }
+    long version = credentials.getVersion();
     User user = dbManager.getUser(identifier);
     if (user == null) {
       return RESULT_UNKNOWN;
     }
     else if (compare(user.getPassword().toCharArray(), secret)) {
+      credentials.put(identifier, secret, user.isAdmin(), version);
       return RESULT_VALID;
     }
     else {
@@ -0,0 +1,401 @@
+package org.wattdepot.server.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import org.wattdepot.resource.sensordata.SensorDataEncoding;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.util.StackTrace;
+
+/**
+ * Append-only log of the SensorData that is held only in the DataCache, because its Source's
+ * CACHE_CHECKPOINT_INTERVAL means it was never persisted, so that it can be put back in the cache
+ * after a restart or crash. Deletions from the cache are logged too, so deleted SensorData does
+ * not come back.
+ *
+ * The log is a directory of fixed size segment files, each memory-mapped while it is written, so
+ * appending a record is a copy into memory that survives the process crashing. A new segment is
+ * started when the current one is full. A segment is deleted once every SensorData in it would
+ * have expired from the cache anyway, so the log holds roughly the cache's window of data.
+ *
+ * Each record is its length, type, expiry time and checksum, followed by its body. Segments are
+ * zero-filled, so a zero length ends a segment.
+ */
+public class CacheWriteAheadLog {
+
+  /** Record type for a cached SensorData. */
+  private static final byte STORE = 1;
+
+  /** Record type for the deletion of one cached SensorData. */
+  private static final byte DELETE = 2;
+
+  /** Record type for the deletion of all cached SensorData of a Source. */
+  private static final byte DELETE_SOURCE = 3;
+
+  /** Bytes in the record header: length, type, expiry and checksum. */
+  private static final int HEADER_BYTES = 4 + 1 + 8 + 8;
+
+  /** Suffix of segment file names, which are the segment numbers. */
+  private static final String SUFFIX = ".wal";
+
+  /** The directory holding the segments. */
+  private final File dir;
+
+  /** The size of each segment in bytes. */
+  private final int segmentBytes;
+
+  /** The logger for problems writing the log. */
+  private final Logger logger;
+
+  /** The latest expiry time of the SensorData in each segment, keyed by segment number. */
+  private final TreeMap<Long, Long> segmentExpiries = new TreeMap<Long, Long>();
+
+  /** The latest expiry time of any SensorData logged, which deletions are kept for. */
+  private long maxExpires;
+
+  /** The number of the segment being written. */
+  private long segment;
+
+  /** The file of the segment being written, or null if the log is closed. */
+  private RandomAccessFile segmentFile;
+
+  /** The mapped contents of the segment being written. */
+  private MappedByteBuffer buffer;
+
+  /**
+   * Opens the log in the given directory, creating it if needed. The log is not written until
+   * replay or clear has been called.
+   *
+   * @param dir The directory holding the segments.
+   * @param segmentBytes The size of each segment in bytes.
+   * @param logger The logger for problems writing the log.
+   */
+  public CacheWriteAheadLog(File dir, int segmentBytes, Logger logger) {
+    this.dir = dir;
+    this.segmentBytes = segmentBytes;
+    this.logger = logger;
+    dir.mkdirs();
+  }
+
+  /**
+   * Puts the unexpired SensorData in the log back into the given cache, applying logged deletions
+   * in order, then starts a new segment to append to.
+   *
+   * @param cache The cache to restore the SensorData into.
+   * @return The number of SensorData restored.
+   * @throws IOException If the log cannot be read or the new segment cannot be created.
+   */
+  public synchronized int replay(DataCache cache) throws IOException {
+    long now = System.currentTimeMillis();
+    int restored = 0;
+    long last = 0;
+    for (long number : listSegments()) {
+      last = number;
+      long segmentMax = 0;
+      MappedByteBuffer contents = map(segmentPath(number));
+      try {
+        while (contents.remaining() >= HEADER_BYTES) {
+          int length = contents.getInt();
+          if ((length <= 0) || (length > contents.remaining() - (HEADER_BYTES - 4))) {
+            break;
+          }
+          byte type = contents.get();
+          long expires = contents.getLong();
+          long checksum = contents.getLong();
+          byte[] body = new byte[length];
+          contents.get(body);
+          CRC32 crc = new CRC32();
+          crc.update(body);
+          if (crc.getValue() != checksum) {
+            // Torn by a crash while being appended
+            break;
+          }
+          segmentMax = Math.max(segmentMax, expires);
+          if (apply(cache, type, expires, body, now)) {
+            restored++;
+          }
+        }
+      }
+      catch (BufferUnderflowException e) {
+        // Truncated record ends the segment
+      }
+      this.segmentExpiries.put(number, segmentMax);
+      this.maxExpires = Math.max(this.maxExpires, segmentMax);
+    }
+    deleteExpiredSegments(now);
+    startSegment(last + 1);
+    if (restored > 0) {
+      this.logger.info("Restored " + restored + " SensorData to the cache from its log");
+    }
+    return restored;
+  }
+
+  /**
+   * Deletes all segments and starts a new, empty one.
+   *
+   * @throws IOException If the new segment cannot be created.
+   */
+  public synchronized void clear() throws IOException {
+    closeSegment();
+    for (long number : listSegments()) {
+      segmentPath(number).delete();
+    }
+    this.segmentExpiries.clear();
+    this.maxExpires = 0;
+    startSegment(this.segment + 1);
+  }
+
+  /**
+   * Logs a SensorData that has been cached but not persisted.
+   *
+   * @param data The SensorData.
+   * @param expires When the SensorData expires from the cache, in milliseconds.
+   */
+  public synchronized void logStore(SensorData data, long expires) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      SensorDataEncoding.write(data, new DataOutputStream(bytes));
+    }
+    catch (IOException e) {
+      this.logger.warning("Unable to log cached SensorData: " + StackTrace.toString(e));
+      return;
+    }
+    this.maxExpires = Math.max(this.maxExpires, expires);
+    append(STORE, expires, bytes.toByteArray());
+  }
+
+  /**
+   * Logs the deletion of a SensorData from the cache.
+   *
+   * @param sourceName The name of the Source.
+   * @param millis The timestamp of the SensorData in milliseconds.
+   */
+  public synchronized void logDelete(String sourceName, long millis) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(bytes);
+    try {
+      output.writeUTF(sourceName);
+      output.writeLong(millis);
+    }
+    catch (IOException e) {
+      return;
+    }
+    // Kept as long as any SensorData it may delete
+    append(DELETE, this.maxExpires, bytes.toByteArray());
+  }
+
+  /**
+   * Logs the deletion of all SensorData of a Source from the cache.
+   *
+   * @param sourceName The name of the Source.
+   */
+  public synchronized void logDeleteSource(String sourceName) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      new DataOutputStream(bytes).writeUTF(sourceName);
+    }
+    catch (IOException e) {
+      return;
+    }
+    append(DELETE_SOURCE, this.maxExpires, bytes.toByteArray());
+  }
+
+  /**
+   * Forces the segment being written to disk and closes it. Nothing is logged afterward.
+   */
+  public synchronized void close() {
+    closeSegment();
+  }
+
+  /**
+   * Applies one logged record to the cache.
+   *
+   * @param cache The cache.
+   * @param type The record type.
+   * @param expires The expiry time of the record.
+   * @param body The record body.
+   * @param now The current time in milliseconds.
+   * @return True if a SensorData was restored.
+   * @throws IOException If the body is malformed.
+   */
+  private boolean apply(DataCache cache, byte type, long expires, byte[] body, long now)
+      throws IOException {
+    DataInputStream input = new DataInputStream(new ByteArrayInputStream(body));
+    if (type == STORE) {
+      SensorData data = SensorDataEncoding.read(input);
+      return (expires > now) && cache.restoreSensorData(data, expires);
+    }
+    else if (type == DELETE) {
+      String sourceName = input.readUTF();
+      cache.removeSensorData(sourceName, input.readLong());
+    }
+    else if (type == DELETE_SOURCE) {
+      cache.removeSensorData(input.readUTF());
+    }
+    return false;
+  }
+
+  /**
+   * Appends a record to the current segment, starting a new segment if it does not fit.
+   *
+   * @param type The record type.
+   * @param expires The time after which the record is no longer needed, in milliseconds.
+   * @param body The record body.
+   */
+  private void append(byte type, long expires, byte[] body) {
+    if (this.buffer == null) {
+      return;
+    }
+    if (HEADER_BYTES + body.length > this.segmentBytes) {
+      this.logger.warning("Cached SensorData too large for its log: " + body.length + " bytes");
+      return;
+    }
+    try {
+      if (this.buffer.remaining() < HEADER_BYTES + body.length) {
+        long now = System.currentTimeMillis();
+        closeSegment();
+        deleteExpiredSegments(now);
+        startSegment(this.segment + 1);
+      }
+    }
+    catch (IOException e) {
+      this.logger.warning("Unable to start a new cache log segment: " + StackTrace.toString(e));
+      return;
+    }
+    CRC32 crc = new CRC32();
+    crc.update(body);
+    // Write the length last, so a record is never seen before it is complete
+    int start = this.buffer.position();
+    this.buffer.position(start + 4);
+    this.buffer.put(type).putLong(expires).putLong(crc.getValue()).put(body);
+    this.buffer.putInt(start, body.length);
+    Long segmentMax = this.segmentExpiries.get(this.segment);
+    if ((segmentMax == null) || (segmentMax < expires)) {
+      this.segmentExpiries.put(this.segment, expires);
+    }
+  }
+
+  /**
+   * Creates and maps a new segment.
+   *
+   * @param number The segment number.
+   * @throws IOException If the segment cannot be created.
+   */
+  private void startSegment(long number) throws IOException {
+    this.segment = number;
+    this.segmentFile = new RandomAccessFile(segmentPath(number), "rw");
+    this.segmentFile.setLength(this.segmentBytes);
+    this.buffer =
+        this.segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.segmentBytes);
+    this.segmentExpiries.put(number, 0L);
+  }
+
+  /**
+   * Forces the current segment to disk and closes its file.
+   */
+  private void closeSegment() {
+    if (this.buffer != null) {
+      this.buffer.force();
+      this.buffer = null;
+    }
+    if (this.segmentFile != null) {
+      try {
+        this.segmentFile.close();
+      }
+      catch (IOException e) {
+        this.logger.warning("Unable to close cache log segment: " + StackTrace.toString(e));
+      }
+      this.segmentFile = null;
+    }
+  }
+
+  /**
+   * Deletes the segments, other than the current one, whose records have all expired.
+   *
+   * @param now The current time in milliseconds.
+   */
+  private void deleteExpiredSegments(long now) {
+    Iterator<Map.Entry<Long, Long>> it = this.segmentExpiries.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Long, Long> entry = it.next();
+      if ((entry.getKey() != this.segment || this.buffer == null) && entry.getValue() <= now) {
+        if (segmentPath(entry.getKey()).delete()) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * Maps a segment file for reading.
+   *
+   * @param file The segment file.
+   * @return The mapped contents, read only.
+   * @throws IOException If the segment cannot be mapped.
+   */
+  private MappedByteBuffer map(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Returns the numbers of the existing segments, in order.
+   *
+   * @return The segment numbers.
+   */
+  private long[] listSegments() {
+    String[] names = this.dir.list(new FilenameFilter() {
+      @Override
+      public boolean accept(File directory, String name) {
+        return name.endsWith(SUFFIX);
+      }
+    });
+    if (names == null) {
+      return new long[0];
+    }
+    long[] numbers = new long[names.length];
+    int count = 0;
+    for (String name : names) {
+      try {
+        numbers[count] = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        count++;
+      }
+      catch (NumberFormatException e) {
+        // Not a segment
+      }
+    }
+    numbers = Arrays.copyOf(numbers, count);
+    Arrays.sort(numbers);
+    return numbers;
+  }
+
+  /**
+   * Returns the file of a segment.
+   *
+   * @param number The segment number.
+   * @return The segment file.
+   */
+  private File segmentPath(long number) {
+    return new File(this.dir, String.format("%020d", number) + SUFFIX);
+  }
+
+}
@@ -1,40 +1,122 @@
 package org.wattdepot.server.cache;
 
-import java.util.Set;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
 import javax.xml.datatype.XMLGregorianCalendar;
 import org.apache.jcs.JCS;
 import org.apache.jcs.access.exception.CacheException;
-import org.apache.jcs.engine.behavior.IElementAttributes;
+import org.wattdepot.resource.sensordata.SensorDataRecord;
 import org.wattdepot.resource.sensordata.SensorDataStraddle;
 import org.wattdepot.resource.sensordata.jaxb.SensorData;
 import org.wattdepot.resource.sensordata.jaxb.SensorDataIndex;
 import org.wattdepot.resource.sensordata.jaxb.SensorDataRef;
 import org.wattdepot.resource.sensordata.jaxb.SensorDatas;
+import org.wattdepot.util.StackTrace;
 import org.wattdepot.util.UriUtils;
 import org.wattdepot.util.tstamp.Tstamp;
 
 /**
  * Provides ephemeral caching for sensor data objects.
  * 
+ * Each source has its own time-ordered window of SensorData, kept in a ConcurrentSkipListMap keyed
+ * by timestamp in milliseconds so appends are lock-free, straddles are O(log n), and the latest
+ * SensorData is tracked separately so it can be returned in O(1). SensorData is held as compact
+ * SensorDataRecords and rebuilt when it is read, while straddles are made from the records
+ * directly. A SensorData stays in its window for the source's CACHE_WINDOW_LENGTH (or
+ * DEFAULT_LIFE_SECONDS if the source has none). If the whole cache grows past its byte budget,
+ * SensorData that has been persisted is evicted early, oldest first across all sources. SensorData
+ * that is only in the cache is never evicted early, since it would be lost.
+ * Source checkpoint timestamps are still kept in a JCS region. If a CacheWriteAheadLog is set,
+ * SensorData that was never persisted and deletions from the cache are logged to it, so that the
+ * cache can be restored after a restart.
+ * 
  * @author Andrea Connell
  * 
  */
 public class DataCache {
 
-  private JCS sensorDataCache = null;
+  /** The default number of bytes of SensorData the cache may hold across all sources. */
+  public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+  /** How long SensorData is cached when the source doesn't give a window length, in seconds. */
+  private static final int DEFAULT_LIFE_SECONDS = 900;
+
+  /** Estimated size of a window entry and its map node, excluding the record it holds. */
+  private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+  /** The least time between warnings that the cache is over budget, in milliseconds. */
+  private static final long OVER_BUDGET_WARNING_MILLIS = 60 * 1000;
+
+  /** The window of cached SensorData for each source, keyed by source name. */
+  private final ConcurrentMap<String, SourceWindow> windows =
+      new ConcurrentHashMap<String, SourceWindow>();
+
+  /** The estimated number of bytes held by all the windows. */
+  private final AtomicLong totalBytes = new AtomicLong();
+
+  /** The number of bytes of SensorData the cache should hold before evicting early. */
+  private final long maxBytes;
+
+  /** Persisted SensorData that may be evicted early, oldest first, with their windows. */
+  private final ConcurrentSkipListMap<CachedSensorData, SourceWindow> evictable =
+      new ConcurrentSkipListMap<CachedSensorData, SourceWindow>();
+
+  /** Orders the SensorData in evictable by when it was cached. */
+  private final AtomicLong sequence = new AtomicLong();
+
+  /** When the cache last warned that it was over budget, in milliseconds. */
+  private final AtomicLong lastOverBudgetWarning = new AtomicLong();
+
+  /** The logger for problems with the cache. */
+  private final Logger logger;
+
   private JCS sourceCheckpointCache = null;
 
+  /** The log of cache-only SensorData and deletions, or null if they are not logged. */
+  private volatile CacheWriteAheadLog log;
+
   /**
-   * Instantiate the DataCache with two regions - one for sensor data objects and one for checkpoint
-   * timestamps.
+   * Instantiate the DataCache with the default byte budget.
    */
   public DataCache() {
+    this(DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * Instantiate the DataCache with the given byte budget, logging to the server's logger.
+   * 
+   * @param maxBytes The estimated number of bytes of SensorData the cache may hold.
+   */
+  public DataCache(long maxBytes) {
+    this(maxBytes, Logger.getLogger("org.wattdepot.server"));
+  }
+
+  /**
+   * Instantiate the DataCache with the given byte budget, and a JCS region for checkpoint
+   * timestamps.
+   * 
+   * @param maxBytes The estimated number of bytes of SensorData the cache may hold.
+   * @param logger The logger for problems with the cache.
+   */
+  public DataCache(long maxBytes, Logger logger) {
+    this.maxBytes = maxBytes;
+    this.logger = logger;
     try {
-      sensorDataCache = JCS.getInstance("sensorData");
       sourceCheckpointCache = JCS.getInstance("sourceCheckpoint");
     }
     catch (CacheException e) {
-      System.out.println(e.getMessage());
+      this.logger.warning("Unable to create the source checkpoint cache\n"
+          + StackTrace.toString(e));
     }
   }
 
@@ -51,8 +133,33 @@ public class DataCache {
       return null;
     }
 
-    String key = sourceName + ":" + timestamp.toString();
-    return (SensorData) sensorDataCache.get(key);
+    SourceWindow window = this.windows.get(sourceName);
+    if (window == null) {
+      return null;
+    }
+    CachedSensorData cached = window.entries.get(toMillis(timestamp));
+    return (cached != null && cached.isLive(System.currentTimeMillis())) ? cached.record
+        .toSensorData() : null;
+  }
+
+  /**
+   * Returns when the sensor data with the given sourceName and timestamp expires from the cache.
+   * 
+   * @param sourceName The sourceName of the sensor data.
+   * @param timestamp The timestamp of the sensor data.
+   * @return The time it expires in milliseconds, or 0 if it is not in the cache.
+   */
+  public long getExpiry(String sourceName, XMLGregorianCalendar timestamp) {
+    if (sourceName == null || timestamp == null) {
+      return 0;
+    }
+
+    SourceWindow window = this.windows.get(sourceName);
+    if (window == null) {
+      return 0;
+    }
+    CachedSensorData cached = window.entries.get(toMillis(timestamp));
+    return (cached != null && cached.isLive(System.currentTimeMillis())) ? cached.expires : 0;
   }
 
   /**
@@ -66,18 +173,13 @@ public class DataCache {
       return null;
     }
 
-    @SuppressWarnings("unchecked")
-    Set<String> group = sensorDataCache.getGroupKeys(sourceName);
     SensorDataIndex index = new SensorDataIndex();
-
-    for (String key : group) {
-      SensorData data = (SensorData) sensorDataCache.get(key);
-      if (data != null) {
-        SensorDataRef ref = new SensorDataRef(data);
-        index.getSensorDataRef().add(ref);
+    SourceWindow window = this.windows.get(sourceName);
+    if (window != null) {
+      for (SensorData data : liveValues(window, window.entries)) {
+        index.getSensorDataRef().add(new SensorDataRef(data));
       }
     }
-
     return index;
   }
 
@@ -87,7 +189,8 @@ public class DataCache {
    * 
    * @param sourceName The name of the source to generate an index for
    * @param startTime The earliest timestamp that will be included in the index.
-   * @param endTime The latest timestamp that will be included in the index.
+   * @param endTime The latest timestamp that will be included in the index, or null for all sensor
+   * datas from startTime on.
    * @return A SensorDataIndex containing all sensor datas for the given sourceName within the
    * startTime and endTime.
    */
@@ -97,28 +200,10 @@ public class DataCache {
       return null;
     }
 
-    @SuppressWarnings("unchecked")
-    Set<String> group = sensorDataCache.getGroupKeys(sourceName);
     SensorDataIndex index = new SensorDataIndex();
-
-    if (endTime == null) {
-      SensorData latest = getLatestSensorData(sourceName);
-      if (latest != null) {
-        endTime = latest.getTimestamp();
-      }
-      else {
-        return index;
-      }
+    for (SensorData data : getRange(sourceName, startTime, endTime)) {
+      index.getSensorDataRef().add(new SensorDataRef(data));
     }
-
-    for (String key : group) {
-      SensorData data = (SensorData) sensorDataCache.get(key);
-      if (data != null && Tstamp.inBetween(startTime, data.getTimestamp(), endTime)) {
-        SensorDataRef ref = new SensorDataRef(data);
-        index.getSensorDataRef().add(ref);
-      }
-    }
-
     return index;
   }
 
@@ -127,7 +212,8 @@ public class DataCache {
    * 
    * @param sourceName The name of the source to find sensor datas for.
    * @param startTime The earliest timestamp that will be included in the result.
-   * @param endTime The latest timestamp that will be included in the result.
+   * @param endTime The latest timestamp that will be included in the result, or null for all sensor
+   * datas from startTime on.
    * @return All sensor datas for the given sourceName within the startTime and endTime.
    */
   public SensorDatas getSensorDatas(String sourceName, XMLGregorianCalendar startTime,
@@ -137,26 +223,7 @@ public class DataCache {
     }
 
     SensorDatas datas = new SensorDatas();
-
-    if (endTime == null) {
-      SensorData latest = getLatestSensorData(sourceName);
-      if (latest != null) {
-        endTime = latest.getTimestamp();
-      }
-      else {
-        return datas;
-      }
-    }
-
-    @SuppressWarnings("unchecked")
-    Set<String> group = sensorDataCache.getGroupKeys(sourceName);
-
-    for (String key : group) {
-      SensorData data = (SensorData) sensorDataCache.get(key);
-      if (data != null && Tstamp.inBetween(startTime, data.getTimestamp(), endTime)) {
-        datas.getSensorData().add(data);
-      }
-    }
+    datas.getSensorData().addAll(getRange(sourceName, startTime, endTime));
     return datas;
   }
 
@@ -171,28 +238,25 @@ public class DataCache {
       return null;
     }
 
-    SensorData latestData = null;
-    XMLGregorianCalendar latestTime = null;
-    @SuppressWarnings("unchecked")
-    Set<String> group = sensorDataCache.getGroupKeys(sourceName);
-
-    for (String key : group) {
-      SensorData data = (SensorData) sensorDataCache.get(key);
-      if (data != null
-          && (latestData == null || Tstamp.greaterThan(data.getTimestamp(), latestTime))) {
-        latestData = data;
-        latestTime = data.getTimestamp();
-      }
+    SourceWindow window = this.windows.get(sourceName);
+    if (window == null) {
+      return null;
+    }
+    long now = System.currentTimeMillis();
+    CachedSensorData latest = window.latest.get();
+    while (latest != null && !latest.isLive(now)) {
+      // Removing the expired latest data moves latest back to the next newest data
+      remove(window, latest);
+      latest = window.latest.get();
     }
-    return latestData;
+    return (latest == null) ? null : latest.record.toSensorData();
   }
 
   /**
    * Returns a SensorDataStraddle that straddles the given timestamp, using SensorData in the cache
-   * from the given source name. If the given timestamp is outside of the window length for the
-   * source, return null without looking through each data item. If the given timestamp corresponds
-   * to an actual SensorData, then return a degenerate SensorDataStraddle with both ends of the
-   * straddle set to the actual SensorData.
+   * from the given source name. If the given timestamp corresponds to an actual SensorData, then
+   * return a degenerate SensorDataStraddle with both ends of the straddle set to the actual
+   * SensorData.
    * 
    * @param sourceName The name of the source to generate the straddle from.
    * @param timestamp The timestamp of interest in the straddle.
@@ -201,86 +265,234 @@ public class DataCache {
    * the timestamp in the cache.
    */
   public SensorDataStraddle getSensorDataStraddle(String sourceName, XMLGregorianCalendar timestamp) {
-    if (sourceName == null) {
+    if (sourceName == null || timestamp == null) {
       return null;
     }
 
-    SensorData exact = (SensorData) sensorDataCache.get(sourceName + ":" + timestamp);
-    if (exact != null) {
-      return new SensorDataStraddle(timestamp, exact, exact);
-    }
-
-    SensorData before = null;
-    SensorData after = null;
-
-    @SuppressWarnings("unchecked")
-    Set<String> group = sensorDataCache.getGroupKeys(sourceName);
-
-    for (String key : group) {
-      SensorData data = (SensorData) sensorDataCache.get(key);
-      if (data != null) {
-        XMLGregorianCalendar dataTime = data.getTimestamp();
-        // If this data is at or before the desired timestamp
-        // AND is greater than the currently known "before" time
-        // then set "before" to be this data.
-        if ((Tstamp.lessThan(dataTime, timestamp) || Tstamp.equal(dataTime, timestamp))
-            && (before == null || Tstamp.greaterThan(dataTime, before.getTimestamp()))) {
-          before = data;
-        }
-        // If this data is at or after the desired timestamp
-        // AND is less than the currently known "after" time
-        // then set "after" to be this data.
-        if ((Tstamp.greaterThan(dataTime, timestamp) || Tstamp.equal(dataTime, timestamp))
-            && (after == null || Tstamp.lessThan(data.getTimestamp(), after.getTimestamp()))) {
-          after = data;
-        }
-      }
+    SourceWindow window = this.windows.get(sourceName);
+    if (window == null) {
+      return null;
     }
+    return getSensorDataStraddle(window, timestamp, System.currentTimeMillis());
+  }
 
-    if (before != null && after != null) {
-      return new SensorDataStraddle(timestamp, before, after);
-    }
-    else {
+  /**
+   * Returns a SensorDataStraddle for each of the given timestamps, using SensorData in the cache
+   * from the given source name.
+   * 
+   * @param sourceName The name of the source to generate the straddles from.
+   * @param timestampList The timestamps of interest, in any order.
+   * @return A List with one entry for each timestamp, in the same order as timestampList. An entry
+   * is null if there is no sensor data that straddles its timestamp in the cache. Returns null if
+   * parameters are null.
+   */
+  public List<SensorDataStraddle> getSensorDataStraddles(String sourceName,
+      List<XMLGregorianCalendar> timestampList) {
+    if (sourceName == null || timestampList == null) {
       return null;
     }
+
+    List<SensorDataStraddle> straddleList =
+        new ArrayList<SensorDataStraddle>(timestampList.size());
+    SourceWindow window = this.windows.get(sourceName);
+    long now = System.currentTimeMillis();
+    for (XMLGregorianCalendar timestamp : timestampList) {
+      straddleList.add((window == null) ? null : getSensorDataStraddle(window, timestamp, now));
+    }
+    return straddleList;
   }
 
   /**
    * Stores a sensor data in the cache. The sensor data will be stored for windowLength minutes. If
-   * windowLength is less than or equal to zero, the cache will use default properties from the jcs
-   * configuration file.
+   * windowLength is less than or equal to zero, it will be stored for DEFAULT_LIFE_SECONDS. The
+   * sensor data is not evicted early unless markPersisted is called for it.
    * 
    * @param data The sensor data object to be stored.
    * @param windowLength The number of minutes to cache this data for.
-   * @return True if the sensor data was stored successfully, false if an exception occurred.
+   * @return True if the sensor data was stored successfully, false if it was already cached.
    */
   public boolean storeSensorData(SensorData data, int windowLength) {
     if (data == null) {
       return false;
     }
-    try {
-      String sourceName = UriUtils.getUriSuffix(data.getSource());
-      String key = sourceName + ":" + data.getTimestamp().toString();
+    long now = System.currentTimeMillis();
+    return store(data, now + lifeMillis(windowLength), now);
+  }
 
-      if (sensorDataCache.get(key) != null) {
-        return false;
+  /**
+   * Marks a cached sensor data as persisted, so that it may be evicted early if the cache is over
+   * its byte budget, then evicts the oldest persisted sensor data if it is.
+   * 
+   * @param sourceName The sourceName of the sensor data.
+   * @param timestamp The timestamp of the sensor data.
+   */
+  public void markPersisted(String sourceName, XMLGregorianCalendar timestamp) {
+    if (sourceName == null || timestamp == null) {
+      return;
+    }
+    SourceWindow window = this.windows.get(sourceName);
+    if (window == null) {
+      return;
+    }
+    CachedSensorData cached = window.entries.get(toMillis(timestamp));
+    if (cached == null) {
+      return;
+    }
+    synchronized (cached) {
+      if (cached.persisted || cached.removed) {
+        return;
       }
+      cached.persisted = true;
+      window.unpersisted.remove(cached.millis, cached);
+    }
+    this.evictable.put(cached, window);
+    if (window.entries.get(cached.millis) != cached) {
+      // Removed while we were marking it, so don't leave it behind
+      this.evictable.remove(cached);
+    }
+    evict(cached, System.currentTimeMillis());
+  }
 
-      // How long should the element be cached?
-      IElementAttributes attributes = sensorDataCache.getDefaultElementAttributes();
-      if (windowLength > 0) {
-        attributes.setMaxLifeSeconds(windowLength * 60);
+  /**
+   * Returns the timestamp of the earliest live sensor data of a source that is in the cache but has
+   * not been marked persisted, so that anything computed from storage alone is known to be complete
+   * before it. Expired data it comes across is removed.
+   * 
+   * @param sourceName The name of the source.
+   * @return The timestamp in milliseconds, or Long.MAX_VALUE if every live sensor data cached for
+   * the source has been persisted.
+   */
+  public long getFirstUnpersistedMillis(String sourceName) {
+    if (sourceName == null) {
+      return Long.MAX_VALUE;
+    }
+    SourceWindow window = this.windows.get(sourceName);
+    if (window == null) {
+      return Long.MAX_VALUE;
+    }
+    long now = System.currentTimeMillis();
+    Map.Entry<Long, CachedSensorData> first = window.unpersisted.firstEntry();
+    while (first != null && !first.getValue().isLive(now)) {
+      remove(window, first.getValue());
+      first = window.unpersisted.firstEntry();
+    }
+    return (first == null) ? Long.MAX_VALUE : first.getKey();
+  }
+
+  /**
+   * Returns when the first of the live sensor data of a source between two timestamps that has not
+   * been marked persisted expires from the cache, so that anything computed from it is known to be
+   * stale after then.
+   * 
+   * @param sourceName The name of the source.
+   * @param startMillis The earliest timestamp that will be included, in milliseconds.
+   * @param endMillis The latest timestamp that will be included, in milliseconds.
+   * @return The time it expires in milliseconds, or Long.MAX_VALUE if every live sensor data cached
+   * for the source between the timestamps has been persisted.
+   */
+  public long getFirstUnpersistedExpiry(String sourceName, long startMillis, long endMillis) {
+    if (sourceName == null || startMillis > endMillis) {
+      return Long.MAX_VALUE;
+    }
+    SourceWindow window = this.windows.get(sourceName);
+    if (window == null) {
+      return Long.MAX_VALUE;
+    }
+    long now = System.currentTimeMillis();
+    long expiry = Long.MAX_VALUE;
+    // Only the unpersisted data in the range is looked at, not the whole window
+    for (CachedSensorData cached : window.unpersisted.subMap(startMillis, true, endMillis, true)
+        .values()) {
+      if (cached.isLive(now)) {
+        expiry = Math.min(expiry, cached.expires);
       }
+    }
+    return expiry;
+  }
 
-      sensorDataCache.put(key, data, attributes);
-      sensorDataCache.putInGroup(key, sourceName, data, attributes);
-      return true;
+  /**
+   * Logs a sensor data that has been stored in the cache but not persisted, so that it can be
+   * restored to the cache after a restart. Does nothing if no CacheWriteAheadLog is set.
+   * 
+   * @param data The sensor data that was stored.
+   * @param windowLength The number of minutes it was cached for.
+   */
+  public void logSensorData(SensorData data, int windowLength) {
+    CacheWriteAheadLog current = this.log;
+    if (current != null) {
+      current.logStore(data, System.currentTimeMillis() + lifeMillis(windowLength));
     }
-    catch (CacheException e) {
-      System.out.println(e.getMessage());
+  }
 
-      return false;
+  /**
+   * Sets the log that cache-only sensor data and deletions are written to. The log should be
+   * replayed into this cache before it is set.
+   * 
+   * @param log The log, or null to stop logging.
+   */
+  public void setWriteAheadLog(CacheWriteAheadLog log) {
+    this.log = log;
+  }
+
+  /**
+   * Stores a sensor data read back from the CacheWriteAheadLog, without logging it again.
+   * 
+   * @param data The sensor data.
+   * @param expires When it expires from the cache, in milliseconds.
+   * @return True if it was stored, false if it was already cached.
+   */
+  boolean restoreSensorData(SensorData data, long expires) {
+    return store(data, expires, System.currentTimeMillis());
+  }
+
+  /**
+   * Stores a sensor data in its source's window, evicting if the cache is over its byte budget.
+   * 
+   * @param data The sensor data object to be stored.
+   * @param expires When it expires from the cache, in milliseconds.
+   * @param now The current time in milliseconds.
+   * @return True if the sensor data was stored successfully, false if it was already cached.
+   */
+  private boolean store(SensorData data, long expires, long now) {
+    String sourceName = UriUtils.getUriSuffix(data.getSource());
+    SourceWindow window = this.windows.get(sourceName);
+    if (window == null) {
+      window = new SourceWindow();
+      SourceWindow existing = this.windows.putIfAbsent(sourceName, window);
+      if (existing != null) {
+        window = existing;
+      }
     }
+
+    SensorDataRecord record = SensorDataRecord.fromSensorData(data);
+    CachedSensorData cached = new CachedSensorData(record, record.getMillis(), expires,
+        ENTRY_OVERHEAD_BYTES + record.estimateBytes(), this.sequence.incrementAndGet());
+
+    CachedSensorData previous = window.entries.putIfAbsent(cached.millis, cached);
+    while (previous != null) {
+      if (previous.isLive(now)) {
+        return false;
+      }
+      // Replace data that has expired but hasn't been evicted yet
+      remove(window, previous);
+      previous = window.entries.putIfAbsent(cached.millis, cached);
+    }
+    this.totalBytes.addAndGet(cached.bytes);
+    synchronized (cached) {
+      // It may already have been marked persisted or removed by another thread
+      if (!cached.persisted && !cached.removed) {
+        window.unpersisted.put(cached.millis, cached);
+      }
+    }
+    CachedSensorData latest = window.latest.get();
+    while ((latest == null || latest.millis < cached.millis)
+        && !window.latest.compareAndSet(latest, cached)) {
+      latest = window.latest.get();
+    }
+
+    trimExpired(window, cached, now);
+    evict(cached, now);
+    return true;
   }
 
   /**
@@ -288,44 +500,71 @@ public class DataCache {
    * 
    * @param sourceName The sourceName of the sensor data to be deleted.
    * @param timestamp The timestamp of the sensor data to be deleted.
-   * @return True if the sensor data was deleted successfully; false if an exception occurred.
+   * @return True if the sensor data was deleted successfully; false if it was not in the cache.
    */
   public boolean deleteSensorData(String sourceName, XMLGregorianCalendar timestamp) {
     if (sourceName == null || timestamp == null) {
       return false;
     }
-    try {
-      String key = sourceName + ":" + timestamp.toString();
-      if (sensorDataCache.get(key) == null) {
-        return false;
-      }
-      sensorDataCache.remove(key);
-      return true;
+    long millis = toMillis(timestamp);
+    CacheWriteAheadLog current = this.log;
+    if (current != null) {
+      current.logDelete(sourceName, millis);
     }
-    catch (CacheException e) {
-      System.out.println(e.getMessage());
+    return removeSensorData(sourceName, millis);
+  }
+
+  /**
+   * Removes the sensor data with the given sourceName and timestamp from the cache, without
+   * logging the deletion.
+   * 
+   * @param sourceName The sourceName of the sensor data to be deleted.
+   * @param millis The timestamp of the sensor data to be deleted, in milliseconds.
+   * @return True if the sensor data was deleted successfully; false if it was not in the cache.
+   */
+  boolean removeSensorData(String sourceName, long millis) {
+    SourceWindow window = this.windows.get(sourceName);
+    if (window == null) {
       return false;
     }
+    CachedSensorData cached = window.entries.get(millis);
+    if (cached == null) {
+      return false;
+    }
+    boolean wasLive = cached.isLive(System.currentTimeMillis());
+    return remove(window, cached) && wasLive;
   }
 
   /**
    * Removes all sensor datas with the given sourceName from the cache.
    * 
    * @param sourceName The sourceName of the sensor data to be deleted.
-   * @return True if the sensor data was deleted successfully; false if an exception occurred.
+   * @return True if the sensor data was deleted successfully, false if sourceName is null.
    */
   public boolean deleteSensorData(String sourceName) {
     if (sourceName == null) {
       return false;
     }
-    try {
-      String key = sourceName + ":";
-      sensorDataCache.remove(key);
-      return true;
+    CacheWriteAheadLog current = this.log;
+    if (current != null) {
+      current.logDeleteSource(sourceName);
     }
-    catch (CacheException e) {
-      System.out.println(e.getMessage());
-      return false;
+    removeSensorData(sourceName);
+    return true;
+  }
+
+  /**
+   * Removes all sensor datas with the given sourceName from the cache, without logging the
+   * deletion.
+   * 
+   * @param sourceName The sourceName of the sensor data to be deleted.
+   */
+  void removeSensorData(String sourceName) {
+    SourceWindow window = this.windows.remove(sourceName);
+    if (window != null) {
+      for (CachedSensorData cached : window.entries.values()) {
+        remove(window, cached);
+      }
     }
   }
 
@@ -361,8 +600,8 @@ public class DataCache {
       return true;
     }
     catch (CacheException e) {
-      System.out.println(e.getMessage());
-
+      this.logger.warning("Unable to cache the checkpoint timestamp of " + sourceName + "\n"
+          + StackTrace.toString(e));
       return false;
     }
   }
@@ -384,22 +623,35 @@ public class DataCache {
       return true;
     }
     catch (CacheException e) {
-      System.out.println(e.getMessage());
-
+      this.logger.warning("Unable to remove the checkpoint timestamp of " + sourceName + "\n"
+          + StackTrace.toString(e));
       return false;
     }
   }
 
   /**
-   * Removes all cached sensor data and source checkpoint timestamps.
+   * Removes all cached sensor data and source checkpoint timestamps, and clears the log if one is
+   * set.
    */
   public void wipeData() {
+    this.windows.clear();
+    this.evictable.clear();
+    this.totalBytes.set(0);
+    CacheWriteAheadLog current = this.log;
+    if (current != null) {
+      try {
+        current.clear();
+      }
+      catch (IOException e) {
+        this.logger.warning("Unable to clear the cache write-ahead log\n" + StackTrace.toString(e));
+      }
+    }
     try {
-      sensorDataCache.clear();
       sourceCheckpointCache.clear();
     }
     catch (CacheException e) {
-      System.out.println(e.getMessage());
+      this.logger.warning("Unable to clear the source checkpoint cache\n"
+          + StackTrace.toString(e));
     }
   }
 
@@ -436,4 +688,266 @@ public class DataCache {
     return Tstamp.lessThan(lastStore, timestamp) || Tstamp.equal(lastStore, timestamp);
   }
 
+  /**
+   * Returns the straddle for a timestamp from a source's window, removing any expired data it
+   * comes across.
+   * 
+   * @param window The window to look in.
+   * @param timestamp The timestamp of interest in the straddle.
+   * @param now The current time in milliseconds.
+   * @return The straddle, or null if there is no live data on one side of the timestamp.
+   */
+  private SensorDataStraddle getSensorDataStraddle(SourceWindow window,
+      XMLGregorianCalendar timestamp, long now) {
+    long millis = toMillis(timestamp);
+    Map.Entry<Long, CachedSensorData> before = window.entries.floorEntry(millis);
+    while (before != null && !before.getValue().isLive(now)) {
+      remove(window, before.getValue());
+      before = window.entries.floorEntry(millis);
+    }
+    if (before == null) {
+      return null;
+    }
+    else if (before.getKey() == millis) {
+      return SensorDataStraddle.fromRecords(timestamp, before.getValue().record,
+          before.getValue().record);
+    }
+    Map.Entry<Long, CachedSensorData> after = window.entries.higherEntry(millis);
+    while (after != null && !after.getValue().isLive(now)) {
+      remove(window, after.getValue());
+      after = window.entries.higherEntry(millis);
+    }
+    if (after == null) {
+      return null;
+    }
+    return SensorDataStraddle.fromRecords(timestamp, before.getValue().record,
+        after.getValue().record);
+  }
+
+  /**
+   * Returns the live sensor datas for a source between startTime and endTime, in timestamp order.
+   * 
+   * @param sourceName The name of the source.
+   * @param startTime The earliest timestamp that will be included.
+   * @param endTime The latest timestamp that will be included, or null for no upper bound.
+   * @return The sensor datas, which may be empty.
+   */
+  private List<SensorData> getRange(String sourceName, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime) {
+    SourceWindow window = this.windows.get(sourceName);
+    if (window == null) {
+      return new ArrayList<SensorData>();
+    }
+    ConcurrentNavigableMap<Long, CachedSensorData> range;
+    if (endTime == null) {
+      range = window.entries.tailMap(toMillis(startTime), true);
+    }
+    else if (Tstamp.greaterThan(startTime, endTime)) {
+      return new ArrayList<SensorData>();
+    }
+    else {
+      range = window.entries.subMap(toMillis(startTime), true, toMillis(endTime), true);
+    }
+    return liveValues(window, range);
+  }
+
+  /**
+   * Returns the live sensor datas in part of a window, in timestamp order, removing any expired
+   * data found along the way.
+   * 
+   * @param window The window the entries belong to.
+   * @param entries The entries, or a range view of them.
+   * @return The live sensor datas.
+   */
+  private List<SensorData> liveValues(SourceWindow window,
+      ConcurrentNavigableMap<Long, CachedSensorData> entries) {
+    long now = System.currentTimeMillis();
+    List<SensorData> datas = new ArrayList<SensorData>();
+    for (CachedSensorData cached : entries.values()) {
+      if (cached.isLive(now)) {
+        datas.add(cached.record.toSensorData());
+      }
+      else {
+        remove(window, cached);
+      }
+    }
+    return datas;
+  }
+
+  /**
+   * Drops expired data from the old end of a window. Data that arrives in timestamp order also
+   * expires in that order, so trimming the old end is usually all the expiry that is needed;
+   * anything else is dropped when a read comes across it.
+   * 
+   * @param window The window to trim.
+   * @param stored The data that was just stored, which is never dropped here.
+   * @param now The current time in milliseconds.
+   */
+  private void trimExpired(SourceWindow window, CachedSensorData stored, long now) {
+    Map.Entry<Long, CachedSensorData> oldest = window.entries.firstEntry();
+    while (oldest != null && oldest.getValue() != stored && !oldest.getValue().isLive(now)) {
+      remove(window, oldest.getValue());
+      oldest = window.entries.firstEntry();
+    }
+  }
+
+  /**
+   * Evicts persisted data, oldest first across all sources, while the cache is over its byte
+   * budget. If only unpersisted data is left, expired data is trimmed from every window and a
+   * warning is logged (at most once every OVER_BUDGET_WARNING_MILLIS), since unpersisted data that
+   * is still live is kept whatever the budget.
+   * 
+   * @param stored The data that was just stored or marked persisted, which is never evicted here.
+   * @param now The current time in milliseconds.
+   */
+  private void evict(CachedSensorData stored, long now) {
+    Iterator<Map.Entry<CachedSensorData, SourceWindow>> oldest =
+        this.evictable.entrySet().iterator();
+    while (this.totalBytes.get() > this.maxBytes && oldest.hasNext()) {
+      Map.Entry<CachedSensorData, SourceWindow> entry = oldest.next();
+      if (entry.getKey() != stored) {
+        remove(entry.getValue(), entry.getKey());
+      }
+    }
+    long last = this.lastOverBudgetWarning.get();
+    if (this.totalBytes.get() > this.maxBytes && now - last >= OVER_BUDGET_WARNING_MILLIS
+        && this.lastOverBudgetWarning.compareAndSet(last, now)) {
+      for (SourceWindow window : this.windows.values()) {
+        trimExpired(window, stored, now);
+      }
+      if (this.totalBytes.get() > this.maxBytes) {
+        this.logger.warning("SensorData cache holds " + this.totalBytes.get()
+            + " bytes, over its budget of " + this.maxBytes
+            + " bytes, but the rest has not been persisted so it is not evicted");
+      }
+    }
+  }
+
+  /**
+   * Removes a cached sensor data from its window, keeping the byte count and the latest data up to
+   * date.
+   * 
+   * @param window The window the data belongs to.
+   * @param cached The data to remove.
+   * @return True if this call removed it, false if it had already been removed.
+   */
+  private boolean remove(SourceWindow window, CachedSensorData cached) {
+    if (!window.entries.remove(cached.millis, cached)) {
+      return false;
+    }
+    this.totalBytes.addAndGet(-cached.bytes);
+    synchronized (cached) {
+      cached.removed = true;
+      if (!cached.persisted) {
+        window.unpersisted.remove(cached.millis, cached);
+      }
+    }
+    if (cached.persisted) {
+      this.evictable.remove(cached);
+    }
+    // If this was the latest data, fall back to whatever is now last. A newer store racing with us
+    // will win the compareAndSet or replace our value afterwards.
+    while (window.latest.get() == cached) {
+      Map.Entry<Long, CachedSensorData> last = window.entries.lastEntry();
+      window.latest.compareAndSet(cached, (last == null) ? null : last.getValue());
+    }
+    return true;
+  }
+
+  /**
+   * Returns how long sensor data is cached for a source's window length.
+   * 
+   * @param windowLength The CACHE_WINDOW_LENGTH of the source in minutes, or zero if it has none.
+   * @return The time to cache sensor data for, in milliseconds.
+   */
+  private static long lifeMillis(int windowLength) {
+    long lifeSeconds = (windowLength > 0) ? windowLength * 60L : DEFAULT_LIFE_SECONDS;
+    return lifeSeconds * 1000;
+  }
+
+  /**
+   * Converts a timestamp to the key used in the windows.
+   * 
+   * @param timestamp The timestamp to convert.
+   * @return The timestamp in milliseconds since the epoch.
+   */
+  private static long toMillis(XMLGregorianCalendar timestamp) {
+    return Tstamp.toMillis(timestamp);
+  }
+
+  /** The cached sensor data for one source, ordered by timestamp. */
+  private static class SourceWindow {
+    /** The cached sensor data, keyed by timestamp in milliseconds. */
+    private final ConcurrentSkipListMap<Long, CachedSensorData> entries =
+        new ConcurrentSkipListMap<Long, CachedSensorData>();
+    /** The cached sensor data with the latest timestamp, or null if there is none. */
+    private final AtomicReference<CachedSensorData> latest =
+        new AtomicReference<CachedSensorData>();
+    /**
+     * The entries that have not been marked persisted, keyed by timestamp in milliseconds, so the
+     * first of them is found without scanning the window. Changed while holding the entry's lock.
+     */
+    private final ConcurrentSkipListMap<Long, CachedSensorData> unpersisted =
+        new ConcurrentSkipListMap<Long, CachedSensorData>();
+  }
+
+  /**
+   * A sensor data in a window, along with when it expires, how big it is, and whether it has been
+   * persisted. Ordered by when it was cached.
+   */
+  private static class CachedSensorData implements Comparable<CachedSensorData> {
+    /** The sensor data. */
+    private final SensorDataRecord record;
+    /** The sensor data's timestamp in milliseconds. */
+    private final long millis;
+    /** The time the sensor data expires, in milliseconds. */
+    private final long expires;
+    /** The estimated size of the sensor data in bytes. */
+    private final int bytes;
+    /** The order the sensor data was cached in. */
+    private final long sequence;
+    /** Whether the sensor data has been persisted, so it may be evicted early. */
+    private volatile boolean persisted;
+    /** Whether the sensor data has been removed from its window. Guarded by this. */
+    private boolean removed;
+
+    /**
+     * Creates a new CachedSensorData.
+     * 
+     * @param record The sensor data.
+     * @param millis The sensor data's timestamp in milliseconds.
+     * @param expires The time the sensor data expires, in milliseconds.
+     * @param bytes The estimated size of the sensor data in bytes.
+     * @param sequence The order the sensor data was cached in.
+     */
+    CachedSensorData(SensorDataRecord record, long millis, long expires, int bytes,
+        long sequence) {
+      this.record = record;
+      this.millis = millis;
+      this.expires = expires;
+      this.bytes = bytes;
+      this.sequence = sequence;
+    }
+
+    /**
+     * Orders cached sensor data by when it was cached.
+     * 
+     * @param other The cached sensor data to compare to.
+     * @return Negative if this was cached first, positive if other was, or zero if they are the
+     * same.
+     */
+    public int compareTo(CachedSensorData other) {
+      return (this.sequence < other.sequence) ? -1 : ((this.sequence == other.sequence) ? 0 : 1);
+    }
+
+    /**
+     * Returns whether the sensor data is still within its window.
+     * 
+     * @param now The current time in milliseconds.
+     * @return True if it has not expired yet.
+     */
+    boolean isLive(long now) {
+      return now < this.expires;
+    }
+  }
 }
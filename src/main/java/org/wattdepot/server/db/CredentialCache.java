@@ -0,0 +1,217 @@
+package org.wattdepot.server.db;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers recently verified credentials, so that authenticating a request does not require
+ * reading the User from storage every time. Only a salted digest of each secret is kept, along with
+ * whether the User is an administrator for role lookups. Entries expire after a fixed time, the
+ * least recently used entries are dropped once the cache is full, and a User's entry is dropped
+ * whenever that User is stored or deleted.
+ */
+public class CredentialCache {
+
+  /** The digest algorithm used for secrets. */
+  private static final String DIGEST_ALGORITHM = "SHA-256";
+
+  /** The charset secrets are encoded in before digesting. */
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** Random salt mixed into every digest, so digests are not comparable across servers. */
+  private final byte[] salt = new byte[16];
+
+  /** The maximum number of entries held. */
+  private final int maxEntries;
+
+  /** How long an entry remains valid, in milliseconds. */
+  private final long timeToLive;
+
+  /** Verified credentials in least recently used order, keyed by username. */
+  private final Map<String, Credential> credentials;
+
+  /** Incremented on every invalidation, so Users read meanwhile are not cached. */
+  private final AtomicLong version = new AtomicLong();
+
+  /**
+   * Creates a new, empty CredentialCache.
+   *
+   * @param maxEntries The maximum number of entries held. If 0 or less nothing is cached.
+   * @param timeToLive How long an entry remains valid, in milliseconds.
+   */
+  public CredentialCache(final int maxEntries, long timeToLive) {
+    this.maxEntries = maxEntries;
+    this.timeToLive = timeToLive;
+    this.credentials = new LinkedHashMap<String, Credential>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Credential> eldest) {
+        return size() > maxEntries;
+      }
+    };
+    new SecureRandom().nextBytes(this.salt);
+  }
+
+  /**
+   * Returns the version of the cache, to be read before the User is read from storage and passed
+   * to put, so that a User changed in between is not cached.
+   *
+   * @return The current version.
+   */
+  public long getVersion() {
+    return this.version.get();
+  }
+
+  /**
+   * Returns true if the given secret was verified for the given username recently enough.
+   *
+   * @param username The username.
+   * @param secret The secret supplied.
+   * @return True if the secret matches an unexpired cached entry.
+   */
+  public boolean isValid(String username, char[] secret) {
+    if ((username == null) || (secret == null)) {
+      return false;
+    }
+    Credential credential = getCredential(username);
+    if (credential == null) {
+      return false;
+    }
+    byte[] digest = digest(secret);
+    return (digest != null) && MessageDigest.isEqual(digest, credential.digest);
+  }
+
+  /**
+   * Returns whether the given User is an administrator, if the User's credentials are cached.
+   *
+   * @param username The username.
+   * @return True or false if the User has an unexpired entry, or null if not.
+   */
+  public Boolean isAdmin(String username) {
+    if (username == null) {
+      return null;
+    }
+    Credential credential = getCredential(username);
+    return (credential == null) ? null : Boolean.valueOf(credential.admin);
+  }
+
+  /**
+   * Caches a secret that has just been verified against the stored User.
+   *
+   * @param username The username.
+   * @param secret The verified secret.
+   * @param admin Whether the User is an administrator.
+   * @param startVersion The version read before the User was read from storage.
+   */
+  public void put(String username, char[] secret, boolean admin, long startVersion) {
+    if ((username == null) || (secret == null) || (this.maxEntries <= 0)) {
+      return;
+    }
+    byte[] digest = digest(secret);
+    if (digest == null) {
+      return;
+    }
+    Credential credential =
+        new Credential(digest, admin, System.currentTimeMillis() + this.timeToLive);
+    synchronized (this.credentials) {
+      // Checked under the lock, so an invalidation cannot slip in before the put
+      if (this.version.get() == startVersion) {
+        this.credentials.put(username, credential);
+      }
+    }
+  }
+
+  /**
+   * Drops the cached entry of the named User. Must be called after the User is stored or deleted.
+   *
+   * @param username The username.
+   */
+  public void invalidate(String username) {
+    synchronized (this.credentials) {
+      this.version.incrementAndGet();
+      this.credentials.remove(username);
+    }
+  }
+
+  /**
+   * Drops all cached entries.
+   */
+  public void clear() {
+    synchronized (this.credentials) {
+      this.version.incrementAndGet();
+      this.credentials.clear();
+    }
+  }
+
+  /**
+   * Returns the unexpired entry of the named User, dropping it if it has expired.
+   *
+   * @param username The username.
+   * @return The entry, or null if there is none or it has expired.
+   */
+  private Credential getCredential(String username) {
+    synchronized (this.credentials) {
+      Credential credential = this.credentials.get(username);
+      if ((credential != null) && (credential.expires <= System.currentTimeMillis())) {
+        this.credentials.remove(username);
+        return null;
+      }
+      return credential;
+    }
+  }
+
+  /**
+   * Returns the salted digest of a secret.
+   *
+   * @param secret The secret.
+   * @return The digest, or null if the digest algorithm is not available.
+   */
+  private byte[] digest(char[] secret) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+      digest.update(this.salt);
+      ByteBuffer bytes = UTF8.encode(CharBuffer.wrap(secret));
+      digest.update(bytes);
+      return digest.digest();
+    }
+    catch (NoSuchAlgorithmException e) {
+      return null;
+    }
+  }
+
+  /**
+   * A verified credential.
+   */
+  private static class Credential {
+
+    /** Salted digest of the secret. */
+    private final byte[] digest;
+
+    /** Whether the User is an administrator. */
+    private final boolean admin;
+
+    /** When the entry expires, in epoch milliseconds. */
+    private final long expires;
+
+    /**
+     * Creates a new Credential.
+     *
+     * @param digest Salted digest of the secret.
+     * @param admin Whether the User is an administrator.
+     * @param expires When the entry expires, in epoch milliseconds.
+     */
+    Credential(byte[] digest, boolean admin, long expires) {
+      this.digest = digest;
+      this.admin = admin;
+      this.expires = expires;
+    }
+  }
+}
@@ -11,6 +11,7 @@ import org.wattdepot.resource.sensordata.SensorDataStraddle;
 import org.wattdepot.resource.sensordata.StraddleList;
 import org.wattdepot.resource.sensordata.jaxb.SensorData;
 import org.wattdepot.resource.sensordata.jaxb.SensorDataIndex;
+import org.wattdepot.resource.sensordata.jaxb.SensorDataRef;
 import org.wattdepot.resource.sensordata.jaxb.SensorDatas;
 import org.wattdepot.resource.source.jaxb.Source;
 import org.wattdepot.resource.source.jaxb.SourceIndex;
@@ -19,6 +20,8 @@ import org.wattdepot.resource.source.summary.jaxb.SourceSummary;
 import org.wattdepot.resource.user.jaxb.User;
 import org.wattdepot.resource.user.jaxb.UserIndex;
 import org.wattdepot.server.Server;
+import org.wattdepot.server.ServerProperties;
+import org.wattdepot.server.db.SubSourceExecutor.SubSourceTask;
 import org.wattdepot.util.UriUtils;
 import org.wattdepot.util.tstamp.Tstamp;
 
@@ -42,6 +45,18 @@ public abstract class DbImplementation {
   /** Keep a pointer to the Logger. */
   protected Logger logger;
 
+  /** The progress of the current or most recent snapshot. */
+  protected final SnapshotStatus snapshotStatus = new SnapshotStatus();
+
+  /**
+   * The number of SensorData per timestamp that a single range scan for straddles may read, so
+   * that a few timestamps spread over a long history do not read all of it.
+   */
+  protected static final int STRADDLE_SCAN_ROWS_PER_TIMESTAMP = 16;
+
+  /** The number of SensorData a range scan for straddles may always read. */
+  protected static final int STRADDLE_SCAN_MIN_ROWS = 256;
+
   /**
    * Constructs a new DbImplementation.
    * 
@@ -229,6 +244,30 @@ public abstract class DbImplementation {
    */
   public abstract boolean storeSensorData(SensorData data);
 
+  /**
+   * Persists a list of SensorData instances. Each SensorData is handled independently: if one
+   * cannot be stored (for example because SensorData with the same [Source, timestamp] already
+   * exists, or its Source is unknown) it is returned to the caller and the rest of the list is
+   * still stored. This default implementation simply calls storeSensorData on each element;
+   * implementations that can write many rows per round-trip should override it.
+   *
+   * @param datas The list of sensor data to store.
+   * @return The list of SensorData that could not be stored, which is empty if every SensorData was
+   * stored, or null if datas is null.
+   */
+  public List<SensorData> storeSensorDatas(List<SensorData> datas) {
+    if (datas == null) {
+      return null;
+    }
+    List<SensorData> rejected = new ArrayList<SensorData>();
+    for (SensorData data : datas) {
+      if (!storeSensorData(data)) {
+        rejected.add(data);
+      }
+    }
+    return rejected;
+  }
+
   /**
    * Ensures that sensor data with the named Source and timestamp is no longer present in this
    * manager.
@@ -249,6 +288,39 @@ public abstract class DbImplementation {
    */
   public abstract boolean deleteSensorData(String sourceName);
 
+  /**
+   * Ensures that all sensor data from the named Source with timestamps between startTime and
+   * endTime (inclusive) is no longer present in storage. This default implementation deletes each
+   * SensorData in the range individually; implementations that can delete a range of rows in one
+   * statement should override it.
+   * 
+   * @param sourceName The name of the Source whose sensor data is to be deleted.
+   * @param startTime The earliest SensorData to be deleted.
+   * @param endTime The latest SensorData to be deleted.
+   * @return The number of SensorData deleted, or -1 if the arguments are invalid or the sensor data
+   * could not be deleted.
+   */
+  public int deleteSensorData(String sourceName, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime) {
+    SensorDataIndex index;
+    try {
+      index = getSensorDataIndex(sourceName, startTime, endTime);
+    }
+    catch (DbBadIntervalException e) {
+      return -1;
+    }
+    if (index == null) {
+      return -1;
+    }
+    int deleted = 0;
+    for (SensorDataRef ref : index.getSensorDataRef()) {
+      if (deleteSensorData(sourceName, ref.getTimestamp())) {
+        deleted++;
+      }
+    }
+    return deleted;
+  }
+
   /**
    * Returns a UserIndex of all Users in the system. The list is sorted by username.
    * 
@@ -285,6 +357,43 @@ public abstract class DbImplementation {
 
   // End of methods based on REST API
 
+  /**
+   * Returns the rollups of the named Source at the given resolution whose buckets start at or
+   * after startMillis and before endMillis, sorted by bucket start. Missing buckets are simply
+   * absent from the list.
+   * 
+   * @param sourceName The name of the Source.
+   * @param resolution The bucket length in minutes, one of SensorDataRollup.RESOLUTIONS.
+   * @param startMillis The earliest bucket start of interest, in epoch milliseconds.
+   * @param endMillis The bucket start (exclusive) to stop at, in epoch milliseconds.
+   * @return The list of rollups, or null if there was a problem reading them.
+   */
+  public abstract List<SensorDataRollup> getRollups(String sourceName, int resolution,
+      long startMillis, long endMillis);
+
+  /**
+   * Returns the rollups of the named Source, at every resolution, whose buckets overlap the range
+   * from startMillis to endMillis inclusive.
+   * 
+   * @param sourceName The name of the Source.
+   * @param startMillis The start of the range, in epoch milliseconds.
+   * @param endMillis The end of the range, in epoch milliseconds.
+   * @return The list of rollups in no particular order, or null if there was a problem reading
+   * them.
+   */
+  public abstract List<SensorDataRollup> getRollups(String sourceName, long startMillis,
+      long endMillis);
+
+  /**
+   * Persists the given rollups, replacing any stored rollups for the same Source, resolution and
+   * bucket start. Rollups are removed along with the rest of a Source's SensorData by
+   * deleteSensorData(String) and deleteSource.
+   * 
+   * @param rollups The rollups to store.
+   * @return True if all the rollups were stored.
+   */
+  public abstract boolean storeRollups(List<SensorDataRollup> rollups);
+
   /**
    * Returns a SensorDataStraddle that straddles the given timestamp, using SensorData from the
    * given source. Note that a virtual source contains no SensorData directly, so this method will
@@ -305,6 +414,70 @@ public abstract class DbImplementation {
   public abstract SensorDataStraddle getSensorDataStraddle(Source source,
       XMLGregorianCalendar timestamp);
 
+  /**
+   * Returns a SensorDataStraddle for each of the given timestamps, using SensorData from the given
+   * source. This default implementation calls getSensorDataStraddle once per timestamp;
+   * implementations that can find all of the straddles with a single range scan should override it.
+   * 
+   * @param source The source object to generate the straddles from.
+   * @param timestampList The timestamps of interest in each straddle.
+   * @return A List with one entry for each timestamp, in the same order as timestampList. An entry
+   * is null if there is no sensor data that straddles its timestamp. Returns null if parameters are
+   * null.
+   * @see #getSensorDataStraddle
+   */
+  public List<SensorDataStraddle> getSensorDataStraddles(Source source,
+      List<XMLGregorianCalendar> timestampList) {
+    if ((source == null) || (timestampList == null)) {
+      return null;
+    }
+    List<SensorDataStraddle> straddleList =
+        new ArrayList<SensorDataStraddle>(timestampList.size());
+    for (XMLGregorianCalendar timestamp : timestampList) {
+      straddleList.add(getSensorDataStraddle(source, timestamp));
+    }
+    return straddleList;
+  }
+
+  /**
+   * Returns the most SensorData a single range scan for the straddles of the given number of
+   * timestamps should read.
+   * 
+   * @param timestamps The number of timestamps.
+   * @return The row limit for the scan.
+   */
+  protected static int getStraddleScanLimit(int timestamps) {
+    return (int) Math.min(Integer.MAX_VALUE, Math.max(STRADDLE_SCAN_MIN_ROWS,
+        (long) STRADDLE_SCAN_ROWS_PER_TIMESTAMP * timestamps));
+  }
+
+  /**
+   * Builds the straddles for the given timestamps from the SensorData read by a range scan that
+   * was limited to the given number of rows (see getStraddleScanLimit). If the scan reached its
+   * limit, the timestamps after the last SensorData read are looked up one at a time instead.
+   * 
+   * @param source The source the SensorData was read from.
+   * @param sortedDatas The SensorData read, sorted by ascending timestamp, starting with the
+   * SensorData at or before the earliest timestamp.
+   * @param limit The row limit the scan was run with.
+   * @param timestampList The timestamps of interest, in any order.
+   * @return A List with one entry for each timestamp, in the same order as timestampList.
+   */
+  protected List<SensorDataStraddle> getStraddlesFromScan(Source source,
+      List<SensorData> sortedDatas, int limit, List<XMLGregorianCalendar> timestampList) {
+    List<SensorDataStraddle> straddleList =
+        SensorDataStraddle.getStraddlesFromList(sortedDatas, timestampList);
+    if (sortedDatas.size() >= limit) {
+      long lastRead = Tstamp.toMillis(sortedDatas.get(sortedDatas.size() - 1).getTimestamp());
+      for (int i = 0; i < timestampList.size(); i++) {
+        if (Tstamp.toMillis(timestampList.get(i)) > lastRead) {
+          straddleList.set(i, getSensorDataStraddle(source, timestampList.get(i)));
+        }
+      }
+    }
+    return straddleList;
+  }
+
   /**
    * Returns a list of SensorDataStraddles that straddle the given timestamp, using SensorData from
    * all non-virtual subsources of the given source. If the given source is non-virtual, then the
@@ -319,25 +492,22 @@ public abstract class DbImplementation {
    * @see org.wattdepot.server.db.memory#getSensorDataStraddle
    */
   public List<SensorDataStraddle> getSensorDataStraddleList(Source source,
-      XMLGregorianCalendar timestamp) {
+      final XMLGregorianCalendar timestamp) {
     if ((source == null) || (timestamp == null)) {
       return null;
     }
 
     // Want to go through sensordata for base source, and all subsources recursively
     List<Source> sourceList = getAllNonVirtualSubSources(source);
-    List<SensorDataStraddle> straddleList = new ArrayList<SensorDataStraddle>(sourceList.size());
-    for (Source subSource : sourceList) {
-      SensorDataStraddle straddle = this.dbManager.getSensorDataStraddle(subSource, timestamp);
-      if (straddle == null) {
-        // No straddle for this timestamp on this source, abort
-        return null;
-      }
-      else {
-        straddleList.add(straddle);
-      }
-    }
-    if (straddleList.isEmpty()) {
+    // A subsource with no straddle for this timestamp aborts the whole list
+    List<SensorDataStraddle> straddleList =
+        getSubSourceExecutor().map(sourceList, new SubSourceTask<SensorDataStraddle>() {
+          @Override
+          public SensorDataStraddle call(Source subSource) {
+            return DbImplementation.this.dbManager.getSensorDataStraddle(subSource, timestamp);
+          }
+        }, true);
+    if ((straddleList == null) || straddleList.isEmpty()) {
       return null;
     }
     else {
@@ -358,35 +528,26 @@ public abstract class DbImplementation {
    * exist, or there is no sensor data that straddles any of the timestamps.
    * @see org.wattdepot.server.db.memory#getSensorDataStraddle
    */
-  public List<StraddleList> getStraddleLists(Source source, List<XMLGregorianCalendar> timestampList) {
+  public List<StraddleList> getStraddleLists(Source source,
+      final List<XMLGregorianCalendar> timestampList) {
     if ((source == null) || (timestampList == null)) {
       return null;
     }
 
     // Want to go through sensordata for base source, and all subsources recursively
     List<Source> sourceList = getAllNonVirtualSubSources(source);
-    List<StraddleList> masterList = new ArrayList<StraddleList>(sourceList.size());
-    List<SensorDataStraddle> straddleList;
-    for (Source subSource : sourceList) {
-      straddleList = new ArrayList<SensorDataStraddle>(timestampList.size());
-      for (XMLGregorianCalendar timestamp : timestampList) {
-        SensorDataStraddle straddle = this.dbManager.getSensorDataStraddle(subSource, timestamp);
-        if (straddle == null) {
-          // No straddle for this timestamp on this source, abort
+    return getSubSourceExecutor().map(sourceList, new SubSourceTask<StraddleList>() {
+      @Override
+      public StraddleList call(Source subSource) {
+        List<SensorDataStraddle> straddleList =
+            DbImplementation.this.dbManager.getSensorDataStraddles(subSource, timestampList);
+        if (straddleList.contains(null) || straddleList.isEmpty()) {
+          // No straddle for one of the timestamps on this source, abort
           return null;
         }
-        else {
-          straddleList.add(straddle);
-        }
-      }
-      if (straddleList.isEmpty()) {
-        return null;
+        return new StraddleList(subSource, straddleList);
       }
-      else {
-        masterList.add(new StraddleList(subSource, straddleList));
-      }
-    }
-    return masterList;
+    }, true);
   }
 
   /**
@@ -403,29 +564,27 @@ public abstract class DbImplementation {
    * @see org.wattdepot.server.db.memory#getSensorDataStraddle getSensorDataStraddle
    */
   public List<List<SensorDataStraddle>> getSensorDataStraddleListOfLists(Source source,
-      List<XMLGregorianCalendar> timestampList) {
-    List<List<SensorDataStraddle>> masterList = new ArrayList<List<SensorDataStraddle>>();
+      final List<XMLGregorianCalendar> timestampList) {
     if ((source == null) || (timestampList == null)) {
       return null;
     }
 
     // Want to go through sensordata for base source, and all subsources recursively
     List<Source> sourceList = getAllNonVirtualSubSources(source);
-    for (Source subSource : sourceList) {
-      List<SensorDataStraddle> straddleList = new ArrayList<SensorDataStraddle>();
-      for (XMLGregorianCalendar timestamp : timestampList) {
-        SensorDataStraddle straddle = this.dbManager.getSensorDataStraddle(subSource, timestamp);
-        if (straddle == null) {
-          // No straddle for this timestamp on this source, abort
-          return null;
-        }
-        else {
-          straddleList.add(straddle);
-        }
-      }
-      masterList.add(straddleList);
-    }
-    if (masterList.isEmpty()) {
+    List<List<SensorDataStraddle>> masterList =
+        getSubSourceExecutor().map(sourceList, new SubSourceTask<List<SensorDataStraddle>>() {
+          @Override
+          public List<SensorDataStraddle> call(Source subSource) {
+            List<SensorDataStraddle> straddleList =
+                DbImplementation.this.dbManager.getSensorDataStraddles(subSource, timestampList);
+            if (straddleList.contains(null)) {
+              // No straddle for one of the timestamps on this source, abort
+              return null;
+            }
+            return straddleList;
+          }
+        }, true);
+    if ((masterList == null) || masterList.isEmpty()) {
       return null;
     }
     else {
@@ -465,8 +624,8 @@ public abstract class DbImplementation {
    * @param source The source object.
    * @param startTime The start of the range requested.
    * @param endTime The end of the range requested.
-   * @param interval The sampling interval requested in minutes (ignored if all sources support
-   * energy counters).
+   * @param interval The sampling interval requested in minutes (only checked against the length of
+   * the range, since energy is either read from counters or integrated between the readings).
    * @return The requested energy in SensorData format, or null if it cannot be found/calculated.
    */
   protected SensorData getNonVirtualEnergy(Source source, XMLGregorianCalendar startTime,
@@ -514,6 +673,12 @@ public abstract class DbImplementation {
       }
     }
     else {
+      double[] integratedEnergy = getIntegratedEnergy(source, startTime, endTime, interval);
+      if (integratedEnergy != null) {
+        return Energy.makeEnergySensorData(startTime,
+            Source.sourceToUri(source.getName(), this.server), integratedEnergy[0],
+            integratedEnergy[1], true);
+      }
       List<List<SensorDataStraddle>> masterList =
           getSensorDataStraddleListOfLists(source,
               Tstamp.getTimestampList(startTime, endTime, interval));
@@ -527,6 +692,35 @@ public abstract class DbImplementation {
     }
   }
 
+  /**
+   * Returns the energy generated and consumed by the given non-virtual Source between the given
+   * times, integrated from the power at its stored readings. Long ranges are summed from the
+   * rollups, and anything else comes from the Source's energy integral, so the cost does not
+   * depend on the sampling interval. The interval is still checked so that requests rejected when
+   * sampling are rejected here too.
+   * 
+   * @param source The non-virtual Source.
+   * @param startTime The start of the range requested.
+   * @param endTime The end of the range requested.
+   * @param interval The sampling interval requested in minutes.
+   * @return A two element array holding energy generated and energy consumed in Wh, or null if it
+   * cannot be computed this way.
+   */
+  private double[] getIntegratedEnergy(Source source, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime, int interval) {
+    long rangeLength = Tstamp.diff(startTime, endTime);
+    long minutesToMilliseconds = 60L * 1000L;
+    if ((interval < 0) || (rangeLength <= 0)
+        || ((interval * minutesToMilliseconds) > rangeLength)) {
+      return null;
+    }
+    double[] energy = this.dbManager.getRollupEnergy(source, startTime, endTime);
+    if (energy == null) {
+      energy = this.dbManager.getIntegratedEnergy(source, startTime, endTime);
+    }
+    return energy;
+  }
+
   /**
    * Returns the energy in SensorData format for the given Source over the range of time between
    * startTime and endTime, or null if no energy data exists.
@@ -534,27 +728,28 @@ public abstract class DbImplementation {
    * @param source The source object.
    * @param startTime The start of the range requested.
    * @param endTime The end of the range requested.
-   * @param interval The sampling interval requested in minutes (ignored if all sources support
-   * energy counters).
+   * @param interval The sampling interval requested in minutes (only checked against the length of
+   * the range, since energy is either read from counters or integrated between the readings).
    * @return The requested energy in SensorData format, or null if it cannot be found/calculated.
    */
-  public SensorData getEnergy(Source source, XMLGregorianCalendar startTime,
-      XMLGregorianCalendar endTime, int interval) {
+  public SensorData getEnergy(Source source, final XMLGregorianCalendar startTime,
+      final XMLGregorianCalendar endTime, final int interval) {
 
     if (!source.isVirtual()) {
       return getNonVirtualEnergy(source, startTime, endTime, interval);
     }
 
-    List<SensorData> energyList = new ArrayList<SensorData>();
     List<Source> nonVirtualSources = getAllNonVirtualSubSources(source);
-    for (Source s : nonVirtualSources) {
-      SensorData d = getNonVirtualEnergy(s, startTime, endTime, interval);
-      if (d != null) {
-        energyList.add(d);
-      }
-      else {
-        return null;
-      }
+    // Any subsource without energy makes the whole result null
+    List<SensorData> energyList =
+        getSubSourceExecutor().map(nonVirtualSources, new SubSourceTask<SensorData>() {
+          @Override
+          public SensorData call(Source subSource) {
+            return getNonVirtualEnergy(subSource, startTime, endTime, interval);
+          }
+        }, true);
+    if (energyList == null) {
+      return null;
     }
     try {
 
@@ -593,26 +788,26 @@ public abstract class DbImplementation {
     }
   }
 
+  /**
+   * Returns the executor used to evaluate the non-virtual subsources of virtual Sources in
+   * parallel.
+   * 
+   * @return The DbManager's SubSourceExecutor.
+   */
+  protected SubSourceExecutor getSubSourceExecutor() {
+    return this.dbManager.getSubSourceExecutor();
+  }
+
   /**
    * Given a base Source, return a list of all non-virtual Sources that are subsources of the base
-   * Source. This is done recursively, so virtual sources can point to other virtual sources.
+   * Source. This is done recursively, so virtual sources can point to other virtual sources. The
+   * hierarchy is resolved through the DbManager, which caches it.
    * 
    * @param baseSource The Source to start from.
    * @return A list of all non-virtual Sources that are subsources of the base Source.
    */
   public List<Source> getAllNonVirtualSubSources(Source baseSource) {
-    List<Source> sourceList = new ArrayList<Source>();
-    if (baseSource.isVirtual()) {
-      List<Source> subSources = getAllSubSources(baseSource);
-      for (Source subSource : subSources) {
-        sourceList.addAll(getAllNonVirtualSubSources(subSource));
-      }
-      return sourceList;
-    }
-    else {
-      sourceList.add(baseSource);
-      return sourceList;
-    }
+    return this.dbManager.getAllNonVirtualSubSources(baseSource);
   }
 
   /**
@@ -628,7 +823,7 @@ public abstract class DbImplementation {
       // List<Source> sourceList = source.getSubSourceList();
       // if (sourceList == null) {
       for (String subSourceUri : source.getSubSources().getHref()) {
-        Source subSource = getSource(UriUtils.getUriSuffix(subSourceUri));
+        Source subSource = this.dbManager.getSource(UriUtils.getUriSuffix(subSourceUri));
         if (subSource != null) {
           sourceList.add(subSource);
         }
@@ -662,6 +857,18 @@ public abstract class DbImplementation {
       }
     }
 
+    double[] integratedEnergy = getIntegratedEnergy(source, startTime, endTime, interval);
+    if (integratedEnergy != null) {
+      double carbonEmitted = 0;
+      if (Carbon.sourceSupportsCarbon(source)) {
+        carbonEmitted =
+            Carbon.getCarbonFromEnergy(integratedEnergy[0],
+                source.getPropertyAsDouble(Source.CARBON_INTENSITY));
+      }
+      return Carbon.makeCarbonSensorData(startTime, Source.sourceToUri(source.getName(), server),
+          carbonEmitted, true);
+    }
+
     List<StraddleList> masterList =
         getStraddleLists(source, Tstamp.getTimestampList(startTime, endTime, interval));
     if ((masterList == null) || (masterList.isEmpty())) {
@@ -684,23 +891,24 @@ public abstract class DbImplementation {
    * @param interval The sampling interval requested.
    * @return The requested carbon in SensorData format, or null if it cannot be found/calculated.
    */
-  public SensorData getCarbon(Source source, XMLGregorianCalendar startTime,
-      XMLGregorianCalendar endTime, int interval) {
+  public SensorData getCarbon(Source source, final XMLGregorianCalendar startTime,
+      final XMLGregorianCalendar endTime, final int interval) {
 
     if (!source.isVirtual()) {
       return getNonVirtualCarbon(source, startTime, endTime, interval);
     }
 
-    List<SensorData> carbonList = new ArrayList<SensorData>();
     List<Source> nonVirtualSources = getAllNonVirtualSubSources(source);
-    for (Source s : nonVirtualSources) {
-      SensorData d = getNonVirtualCarbon(s, startTime, endTime, interval);
-      if (d != null) {
-        carbonList.add(d);
-      }
-      else {
-        return null;
-      }
+    // Any subsource without carbon makes the whole result null
+    List<SensorData> carbonList =
+        getSubSourceExecutor().map(nonVirtualSources, new SubSourceTask<SensorData>() {
+          @Override
+          public SensorData call(Source subSource) {
+            return getNonVirtualCarbon(subSource, startTime, endTime, interval);
+          }
+        }, true);
+    if (carbonList == null) {
+      return null;
     }
     double totalCarbonEmitted = 0;
     boolean wasInterpolated = true;
@@ -758,12 +966,37 @@ public abstract class DbImplementation {
   public abstract boolean indexTables();
 
   /**
-   * Creates a snapshot of the database in the directory specified by the Server Properties.
+   * Creates a snapshot of the database in the directory specified by the Server Properties. Where
+   * the storage system allows it, only what has changed since the previous snapshot is copied. The
+   * DbManager never makes two snapshots at once.
    * 
    * @return True if the snapshot succeeded.
    */
   public abstract boolean makeSnapshot();
 
+  /**
+   * Returns the progress of the current or most recent snapshot, which implementations that copy
+   * files update through the SnapshotCopier from makeSnapshotCopier.
+   * 
+   * @return The snapshot status.
+   */
+  public SnapshotStatus getSnapshotStatus() {
+    return this.snapshotStatus;
+  }
+
+  /**
+   * Creates a SnapshotCopier that copies files as configured in the Server Properties and reports
+   * its progress to the snapshot status.
+   * 
+   * @return The new SnapshotCopier.
+   */
+  protected SnapshotCopier makeSnapshotCopier() {
+    ServerProperties props = server.getServerProperties();
+    return new SnapshotCopier(this.snapshotStatus, Integer.parseInt(props
+        .get(ServerProperties.SNAPSHOT_THREADS_KEY)), "true".equals(props
+        .get(ServerProperties.SNAPSHOT_COMPRESS_KEY)), this.logger);
+  }
+
   /**
    * Provides ability to stop or close database connection if necessary. By default, does nothing.
    */
@@ -1,14 +1,19 @@
 package org.wattdepot.server.db;
 
 import static org.wattdepot.server.ServerProperties.DB_IMPL_KEY;
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.xml.datatype.XMLGregorianCalendar;
-import org.wattdepot.resource.property.jaxb.Properties;
-import org.wattdepot.resource.property.jaxb.Property;
 import org.wattdepot.resource.sensordata.SensorDataStraddle;
 import org.wattdepot.resource.sensordata.StraddleList;
 import org.wattdepot.resource.sensordata.jaxb.SensorData;
@@ -23,6 +28,7 @@ import org.wattdepot.resource.user.jaxb.User;
 import org.wattdepot.resource.user.jaxb.UserIndex;
 import org.wattdepot.server.Server;
 import org.wattdepot.server.ServerProperties;
+import org.wattdepot.server.cache.CacheWriteAheadLog;
 import org.wattdepot.server.cache.DataCache;
 import org.wattdepot.util.StackTrace;
 import org.wattdepot.util.UriUtils;
@@ -46,6 +52,42 @@ public class DbManager {
   /** The cache to use for this DbManager. */
   protected DataCache cache;
 
+  /** Maintains the rollups of each Source as SensorData is stored and deleted. */
+  protected RollupManager rollups;
+
+  /** Maintains the energy integral of each Source as SensorData is stored and deleted. */
+  protected EnergyIntegralIndex integrals;
+
+  /** Caches the flattened non-virtual subsources of each virtual Source. */
+  protected SourceHierarchyCache hierarchies;
+
+  /** Remembers the latest SensorData of each Source. */
+  protected LatestSensorDataRegistry latest;
+
+  /** Caches the Sources read from storage. */
+  protected SourceCache sources;
+
+  /** Caches recently verified User credentials. */
+  protected CredentialCache credentials;
+
+  /** Caches computed power, energy and carbon. */
+  protected ResultCache results;
+
+  /** Evaluates the subsources of virtual Sources in parallel. */
+  protected SubSourceExecutor executor;
+
+  /** Persists cached SensorData in the background, or null if it is persisted synchronously. */
+  protected WriteBehindQueue writeBehind;
+
+  /** Logs the SensorData held only in the cache, or null if it is not logged. */
+  protected CacheWriteAheadLog cacheLog;
+
+  /** Held while a snapshot is being made, so only one is made at a time. */
+  private final Object snapshotLock = new Object();
+
+  /** True while a snapshot started by startSnapshot has not finished. */
+  private final AtomicBoolean snapshotPending = new AtomicBoolean();
+
   /**
    * Creates a new DbManager which manages access to the underlying persistency layer(s). Choice of
    * which implementation of persistency layer to use is based on the ServerProperties of the server
@@ -128,10 +170,78 @@ public class DbManager {
       }
     }
 
-    this.cache = new DataCache();
+    this.cache =
+        new DataCache(Long.parseLong(serverProps.get(ServerProperties.CACHE_MAX_BYTES_KEY)),
+            server.getLogger());
     if (wipe) {
       this.cache.wipeData();
     }
+    this.latest = new LatestSensorDataRegistry(this.cache, this.dbImpl);
+    if ("true".equals(serverProps.get(ServerProperties.CACHE_WAL_KEY))) {
+      this.cacheLog =
+          new CacheWriteAheadLog(new File(serverProps.get(ServerProperties.CACHE_WAL_DIR_KEY)),
+              Integer.parseInt(serverProps.get(ServerProperties.CACHE_WAL_SEGMENT_BYTES_KEY)),
+              server.getLogger());
+      try {
+        if (wipe) {
+          this.cacheLog.clear();
+        }
+        else {
+          this.cacheLog.replay(this.cache);
+        }
+        this.cache.setWriteAheadLog(this.cacheLog);
+      }
+      catch (IOException e) {
+        server.getLogger().warning(
+            "Unable to open cache write-ahead log, not logging cached SensorData: "
+                + StackTrace.toString(e));
+        this.cacheLog.close();
+        this.cacheLog = null;
+      }
+    }
+    this.rollups =
+        new RollupManager(this.dbImpl, Integer.parseInt(serverProps
+            .get(ServerProperties.ROLLUP_MIN_RANGE_KEY)));
+    this.integrals = new EnergyIntegralIndex(this.dbImpl, server.getLogger());
+    this.hierarchies = new SourceHierarchyCache(this);
+    this.sources = new SourceCache(this.dbImpl);
+    this.credentials =
+        new CredentialCache(Integer.parseInt(serverProps
+            .get(ServerProperties.CREDENTIAL_CACHE_SIZE_KEY)), Long.parseLong(serverProps
+            .get(ServerProperties.CREDENTIAL_CACHE_TTL_KEY)) * 1000);
+    this.results =
+        new ResultCache(Integer.parseInt(serverProps.get(ServerProperties.RESULT_CACHE_SIZE_KEY)));
+    this.executor =
+        new SubSourceExecutor(Integer.parseInt(serverProps
+            .get(ServerProperties.SUBSOURCE_PARALLELISM_KEY)));
+    if ("true".equals(serverProps.get(ServerProperties.WRITE_BEHIND_KEY))) {
+      try {
+        this.writeBehind =
+            new WriteBehindQueue(this.dbImpl, server.getLogger(),
+                serverProps.get(ServerProperties.WRITE_BEHIND_JOURNAL_KEY),
+                Integer.parseInt(serverProps.get(ServerProperties.WRITE_BEHIND_CAPACITY_KEY)),
+                Integer.parseInt(serverProps.get(ServerProperties.WRITE_BEHIND_BATCH_KEY)),
+                Long.parseLong(serverProps.get(ServerProperties.WRITE_BEHIND_SEGMENT_BYTES_KEY)),
+                new WriteBehindQueue.Listener() {
+                  public void stored(List<SensorData> datas) {
+                    writtenBehind(datas);
+                  }
+                }, wipe);
+      }
+      catch (IOException e) {
+        server.getLogger().warning(
+            "Unable to open write-behind journal, persisting synchronously: "
+                + StackTrace.toString(e));
+      }
+    }
+    if (!wipe) {
+      // Load the latest SensorData of every Source now, rather than on the first requests
+      for (Source source : getSources().getSource()) {
+        if (!source.isVirtual()) {
+          this.latest.getLatestSensorData(source.getName());
+        }
+      }
+    }
   }
 
   /**
@@ -141,7 +251,7 @@ public class DbManager {
    * @return a SourceIndex object containing a List of SourceRefs to all Source objects.
    */
   public SourceIndex getSourceIndex() {
-    return this.dbImpl.getSourceIndex();
+    return this.sources.getSourceIndex();
   }
 
   /**
@@ -151,17 +261,18 @@ public class DbManager {
    * @return a Sources object containing Source objects.
    */
   public Sources getSources() {
-    return this.dbImpl.getSources();
+    return this.sources.getSources();
   }
 
   /**
-   * Returns the named Source instance, or null if not found.
+   * Returns the named Source instance, or null if not found. The instance may be shared with other
+   * callers, so it must not be modified.
    * 
    * @param sourceName The name of the Source.
    * @return The requested Source, or null.
    */
   public Source getSource(String sourceName) {
-    return this.dbImpl.getSource(sourceName);
+    return this.sources.getSource(sourceName);
   }
 
   /**
@@ -183,7 +294,14 @@ public class DbManager {
    * @return True if the user was successfully stored.
    */
   public boolean storeSource(Source source) {
-    return this.dbImpl.storeSource(source);
+    boolean stored = this.dbImpl.storeSource(source);
+    if (source != null) {
+      this.sources.invalidate(source.getName());
+      this.hierarchies.invalidate(source.getName());
+      // Properties and subsources of the Source change the results of it and its parents
+      this.results.clear();
+    }
+    return stored;
   }
 
   /**
@@ -196,20 +314,34 @@ public class DbManager {
    * @return True if the user was successfully stored.
    */
   public boolean storeSource(Source source, boolean overwrite) {
-    return this.dbImpl.storeSource(source, overwrite);
+    boolean stored = this.dbImpl.storeSource(source, overwrite);
+    if (source != null) {
+      this.sources.invalidate(source.getName());
+      this.hierarchies.invalidate(source.getName());
+      // Properties and subsources of the Source change the results of it and its parents
+      this.results.clear();
+    }
+    return stored;
   }
 
   /**
    * Ensures that the Source with the given name is no longer present in storage. All sensor data
-   * associated with this Source will also be deleted.
+   * associated with this Source will also be deleted, including any still queued for write-behind
+   * and any in the cache and its write-ahead log.
    * 
    * @param sourceName The name of the Source.
    * @return True if the Source was deleted, or false if it was not deleted or the requested Source
    * does not exist.
    */
   public boolean deleteSource(String sourceName) {
-    this.cache.deleteSensorData(sourceName, null);
-    return this.dbImpl.deleteSource(sourceName);
+    // Queued SensorData must be stored before the Source is deleted, or it would outlive it
+    flushWriteBehind();
+    boolean deleted = this.dbImpl.deleteSource(sourceName);
+    forgetSensorData(sourceName);
+    this.sources.invalidate(sourceName);
+    this.hierarchies.invalidate(sourceName);
+    this.results.clear();
+    return deleted;
   }
 
   /**
@@ -447,6 +579,9 @@ public class DbManager {
    * SubSource, as this ensures that any subsequent requests for ranges of data using that timestamp
    * will succeed (since all SubSources have valid data up to that endpoint).
    * 
+   * The latest SensorData is kept up to date in a LatestSensorDataRegistry as SensorData is stored
+   * and deleted, so this does not normally query storage.
+   * 
    * @param sourceName The name of the Source whose sensor data is to be returned.
    * @return The SensorData resource, or null.
    */
@@ -459,55 +594,12 @@ public class DbManager {
       return null;
     }
     if (baseSource.isVirtual()) {
-      // Storing combined properties as Map while summing to make life easier
-      Map<String, Double> combinedMap = new LinkedHashMap<String, Double>();
-      XMLGregorianCalendar combinedTimestamp = null;
-      // Want to go through sensordata for base source, and all subsources recursively
-      List<Source> sourceList = getAllNonVirtualSubSources(baseSource);
-      for (Source subSource : sourceList) {
-        String subSourceName = subSource.getName();
-        SensorData data = this.cache.getLatestSensorData(subSourceName);
-        if (data == null) {
-          // Not in cache, try persistent store
-          data = this.dbImpl.getLatestNonVirtualSensorData(subSourceName); 
-        }
-        if (data != null) {
-          // record this timestamp if it is the first we've seen or is most recent so far
-          if ((combinedTimestamp == null)
-              || (Tstamp.lessThan(data.getTimestamp(), combinedTimestamp))) {
-            combinedTimestamp = data.getTimestamp();
-          }
-          // iterate over all properties found in data
-          for (Property prop : data.getProperties().getProperty()) {
-            Double combinedValue = combinedMap.get(prop.getKey());
-            if (combinedValue == null) {
-              // The combined property list does not have this property yet, so just add it verbatim
-              combinedMap.put(prop.getKey(), Double.valueOf(prop.getValue()));
-            }
-            else {
-              // Must add this property's value to existing sum. Assumes all sensor data properties
-              // are doubles, which is questionable
-              double newValue = combinedValue + Double.valueOf(prop.getValue());
-              combinedMap.put(prop.getKey(), newValue);
-            }
-          }
-        }
-      }
-      // Convert map to Properties
-      Properties combinedProps = new Properties();
-      for (Map.Entry<String, Double> entry : combinedMap.entrySet()) {
-        combinedProps.getProperty().add(new Property(entry.getKey(), entry.getValue().toString()));
-      }
-      return new SensorData(combinedTimestamp, SensorData.SERVER_TOOL, baseSource.toUri(server),
-          combinedProps);
+      return this.latest.getLatestSensorData(baseSource,
+          getAllNonVirtualSubSources(baseSource), baseSource.toUri(server));
     }
     else {
       // Non-virtual source, just return latest sensor data
-      SensorData cached = this.cache.getLatestSensorData(sourceName);
-      if (cached != null) {
-        return cached;
-      }
-      return this.dbImpl.getLatestNonVirtualSensorData(sourceName);
+      return this.latest.getLatestSensorData(sourceName);
     }
   }
 
@@ -535,7 +627,12 @@ public class DbManager {
    * @throws DatatypeConfigurationException
    */
   public boolean storeSensorDataNoCache(SensorData data) {
-    return this.dbImpl.storeSensorData(data);
+    if (this.dbImpl.storeSensorData(data)) {
+      this.latest.update(UriUtils.getUriSuffix(data.getSource()), data, Long.MAX_VALUE);
+      updateDerivedData(null, Collections.singletonList(data));
+      return true;
+    }
+    return false;
   }
 
   /**
@@ -572,13 +669,43 @@ public class DbManager {
     if (checkpointInterval == 0 && windowLength == 0) {
       return storeSensorDataNoCache(data);
     }
+    return cacheSensorData(data, source, sourceName, checkpointInterval, windowLength);
+  }
 
+  /**
+   * Caches a SensorData instance, and persists it to storage if the checkpoint interval requires
+   * it or if caching fails. See storeSensorData(SensorData, Source). If write-behind is enabled,
+   * SensorData due to be persisted is journaled and queued instead of stored before returning.
+   * SensorData is folded into the data derived from storage once it is stored, so SensorData that
+   * is only cached just drops the cached results it changes.
+   * 
+   * @param data The sensor data.
+   * @param source The Source the sensor data belongs to.
+   * @param sourceName The name of the Source the sensor data belongs to.
+   * @param checkpointInterval The CACHE_CHECKPOINT_INTERVAL of the source.
+   * @param windowLength The CACHE_WINDOW_LENGTH of the source.
+   * @return True if the sensor data was successfully stored to cache and disk if required.
+   */
+  private boolean cacheSensorData(SensorData data, Source source, String sourceName,
+      int checkpointInterval, int windowLength) {
     if (this.cache.storeSensorData(data, windowLength)) {
       // If caching worked, do we need to persist to storage also?
       if (this.cache.shouldPersist(sourceName, data.getTimestamp(), checkpointInterval)) {
-        if (this.dbImpl.storeSensorData(data)) {
+        if ((this.writeBehind != null) && this.writeBehind.add(data)) {
+          // Journaled, so it will reach storage even if the server stops first. It stays
+          // unpersisted in the cache until the writer has actually stored it.
+          this.cache.putSourceCheckpointTimestamp(sourceName, data.getTimestamp());
+          this.latest.update(sourceName, data,
+              this.cache.getExpiry(sourceName, data.getTimestamp()));
+          this.results.invalidate(sourceName, toMillis(data.getTimestamp()));
+          return true;
+        }
+        else if (this.dbImpl.storeSensorData(data)) {
           // If persist to storage worked, save checkpoint time.
+          this.cache.markPersisted(sourceName, data.getTimestamp());
           this.cache.putSourceCheckpointTimestamp(sourceName, data.getTimestamp());
+          this.latest.update(sourceName, data, Long.MAX_VALUE);
+          updateDerivedData(source, Collections.singletonList(data));
           return true;
         }
         else {
@@ -589,12 +716,19 @@ public class DbManager {
         }
       }
       else {
+        // Only in the cache, so log it in case the server stops before the next checkpoint
+        this.cache.logSensorData(data, windowLength);
+        this.latest.update(sourceName, data,
+            this.cache.getExpiry(sourceName, data.getTimestamp()));
+        this.results.invalidate(sourceName, toMillis(data.getTimestamp()));
         return true;
       }
     }
     // If caching didn't work, persist to storage. It will be slower but still accessible.
     else if (this.dbImpl.storeSensorData(data)) {
       this.cache.putSourceCheckpointTimestamp(sourceName, data.getTimestamp());
+      this.latest.update(sourceName, data, Long.MAX_VALUE);
+      updateDerivedData(source, Collections.singletonList(data));
       return true;
     }
     else {
@@ -602,6 +736,79 @@ public class DbManager {
     }
   }
 
+  /**
+   * Stores a list of SensorData instances that all belong to the given source. SensorData that
+   * already exists (in the cache or in storage) or that otherwise cannot be stored is returned to
+   * the caller, and does not prevent the rest of the list from being stored.
+   *
+   * If the source has caching enabled (see storeSensorData(SensorData, Source)), each SensorData is
+   * passed through the cache individually. Otherwise the whole list is handed to the
+   * DbImplementation so it can be persisted in as few round-trips as possible.
+   *
+   * @param datas The list of sensor data.
+   * @param source A source with optional CACHE_CHECKPOINT_INTERVAL and CACHE_WINDOW_LENGTH
+   * properties to use for this sensor data.
+   * @return The list of SensorData that could not be stored, which is empty if every SensorData was
+   * stored, or null if datas or source is null.
+   */
+  public List<SensorData> storeSensorDatas(List<SensorData> datas, Source source) {
+    if (datas == null || source == null) {
+      return null;
+    }
+    int checkpointInterval = 0;
+    if (source.getProperty(Source.CACHE_CHECKPOINT_INTERVAL) != null) {
+      checkpointInterval = (int) source.getPropertyAsDouble(Source.CACHE_CHECKPOINT_INTERVAL);
+    }
+    int windowLength = 0;
+    if (source.getProperty(Source.CACHE_WINDOW_LENGTH) != null) {
+      windowLength = (int) source.getPropertyAsDouble(Source.CACHE_WINDOW_LENGTH);
+    }
+
+    List<SensorData> rejected = new ArrayList<SensorData>();
+    if (checkpointInterval == 0 && windowLength == 0) {
+      // Storage catches duplicates on its own, so only data still in the cache needs filtering.
+      List<SensorData> toStore = new ArrayList<SensorData>(datas.size());
+      for (SensorData data : datas) {
+        if (this.cache.getSensorData(UriUtils.getUriSuffix(data.getSource()), data.getTimestamp())
+            == null) {
+          toStore.add(data);
+        }
+        else {
+          rejected.add(data);
+        }
+      }
+      List<SensorData> notStored = this.dbImpl.storeSensorDatas(toStore);
+      rejected.addAll(notStored);
+      // Rejected SensorData are the same objects that were handed in, so compare by identity
+      Set<SensorData> notStoredSet =
+          Collections.newSetFromMap(new IdentityHashMap<SensorData, Boolean>());
+      notStoredSet.addAll(notStored);
+      Map<String, List<SensorData>> stored = new LinkedHashMap<String, List<SensorData>>();
+      for (SensorData data : toStore) {
+        if (!notStoredSet.contains(data)) {
+          String sourceName = UriUtils.getUriSuffix(data.getSource());
+          this.latest.update(sourceName, data, Long.MAX_VALUE);
+          if (!stored.containsKey(sourceName)) {
+            stored.put(sourceName, new ArrayList<SensorData>());
+          }
+          stored.get(sourceName).add(data);
+        }
+      }
+      for (List<SensorData> sourceDatas : stored.values()) {
+        updateDerivedData(source, sourceDatas);
+      }
+    }
+    else {
+      for (SensorData data : datas) {
+        String sourceName = UriUtils.getUriSuffix(data.getSource());
+        if (hasSensorData(sourceName, data.getTimestamp()) || !storeSensorData(data, source)) {
+          rejected.add(data);
+        }
+      }
+    }
+    return rejected;
+  }
+
   /**
    * Ensures that sensor data with the named Source and timestamp is no longer present in this
    * manager.
@@ -612,6 +819,10 @@ public class DbManager {
    * sensor data or Source does not exist.
    */
   public boolean deleteSensorData(String sourceName, XMLGregorianCalendar timestamp) {
+    // Queued SensorData must not reappear after it is deleted
+    flushWriteBehind();
+    Source source = getSource(sourceName);
+    this.rollups.invalidate(source, timestamp);
     boolean cacheDelete = this.cache.deleteSensorData(sourceName, timestamp);
 
     if (cacheDelete) {
@@ -622,6 +833,11 @@ public class DbManager {
     }
 
     boolean dbDelete = this.dbImpl.deleteSensorData(sourceName, timestamp);
+    this.integrals.repair(source, timestamp, timestamp);
+    this.latest.remove(sourceName, timestamp);
+    if (timestamp != null) {
+      this.results.invalidate(sourceName, toMillis(timestamp));
+    }
 
     return cacheDelete || dbDelete;
   }
@@ -634,10 +850,300 @@ public class DbManager {
    * requested Source does not exist.
    */
   public boolean deleteSensorData(String sourceName) {
+    flushWriteBehind();
+    boolean deleted = this.dbImpl.deleteSensorData(sourceName);
+    forgetSensorData(sourceName);
+    return deleted;
+  }
+
+  /**
+   * Drops everything held in memory or in the cache about the SensorData of the named Source, for
+   * when all of it has been deleted from storage. Its rollups are deleted by the storage
+   * implementation along with the SensorData.
+   * 
+   * @param sourceName The name of the Source whose sensor data was deleted.
+   */
+  private void forgetSensorData(String sourceName) {
     this.cache.deleteSensorData(sourceName);
     this.cache.deleteSourceCheckpointTimestamp(sourceName);
+    this.integrals.clear(sourceName);
+    this.latest.invalidate(sourceName);
+    this.results.invalidate(sourceName);
+  }
+
+  /**
+   * Ensures that all sensor data from the named Source with timestamps between startTime and
+   * endTime (inclusive) is no longer present in this manager. Deletes the whole range from storage
+   * at once, so it is much cheaper than deleting each SensorData in turn.
+   * 
+   * @param sourceName The name of the Source whose sensor data is to be deleted.
+   * @param startTime The earliest SensorData to be deleted.
+   * @param endTime The latest SensorData to be deleted.
+   * @return The number of SensorData deleted from storage, or -1 if the arguments are invalid or
+   * the sensor data could not be deleted.
+   */
+  public int deleteSensorData(String sourceName, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime) {
+    if ((sourceName == null) || (startTime == null) || (endTime == null)) {
+      return -1;
+    }
+    flushWriteBehind();
+    Source source = getSource(sourceName);
+    this.rollups.invalidate(source, startTime, endTime);
+    SensorDatas cached = this.cache.getSensorDatas(sourceName, startTime, endTime);
+    if (cached != null) {
+      XMLGregorianCalendar checkpoint = this.cache.getSourceCheckpointTimestamp(sourceName);
+      for (SensorData data : cached.getSensorData()) {
+        if (this.cache.deleteSensorData(sourceName, data.getTimestamp()) && checkpoint != null
+            && checkpoint.equals(data.getTimestamp())) {
+          this.cache.deleteSourceCheckpointTimestamp(sourceName);
+        }
+      }
+    }
+
+    int deleted = this.dbImpl.deleteSensorData(sourceName, startTime, endTime);
+    this.integrals.repair(source, startTime, endTime);
+    this.latest.invalidate(sourceName);
+    this.results.invalidate(sourceName, toMillis(startTime), toMillis(endTime));
+    return deleted;
+  }
+
+  /**
+   * Ensures that the given consecutive SensorData of a non-virtual Source is no longer present in
+   * storage, as when downsampling old SensorData. Since the deleted SensorData is known, the
+   * rollups and energy integral are patched from it and the stored SensorData either side instead
+   * of being recomputed from storage. If any SensorData in the range is cached, or other
+   * SensorData was stored in the range, this falls back to deleting the range as in
+   * deleteSensorData(String, XMLGregorianCalendar, XMLGregorianCalendar).
+   * 
+   * @param source The non-virtual Source whose sensor data is to be deleted.
+   * @param datas The SensorData to delete, in order, with no other stored SensorData between them.
+   * @return The number of SensorData deleted from storage, or -1 if the arguments are invalid or
+   * the sensor data could not be deleted.
+   */
+  public int deleteSensorData(Source source, List<SensorData> datas) {
+    if ((source == null) || (datas == null) || datas.isEmpty()) {
+      return -1;
+    }
+    String sourceName = source.getName();
+    XMLGregorianCalendar startTime = datas.get(0).getTimestamp();
+    XMLGregorianCalendar endTime = datas.get(datas.size() - 1).getTimestamp();
+    flushWriteBehind();
+    SensorDatas cached = this.cache.getSensorDatas(sourceName, startTime, endTime);
+    if ((cached != null) && !cached.getSensorData().isEmpty()) {
+      return deleteSensorData(sourceName, startTime, endTime);
+    }
+    List<XMLGregorianCalendar> times = new ArrayList<XMLGregorianCalendar>(2);
+    times.add(Tstamp.incrementMilliseconds(startTime, -1));
+    times.add(Tstamp.incrementMilliseconds(endTime, 1));
+    List<SensorDataStraddle> straddles = this.dbImpl.getSensorDataStraddles(source, times);
+    SensorData before = null;
+    SensorData after = null;
+    if (straddles != null) {
+      before = (straddles.get(0) == null) ? null : straddles.get(0).getBeforeData();
+      after = (straddles.get(1) == null) ? null : straddles.get(1).getAfterData();
+    }
+
+    int deleted = this.dbImpl.deleteSensorData(sourceName, startTime, endTime);
+    if ((deleted == datas.size()) && (straddles != null)) {
+      this.rollups.remove(source, before, datas, after);
+      this.integrals.remove(source, before, datas, after);
+    }
+    else if (deleted >= 0) {
+      // Deleting the range leaves the readings either side of it, so they can still be found
+      this.rollups.invalidate(source, startTime, endTime);
+      this.integrals.repair(source, startTime, endTime);
+    }
+    if (after == null) {
+      this.latest.invalidate(sourceName);
+    }
+    this.results.invalidate(sourceName, toMillis(startTime), toMillis(endTime));
+    return deleted;
+  }
+
+  /**
+   * Called by the WriteBehindQueue once it has stored SensorData of one Source. The SensorData is
+   * only now marked persisted in the cache and folded into what is derived from storage, so
+   * SensorData that storage rejected or that was dead-lettered stays unpersisted in the cache.
+   * 
+   * @param datas The stored SensorData.
+   */
+  private void writtenBehind(List<SensorData> datas) {
+    String sourceName = UriUtils.getUriSuffix(datas.get(0).getSource());
+    for (SensorData data : datas) {
+      this.cache.markPersisted(sourceName, data.getTimestamp());
+      this.latest.update(sourceName, data, Long.MAX_VALUE);
+    }
+    updateDerivedData(null, datas);
+  }
+
+  /**
+   * Folds newly stored SensorData, all belonging to one Source, into that Source's rollups and
+   * energy integral, and drops the cached results it changes. The SensorData must be in storage,
+   * not just in the cache.
+   * 
+   * @param source The Source the SensorData was stored for, or null to look it up. It is ignored if
+   * it does not match the Source of the SensorData.
+   * @param datas The stored SensorData.
+   */
+  private void updateDerivedData(Source source, List<SensorData> datas) {
+    String sourceName = UriUtils.getUriSuffix(datas.get(0).getSource());
+    long earliest = Long.MAX_VALUE;
+    long latest = Long.MIN_VALUE;
+    for (SensorData data : datas) {
+      long millis = toMillis(data.getTimestamp());
+      earliest = Math.min(earliest, millis);
+      latest = Math.max(latest, millis);
+    }
+    this.results.invalidate(sourceName, earliest, latest);
+    if ((source == null) || !sourceName.equals(source.getName())) {
+      source = getSource(sourceName);
+    }
+    if ((source != null) && !source.isVirtual()) {
+      this.rollups.update(source, datas);
+      this.integrals.update(source, datas);
+    }
+  }
+
+  /**
+   * Recomputes the rollups of the named Source from its stored SensorData. Needed for Sources that
+   * held SensorData before rollups were maintained, and for Sources that have had SensorData
+   * deleted, since until then energy and carbon for those ranges are computed from the raw data.
+   * 
+   * @param sourceName The name of the non-virtual Source.
+   * @return True if the rollups were rebuilt.
+   */
+  public boolean rebuildRollups(String sourceName) {
+    return this.rollups.rebuild(getSource(sourceName));
+  }
+
+  /**
+   * Returns the energy generated and consumed by the given non-virtual Source between the given
+   * times, computed from its rollups. See getStoredEnergy for how cached SensorData is included.
+   * 
+   * @param source The non-virtual Source.
+   * @param startTime The start of the range.
+   * @param endTime The end of the range.
+   * @return A two element array holding energy generated and energy consumed in Wh, or null if the
+   * range should be computed from the raw data instead.
+   */
+  public double[] getRollupEnergy(Source source, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime) {
+    return getStoredEnergy(source, startTime, endTime, true);
+  }
+
+  /**
+   * Returns the energy generated and consumed by the given non-virtual Source between the given
+   * times, from its rollups or energy integral, which only cover stored SensorData. SensorData that
+   * is only in the cache can change the energy from the last stored reading before it onward, so
+   * that part of the range is integrated from the readings themselves, cache included.
+   * 
+   * @param source The non-virtual Source.
+   * @param startTime The start of the range.
+   * @param endTime The end of the range.
+   * @param fromRollups True to use the rollups for the stored part, false for the energy integral.
+   * @return A two element array holding energy generated and energy consumed in Wh, or null if the
+   * range should be computed from the raw data instead.
+   */
+  private double[] getStoredEnergy(Source source, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime, boolean fromRollups) {
+    if ((source == null) || (startTime == null) || (endTime == null)) {
+      return null;
+    }
+    long start = toMillis(startTime);
+    long end = toMillis(endTime);
+    long stored = getStoredEnergyEnd(source);
+    double[] energy = new double[2];
+    if (start < stored) {
+      XMLGregorianCalendar storedEnd =
+          (end <= stored) ? endTime : Tstamp.makeTimestamp(stored);
+      energy =
+          fromRollups ? this.rollups.getEnergy(source, startTime, storedEnd) : this.integrals
+              .getEnergy(source, startTime, storedEnd);
+      if ((energy == null) || (end <= stored)) {
+        return energy;
+      }
+    }
+    double[] cached = integrateReadings(source, Math.max(start, stored), end);
+    if (cached == null) {
+      return null;
+    }
+    return new double[] { energy[0] + cached[0], energy[1] + cached[1] };
+  }
+
+  /**
+   * Returns the time up to which energy computed from stored SensorData alone is correct for the
+   * given Source: the last stored reading at or before the earliest reading that is only cached.
+   * 
+   * @param source The non-virtual Source.
+   * @return The time in epoch milliseconds, Long.MAX_VALUE if no cached reading is missing from
+   * storage, or Long.MIN_VALUE if there is no stored reading before the first one that is.
+   */
+  private long getStoredEnergyEnd(Source source) {
+    long unpersisted = this.cache.getFirstUnpersistedMillis(source.getName());
+    if (unpersisted == Long.MAX_VALUE) {
+      return Long.MAX_VALUE;
+    }
+    SensorDataStraddle straddle =
+        this.dbImpl.getSensorDataStraddle(source, Tstamp.makeTimestamp(unpersisted));
+    if (straddle != null) {
+      return toMillis(straddle.getBeforeData().getTimestamp());
+    }
+    // Nothing stored after it, so the latest stored reading is the one before it, if any
+    SensorData latestStored = this.dbImpl.getLatestNonVirtualSensorData(source.getName());
+    if ((latestStored == null) || (toMillis(latestStored.getTimestamp()) > unpersisted)) {
+      return Long.MIN_VALUE;
+    }
+    return toMillis(latestStored.getTimestamp());
+  }
+
+  /**
+   * Integrates the linearly interpolated power between the readings of the given Source, cached or
+   * stored, between the given times.
+   * 
+   * @param source The non-virtual Source.
+   * @param start The start of the range in epoch milliseconds.
+   * @param end The end of the range in epoch milliseconds.
+   * @return Energy generated and energy consumed in Wh, or null if there are no readings either
+   * side of one end of the range.
+   */
+  private double[] integrateReadings(Source source, long start, long end) {
+    if (end <= start) {
+      return new double[2];
+    }
+    XMLGregorianCalendar startTime = Tstamp.makeTimestamp(start);
+    XMLGregorianCalendar endTime = Tstamp.makeTimestamp(end);
+    List<XMLGregorianCalendar> times = new ArrayList<XMLGregorianCalendar>(2);
+    times.add(startTime);
+    times.add(endTime);
+    List<SensorDataStraddle> ends = getSensorDataStraddles(source, times);
+    SensorDatas datas;
+    try {
+      datas = getSensorDatas(source.getName(), startTime, endTime);
+    }
+    catch (DbBadIntervalException e) {
+      return null;
+    }
+    if ((ends == null) || ends.contains(null) || (datas == null)) {
+      return null;
+    }
+    return EnergyIntegralIndex.integrate(ends.get(0), ends.get(1), datas.getSensorData());
+  }
 
-    return this.dbImpl.deleteSensorData(sourceName);
+  /**
+   * Returns the energy generated and consumed by the given non-virtual Source between the given
+   * times, computed from its energy integral. See getStoredEnergy for how cached SensorData is
+   * included.
+   * 
+   * @param source The non-virtual Source.
+   * @param startTime The start of the range.
+   * @param endTime The end of the range.
+   * @return A two element array holding energy generated and energy consumed in Wh, or null if
+   * either end of the range is outside the Source's SensorData.
+   */
+  public double[] getIntegratedEnergy(Source source, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime) {
+    return getStoredEnergy(source, startTime, endTime, false);
   }
 
   /**
@@ -669,6 +1175,50 @@ public class DbManager {
     return this.dbImpl.getSensorDataStraddle(source, timestamp);
   }
 
+  /**
+   * Returns a SensorDataStraddle for each of the given timestamps, using SensorData from the given
+   * source. The cache is consulted once for all of the timestamps, and any timestamps it cannot
+   * answer are passed to the underlying implementation in a single call. As with
+   * getSensorDataStraddle, a virtual source contains no SensorData directly, so each entry will be
+   * null for a virtual source.
+   * 
+   * @param source The source object to generate the straddles from.
+   * @param timestampList The timestamps of interest in each straddle.
+   * @return A List with one entry for each timestamp, in the same order as timestampList. An entry
+   * is null if there is no sensor data that straddles its timestamp. Returns null if parameters are
+   * null.
+   */
+  public List<SensorDataStraddle> getSensorDataStraddles(Source source,
+      List<XMLGregorianCalendar> timestampList) {
+    if ((source == null) || (timestampList == null)) {
+      return null;
+    }
+    List<SensorDataStraddle> straddles =
+        this.cache.getSensorDataStraddles(source.getName(), timestampList);
+    List<XMLGregorianCalendar> uncached = new ArrayList<XMLGregorianCalendar>();
+    for (int i = 0; i < timestampList.size(); i++) {
+      if (straddles.get(i) == null) {
+        uncached.add(timestampList.get(i));
+      }
+    }
+    if (uncached.isEmpty()) {
+      return straddles;
+    }
+
+    List<SensorDataStraddle> stored = this.dbImpl.getSensorDataStraddles(source, uncached);
+    if (stored == null) {
+      return straddles;
+    }
+    // Fill in the gaps left by the cache, which are in the same order as the uncached timestamps
+    int next = 0;
+    for (int i = 0; i < straddles.size(); i++) {
+      if (straddles.get(i) == null) {
+        straddles.set(i, stored.get(next++));
+      }
+    }
+    return straddles;
+  }
+
   /**
    * Returns a list of SensorDataStraddles that straddle the given timestamp, using SensorData from
    * all non-virtual subsources of the given source. If the given source is non-virtual, then the
@@ -744,7 +1294,7 @@ public class DbManager {
    * @return The requested power in SensorData format, or null if it cannot be found/calculated.
    */
   public SensorData getPower(Source source, XMLGregorianCalendar timestamp) {
-    return this.dbImpl.getPower(source, timestamp);
+    return getResult(ResultCache.Kind.POWER, source, timestamp, timestamp, 0);
   }
 
   /**
@@ -787,7 +1337,7 @@ public class DbManager {
    */
   public SensorData getEnergy(Source source, XMLGregorianCalendar startTime,
       XMLGregorianCalendar endTime, int interval) {
-    return this.dbImpl.getEnergy(source, startTime, endTime, interval);
+    return getResult(ResultCache.Kind.ENERGY, source, startTime, endTime, interval);
   }
 
   /**
@@ -843,7 +1393,100 @@ public class DbManager {
    */
   public SensorData getCarbon(Source source, XMLGregorianCalendar startTime,
       XMLGregorianCalendar endTime, int interval) {
-    return this.dbImpl.getCarbon(source, startTime, endTime, interval);
+    return getResult(ResultCache.Kind.CARBON, source, startTime, endTime, interval);
+  }
+
+  /**
+   * Returns power, energy or carbon from the result cache, computing and caching it if it is not
+   * there. Ranges without an end are not cached.
+   * 
+   * @param kind The kind of result.
+   * @param source The source object.
+   * @param startTime The start of the range requested, or the timestamp of power.
+   * @param endTime The end of the range requested, or the timestamp of power.
+   * @param interval The sampling interval requested in minutes, or 0 for power.
+   * @return The requested result in SensorData format, or null if it cannot be found/calculated.
+   */
+  private SensorData getResult(ResultCache.Kind kind, Source source,
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, int interval) {
+    if ((source == null) || (startTime == null) || (endTime == null)
+        || !this.results.isEnabled()) {
+      return computeResult(kind, source, startTime, endTime, interval);
+    }
+    long start = toMillis(startTime);
+    long end = toMillis(endTime);
+    SensorData result = this.results.get(kind, source.getName(), start, end, interval);
+    if (result != null) {
+      return result;
+    }
+    List<Source> leaves =
+        source.isVirtual() ? getAllNonVirtualSubSources(source) : Collections
+            .singletonList(source);
+    String[] leafNames = new String[leaves.size()];
+    long[] latestTimes = new long[leaves.size()];
+    for (int i = 0; i < leafNames.length; i++) {
+      leafNames[i] = leaves.get(i).getName();
+      SensorData latestData = this.latest.getLatestSensorData(leafNames[i]);
+      latestTimes[i] =
+          (latestData == null) ? Long.MIN_VALUE : toMillis(latestData.getTimestamp());
+    }
+    if (!this.results.isClosed(end, latestTimes)) {
+      // Still changing as SensorData arrives, so not cached
+      return computeResult(kind, source, startTime, endTime, interval);
+    }
+    long version = this.results.begin(leafNames, latestTimes);
+    // Interpolation at the ends of the range reaches the SensorData either side of it
+    List<XMLGregorianCalendar> ends =
+        (start == end) ? Collections.singletonList(startTime) : Arrays.asList(startTime, endTime);
+    long[] firstTimes = new long[leafNames.length];
+    long[] lastTimes = new long[leafNames.length];
+    long validUntil = Long.MAX_VALUE;
+    for (int i = 0; i < leafNames.length; i++) {
+      List<SensorDataStraddle> straddles = getSensorDataStraddles(leaves.get(i), ends);
+      SensorDataStraddle first = (straddles == null) ? null : straddles.get(0);
+      SensorDataStraddle last = (straddles == null) ? null : straddles.get(ends.size() - 1);
+      firstTimes[i] = (first == null) ? Long.MIN_VALUE : first.getBeforeMillis();
+      lastTimes[i] = (last == null) ? latestTimes[i] : last.getAfterMillis();
+      validUntil =
+          Math.min(validUntil,
+              this.cache.getFirstUnpersistedExpiry(leafNames[i], firstTimes[i], lastTimes[i]));
+    }
+    result = computeResult(kind, source, startTime, endTime, interval);
+    this.results.put(kind, source.getName(), start, end, interval, leafNames, firstTimes,
+        lastTimes, validUntil, version, result);
+    return result;
+  }
+
+  /**
+   * Computes power, energy or carbon from storage.
+   * 
+   * @param kind The kind of result.
+   * @param source The source object.
+   * @param startTime The start of the range requested, or the timestamp of power.
+   * @param endTime The end of the range requested, or the timestamp of power.
+   * @param interval The sampling interval requested in minutes, or 0 for power.
+   * @return The requested result in SensorData format, or null if it cannot be found/calculated.
+   */
+  private SensorData computeResult(ResultCache.Kind kind, Source source,
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, int interval) {
+    switch (kind) {
+    case POWER:
+      return this.dbImpl.getPower(source, startTime);
+    case ENERGY:
+      return this.dbImpl.getEnergy(source, startTime, endTime, interval);
+    default:
+      return this.dbImpl.getCarbon(source, startTime, endTime, interval);
+    }
+  }
+
+  /**
+   * Converts a timestamp to milliseconds.
+   * 
+   * @param timestamp The timestamp.
+   * @return The timestamp in milliseconds.
+   */
+  private static long toMillis(XMLGregorianCalendar timestamp) {
+    return Tstamp.toMillis(timestamp);
   }
 
   /**
@@ -861,13 +1504,14 @@ public class DbManager {
 
   /**
    * Given a base Source, return a list of all non-virtual Sources that are subsources of the base
-   * Source. This is done recursively, so virtual sources can point to other virtual sources.
+   * Source. This is done recursively, so virtual sources can point to other virtual sources. The
+   * flattened hierarchy is cached until one of the Sources in it is stored or deleted.
    * 
    * @param baseSource The Source to start from.
    * @return A list of all non-virtual Sources that are subsources of the base Source.
    */
   public List<Source> getAllNonVirtualSubSources(Source baseSource) {
-    return this.dbImpl.getAllNonVirtualSubSources(baseSource);
+    return this.hierarchies.getAllNonVirtualSubSources(baseSource);
   }
 
   /**
@@ -907,7 +1551,11 @@ public class DbManager {
    * @return True if the user was successfully stored.
    */
   public boolean storeUser(User user) {
-    return this.dbImpl.storeUser(user);
+    boolean stored = this.dbImpl.storeUser(user);
+    if (user != null) {
+      this.credentials.invalidate(user.getEmail());
+    }
+    return stored;
   }
 
   /**
@@ -919,7 +1567,74 @@ public class DbManager {
    * not exist.
    */
   public boolean deleteUser(String username) {
-    return this.dbImpl.deleteUser(username);
+    // Queued SensorData must be stored before the Sources are deleted, or it would outlive them
+    flushWriteBehind();
+    List<String> owned = new ArrayList<String>();
+    if (username != null) {
+      for (Source source : getSources().getSource()) {
+        if (username.equals(UriUtils.getUriSuffix(source.getOwner()))) {
+          owned.add(source.getName());
+        }
+      }
+    }
+    boolean deleted = this.dbImpl.deleteUser(username);
+    for (String sourceName : owned) {
+      forgetSensorData(sourceName);
+    }
+    this.credentials.invalidate(username);
+    // Deleting a user also deletes the user's Sources
+    this.sources.clear();
+    this.hierarchies.clear();
+    return deleted;
+  }
+
+  /**
+   * Returns the executor used to evaluate the non-virtual subsources of virtual Sources in
+   * parallel.
+   * 
+   * @return The SubSourceExecutor.
+   */
+  public SubSourceExecutor getSubSourceExecutor() {
+    return this.executor;
+  }
+
+  /**
+   * Returns the cache of recently verified User credentials, which is invalidated as Users are
+   * stored and deleted.
+   * 
+   * @return The CredentialCache.
+   */
+  public CredentialCache getCredentialCache() {
+    return this.credentials;
+  }
+
+  /**
+   * Returns the cache of computed power, energy and carbon, which is invalidated as SensorData and
+   * Sources are stored and deleted.
+   * 
+   * @return The result cache.
+   */
+  public ResultCache getResultCache() {
+    return this.results;
+  }
+
+  /**
+   * Returns the queue persisting cached SensorData in the background, whose depth and counts can
+   * be monitored.
+   * 
+   * @return The WriteBehindQueue, or null if write-behind is disabled.
+   */
+  public WriteBehindQueue getWriteBehindQueue() {
+    return this.writeBehind;
+  }
+
+  /**
+   * Waits until all SensorData queued for write-behind has been stored, if write-behind is enabled.
+   */
+  public void flushWriteBehind() {
+    if (this.writeBehind != null) {
+      this.writeBehind.flush();
+    }
   }
 
   /**
@@ -946,12 +1661,61 @@ public class DbManager {
   }
 
   /**
-   * Creates a snapshot of the database in the directory specified by the Server Properties.
+   * Creates a snapshot of the database in the directory specified by the Server Properties, waiting
+   * for any snapshot already being made to finish first. Progress is reported in the
+   * SnapshotStatus.
    * 
    * @return True if the snapshot succeeded.
    */
   public boolean makeSnapshot() {
-    return this.dbImpl.makeSnapshot();
+    synchronized (this.snapshotLock) {
+      SnapshotStatus status = getSnapshotStatus();
+      status.start();
+      boolean success = false;
+      try {
+        flushWriteBehind();
+        success = this.dbImpl.makeSnapshot();
+      }
+      finally {
+        status.finish(success);
+      }
+      return success;
+    }
+  }
+
+  /**
+   * Starts creating a snapshot of the database in a background thread, unless one started this way
+   * is still being made. Progress and the result are reported in the SnapshotStatus.
+   * 
+   * @return True if a snapshot was started, false if one is already being made.
+   */
+  public boolean startSnapshot() {
+    if (!this.snapshotPending.compareAndSet(false, true)) {
+      return false;
+    }
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          makeSnapshot();
+        }
+        finally {
+          DbManager.this.snapshotPending.set(false);
+        }
+      }
+    }, "wattdepot-snapshot");
+    thread.setDaemon(true);
+    thread.start();
+    return true;
+  }
+
+  /**
+   * Returns the progress of the current or most recent snapshot.
+   * 
+   * @return The snapshot status.
+   */
+  public SnapshotStatus getSnapshotStatus() {
+    return this.dbImpl.getSnapshotStatus();
   }
 
   /**
@@ -961,14 +1725,34 @@ public class DbManager {
    * @return True if data could be wiped, or false if there was a problem wiping data.
    */
   public boolean wipeData() {
+    flushWriteBehind();
     this.cache.wipeData();
-    return this.dbImpl.wipeData();
+    this.integrals.clear();
+    this.hierarchies.clear();
+    boolean wiped = this.dbImpl.wipeData();
+    this.latest.clear();
+    this.sources.clear();
+    this.credentials.clear();
+    this.results.clear();
+    return wiped;
   }
 
   /**
-   * Provides ability to stop or close database connection if necessary.
+   * Provides ability to stop or close database connection if necessary. SensorData queued for
+   * write-behind is stored first, and a snapshot being made is allowed to finish.
    */
   public void stop() {
-    this.dbImpl.stop();
+    synchronized (this.snapshotLock) {
+      if (this.writeBehind != null) {
+        this.writeBehind.close();
+      }
+      if (this.cacheLog != null) {
+        this.cache.setWriteAheadLog(null);
+        this.cacheLog.close();
+      }
+      this.executor.shutdown();
+      this.integrals.close();
+      this.dbImpl.stop();
+    }
   }
 }
\ No newline at end of file
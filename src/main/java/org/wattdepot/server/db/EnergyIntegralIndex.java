@@ -0,0 +1,882 @@
+package org.wattdepot.server.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+import javax.xml.datatype.XMLGregorianCalendar;
+import org.wattdepot.resource.sensordata.SensorDataStraddle;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.resource.sensordata.jaxb.SensorDatas;
+import org.wattdepot.resource.source.jaxb.Source;
+import org.wattdepot.resource.source.summary.jaxb.SourceSummary;
+import org.wattdepot.util.StackTrace;
+import org.wattdepot.util.tstamp.Tstamp;
+
+/**
+ * Keeps, for each non-virtual Source, the energy generated and consumed from its first hour
+ * boundary up to each later hour boundary, found by integrating the linearly interpolated power
+ * between its stored readings. The energy up to any time is then a checkpoint plus the integral of
+ * the stored readings within one hour, so the energy over any range takes two short reads instead
+ * of a walk over straddles at every sampling interval.
+ *
+ * Only stored SensorData is covered, so SensorData that is only in the cache must not be passed to
+ * update. The checkpoints are held in memory, two doubles per hour between the first and last
+ * stored reading however often the Source reports. A Source's checkpoints are built from storage
+ * on a background thread the first time energy is requested for it, and until they are getEnergy
+ * integrates the requested range directly from storage, so the answer is the same either way only
+ * slower. Newer readings extend them without reading storage, and out of order inserts and
+ * deletes recompute only the checkpoints between the readings either side of the change, shifting
+ * the later ones by the difference.
+ */
+public class EnergyIntegralIndex {
+
+  /** Used to convert watt milliseconds to watt hours. */
+  private static final double MILLIS_PER_HOUR = 60.0 * 60.0 * 1000.0;
+
+  /** Milliseconds between checkpoints. */
+  private static final long HOUR_MILLIS = 60L * 60L * 1000L;
+
+  /** Length of the chunks read from storage when building checkpoints. */
+  private static final long DAY_MILLIS = 24L * HOUR_MILLIS;
+
+  /** The storage SensorData is read from. */
+  private final DbImplementation dbImpl;
+
+  /** Logs failures to build or repair checkpoints. */
+  private final Logger logger;
+
+  /** Builds checkpoints in the background. */
+  private final ExecutorService builder;
+
+  /** The checkpoints of each Source that has been queried, keyed by Source name. */
+  private final ConcurrentMap<String, Integral> integrals =
+      new ConcurrentHashMap<String, Integral>();
+
+  /**
+   * Creates a new EnergyIntegralIndex.
+   *
+   * @param dbImpl The storage SensorData is read from.
+   * @param logger The logger to report failures to.
+   */
+  public EnergyIntegralIndex(DbImplementation dbImpl, Logger logger) {
+    this.dbImpl = dbImpl;
+    this.logger = logger;
+    this.builder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "wattdepot-energy-integral");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Folds newly stored SensorData into the checkpoints of the given Source. Does nothing if the
+   * Source has not been queried yet, since its checkpoints will be built from storage when it is.
+   *
+   * @param source The non-virtual Source the SensorData was stored for.
+   * @param datas The SensorData that were stored, in any order.
+   */
+  public void update(Source source, List<SensorData> datas) {
+    if ((source == null) || (datas == null) || datas.isEmpty()) {
+      return;
+    }
+    Integral integral = this.integrals.get(source.getName());
+    if (integral == null) {
+      return;
+    }
+    List<SensorData> sorted = new ArrayList<SensorData>(datas);
+    Collections.sort(sorted);
+    synchronized (integral) {
+      for (SensorData data : sorted) {
+        long millis = toMillis(data.getTimestamp());
+        if (integral.built && (integral.isEmpty() || (millis > integral.lastMillis))) {
+          integral.append(millis, data.getPropertyAsDouble(SensorData.POWER_GENERATED),
+              data.getPropertyAsDouble(SensorData.POWER_CONSUMED));
+        }
+        else {
+          // Out of order, so the checkpoints around it have to be recomputed
+          changed(source, integral, millis, millis);
+        }
+      }
+    }
+  }
+
+  /**
+   * Recomputes the checkpoints of the given Source affected by SensorData between the given times
+   * having been deleted or replaced in storage.
+   *
+   * @param source The non-virtual Source.
+   * @param startTime The earliest time changed.
+   * @param endTime The latest time changed.
+   */
+  public void repair(Source source, XMLGregorianCalendar startTime, XMLGregorianCalendar endTime) {
+    if ((source == null) || (startTime == null) || (endTime == null)) {
+      return;
+    }
+    Integral integral = this.integrals.get(source.getName());
+    if (integral != null) {
+      synchronized (integral) {
+        changed(source, integral, toMillis(startTime), toMillis(endTime));
+      }
+    }
+  }
+
+  /**
+   * Patches the checkpoints of the given Source after consecutive stored readings have been
+   * deleted, from the deleted readings and the stored readings either side, without reading
+   * storage. Each checkpoint between those readings changes by the difference between integrating
+   * straight from the reading before to the one after and integrating through the deleted
+   * readings, and later checkpoints by the difference over the whole gap. Deleting the first or
+   * last stored readings moves the ends of the checkpoints, so those are recomputed as in repair.
+   *
+   * @param source The non-virtual Source.
+   * @param before The stored reading before the deleted ones, or null if there is none.
+   * @param deleted The deleted readings, in order, with no other stored readings between them.
+   * @param after The stored reading after the deleted ones, or null if there is none.
+   */
+  public void remove(Source source, SensorData before, List<SensorData> deleted,
+      SensorData after) {
+    if ((source == null) || (deleted == null) || deleted.isEmpty()) {
+      return;
+    }
+    Integral integral = this.integrals.get(source.getName());
+    if (integral == null) {
+      return;
+    }
+    synchronized (integral) {
+      if (!integral.built || (before == null) || (after == null)) {
+        changed(source, integral, toMillis(deleted.get(0).getTimestamp()), toMillis(deleted.get(
+            deleted.size() - 1).getTimestamp()));
+        return;
+      }
+      List<SensorData> old = new ArrayList<SensorData>(deleted.size() + 2);
+      old.add(before);
+      old.addAll(deleted);
+      old.add(after);
+      List<SensorData> joined = Arrays.asList(before, after);
+      long beforeMillis = toMillis(before.getTimestamp());
+      long afterMillis = toMillis(after.getTimestamp());
+      double[] gap = difference(joined, old, afterMillis);
+      // Checkpoints count from the first one, so a change before it moves them all back
+      double[] base = difference(joined, old, integral.firstCheckpoint);
+      for (int i = 0; i < integral.size; i++) {
+        long checkpoint = integral.firstCheckpoint + i * HOUR_MILLIS;
+        if (checkpoint <= beforeMillis) {
+          continue;
+        }
+        double[] change = (checkpoint >= afterMillis) ? gap : difference(joined, old, checkpoint);
+        integral.energyGenerated[i] += change[0] - base[0];
+        integral.energyConsumed[i] += change[1] - base[1];
+      }
+      long tailStart =
+          (integral.size == 0) ? integral.firstMillis : integral.firstCheckpoint
+              + (integral.size - 1) * HOUR_MILLIS;
+      double[] tailChange = difference(joined, old, tailStart);
+      integral.tailGenerated += gap[0] - tailChange[0];
+      integral.tailConsumed += gap[1] - tailChange[1];
+    }
+  }
+
+  /**
+   * Forgets the checkpoints of the named Source, since all of its SensorData has been deleted.
+   *
+   * @param sourceName The name of the Source.
+   */
+  public void clear(String sourceName) {
+    if (sourceName != null) {
+      this.integrals.remove(sourceName);
+    }
+  }
+
+  /**
+   * Forgets the checkpoints of all Sources.
+   */
+  public void clear() {
+    this.integrals.clear();
+  }
+
+  /**
+   * Stops building checkpoints in the background.
+   */
+  public void close() {
+    this.builder.shutdownNow();
+  }
+
+  /**
+   * Returns the energy generated and consumed by the given non-virtual Source between the given
+   * times, from its stored SensorData. Starts building the Source's checkpoints in the background
+   * if they have not been built yet, and integrates the whole range from storage until they are.
+   *
+   * @param source The non-virtual Source.
+   * @param startTime The start of the range.
+   * @param endTime The end of the range.
+   * @return A two element array holding energy generated and energy consumed in Wh, or null if
+   * either end of the range is outside the stored SensorData, or there was a problem reading it.
+   */
+  public double[] getEnergy(Source source, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime) {
+    if ((source == null) || source.isVirtual() || (startTime == null) || (endTime == null)) {
+      return null;
+    }
+    long start = toMillis(startTime);
+    long end = toMillis(endTime);
+    if (start > end) {
+      return null;
+    }
+    Integral integral = this.integrals.get(source.getName());
+    if (integral == null) {
+      Integral newIntegral = new Integral();
+      integral = this.integrals.putIfAbsent(source.getName(), newIntegral);
+      if (integral == null) {
+        build(source, newIntegral);
+        return integrate(source, start, end);
+      }
+    }
+    long startCheckpoint = 0;
+    long endCheckpoint = 0;
+    double[] startEnergy = null;
+    double[] endEnergy = null;
+    synchronized (integral) {
+      // Until the checkpoints are built the range is integrated from storage instead, which gives
+      // the same answer, and outside them storage has no readings either side of the range anyway
+      if (integral.built && !integral.isEmpty() && (start >= integral.firstMillis)
+          && (end <= integral.lastMillis)) {
+        // The checkpoint at or before each end, or the first checkpoint if there is none
+        startCheckpoint = Math.max(floorHour(start), integral.firstCheckpoint);
+        endCheckpoint = Math.max(floorHour(end), integral.firstCheckpoint);
+        startEnergy = integral.energyAt(startCheckpoint);
+        endEnergy = integral.energyAt(endCheckpoint);
+      }
+    }
+    if ((startEnergy == null) || (endEnergy == null) || (endCheckpoint > end)) {
+      // No checkpoints to use, or none in range so the range is short enough to integrate directly
+      return integrate(source, start, end);
+    }
+    double[] startOffset = integrateFrom(source, startCheckpoint, start);
+    double[] endOffset = integrateFrom(source, endCheckpoint, end);
+    if ((startOffset == null) || (endOffset == null)) {
+      return null;
+    }
+    return new double[] { endEnergy[0] + endOffset[0] - startEnergy[0] - startOffset[0],
+        endEnergy[1] + endOffset[1] - startEnergy[1] - startOffset[1] };
+  }
+
+  /**
+   * Builds the checkpoints of the given Source from storage on the background thread, then applies
+   * the changes made to storage while it was doing so.
+   *
+   * @param source The non-virtual Source.
+   * @param integral The checkpoints to build, which are not built yet.
+   */
+  private void build(final Source source, final Integral integral) {
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        Integral built = read(source.getName());
+        synchronized (integral) {
+          if (integrals.get(source.getName()) != integral) {
+            // Cleared while it was being built
+            return;
+          }
+          if (built == null) {
+            logger.warning("Unable to build energy integral of " + source.getName());
+            integrals.remove(source.getName(), integral);
+            return;
+          }
+          integral.copy(built);
+          integral.built = true;
+          if ((integral.changedFrom <= integral.changedTo)
+              && !recompute(source, integral, integral.changedFrom, integral.changedTo)) {
+            logger.warning("Unable to update energy integral of " + source.getName());
+            integrals.remove(source.getName(), integral);
+          }
+        }
+      }
+    };
+    synchronized (integral) {
+      integral.built = false;
+      integral.changedFrom = Long.MAX_VALUE;
+      integral.changedTo = Long.MIN_VALUE;
+    }
+    try {
+      this.builder.execute(task);
+    }
+    catch (RejectedExecutionException e) {
+      // Shut down, so there is nobody left to ask
+      this.integrals.remove(source.getName(), integral);
+    }
+  }
+
+  /**
+   * Reads the stored SensorData of the named Source a day at a time, making checkpoints from it.
+   *
+   * @param sourceName The name of the Source.
+   * @return The checkpoints, or null if there was a problem reading storage.
+   */
+  private Integral read(String sourceName) {
+    Integral integral = new Integral();
+    try {
+      SourceSummary summary = this.dbImpl.getSourceSummary(sourceName);
+      SensorData latest = this.dbImpl.getLatestNonVirtualSensorData(sourceName);
+      if ((summary == null) || (summary.getFirstSensorData() == null) || (latest == null)) {
+        // No data at all
+        return integral;
+      }
+      long from = toMillis(summary.getFirstSensorData());
+      long last = toMillis(latest.getTimestamp());
+      while (from <= last) {
+        long to = Math.min(from + DAY_MILLIS - 1, last);
+        SensorDatas datas =
+            this.dbImpl.getSensorDatas(sourceName, Tstamp.makeTimestamp(from),
+                Tstamp.makeTimestamp(to));
+        if (datas == null) {
+          return null;
+        }
+        for (SensorData data : datas.getSensorData()) {
+          long millis = toMillis(data.getTimestamp());
+          if (integral.isEmpty() || (millis > integral.lastMillis)) {
+            integral.append(millis, data.getPropertyAsDouble(SensorData.POWER_GENERATED),
+                data.getPropertyAsDouble(SensorData.POWER_CONSUMED));
+          }
+        }
+        from = to + 1;
+      }
+    }
+    catch (DbBadIntervalException e) {
+      return null;
+    }
+    catch (RuntimeException e) {
+      this.logger.warning("Problem reading SensorData of " + sourceName + "\n"
+          + StackTrace.toString(e));
+      return null;
+    }
+    return integral;
+  }
+
+  /**
+   * Records that stored SensorData between the given times changed. Built checkpoints are
+   * recomputed, or rebuilt if that fails, and changes to checkpoints still being built are applied
+   * once they are.
+   *
+   * @param source The non-virtual Source.
+   * @param integral The Source's checkpoints, which the caller has locked.
+   * @param from The earliest time changed in epoch milliseconds.
+   * @param to The latest time changed in epoch milliseconds.
+   */
+  private void changed(Source source, Integral integral, long from, long to) {
+    if (!integral.built) {
+      integral.changedFrom = Math.min(integral.changedFrom, from);
+      integral.changedTo = Math.max(integral.changedTo, to);
+    }
+    else if (!recompute(source, integral, from, to)) {
+      build(source, integral);
+    }
+  }
+
+  /**
+   * Recomputes the checkpoints of the given Source that depend on stored SensorData between the
+   * given times: those after the stored reading before the change, up to the first checkpoint at
+   * or after the stored reading after it. Later checkpoints are shifted by the change to that one.
+   *
+   * @param source The non-virtual Source.
+   * @param integral The Source's checkpoints, which are built and which the caller has locked.
+   * @param from The earliest time changed in epoch milliseconds.
+   * @param to The latest time changed in epoch milliseconds.
+   * @return True if the checkpoints were recomputed, false if storage could not be read.
+   */
+  private boolean recompute(Source source, Integral integral, long from, long to) {
+    String sourceName = source.getName();
+    long first = integral.firstMillis;
+    long last = integral.lastMillis;
+    if (integral.isEmpty() || (from <= first)) {
+      SourceSummary summary = this.dbImpl.getSourceSummary(sourceName);
+      if (summary == null) {
+        return false;
+      }
+      first = (summary.getFirstSensorData() == null) ? Long.MAX_VALUE : toMillis(summary
+          .getFirstSensorData());
+    }
+    if (integral.isEmpty() || (to >= last)) {
+      SensorData latest = this.dbImpl.getLatestNonVirtualSensorData(sourceName);
+      last = (latest == null) ? Long.MIN_VALUE : toMillis(latest.getTimestamp());
+    }
+    if (first > last) {
+      // Nothing left in storage
+      integral.copy(new Integral());
+      return true;
+    }
+    // The stored readings either side of the change, whose interpolation it affects
+    long before = first;
+    if (from > first) {
+      SensorDataStraddle straddle = getStraddle(source, from - 1);
+      before = (straddle == null) ? last : toMillis(straddle.getBeforeData().getTimestamp());
+    }
+    long after = last;
+    if (to < last) {
+      SensorDataStraddle straddle = getStraddle(source, to + 1);
+      after = (straddle == null) ? first : toMillis(straddle.getAfterData().getTimestamp());
+    }
+
+    long firstCheckpoint = ceilHour(first);
+    long lastCheckpoint = floorHour(last);
+    integral.resize(first, last);
+    // Recompute from the last checkpoint that does not depend on the change, if there is one
+    long anchor = floorHour(before);
+    if ((anchor >= firstCheckpoint) && (integral.energyAt(anchor) != null)) {
+      long end = Math.min(Math.max(ceilHour(after), anchor), lastCheckpoint);
+      double[] old = integral.energyAt(end);
+      for (long checkpoint = anchor + HOUR_MILLIS; checkpoint <= end; checkpoint += HOUR_MILLIS) {
+        double[] energy = integrate(source, checkpoint - HOUR_MILLIS, checkpoint);
+        if (energy == null) {
+          return false;
+        }
+        integral.add(checkpoint, integral.energyAt(checkpoint - HOUR_MILLIS), energy, 1);
+      }
+      if (old != null) {
+        integral.shift(end, integral.energyAt(end), old);
+      }
+    }
+    else if (firstCheckpoint <= lastCheckpoint) {
+      // Otherwise work back from the first checkpoint that does not
+      long end = Math.min(Math.max(ceilHour(after), firstCheckpoint), lastCheckpoint);
+      if (integral.energyAt(end) == null) {
+        // Every checkpoint depends on the change, so it is cheaper to read them all again
+        return false;
+      }
+      for (long checkpoint = end - HOUR_MILLIS; checkpoint >= firstCheckpoint;
+          checkpoint -= HOUR_MILLIS) {
+        double[] energy = integrate(source, checkpoint, checkpoint + HOUR_MILLIS);
+        if (energy == null) {
+          return false;
+        }
+        integral.add(checkpoint, integral.energyAt(checkpoint + HOUR_MILLIS), energy, -1);
+      }
+    }
+
+    if (after > lastCheckpoint) {
+      // The last reading or the energy since the last checkpoint may have changed
+      SensorDataStraddle straddle = getStraddle(source, last);
+      double[] tail = integrate(source, Math.max(lastCheckpoint, first), last);
+      if ((straddle == null) || (tail == null)) {
+        return false;
+      }
+      integral.lastGenerated = straddle.getPowerGenerated();
+      integral.lastConsumed = straddle.getPowerConsumed();
+      integral.tailGenerated = tail[0];
+      integral.tailConsumed = tail[1];
+    }
+    return true;
+  }
+
+  /**
+   * Returns the energy generated and consumed by the given Source between the given times, from
+   * its stored SensorData.
+   *
+   * @param source The non-virtual Source.
+   * @param start The start of the range in epoch milliseconds.
+   * @param end The end of the range in epoch milliseconds.
+   * @return Energy generated and energy consumed in Wh, or null if there are no stored readings
+   * either side of one end of the range, or there was a problem reading them.
+   */
+  private double[] integrate(Source source, long start, long end) {
+    if (start == end) {
+      return new double[2];
+    }
+    SensorDataStraddle startStraddle = getStraddle(source, start);
+    SensorDataStraddle endStraddle = getStraddle(source, end);
+    if ((startStraddle == null) || (endStraddle == null)) {
+      return null;
+    }
+    try {
+      SensorDatas datas =
+          this.dbImpl.getSensorDatas(source.getName(), startStraddle.getTimestamp(), endStraddle
+              .getTimestamp());
+      return (datas == null) ? null : integrate(startStraddle, endStraddle, datas.getSensorData());
+    }
+    catch (DbBadIntervalException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the energy generated and consumed by the given Source from a checkpoint to the given
+   * time, which is negative if the time is before the checkpoint.
+   *
+   * @param source The non-virtual Source.
+   * @param checkpoint The checkpoint in epoch milliseconds.
+   * @param millis The time in epoch milliseconds.
+   * @return Energy generated and energy consumed in Wh, or null if storage could not be read.
+   */
+  private double[] integrateFrom(Source source, long checkpoint, long millis) {
+    if (millis >= checkpoint) {
+      return integrate(source, checkpoint, millis);
+    }
+    double[] energy = integrate(source, millis, checkpoint);
+    return (energy == null) ? null : new double[] { -energy[0], -energy[1] };
+  }
+
+  /**
+   * Returns the stored straddle of the given Source at the given time.
+   *
+   * @param source The non-virtual Source.
+   * @param millis The time in epoch milliseconds.
+   * @return The straddle, or null if there are no stored readings either side of the time.
+   */
+  private SensorDataStraddle getStraddle(Source source, long millis) {
+    return this.dbImpl.getSensorDataStraddle(source, Tstamp.makeTimestamp(millis));
+  }
+
+  /**
+   * Integrates the linearly interpolated power between the given straddles and the readings
+   * between them.
+   *
+   * @param start The straddle at the start of the range.
+   * @param end The straddle at the end of the range.
+   * @param readings The readings in the range, in timestamp order. Any at or outside the ends of
+   * the range are ignored.
+   * @return Energy generated and energy consumed in Wh.
+   */
+  static double[] integrate(SensorDataStraddle start, SensorDataStraddle end,
+      List<SensorData> readings) {
+    long endMillis = toMillis(end.getTimestamp());
+    long previous = toMillis(start.getTimestamp());
+    double previousGenerated = start.getPowerGenerated();
+    double previousConsumed = start.getPowerConsumed();
+    double[] energy = new double[2];
+    for (SensorData data : readings) {
+      long millis = toMillis(data.getTimestamp());
+      if ((millis <= previous) || (millis >= endMillis)) {
+        continue;
+      }
+      double generated = data.getPropertyAsDouble(SensorData.POWER_GENERATED);
+      double consumed = data.getPropertyAsDouble(SensorData.POWER_CONSUMED);
+      energy[0] += (millis - previous) * (previousGenerated + generated) / 2 / MILLIS_PER_HOUR;
+      energy[1] += (millis - previous) * (previousConsumed + consumed) / 2 / MILLIS_PER_HOUR;
+      previous = millis;
+      previousGenerated = generated;
+      previousConsumed = consumed;
+    }
+    if (endMillis > previous) {
+      energy[0] +=
+          (endMillis - previous) * (previousGenerated + end.getPowerGenerated()) / 2
+              / MILLIS_PER_HOUR;
+      energy[1] +=
+          (endMillis - previous) * (previousConsumed + end.getPowerConsumed()) / 2
+              / MILLIS_PER_HOUR;
+    }
+    return energy;
+  }
+
+  /**
+   * Returns how much the energy from the first of two chains of readings up to the given time
+   * changes when the second chain is replaced by the first. Both chains start and end with the
+   * same readings.
+   *
+   * @param now The readings now.
+   * @param old The readings before.
+   * @param millis The time in epoch milliseconds, which is clamped to the ends of the chains.
+   * @return The change in energy generated and energy consumed in Wh.
+   */
+  private static double[] difference(List<SensorData> now, List<SensorData> old, long millis) {
+    double[] nowEnergy = integrate(now, millis);
+    double[] oldEnergy = integrate(old, millis);
+    return new double[] { nowEnergy[0] - oldEnergy[0], nowEnergy[1] - oldEnergy[1] };
+  }
+
+  /**
+   * Integrates the linearly interpolated power along a chain of readings from its first reading
+   * up to the given time.
+   *
+   * @param readings The readings, in timestamp order.
+   * @param millis The time in epoch milliseconds, which is clamped to the ends of the chain.
+   * @return Energy generated and energy consumed in Wh.
+   */
+  private static double[] integrate(List<SensorData> readings, long millis) {
+    double[] energy = new double[2];
+    for (int i = 1; i < readings.size(); i++) {
+      SensorData from = readings.get(i - 1);
+      SensorData to = readings.get(i);
+      long fromMillis = toMillis(from.getTimestamp());
+      long toMillis = toMillis(to.getTimestamp());
+      if (millis <= fromMillis) {
+        break;
+      }
+      long end = Math.min(millis, toMillis);
+      double fraction = (double) (end - fromMillis) / (toMillis - fromMillis);
+      double fromGenerated = from.getPropertyAsDouble(SensorData.POWER_GENERATED);
+      double fromConsumed = from.getPropertyAsDouble(SensorData.POWER_CONSUMED);
+      double endGenerated =
+          fromGenerated + fraction * (to.getPropertyAsDouble(SensorData.POWER_GENERATED)
+              - fromGenerated);
+      double endConsumed =
+          fromConsumed + fraction * (to.getPropertyAsDouble(SensorData.POWER_CONSUMED)
+              - fromConsumed);
+      energy[0] += (end - fromMillis) * (fromGenerated + endGenerated) / 2 / MILLIS_PER_HOUR;
+      energy[1] += (end - fromMillis) * (fromConsumed + endConsumed) / 2 / MILLIS_PER_HOUR;
+    }
+    return energy;
+  }
+
+  /**
+   * Converts a timestamp to epoch milliseconds.
+   *
+   * @param timestamp The timestamp.
+   * @return The timestamp in epoch milliseconds.
+   */
+  private static long toMillis(XMLGregorianCalendar timestamp) {
+    return Tstamp.toMillis(timestamp);
+  }
+
+  /**
+   * Returns the checkpoint at or before the given time.
+   *
+   * @param millis The time in epoch milliseconds.
+   * @return The checkpoint in epoch milliseconds.
+   */
+  private static long floorHour(long millis) {
+    return millis - (((millis % HOUR_MILLIS) + HOUR_MILLIS) % HOUR_MILLIS);
+  }
+
+  /**
+   * Returns the checkpoint at or after the given time.
+   *
+   * @param millis The time in epoch milliseconds.
+   * @return The checkpoint in epoch milliseconds.
+   */
+  private static long ceilHour(long millis) {
+    long floor = floorHour(millis);
+    return (floor == millis) ? floor : floor + HOUR_MILLIS;
+  }
+
+  /**
+   * The checkpoints of one Source: the energy integrated from the first hour boundary after its
+   * first stored reading up to each later hour boundary before its last stored reading.
+   */
+  private static class Integral {
+
+    /** Whether the checkpoints have been built from storage. */
+    private boolean built = false;
+
+    /** Earliest time changed in storage while the checkpoints were being built. */
+    private long changedFrom = Long.MAX_VALUE;
+
+    /** Latest time changed in storage while the checkpoints were being built. */
+    private long changedTo = Long.MIN_VALUE;
+
+    /** Timestamp of the first stored reading, in epoch milliseconds. */
+    private long firstMillis = Long.MAX_VALUE;
+
+    /** Timestamp of the last stored reading, in epoch milliseconds. */
+    private long lastMillis = Long.MIN_VALUE;
+
+    /** Power generated at the last stored reading. */
+    private double lastGenerated;
+
+    /** Power consumed at the last stored reading. */
+    private double lastConsumed;
+
+    /** Energy generated from the last checkpoint to the last stored reading, in Wh. */
+    private double tailGenerated;
+
+    /** Energy consumed from the last checkpoint to the last stored reading, in Wh. */
+    private double tailConsumed;
+
+    /** The time of the first checkpoint, in epoch milliseconds. */
+    private long firstCheckpoint;
+
+    /** Number of checkpoints held. */
+    private int size = 0;
+
+    /** Energy generated up to each checkpoint, in Wh, or NaN if not computed yet. */
+    private double[] energyGenerated = new double[16];
+
+    /** Energy consumed up to each checkpoint, in Wh, or NaN if not computed yet. */
+    private double[] energyConsumed = new double[16];
+
+    /**
+     * Returns whether there are no stored readings.
+     *
+     * @return True if there are none.
+     */
+    boolean isEmpty() {
+      return this.firstMillis > this.lastMillis;
+    }
+
+    /**
+     * Replaces the readings summarized by these checkpoints with those of the given ones.
+     *
+     * @param other The checkpoints to copy.
+     */
+    void copy(Integral other) {
+      this.firstMillis = other.firstMillis;
+      this.lastMillis = other.lastMillis;
+      this.lastGenerated = other.lastGenerated;
+      this.lastConsumed = other.lastConsumed;
+      this.tailGenerated = other.tailGenerated;
+      this.tailConsumed = other.tailConsumed;
+      this.firstCheckpoint = other.firstCheckpoint;
+      this.size = other.size;
+      this.energyGenerated = other.energyGenerated;
+      this.energyConsumed = other.energyConsumed;
+    }
+
+    /**
+     * Appends a reading later than all those stored, adding a checkpoint at each hour boundary
+     * since the last one.
+     *
+     * @param millis The timestamp of the reading.
+     * @param generated The power generated at the reading.
+     * @param consumed The power consumed at the reading.
+     */
+    void append(long millis, double generated, double consumed) {
+      if (isEmpty()) {
+        this.firstMillis = millis;
+        this.firstCheckpoint = ceilHour(millis);
+        if (this.firstCheckpoint == millis) {
+          set(millis, 0, 0);
+        }
+      }
+      else {
+        long previous = this.lastMillis;
+        double previousGenerated = this.lastGenerated;
+        double previousConsumed = this.lastConsumed;
+        for (long checkpoint = floorHour(previous) + HOUR_MILLIS; checkpoint <= millis;
+            checkpoint += HOUR_MILLIS) {
+          double fraction = (double) (checkpoint - this.lastMillis) / (millis - this.lastMillis);
+          double checkpointGenerated =
+              this.lastGenerated + fraction * (generated - this.lastGenerated);
+          double checkpointConsumed = this.lastConsumed + fraction * (consumed - this.lastConsumed);
+          this.tailGenerated +=
+              (checkpoint - previous) * (previousGenerated + checkpointGenerated) / 2
+                  / MILLIS_PER_HOUR;
+          this.tailConsumed +=
+              (checkpoint - previous) * (previousConsumed + checkpointConsumed) / 2
+                  / MILLIS_PER_HOUR;
+          if (this.size == 0) {
+            set(checkpoint, 0, 0);
+          }
+          else {
+            set(checkpoint, this.energyGenerated[this.size - 1] + this.tailGenerated,
+                this.energyConsumed[this.size - 1] + this.tailConsumed);
+          }
+          this.tailGenerated = 0;
+          this.tailConsumed = 0;
+          previous = checkpoint;
+          previousGenerated = checkpointGenerated;
+          previousConsumed = checkpointConsumed;
+        }
+        this.tailGenerated +=
+            (millis - previous) * (previousGenerated + generated) / 2 / MILLIS_PER_HOUR;
+        this.tailConsumed +=
+            (millis - previous) * (previousConsumed + consumed) / 2 / MILLIS_PER_HOUR;
+      }
+      this.lastMillis = millis;
+      this.lastGenerated = generated;
+      this.lastConsumed = consumed;
+    }
+
+    /**
+     * Changes the stored readings covered to those between the given times, dropping checkpoints
+     * outside them and making room for new ones, which are not computed yet.
+     *
+     * @param first The timestamp of the first stored reading.
+     * @param last The timestamp of the last stored reading.
+     */
+    void resize(long first, long last) {
+      long newFirstCheckpoint = ceilHour(first);
+      int newSize = (int) Math.max(0, (floorHour(last) - newFirstCheckpoint) / HOUR_MILLIS + 1);
+      int length = Math.max(16, newSize);
+      double[] generated = new double[length];
+      double[] consumed = new double[length];
+      Arrays.fill(generated, Double.NaN);
+      Arrays.fill(consumed, Double.NaN);
+      for (int i = 0; i < this.size; i++) {
+        long index = (this.firstCheckpoint + i * HOUR_MILLIS - newFirstCheckpoint) / HOUR_MILLIS;
+        if ((this.firstCheckpoint + i * HOUR_MILLIS >= newFirstCheckpoint) && (index < newSize)) {
+          generated[(int) index] = this.energyGenerated[i];
+          consumed[(int) index] = this.energyConsumed[i];
+        }
+      }
+      this.firstMillis = first;
+      this.lastMillis = last;
+      this.firstCheckpoint = newFirstCheckpoint;
+      this.size = newSize;
+      this.energyGenerated = generated;
+      this.energyConsumed = consumed;
+    }
+
+    /**
+     * Sets the checkpoint at the given time, which is at most one after the last one held.
+     *
+     * @param checkpoint The time of the checkpoint.
+     * @param generated Energy generated up to it.
+     * @param consumed Energy consumed up to it.
+     */
+    void set(long checkpoint, double generated, double consumed) {
+      int i = (int) ((checkpoint - this.firstCheckpoint) / HOUR_MILLIS);
+      if (i == this.energyGenerated.length) {
+        this.energyGenerated = Arrays.copyOf(this.energyGenerated, i * 2);
+        this.energyConsumed = Arrays.copyOf(this.energyConsumed, i * 2);
+      }
+      this.energyGenerated[i] = generated;
+      this.energyConsumed[i] = consumed;
+      this.size = Math.max(this.size, i + 1);
+    }
+
+    /**
+     * Sets the checkpoint at the given time to the energy at a neighbouring one plus or minus the
+     * energy between them.
+     *
+     * @param checkpoint The time of the checkpoint.
+     * @param neighbour Energy generated and consumed up to the neighbouring checkpoint.
+     * @param between Energy generated and consumed between the two checkpoints.
+     * @param sign 1 if the neighbour is before the checkpoint, -1 if it is after.
+     */
+    void add(long checkpoint, double[] neighbour, double[] between, int sign) {
+      set(checkpoint, neighbour[0] + sign * between[0], neighbour[1] + sign * between[1]);
+    }
+
+    /**
+     * Shifts the checkpoints after the given one by how much it changed.
+     *
+     * @param checkpoint The time of the checkpoint that changed.
+     * @param now Energy generated and consumed up to it now.
+     * @param old Energy generated and consumed up to it before.
+     */
+    void shift(long checkpoint, double[] now, double[] old) {
+      double generated = now[0] - old[0];
+      double consumed = now[1] - old[1];
+      for (int i = (int) ((checkpoint - this.firstCheckpoint) / HOUR_MILLIS) + 1; i < this.size;
+          i++) {
+        this.energyGenerated[i] += generated;
+        this.energyConsumed[i] += consumed;
+      }
+    }
+
+    /**
+     * Returns the energy generated and consumed up to the given checkpoint.
+     *
+     * @param checkpoint The time of the checkpoint.
+     * @return Energy generated and energy consumed in Wh, or null if there is no such checkpoint or
+     * it has not been computed.
+     */
+    double[] energyAt(long checkpoint) {
+      long i = (checkpoint - this.firstCheckpoint) / HOUR_MILLIS;
+      if ((checkpoint < this.firstCheckpoint) || (i >= this.size)
+          || Double.isNaN(this.energyGenerated[(int) i])) {
+        return null;
+      }
+      return new double[] { this.energyGenerated[(int) i], this.energyConsumed[(int) i] };
+    }
+  }
+}
@@ -0,0 +1,177 @@
+package org.wattdepot.server.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.wattdepot.resource.property.jaxb.Property;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+
+/**
+ * Encodes the properties of a SensorData that do not have columns of their own into a single
+ * string, so they can be kept in the SensorData row instead of one SensorDataProperty row each.
+ * Each property is written as the length of its key, a colon, the key, the length of its value, a
+ * colon and the value, so keys and values may contain any character. A null key or value is
+ * written as a length of -1 and a colon with nothing after it.
+ */
+public final class InlineProperties {
+
+  /** Value of SENSORDATA_PROPERTY_LAYOUT_KEY that keeps extra properties in SensorDataProperty. */
+  public static final String TABLE_LAYOUT = "table";
+
+  /** Value of SENSORDATA_PROPERTY_LAYOUT_KEY that keeps extra properties in the SensorData row. */
+  public static final String INLINE_LAYOUT = "inline";
+
+  /** The length written in place of the length of a null key or value. */
+  private static final int NULL_LENGTH = -1;
+
+  /** Not instantiable. */
+  private InlineProperties() {
+    // Static methods only.
+  }
+
+  /**
+   * Returns true if the given property key has a column of its own in the SensorData table.
+   *
+   * @param key The property key.
+   * @return True if the property is stored in its own column.
+   */
+  public static boolean isColumn(String key) {
+    return SensorData.POWER_CONSUMED.equals(key) || SensorData.ENERGY_CONSUMED_TO_DATE.equals(key)
+        || SensorData.POWER_GENERATED.equals(key)
+        || SensorData.ENERGY_GENERATED_TO_DATE.equals(key);
+  }
+
+  /**
+   * Encodes the properties of the given SensorData that do not have columns of their own.
+   *
+   * @param data The SensorData.
+   * @return The encoded properties, or null if there are none.
+   */
+  public static String encode(SensorData data) {
+    if (!data.isSetProperties()) {
+      return null;
+    }
+    StringBuilder builder = null;
+    for (Property p : data.getProperties().getProperty()) {
+      if (!isColumn(p.getKey())) {
+        if (builder == null) {
+          builder = new StringBuilder();
+        }
+        append(builder, p.getKey(), p.getValue());
+      }
+    }
+    return (builder == null) ? null : builder.toString();
+  }
+
+  /**
+   * Appends one encoded property to the given encoded properties.
+   *
+   * @param encoded The encoded properties, or null if there are none yet.
+   * @param key The property key.
+   * @param value The property value.
+   * @return The encoded properties including the new one.
+   */
+  public static String append(String encoded, String key, String value) {
+    StringBuilder builder = new StringBuilder();
+    if (encoded != null) {
+      builder.append(encoded);
+    }
+    append(builder, key, value);
+    return builder.toString();
+  }
+
+  /**
+   * Decodes properties encoded by encode.
+   *
+   * @param encoded The encoded properties, which may be null.
+   * @return The properties, in the order they were encoded.
+   * @throws IllegalArgumentException If the string is not validly encoded.
+   */
+  public static List<Property> decode(String encoded) {
+    List<Property> props = new ArrayList<Property>();
+    if (encoded == null) {
+      return props;
+    }
+    int[] position = { 0 };
+    while (position[0] < encoded.length()) {
+      String key = next(encoded, position);
+      String value = next(encoded, position);
+      props.add(new Property(key, value));
+    }
+    return props;
+  }
+
+  /**
+   * Adds the properties encoded by encode to the given SensorData.
+   *
+   * @param encoded The encoded properties, which may be null.
+   * @param data The SensorData to add them to.
+   * @throws IllegalArgumentException If the string is not validly encoded.
+   */
+  public static void addTo(String encoded, SensorData data) {
+    if (encoded != null) {
+      for (Property p : decode(encoded)) {
+        data.addProperty(p);
+      }
+    }
+  }
+
+  /**
+   * Appends a length prefixed key and value to the builder.
+   *
+   * @param builder The builder.
+   * @param key The property key, which may be null.
+   * @param value The property value, which may be null.
+   */
+  private static void append(StringBuilder builder, String key, String value) {
+    append(builder, key);
+    append(builder, value);
+  }
+
+  /**
+   * Appends one length prefixed string to the builder.
+   *
+   * @param builder The builder.
+   * @param string The string, which may be null.
+   */
+  private static void append(StringBuilder builder, String string) {
+    if (string == null) {
+      builder.append(NULL_LENGTH).append(':');
+    }
+    else {
+      builder.append(string.length()).append(':').append(string);
+    }
+  }
+
+  /**
+   * Reads one length prefixed string.
+   *
+   * @param encoded The encoded properties.
+   * @param position A one element array holding the position to read from, which is advanced past
+   * the string.
+   * @return The string, or null if a null string was encoded.
+   * @throws IllegalArgumentException If the string is not validly encoded.
+   */
+  private static String next(String encoded, int[] position) {
+    int colon = encoded.indexOf(':', position[0]);
+    if (colon < 0) {
+      throw new IllegalArgumentException("Bad inline properties: " + encoded);
+    }
+    int length;
+    try {
+      length = Integer.parseInt(encoded.substring(position[0], colon));
+    }
+    catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Bad inline properties: " + encoded, e);
+    }
+    int start = colon + 1;
+    if (length == NULL_LENGTH) {
+      position[0] = start;
+      return null;
+    }
+    if ((length < 0) || (start + length > encoded.length())) {
+      throw new IllegalArgumentException("Bad inline properties: " + encoded);
+    }
+    position[0] = start + length;
+    return encoded.substring(start, position[0]);
+  }
+}
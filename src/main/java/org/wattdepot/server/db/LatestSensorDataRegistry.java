@@ -0,0 +1,322 @@
+package org.wattdepot.server.db;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.datatype.XMLGregorianCalendar;
+import org.wattdepot.resource.property.jaxb.Properties;
+import org.wattdepot.resource.property.jaxb.Property;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.resource.source.jaxb.Source;
+import org.wattdepot.server.cache.DataCache;
+import org.wattdepot.util.tstamp.Tstamp;
+
+/**
+ * Remembers the latest SensorData of each non-virtual Source, so that requests for the latest
+ * SensorData are answered with a map lookup instead of a query. An entry is loaded from the cache
+ * or storage the first time a Source is requested (or when the DbManager seeds the registry at
+ * startup), and is then replaced as newer SensorData is stored. Deleting the latest SensorData of a
+ * Source drops its entry, which is loaded again at the next request. SensorData that is only in the
+ * cache is remembered only until it expires from the cache.
+ *
+ * The combined latest SensorData of each virtual Source is remembered too, along with the entries
+ * of the subsources it was combined from, and is only combined again once one of those entries
+ * has been replaced.
+ */
+public class LatestSensorDataRegistry {
+
+  /** The cache consulted when loading an entry. */
+  private final DataCache cache;
+
+  /** The storage consulted when loading an entry that is not in the cache. */
+  private final DbImplementation dbImpl;
+
+  /** The latest SensorData of each non-virtual Source that is known, keyed by Source name. */
+  private final ConcurrentMap<String, Latest> latest = new ConcurrentHashMap<String, Latest>();
+
+  /** The latest combined SensorData of each virtual Source, keyed by Source name. */
+  private final ConcurrentMap<String, Combined> combined =
+      new ConcurrentHashMap<String, Combined>();
+
+  /** Incremented whenever SensorData changes for a Source with no entry, so loads do not race. */
+  private final AtomicLong version = new AtomicLong();
+
+  /**
+   * Creates a new, empty LatestSensorDataRegistry.
+   *
+   * @param cache The cache consulted when loading an entry.
+   * @param dbImpl The storage consulted when loading an entry that is not in the cache.
+   */
+  public LatestSensorDataRegistry(DataCache cache, DbImplementation dbImpl) {
+    this.cache = cache;
+    this.dbImpl = dbImpl;
+  }
+
+  /**
+   * Returns the latest SensorData of the named non-virtual Source, loading it if it is not known.
+   *
+   * @param sourceName The name of the non-virtual Source.
+   * @return The latest SensorData, or null if the Source has none.
+   */
+  public SensorData getLatestSensorData(String sourceName) {
+    return getLatest(sourceName).data;
+  }
+
+  /**
+   * Returns the latest SensorData of a virtual Source: the union of the properties of the latest
+   * SensorData of each subsource, with values of properties in common summed, and the earliest of
+   * their timestamps. See DbManager.getLatestSensorData.
+   *
+   * @param source The virtual Source.
+   * @param subSources The non-virtual subsources of the Source.
+   * @param sourceUri The URI of the Source.
+   * @return The combined SensorData.
+   */
+  public SensorData getLatestSensorData(Source source, List<Source> subSources, String sourceUri) {
+    Latest[] parts = new Latest[subSources.size()];
+    for (int i = 0; i < parts.length; i++) {
+      parts[i] = getLatest(subSources.get(i).getName());
+    }
+    Combined previous = this.combined.get(source.getName());
+    if ((previous != null) && previous.matches(subSources, parts, sourceUri)) {
+      return previous.data;
+    }
+    Combined current = new Combined(subSources, parts, sourceUri, combine(parts, sourceUri));
+    this.combined.put(source.getName(), current);
+    return current.data;
+  }
+
+  /**
+   * Records newly stored SensorData of a non-virtual Source, which replaces the known latest
+   * SensorData if it is newer. Does nothing if the Source has no entry, since its entry will be
+   * loaded when it is requested.
+   *
+   * @param sourceName The name of the Source.
+   * @param data The stored SensorData.
+   * @param expires When the SensorData stops being available, in milliseconds, or Long.MAX_VALUE if
+   * it was persisted.
+   */
+  public void update(String sourceName, SensorData data, long expires) {
+    Latest next = new Latest(data, expires);
+    while (true) {
+      Latest current = this.latest.get(sourceName);
+      if (current == null) {
+        this.version.incrementAndGet();
+        return;
+      }
+      if ((current.data != null)
+          && ((current.millis > next.millis)
+              || ((current.millis == next.millis) && (current.expires >= expires)))) {
+        return;
+      }
+      if (this.latest.replace(sourceName, current, next)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Records that SensorData of a non-virtual Source has been deleted, dropping the entry of the
+   * Source if it was the latest.
+   *
+   * @param sourceName The name of the Source.
+   * @param timestamp The timestamp of the deleted SensorData.
+   */
+  public void remove(String sourceName, XMLGregorianCalendar timestamp) {
+    if ((sourceName == null) || (timestamp == null)) {
+      return;
+    }
+    this.version.incrementAndGet();
+    Latest current = this.latest.get(sourceName);
+    if ((current != null) && (current.data != null)
+        && (current.millis == Tstamp.toMillis(timestamp))) {
+      this.latest.remove(sourceName, current);
+    }
+  }
+
+  /**
+   * Drops the entry of the named Source, for when all of its SensorData or the Source itself is
+   * deleted.
+   *
+   * @param sourceName The name of the Source.
+   */
+  public void invalidate(String sourceName) {
+    if (sourceName != null) {
+      this.version.incrementAndGet();
+      this.latest.remove(sourceName);
+      this.combined.remove(sourceName);
+    }
+  }
+
+  /**
+   * Drops all entries.
+   */
+  public void clear() {
+    this.version.incrementAndGet();
+    this.latest.clear();
+    this.combined.clear();
+  }
+
+  /**
+   * Returns the entry of the named Source, loading it if it is missing or has expired.
+   *
+   * @param sourceName The name of the Source.
+   * @return The entry.
+   */
+  private Latest getLatest(String sourceName) {
+    Latest current = this.latest.get(sourceName);
+    if ((current != null) && (current.expires > System.currentTimeMillis())) {
+      return current;
+    }
+    if (current != null) {
+      this.latest.remove(sourceName, current);
+    }
+    long startVersion = this.version.get();
+    Latest loaded = load(sourceName);
+    Latest existing = this.latest.putIfAbsent(sourceName, loaded);
+    if (existing != null) {
+      return existing;
+    }
+    if (this.version.get() != startVersion) {
+      // SensorData changed while loading, so the result may be stale
+      this.latest.remove(sourceName, loaded);
+    }
+    return loaded;
+  }
+
+  /**
+   * Reads the latest SensorData of the named Source from the cache, or from storage if the cache
+   * has none.
+   *
+   * @param sourceName The name of the Source.
+   * @return The entry.
+   */
+  private Latest load(String sourceName) {
+    SensorData cached = this.cache.getLatestSensorData(sourceName);
+    if (cached != null) {
+      long expires = this.cache.getExpiry(sourceName, cached.getTimestamp());
+      if (expires > 0) {
+        return new Latest(cached, expires);
+      }
+    }
+    return new Latest(this.dbImpl.getLatestNonVirtualSensorData(sourceName), Long.MAX_VALUE);
+  }
+
+  /**
+   * Combines the latest SensorData of the subsources of a virtual Source.
+   *
+   * @param parts The entries of the subsources.
+   * @param sourceUri The URI of the virtual Source.
+   * @return The combined SensorData.
+   */
+  private static SensorData combine(Latest[] parts, String sourceUri) {
+    // Storing combined properties as Map while summing to make life easier
+    Map<String, Double> combinedMap = new LinkedHashMap<String, Double>();
+    XMLGregorianCalendar combinedTimestamp = null;
+    for (Latest part : parts) {
+      SensorData data = part.data;
+      if (data != null) {
+        // record this timestamp if it is the first we've seen or is earliest so far
+        if ((combinedTimestamp == null)
+            || (Tstamp.lessThan(data.getTimestamp(), combinedTimestamp))) {
+          combinedTimestamp = data.getTimestamp();
+        }
+        // iterate over all properties found in data
+        for (Property prop : data.getProperties().getProperty()) {
+          Double combinedValue = combinedMap.get(prop.getKey());
+          if (combinedValue == null) {
+            // The combined property list does not have this property yet, so just add it verbatim
+            combinedMap.put(prop.getKey(), Double.valueOf(prop.getValue()));
+          }
+          else {
+            // Must add this property's value to existing sum. Assumes all sensor data properties
+            // are doubles, which is questionable
+            combinedMap.put(prop.getKey(), combinedValue + Double.valueOf(prop.getValue()));
+          }
+        }
+      }
+    }
+    // Convert map to Properties
+    Properties combinedProps = new Properties();
+    for (Map.Entry<String, Double> entry : combinedMap.entrySet()) {
+      combinedProps.getProperty().add(new Property(entry.getKey(), entry.getValue().toString()));
+    }
+    return new SensorData(combinedTimestamp, SensorData.SERVER_TOOL, sourceUri, combinedProps);
+  }
+
+  /** The latest SensorData of a non-virtual Source, and how long it can be used for. */
+  private static final class Latest {
+    /** The latest SensorData, or null if the Source has none. */
+    private final SensorData data;
+    /** The timestamp of the SensorData in milliseconds, or 0 if there is none. */
+    private final long millis;
+    /** When the entry must be loaded again, in milliseconds. */
+    private final long expires;
+
+    /**
+     * Creates a new entry.
+     *
+     * @param data The latest SensorData, or null if the Source has none.
+     * @param expires When the entry must be loaded again, in milliseconds.
+     */
+    Latest(SensorData data, long expires) {
+      this.data = data;
+      this.millis =
+          (data == null) ? 0 : Tstamp.toMillis(data.getTimestamp());
+      this.expires = expires;
+    }
+  }
+
+  /** The combined latest SensorData of a virtual Source, and what it was combined from. */
+  private static final class Combined {
+    /** The names of the subsources, in order. */
+    private final String[] names;
+    /** The entries of the subsources, in the same order. */
+    private final Latest[] parts;
+    /** The URI of the virtual Source. */
+    private final String sourceUri;
+    /** The combined SensorData. */
+    private final SensorData data;
+
+    /**
+     * Creates a new combined entry.
+     *
+     * @param subSources The subsources.
+     * @param parts The entries of the subsources, in the same order.
+     * @param sourceUri The URI of the virtual Source.
+     * @param data The combined SensorData.
+     */
+    Combined(List<Source> subSources, Latest[] parts, String sourceUri, SensorData data) {
+      this.names = new String[subSources.size()];
+      for (int i = 0; i < this.names.length; i++) {
+        this.names[i] = subSources.get(i).getName();
+      }
+      this.parts = parts;
+      this.sourceUri = sourceUri;
+      this.data = data;
+    }
+
+    /**
+     * Returns whether this was combined from exactly the given subsource entries.
+     *
+     * @param subSources The current subsources.
+     * @param current The current entries of the subsources.
+     * @param uri The current URI of the virtual Source.
+     * @return True if the combined SensorData is still up to date.
+     */
+    boolean matches(List<Source> subSources, Latest[] current, String uri) {
+      if ((current.length != this.parts.length) || !this.sourceUri.equals(uri)) {
+        return false;
+      }
+      for (int i = 0; i < current.length; i++) {
+        if ((current[i] != this.parts[i]) || !this.names[i].equals(subSources.get(i).getName())) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,372 @@
+package org.wattdepot.server.db;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+
+/**
+ * Remembers recently computed power, energy and carbon, so that requests for ranges that are no
+ * longer changing are answered without touching storage. A result is only cached if its range ends
+ * at or before the latest SensorData of each of the non-virtual Sources it is computed from (the
+ * Source itself, or the leaves of a virtual Source), so the open range reaching up to now is always
+ * computed afresh.
+ * <p>
+ * Interpolation at either end of a range uses the neighbouring SensorData, which can lie outside
+ * the range, so each entry records, for each non-virtual Source, the timestamps of the SensorData
+ * at or before the start of its range and at or after the end. SensorData stored or deleted at a
+ * timestamp drops only the entries whose span of that Source covers it, so SensorData arriving
+ * after the latest SensorData, the usual case, drops nothing. An entry computed from SensorData
+ * that is only in the DataCache also expires when the first of that SensorData does. The least
+ * recently used entries are dropped once the cache is full.
+ * <p>
+ * Cached results are shared between callers, who must not modify them.
+ */
+public class ResultCache {
+
+  /** The kinds of result cached. */
+  public enum Kind {
+    /** Power at a timestamp. */
+    POWER,
+    /** Energy over a range. */
+    ENERGY,
+    /** Carbon over a range. */
+    CARBON
+  }
+
+  /** The maximum number of entries held. */
+  private final int maxEntries;
+
+  /** Computed results in least recently used order. Also guards horizons. */
+  private final Map<Key, Result> results;
+
+  /**
+   * The latest timestamp in milliseconds any result of each non-virtual Source has been, or is
+   * being, computed with. SensorData later than this cannot affect any entry.
+   */
+  private final Map<String, Long> horizons = new HashMap<String, Long>();
+
+  /** Incremented on every invalidation that can affect a result, so stale results are not kept. */
+  private final AtomicLong version = new AtomicLong();
+
+  /**
+   * Creates a new, empty ResultCache.
+   *
+   * @param maxEntries The maximum number of entries held. If 0 or less nothing is cached.
+   */
+  public ResultCache(final int maxEntries) {
+    this.maxEntries = maxEntries;
+    this.results = new LinkedHashMap<Key, Result>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Result> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Returns whether results are cached at all.
+   *
+   * @return True if the cache can hold entries.
+   */
+  public boolean isEnabled() {
+    return this.maxEntries > 0;
+  }
+
+  /**
+   * Returns a cached result.
+   *
+   * @param kind The kind of result.
+   * @param sourceName The name of the Source, which may be virtual.
+   * @param startTime The start of the range, or the timestamp of power, in milliseconds.
+   * @param endTime The end of the range, or the timestamp of power, in milliseconds.
+   * @param interval The sampling interval in minutes, or 0 for power.
+   * @return The cached result, or null if there is none or it has expired.
+   */
+  public SensorData get(Kind kind, String sourceName, long startTime, long endTime, int interval) {
+    Key key = new Key(kind, sourceName, startTime, endTime, interval);
+    synchronized (this.results) {
+      Result result = this.results.get(key);
+      if (result == null) {
+        return null;
+      }
+      if (result.validUntil <= System.currentTimeMillis()) {
+        // SensorData it was computed from has expired from the DataCache
+        this.results.remove(key);
+        return null;
+      }
+      return result.data;
+    }
+  }
+
+  /**
+   * Returns whether a range ends at or before the latest SensorData of each of the non-virtual
+   * Sources its result is computed from, so that the result may be cached.
+   *
+   * @param endTime The end of the range, or the timestamp of power, in milliseconds.
+   * @param latest The timestamp in milliseconds of the latest SensorData of each of them.
+   * @return True if the range is closed.
+   */
+  public boolean isClosed(long endTime, long[] latest) {
+    for (long horizon : latest) {
+      if (horizon < endTime) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Records that a result is about to be computed from the given non-virtual Sources, so that
+   * SensorData stored or deleted for them meanwhile keeps the result out of the cache. Must be
+   * called before the result is computed, with the value returned passed to put.
+   *
+   * @param leaves The names of the non-virtual Sources the result is computed from.
+   * @param latest The timestamp in milliseconds of the latest SensorData of each of them.
+   * @return The version to pass to put.
+   */
+  public long begin(String[] leaves, long[] latest) {
+    synchronized (this.results) {
+      for (int i = 0; i < leaves.length; i++) {
+        Long horizon = this.horizons.get(leaves[i]);
+        if ((horizon == null) || (horizon < latest[i])) {
+          this.horizons.put(leaves[i], latest[i]);
+        }
+      }
+      return this.version.get();
+    }
+  }
+
+  /**
+   * Caches a computed result, unless it is null, it has already expired, or SensorData that could
+   * affect it changed while it was computed. The range must be closed, as checked by isClosed.
+   *
+   * @param kind The kind of result.
+   * @param sourceName The name of the Source, which may be virtual.
+   * @param startTime The start of the range, or the timestamp of power, in milliseconds.
+   * @param endTime The end of the range, or the timestamp of power, in milliseconds.
+   * @param interval The sampling interval in minutes, or 0 for power.
+   * @param leaves The names of the non-virtual Sources the result was computed from.
+   * @param first The timestamp in milliseconds of the SensorData of each of them at or before
+   * startTime, or Long.MIN_VALUE if unknown.
+   * @param last The timestamp in milliseconds of the SensorData of each of them at or after
+   * endTime.
+   * @param validUntil When, in milliseconds, the first SensorData between first and last that is
+   * only in the DataCache expires, or Long.MAX_VALUE if there is none.
+   * @param startVersion The version returned by begin.
+   * @param data The result.
+   */
+  public void put(Kind kind, String sourceName, long startTime, long endTime, int interval,
+      String[] leaves, long[] first, long[] last, long validUntil, long startVersion,
+      SensorData data) {
+    if (!isEnabled() || (data == null) || (validUntil <= System.currentTimeMillis())) {
+      return;
+    }
+    synchronized (this.results) {
+      // Checked under the lock, so an invalidation cannot slip in before the put
+      if (this.version.get() == startVersion) {
+        this.results.put(new Key(kind, sourceName, startTime, endTime, interval), new Result(data,
+            leaves, first, last, validUntil));
+      }
+    }
+  }
+
+  /**
+   * Drops the entries that SensorData stored or deleted for a non-virtual Source at a timestamp can
+   * affect. Must be called after the SensorData is stored or deleted.
+   *
+   * @param leafName The name of the non-virtual Source.
+   * @param timestamp The timestamp stored or deleted, in milliseconds.
+   */
+  public void invalidate(String leafName, long timestamp) {
+    invalidate(leafName, timestamp, timestamp);
+  }
+
+  /**
+   * Drops the entries that SensorData stored or deleted for a non-virtual Source between two
+   * timestamps can affect. Must be called after the SensorData is stored or deleted.
+   *
+   * @param leafName The name of the non-virtual Source.
+   * @param startTime The earliest timestamp stored or deleted, in milliseconds.
+   * @param endTime The latest timestamp stored or deleted, in milliseconds.
+   */
+  public void invalidate(String leafName, long startTime, long endTime) {
+    synchronized (this.results) {
+      Long horizon = this.horizons.get(leafName);
+      if ((horizon == null) || (startTime > horizon)) {
+        // Later than anything any result has been computed with
+        return;
+      }
+      this.version.incrementAndGet();
+      Iterator<Result> iterator = this.results.values().iterator();
+      while (iterator.hasNext()) {
+        if (iterator.next().dependsOn(leafName, startTime, endTime)) {
+          iterator.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * Drops all entries computed from a non-virtual Source, for when all of its SensorData is
+   * deleted.
+   *
+   * @param leafName The name of the non-virtual Source.
+   */
+  public void invalidate(String leafName) {
+    invalidate(leafName, Long.MIN_VALUE, Long.MAX_VALUE);
+  }
+
+  /**
+   * Drops all entries, for when Sources change.
+   */
+  public void clear() {
+    synchronized (this.results) {
+      this.version.incrementAndGet();
+      this.results.clear();
+    }
+  }
+
+  /**
+   * Returns the number of entries held.
+   *
+   * @return The number of entries.
+   */
+  public int size() {
+    synchronized (this.results) {
+      return this.results.size();
+    }
+  }
+
+  /**
+   * Identifies a result by its kind, Source, range and interval.
+   */
+  private static final class Key {
+
+    /** The kind of result. */
+    private final Kind kind;
+
+    /** The name of the Source. */
+    private final String sourceName;
+
+    /** The start of the range in milliseconds. */
+    private final long startTime;
+
+    /** The end of the range in milliseconds. */
+    private final long endTime;
+
+    /** The sampling interval in minutes. */
+    private final int interval;
+
+    /**
+     * Creates a new Key.
+     *
+     * @param kind The kind of result.
+     * @param sourceName The name of the Source.
+     * @param startTime The start of the range in milliseconds.
+     * @param endTime The end of the range in milliseconds.
+     * @param interval The sampling interval in minutes.
+     */
+    Key(Kind kind, String sourceName, long startTime, long endTime, int interval) {
+      this.kind = kind;
+      this.sourceName = sourceName;
+      this.startTime = startTime;
+      this.endTime = endTime;
+      this.interval = interval;
+    }
+
+    /**
+     * Returns whether another object is a Key for the same result.
+     *
+     * @param other The object to compare.
+     * @return True if it is an equal Key.
+     */
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) other;
+      return (this.kind == key.kind) && this.sourceName.equals(key.sourceName)
+          && (this.startTime == key.startTime) && (this.endTime == key.endTime)
+          && (this.interval == key.interval);
+    }
+
+    /**
+     * Returns a hash code consistent with equals.
+     *
+     * @return The hash code.
+     */
+    @Override
+    public int hashCode() {
+      int hash = this.kind.hashCode();
+      hash = 31 * hash + this.sourceName.hashCode();
+      hash = 31 * hash + (int) (this.startTime ^ (this.startTime >>> 32));
+      hash = 31 * hash + (int) (this.endTime ^ (this.endTime >>> 32));
+      return 31 * hash + this.interval;
+    }
+  }
+
+  /**
+   * A cached result, with the non-virtual Sources it was computed from.
+   */
+  private static final class Result {
+
+    /** The result. */
+    private final SensorData data;
+
+    /** The names of the non-virtual Sources it was computed from. */
+    private final String[] leaves;
+
+    /** The timestamp in milliseconds of the SensorData of each of them at or before the start. */
+    private final long[] first;
+
+    /** The timestamp in milliseconds of the SensorData of each of them at or after the end. */
+    private final long[] last;
+
+    /** When the result expires, in milliseconds. */
+    private final long validUntil;
+
+    /**
+     * Creates a new Result.
+     *
+     * @param data The result.
+     * @param leaves The names of the non-virtual Sources it was computed from.
+     * @param first The timestamp in milliseconds of the SensorData of each of them at or before the
+     * start.
+     * @param last The timestamp in milliseconds of the SensorData of each of them at or after the
+     * end.
+     * @param validUntil When the result expires, in milliseconds.
+     */
+    Result(SensorData data, String[] leaves, long[] first, long[] last, long validUntil) {
+      this.data = data;
+      this.leaves = leaves;
+      this.first = first;
+      this.last = last;
+      this.validUntil = validUntil;
+    }
+
+    /**
+     * Returns whether SensorData of a non-virtual Source between two timestamps can change this
+     * result.
+     *
+     * @param leafName The name of the non-virtual Source.
+     * @param startTime The earliest timestamp in milliseconds.
+     * @param endTime The latest timestamp in milliseconds.
+     * @return True if the result must be dropped.
+     */
+    boolean dependsOn(String leafName, long startTime, long endTime) {
+      for (int i = 0; i < this.leaves.length; i++) {
+        if (this.leaves[i].equals(leafName) && (startTime <= this.last[i])
+            && (this.first[i] <= endTime)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
@@ -0,0 +1,526 @@
+package org.wattdepot.server.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import javax.xml.datatype.XMLGregorianCalendar;
+import org.wattdepot.resource.property.jaxb.Property;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.resource.sensordata.jaxb.SensorDatas;
+import org.wattdepot.resource.source.jaxb.Source;
+import org.wattdepot.resource.source.summary.jaxb.SourceSummary;
+import org.wattdepot.util.StackTrace;
+import org.wattdepot.util.tstamp.Tstamp;
+
+/**
+ * Ages old SensorData out of storage. Each non-virtual Source with both the RAW_RETENTION_DAYS and
+ * DOWNSAMPLE_INTERVAL properties has its SensorData older than the retention period downsampled:
+ * the readings in each downsample interval are replaced by the first and last of them and one
+ * computed reading halfway between, whose power is chosen so that the energy integrated over the
+ * interval is unchanged. The first and last readings are kept as they were, so energy between
+ * intervals and energy counters are unchanged too, and the counters of the computed reading are
+ * interpolated from the readings it replaces. Intervals that no non-negative power could keep the
+ * same are left alone.
+ *
+ * The replaced readings are deleted a range at a time, at most chunkSize readings per range, and
+ * the scheduler pauses after each chunk so that requests are not starved. The database is
+ * compacted after a run that deleted anything. Runs are made on a background thread, and their
+ * progress is reported by toString.
+ */
+public class RetentionScheduler {
+
+  /** Number of milliseconds in a minute. */
+  private static final long MINUTE_MILLIS = 60L * 1000L;
+
+  /** Number of milliseconds in a day, roughly how much SensorData is read at once. */
+  private static final long DAY_MILLIS = 24L * 60L * MINUTE_MILLIS;
+
+  /** The fewest readings in an interval worth downsampling, since three are left behind. */
+  private static final int MIN_READINGS = 4;
+
+  /** The power properties whose integral is preserved. */
+  private static final String[] POWER_KEYS = { SensorData.POWER_GENERATED,
+      SensorData.POWER_CONSUMED };
+
+  /** The energy counter properties that are interpolated. */
+  private static final String[] COUNTER_KEYS = { SensorData.ENERGY_GENERATED_TO_DATE,
+      SensorData.ENERGY_CONSUMED_TO_DATE };
+
+  /** The DbManager whose SensorData is downsampled. */
+  private final DbManager dbManager;
+
+  /** The number of milliseconds between the end of one run and the start of the next. */
+  private final long delayMillis;
+
+  /** The most readings deleted by one statement, and between pauses. */
+  private final int chunkSize;
+
+  /** The number of milliseconds to pause after each chunk. */
+  private final long pauseMillis;
+
+  /** The logger for progress and problems. */
+  private final Logger logger;
+
+  /**
+   * The time up to which each Source has been downsampled since the server started, keyed by
+   * Source name, so later runs only read SensorData that has aged since.
+   */
+  private final ConcurrentMap<String, Long> downsampledTo = new ConcurrentHashMap<String, Long>();
+
+  /** Held while a run is being made, so only one is made at a time. */
+  private final Object runLock = new Object();
+
+  /** Runs the scheduled runs, or null if the scheduler has not been started. */
+  private ScheduledExecutorService timer;
+
+  /** Set when the scheduler is stopped, so a run in progress ends early. */
+  private volatile boolean stopped;
+
+  /** The number of readings deleted since the last pause. */
+  private int deletedSincePause;
+
+  /** True while a run is in progress. */
+  private volatile boolean running;
+
+  /** The Source being downsampled, or null if none is. */
+  private volatile String currentSource;
+
+  /** When the current or most recent run started, in milliseconds. */
+  private volatile long runStart;
+
+  /** When the most recent run finished, in milliseconds, or 0 if one is running. */
+  private volatile long runEnd;
+
+  /** The number of runs started. */
+  private final AtomicLong runs = new AtomicLong();
+
+  /** The number of intervals downsampled. */
+  private final AtomicLong intervalsDownsampled = new AtomicLong();
+
+  /** The number of intervals left alone because their energy could not be preserved. */
+  private final AtomicLong intervalsSkipped = new AtomicLong();
+
+  /** The number of readings deleted. */
+  private final AtomicLong readingsDeleted = new AtomicLong();
+
+  /** The number of computed readings stored. */
+  private final AtomicLong readingsWritten = new AtomicLong();
+
+  /** The number of pauses made after a chunk of deletions. */
+  private final AtomicLong pauses = new AtomicLong();
+
+  /**
+   * Creates a new RetentionScheduler, which does nothing until it is started.
+   *
+   * @param dbManager The DbManager whose SensorData is downsampled.
+   * @param delayMinutes The number of minutes between the end of one run and the start of the
+   * next.
+   * @param chunkSize The most readings deleted by one statement, and between pauses.
+   * @param pauseMillis The number of milliseconds to pause after each chunk.
+   * @param logger The logger for progress and problems.
+   */
+  public RetentionScheduler(DbManager dbManager, int delayMinutes, int chunkSize,
+      long pauseMillis, Logger logger) {
+    this.dbManager = dbManager;
+    this.delayMillis = Math.max(1, delayMinutes) * MINUTE_MILLIS;
+    this.chunkSize = Math.max(1, chunkSize);
+    this.pauseMillis = Math.max(0, pauseMillis);
+    this.logger = logger;
+  }
+
+  /**
+   * Starts making runs on a background thread, the first one after the delay between runs.
+   */
+  public synchronized void start() {
+    if (this.timer == null) {
+      this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "wattdepot-retention");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      this.timer.scheduleWithFixedDelay(newRun(), this.delayMillis, this.delayMillis,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Makes a run on the background thread as soon as the current one, if any, is done.
+   *
+   * @return True if the run was queued, false if the scheduler is not running.
+   */
+  public synchronized boolean startRun() {
+    if ((this.timer == null) || this.stopped) {
+      return false;
+    }
+    this.timer.execute(newRun());
+    return true;
+  }
+
+  /**
+   * Stops the scheduler, ending a run in progress after its current chunk of deletions.
+   */
+  public void stop() {
+    ScheduledExecutorService stopping;
+    synchronized (this) {
+      this.stopped = true;
+      stopping = this.timer;
+    }
+    if (stopping != null) {
+      stopping.shutdownNow();
+      try {
+        if (!stopping.awaitTermination(1, TimeUnit.MINUTES)) {
+          this.logger.warning("Retention: run did not stop in time");
+        }
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Downsamples the SensorData of every Source that asks for it, then compacts the database if
+   * anything was deleted. Called by the background thread, and directly by tests.
+   *
+   * @return True if the run completed, false if it was stopped first.
+   */
+  public boolean runOnce() {
+    synchronized (this.runLock) {
+      this.runs.incrementAndGet();
+      this.running = true;
+      this.runStart = System.currentTimeMillis();
+      this.runEnd = 0;
+      long deletedBefore = this.readingsDeleted.get();
+      boolean completed = true;
+      try {
+        for (Source source : this.dbManager.getSources().getSource()) {
+          if (!source.isVirtual() && !downsample(source, this.runStart)) {
+            completed = false;
+            break;
+          }
+        }
+        long deleted = this.readingsDeleted.get() - deletedBefore;
+        if (deleted > 0) {
+          // Deleted rows leave free space behind in some databases, such as Derby
+          this.dbManager.performMaintenance();
+          this.logger.info("Retention: deleted " + deleted + " readings");
+        }
+      }
+      finally {
+        this.currentSource = null;
+        this.runEnd = System.currentTimeMillis();
+        this.running = false;
+      }
+      return completed;
+    }
+  }
+
+  /**
+   * Downsamples the SensorData of a Source older than its RAW_RETENTION_DAYS to its
+   * DOWNSAMPLE_INTERVAL, reading about a day of whole intervals at a time.
+   *
+   * @param source The non-virtual Source.
+   * @param now The current time in milliseconds.
+   * @return False if the scheduler was stopped.
+   */
+  private boolean downsample(Source source, long now) {
+    long interval;
+    long cutoff;
+    try {
+      double retentionDays = source.getPropertyAsDouble(Source.RAW_RETENTION_DAYS);
+      interval = (long) (source.getPropertyAsDouble(Source.DOWNSAMPLE_INTERVAL) * MINUTE_MILLIS);
+      if ((retentionDays <= 0) || (interval <= 0)) {
+        return true;
+      }
+      cutoff = now - (long) (retentionDays * DAY_MILLIS);
+    }
+    catch (NumberFormatException e) {
+      this.logger.warning("Retention: bad retention properties for Source " + source.getName());
+      return true;
+    }
+    cutoff -= cutoff % interval;
+    SourceSummary summary = this.dbManager.getSourceSummary(source.getName());
+    if ((summary == null) || (summary.getFirstSensorData() == null)) {
+      return true;
+    }
+    long first = toMillis(summary.getFirstSensorData());
+    Long done = this.downsampledTo.get(source.getName());
+    if ((done != null) && (done > first)) {
+      first = done;
+    }
+    this.currentSource = source.getName();
+    long windowLength = Math.max(1, DAY_MILLIS / interval) * interval;
+    for (long start = first - (first % interval); start < cutoff; start += windowLength) {
+      long end = Math.min(start + windowLength, cutoff);
+      SensorDatas datas;
+      try {
+        datas =
+            this.dbManager.getSensorDatas(source.getName(), Tstamp.makeTimestamp(start),
+                Tstamp.makeTimestamp(end - 1));
+      }
+      catch (DbBadIntervalException e) {
+        return true;
+      }
+      if (datas == null) {
+        return true;
+      }
+      List<SensorData> readings = new ArrayList<SensorData>();
+      long intervalEnd = start + interval;
+      for (SensorData data : datas.getSensorData()) {
+        long millis = toMillis(data.getTimestamp());
+        if (millis >= intervalEnd) {
+          if (!downsampleInterval(source, readings)) {
+            return false;
+          }
+          readings.clear();
+          intervalEnd = millis - (millis % interval) + interval;
+        }
+        readings.add(data);
+      }
+      if (!downsampleInterval(source, readings)) {
+        return false;
+      }
+      this.downsampledTo.put(source.getName(), end);
+    }
+    return true;
+  }
+
+  /**
+   * Replaces the readings of one interval by the first and last of them and a computed reading
+   * halfway between, unless there are too few readings to bother or the energy over the interval
+   * cannot be preserved. The computed reading is stored before anything is deleted.
+   *
+   * @param source The Source the readings belong to.
+   * @param readings The readings in the interval, in order.
+   * @return False if the scheduler was stopped.
+   */
+  private boolean downsampleInterval(Source source, List<SensorData> readings) {
+    int size = readings.size();
+    if (size < MIN_READINGS) {
+      return true;
+    }
+    SensorData first = readings.get(0);
+    SensorData last = readings.get(size - 1);
+    long firstMillis = toMillis(first.getTimestamp());
+    long lastMillis = toMillis(last.getTimestamp());
+    long middle = firstMillis + (lastMillis - firstMillis) / 2;
+    SensorData computed =
+        new SensorData(Tstamp.makeTimestamp(middle), SensorData.SERVER_TOOL, first.getSource());
+    for (String key : POWER_KEYS) {
+      if (first.getProperty(key) != null) {
+        double power = middlePower(readings, key, middle);
+        if (power < 0) {
+          this.intervalsSkipped.incrementAndGet();
+          return true;
+        }
+        computed.addProperty(new Property(key, power));
+      }
+    }
+    for (String key : COUNTER_KEYS) {
+      if (first.getProperty(key) != null) {
+        computed.addProperty(new Property(key, interpolate(readings, key, middle)));
+      }
+    }
+    if (!this.dbManager.storeSensorDataNoCache(computed)) {
+      // There is already a reading halfway, so leave the interval as it is
+      this.intervalsSkipped.incrementAndGet();
+      return true;
+    }
+    this.readingsWritten.incrementAndGet();
+    this.intervalsDownsampled.incrementAndGet();
+    int split = 1;
+    while (toMillis(readings.get(split).getTimestamp()) < middle) {
+      split++;
+    }
+    return deleteReadings(source, readings.subList(1, split))
+        && deleteReadings(source, readings.subList(split, size - 1));
+  }
+
+  /**
+   * Deletes consecutive readings of a Source, at most chunkSize per range, pausing after each
+   * chunk.
+   *
+   * @param source The Source the readings belong to.
+   * @param readings The readings to delete, in order, with no other readings between them.
+   * @return False if the scheduler was stopped.
+   */
+  private boolean deleteReadings(Source source, List<SensorData> readings) {
+    for (int from = 0; from < readings.size(); from += this.chunkSize) {
+      List<SensorData> chunk =
+          readings.subList(from, Math.min(from + this.chunkSize, readings.size()));
+      // The readings are known, so the rollups and energy integral are patched, not recomputed
+      int deleted = this.dbManager.deleteSensorData(source, chunk);
+      if (deleted < 0) {
+        this.logger.warning("Retention: unable to delete readings of " + source.getName()
+            + " from " + chunk.get(0).getTimestamp() + " to "
+            + chunk.get(chunk.size() - 1).getTimestamp());
+        continue;
+      }
+      this.readingsDeleted.addAndGet(deleted);
+      this.deletedSincePause += deleted;
+      if ((this.deletedSincePause >= this.chunkSize) && !pause()) {
+        return false;
+      }
+    }
+    return !this.stopped;
+  }
+
+  /**
+   * Pauses after a chunk of deletions.
+   *
+   * @return False if the scheduler was stopped.
+   */
+  private boolean pause() {
+    this.deletedSincePause = 0;
+    this.pauses.incrementAndGet();
+    try {
+      Thread.sleep(this.pauseMillis);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    return !this.stopped;
+  }
+
+  /**
+   * Returns the power of a reading halfway through the given readings that keeps the energy
+   * integrated between the first and last of them unchanged, when it replaces the readings in
+   * between.
+   *
+   * @param readings The readings, in order.
+   * @param key The power property.
+   * @param middle The timestamp of the computed reading in milliseconds.
+   * @return The power in W, which is negative if no non-negative power would do.
+   */
+  private static double middlePower(List<SensorData> readings, String key, long middle) {
+    // Energy in W * ms, from the linearly interpolated power between readings
+    double energy = 0;
+    for (int i = 1; i < readings.size(); i++) {
+      SensorData before = readings.get(i - 1);
+      SensorData after = readings.get(i);
+      energy +=
+          (before.getPropertyAsDouble(key) + after.getPropertyAsDouble(key)) / 2
+              * (toMillis(after.getTimestamp()) - toMillis(before.getTimestamp()));
+    }
+    SensorData first = readings.get(0);
+    SensorData last = readings.get(readings.size() - 1);
+    long firstMillis = toMillis(first.getTimestamp());
+    long lastMillis = toMillis(last.getTimestamp());
+    double remainder =
+        2 * energy - first.getPropertyAsDouble(key) * (middle - firstMillis)
+            - last.getPropertyAsDouble(key) * (lastMillis - middle);
+    return remainder / (lastMillis - firstMillis);
+  }
+
+  /**
+   * Returns the value of a property at the given time, linearly interpolated between the
+   * readings either side of it.
+   *
+   * @param readings The readings, in order, spanning the time.
+   * @param key The property.
+   * @param millis The time in milliseconds.
+   * @return The interpolated value.
+   */
+  private static double interpolate(List<SensorData> readings, String key, long millis) {
+    int i = 1;
+    while ((i < readings.size() - 1) && (toMillis(readings.get(i).getTimestamp()) < millis)) {
+      i++;
+    }
+    SensorData before = readings.get(i - 1);
+    SensorData after = readings.get(i);
+    long beforeMillis = toMillis(before.getTimestamp());
+    long afterMillis = toMillis(after.getTimestamp());
+    double beforeValue = before.getPropertyAsDouble(key);
+    return beforeValue + (after.getPropertyAsDouble(key) - beforeValue) * (millis - beforeMillis)
+        / (afterMillis - beforeMillis);
+  }
+
+  /**
+   * Returns a Runnable that makes a run, logging anything it throws so later runs still happen.
+   *
+   * @return The Runnable.
+   */
+  private Runnable newRun() {
+    return new Runnable() {
+      @Override
+      public void run() {
+        try {
+          runOnce();
+        }
+        catch (RuntimeException e) {
+          RetentionScheduler.this.logger.warning("Retention: run failed: "
+              + StackTrace.toString(e));
+        }
+      }
+    };
+  }
+
+  /**
+   * Converts a timestamp to epoch milliseconds.
+   *
+   * @param timestamp The timestamp.
+   * @return The timestamp in epoch milliseconds.
+   */
+  private static long toMillis(XMLGregorianCalendar timestamp) {
+    return Tstamp.toMillis(timestamp);
+  }
+
+  /**
+   * Returns the progress of the scheduler as lines of "name: value", for the database resource.
+   *
+   * @return The progress.
+   */
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    String source = this.currentSource;
+    builder.append("state: ").append(this.running ? "RUNNING" : "IDLE").append('\n');
+    if (source != null) {
+      builder.append("source: ").append(source).append('\n');
+    }
+    if (this.runStart > 0) {
+      builder.append("started: ").append(Tstamp.makeTimestamp(this.runStart)).append('\n');
+    }
+    if (this.runEnd > 0) {
+      builder.append("finished: ").append(Tstamp.makeTimestamp(this.runEnd)).append('\n');
+    }
+    builder.append("runs: ").append(this.runs.get()).append('\n');
+    builder.append("intervalsDownsampled: ").append(this.intervalsDownsampled.get()).append('\n');
+    builder.append("intervalsSkipped: ").append(this.intervalsSkipped.get()).append('\n');
+    builder.append("readingsDeleted: ").append(this.readingsDeleted.get()).append('\n');
+    builder.append("readingsWritten: ").append(this.readingsWritten.get()).append('\n');
+    builder.append("chunkSize: ").append(this.chunkSize).append('\n');
+    builder.append("pauseMillis: ").append(this.pauseMillis).append('\n');
+    builder.append("pauses: ").append(this.pauses.get()).append('\n');
+    return builder.toString();
+  }
+
+  /**
+   * Returns the number of readings deleted since the scheduler was created.
+   *
+   * @return The number of readings.
+   */
+  public long getReadingsDeleted() {
+    return this.readingsDeleted.get();
+  }
+
+  /**
+   * Returns the number of intervals downsampled since the scheduler was created.
+   *
+   * @return The number of intervals.
+   */
+  public long getIntervalsDownsampled() {
+    return this.intervalsDownsampled.get();
+  }
+}
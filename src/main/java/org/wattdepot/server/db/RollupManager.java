@@ -0,0 +1,662 @@
+package org.wattdepot.server.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.xml.datatype.XMLGregorianCalendar;
+import org.wattdepot.resource.energy.Energy;
+import org.wattdepot.resource.sensordata.SensorDataStraddle;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.resource.sensordata.jaxb.SensorDatas;
+import org.wattdepot.resource.source.jaxb.Source;
+import org.wattdepot.resource.source.summary.jaxb.SourceSummary;
+import org.wattdepot.util.tstamp.Tstamp;
+
+/**
+ * Maintains the SensorDataRollups of each non-virtual Source as SensorData is stored and deleted,
+ * and uses them to compute energy over long ranges without resampling the raw data.
+ *
+ * Energy is attributed to buckets by integrating the linearly interpolated power between each pair
+ * of consecutive readings, split at bucket boundaries. Storing a reading between two existing
+ * readings removes the energy of the segment it splits and adds the energy of the two new
+ * segments. Deleting a reading marks every bucket it contributed to as incomplete, so queries over
+ * those buckets fall back to the raw data until the Source is rebuilt, unless the deleted readings
+ * are known, in which case remove patches the buckets instead.
+ *
+ * Rollups are computed from stored SensorData only, so SensorData that is only in the cache must
+ * not be passed to update, and SensorData queued for write-behind is only passed once it is
+ * stored. Energy from the rollups therefore covers only the stored readings, and callers must
+ * account for cached readings themselves.
+ */
+public class RollupManager {
+
+  /**
+   * The longest segment between two readings, measured in buckets, that is spread over the buckets
+   * of a resolution. Longer gaps in the data are only rolled up at the coarser resolutions.
+   */
+  private static final int MAX_SEGMENT_BUCKETS = 1440;
+
+  /** Number of milliseconds in an hour, for converting W * ms to Wh. */
+  private static final double MILLIS_PER_HOUR = 60.0 * 60.0 * 1000.0;
+
+  /** The storage implementation that the SensorData is read from and the rollups persisted to. */
+  private DbImplementation dbImpl;
+
+  /** Ranges shorter than this many milliseconds are always computed from the raw data. */
+  private long minRangeMillis;
+
+  /** One lock per Source name, serializing the read-modify-write of its rollups. */
+  private ConcurrentMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+
+  /**
+   * Creates a new RollupManager.
+   *
+   * @param dbImpl The storage implementation that the SensorData is read from and the rollups
+   * persisted to.
+   * @param minRangeMinutes Ranges shorter than this many minutes are not answered from rollups.
+   */
+  public RollupManager(DbImplementation dbImpl, int minRangeMinutes) {
+    this.dbImpl = dbImpl;
+    this.minRangeMillis = SensorDataRollup.bucketLength(minRangeMinutes);
+  }
+
+  /**
+   * Folds newly stored SensorData into the rollups of the given Source. The SensorData must already
+   * be in storage, and must all belong to the given Source.
+   *
+   * @param source The non-virtual Source the SensorData was stored for.
+   * @param datas The SensorData that were stored, in any order.
+   */
+  public void update(Source source, List<SensorData> datas) {
+    if ((source == null) || (datas == null) || datas.isEmpty()) {
+      return;
+    }
+    List<SensorData> sorted = new ArrayList<SensorData>(datas);
+    Collections.sort(sorted);
+    synchronized (lockFor(source.getName())) {
+      // Straddles just either side of each reading give its neighbours, old or new
+      List<XMLGregorianCalendar> times = new ArrayList<XMLGregorianCalendar>(2 * sorted.size());
+      Set<Long> newTimes = new HashSet<Long>();
+      for (SensorData data : sorted) {
+        times.add(Tstamp.incrementMilliseconds(data.getTimestamp(), -1));
+        times.add(Tstamp.incrementMilliseconds(data.getTimestamp(), 1));
+        newTimes.add(toMillis(data.getTimestamp()));
+      }
+      List<SensorDataStraddle> straddles = this.dbImpl.getSensorDataStraddles(source, times);
+      if (straddles == null) {
+        return;
+      }
+      SensorData[] prev = new SensorData[sorted.size()];
+      SensorData[] next = new SensorData[sorted.size()];
+      long low = Long.MAX_VALUE;
+      long high = Long.MIN_VALUE;
+      for (int i = 0; i < sorted.size(); i++) {
+        SensorDataStraddle before = straddles.get(2 * i);
+        SensorDataStraddle after = straddles.get(2 * i + 1);
+        prev[i] = (before == null) ? null : before.getBeforeData();
+        next[i] = (after == null) ? null : after.getAfterData();
+        SensorData lowest = (prev[i] == null) ? sorted.get(i) : prev[i];
+        SensorData highest = (next[i] == null) ? sorted.get(i) : next[i];
+        low = Math.min(low, toMillis(lowest.getTimestamp()));
+        high = Math.max(high, toMillis(highest.getTimestamp()));
+      }
+      Buckets buckets =
+          new Buckets(source.getName(), this.dbImpl.getRollups(source.getName(), low, high));
+
+      // A reading before these whose bucket was never rolled up means the Source held data before
+      // rollups were maintained, so nothing created here can be trusted until it is rebuilt.
+      boolean rolledUp = true;
+      for (SensorData data : prev) {
+        if ((data != null) && !newTimes.contains(toMillis(data.getTimestamp()))) {
+          rolledUp &= buckets.containsAll(toMillis(data.getTimestamp()));
+        }
+      }
+      buckets.setCreateComplete(rolledUp);
+
+      // The last old reading before the current run of new readings
+      SensorData runStart = null;
+      for (int i = 0; i < sorted.size(); i++) {
+        SensorData data = sorted.get(i);
+        addSample(buckets, data);
+        if (prev[i] == null) {
+          runStart = null;
+        }
+        else {
+          if (!newTimes.contains(toMillis(prev[i].getTimestamp()))) {
+            runStart = prev[i];
+          }
+          addSegment(buckets, prev[i], data, 1);
+        }
+        if ((next[i] != null) && !newTimes.contains(toMillis(next[i].getTimestamp()))) {
+          addSegment(buckets, data, next[i], 1);
+          if (runStart != null) {
+            // The run split the segment between two old readings
+            addSegment(buckets, runStart, next[i], -1);
+          }
+        }
+      }
+      this.dbImpl.storeRollups(buckets.getTouched());
+    }
+  }
+
+  /**
+   * Marks every rollup that the reading at the given timestamp contributed to as incomplete. Must
+   * be called before the reading is deleted, so that its neighbours can still be found.
+   *
+   * @param source The Source the reading belongs to.
+   * @param timestamp The timestamp of the reading about to be deleted.
+   */
+  public void invalidate(Source source, XMLGregorianCalendar timestamp) {
+    invalidate(source, timestamp, timestamp);
+  }
+
+  /**
+   * Marks every rollup that the readings between the given timestamps (inclusive) contributed to
+   * as incomplete. Must be called before the readings are deleted, so that their neighbours can
+   * still be found.
+   *
+   * @param source The Source the readings belong to.
+   * @param startTime The timestamp of the first reading about to be deleted.
+   * @param endTime The timestamp of the last reading about to be deleted.
+   */
+  public void invalidate(Source source, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime) {
+    if ((source == null) || (startTime == null) || (endTime == null)) {
+      return;
+    }
+    synchronized (lockFor(source.getName())) {
+      List<XMLGregorianCalendar> times = new ArrayList<XMLGregorianCalendar>(2);
+      times.add(Tstamp.incrementMilliseconds(startTime, -1));
+      times.add(Tstamp.incrementMilliseconds(endTime, 1));
+      List<SensorDataStraddle> straddles = this.dbImpl.getSensorDataStraddles(source, times);
+      long low = toMillis(startTime);
+      long high = toMillis(endTime);
+      if ((straddles != null) && (straddles.get(0) != null)) {
+        low = toMillis(straddles.get(0).getBeforeData().getTimestamp());
+      }
+      if ((straddles != null) && (straddles.get(1) != null)) {
+        high = toMillis(straddles.get(1).getAfterData().getTimestamp());
+      }
+      List<SensorDataRollup> rollups = this.dbImpl.getRollups(source.getName(), low, high);
+      for (SensorDataRollup rollup : rollups) {
+        rollup.setComplete(false);
+      }
+      this.dbImpl.storeRollups(rollups);
+    }
+  }
+
+  /**
+   * Patches the rollups of the given Source after consecutive stored readings have been deleted.
+   * The energy of the segments through the deleted readings is replaced by that of the segment
+   * joining the readings either side, and the sample aggregates of the buckets that held deleted
+   * readings are recomputed: from the remaining readings in the bucket for buckets up to an hour
+   * long, and from the hourly rollups for daily buckets. Must be called after the readings are
+   * deleted.
+   *
+   * @param source The Source the readings belonged to.
+   * @param before The stored reading before the deleted ones, or null if there is none.
+   * @param deleted The deleted readings, in order, with no other stored readings between them.
+   * @param after The stored reading after the deleted ones, or null if there is none.
+   */
+  public void remove(Source source, SensorData before, List<SensorData> deleted,
+      SensorData after) {
+    if ((source == null) || (deleted == null) || deleted.isEmpty()) {
+      return;
+    }
+    String sourceName = source.getName();
+    long firstDeleted = toMillis(deleted.get(0).getTimestamp());
+    long lastDeleted = toMillis(deleted.get(deleted.size() - 1).getTimestamp());
+    long low = (before == null) ? firstDeleted : toMillis(before.getTimestamp());
+    long high = (after == null) ? lastDeleted : toMillis(after.getTimestamp());
+    long firstHour = SensorDataRollup.bucketStart(firstDeleted, SensorDataRollup.HOUR);
+    long lastHour =
+        SensorDataRollup.bucketStart(lastDeleted, SensorDataRollup.HOUR)
+            + SensorDataRollup.bucketLength(SensorDataRollup.HOUR) - 1;
+    long firstDay = SensorDataRollup.bucketStart(firstDeleted, SensorDataRollup.DAY);
+    long lastDay = SensorDataRollup.bucketStart(lastDeleted, SensorDataRollup.DAY);
+    synchronized (lockFor(sourceName)) {
+      List<SensorDataRollup> existing = this.dbImpl.getRollups(sourceName, low, high);
+      List<SensorDataRollup> hours =
+          this.dbImpl.getRollups(sourceName, SensorDataRollup.HOUR, firstDay, lastDay
+              + SensorDataRollup.bucketLength(SensorDataRollup.DAY));
+      SensorDatas remaining;
+      try {
+        remaining =
+            this.dbImpl.getSensorDatas(sourceName, Tstamp.makeTimestamp(firstHour), Tstamp
+                .makeTimestamp(lastHour));
+      }
+      catch (DbBadIntervalException e) {
+        remaining = null;
+      }
+      if ((existing == null) || (hours == null) || (remaining == null)) {
+        // Without them the buckets cannot be patched, so leave them to be rebuilt
+        if (existing != null) {
+          for (SensorDataRollup rollup : existing) {
+            rollup.setComplete(false);
+          }
+          this.dbImpl.storeRollups(existing);
+        }
+        return;
+      }
+      List<SensorDataRollup> known = new ArrayList<SensorDataRollup>(hours);
+      known.addAll(existing);
+      Buckets buckets = new Buckets(sourceName, known);
+      // A missing bucket was never rolled up, so it cannot be trusted once created here
+      buckets.setCreateComplete(false);
+
+      SensorData previous = before;
+      for (SensorData data : deleted) {
+        if (previous != null) {
+          addSegment(buckets, previous, data, -1);
+        }
+        previous = data;
+      }
+      if (after != null) {
+        addSegment(buckets, previous, after, -1);
+        if (before != null) {
+          addSegment(buckets, before, after, 1);
+        }
+      }
+
+      // Every resolution but the coarsest is recomputed from the readings left in its buckets
+      List<Integer> fine = SensorDataRollup.RESOLUTIONS.subList(1, SensorDataRollup.RESOLUTIONS
+          .size());
+      Set<String> cleared = new HashSet<String>();
+      for (SensorData data : deleted) {
+        long millis = toMillis(data.getTimestamp());
+        for (int resolution : fine) {
+          long start = SensorDataRollup.bucketStart(millis, resolution);
+          if (cleared.add(resolution + ":" + start)) {
+            buckets.get(resolution, start).clearSamples();
+          }
+        }
+      }
+      for (SensorData data : remaining.getSensorData()) {
+        long millis = toMillis(data.getTimestamp());
+        for (int resolution : fine) {
+          long start = SensorDataRollup.bucketStart(millis, resolution);
+          if (cleared.contains(resolution + ":" + start)) {
+            buckets.get(resolution, start).addSample(data);
+          }
+        }
+      }
+      long hourLength = SensorDataRollup.bucketLength(SensorDataRollup.HOUR);
+      long dayLength = SensorDataRollup.bucketLength(SensorDataRollup.DAY);
+      for (long day = firstDay; day <= lastDay; day += dayLength) {
+        SensorDataRollup rollup = buckets.get(SensorDataRollup.DAY, day);
+        rollup.clearSamples();
+        for (long hour = day; hour < day + dayLength; hour += hourLength) {
+          SensorDataRollup hourRollup = buckets.find(SensorDataRollup.HOUR, hour);
+          if (hourRollup != null) {
+            rollup.addSamples(hourRollup);
+          }
+        }
+      }
+      this.dbImpl.storeRollups(buckets.getTouched());
+    }
+  }
+
+  /**
+   * Recomputes all rollups of the given Source from its stored SensorData, one day at a time. Used
+   * for Sources that held data before rollups were maintained, or that had readings deleted.
+   *
+   * @param source The non-virtual Source to rebuild.
+   * @return True if the rollups were rebuilt, false if the Source has no data or there was a
+   * problem reading it.
+   */
+  public boolean rebuild(Source source) {
+    if ((source == null) || source.isVirtual()) {
+      return false;
+    }
+    SourceSummary summary = this.dbImpl.getSourceSummary(source.getName());
+    if ((summary == null) || (summary.getFirstSensorData() == null)) {
+      return false;
+    }
+    long dayLength = SensorDataRollup.bucketLength(SensorDataRollup.DAY);
+    long first = toMillis(summary.getFirstSensorData());
+    long last = toMillis(summary.getLastSensorData());
+    synchronized (lockFor(source.getName())) {
+      Buckets buckets = new Buckets(source.getName(), new ArrayList<SensorDataRollup>());
+      buckets.setCreateComplete(true);
+      SensorData previous = null;
+      for (long day = SensorDataRollup.bucketStart(first, SensorDataRollup.DAY); day <= last;
+          day += dayLength) {
+        SensorDatas datas;
+        try {
+          datas =
+              this.dbImpl.getSensorDatas(source.getName(), Tstamp.makeTimestamp(day),
+                  Tstamp.makeTimestamp(day + dayLength - 1));
+        }
+        catch (DbBadIntervalException e) {
+          return false;
+        }
+        if (datas == null) {
+          return false;
+        }
+        for (SensorData data : datas.getSensorData()) {
+          addSample(buckets, data);
+          if (previous != null) {
+            addSegment(buckets, previous, data, 1);
+          }
+          previous = data;
+        }
+        if (previous != null) {
+          // Nothing later can reach back before the latest reading
+          this.dbImpl.storeRollups(buckets.removeBefore(toMillis(previous.getTimestamp())));
+        }
+      }
+      this.dbImpl.storeRollups(buckets.getTouched());
+    }
+    return true;
+  }
+
+  /**
+   * Returns the energy generated and consumed by the given non-virtual Source between the given
+   * times, summed from the coarsest complete rollups that fit inside the range. The parts of the
+   * range too short for any bucket are computed from straddles, as in the raw calculation. Only
+   * stored readings are taken into account.
+   *
+   * @param source The non-virtual Source.
+   * @param startTime The start of the range.
+   * @param endTime The end of the range.
+   * @return A two element array holding energy generated and energy consumed in Wh, or null if the
+   * range is too short to bother with rollups, or the rollups covering it are missing or
+   * incomplete.
+   */
+  public double[] getEnergy(Source source, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime) {
+    if ((source == null) || (startTime == null) || (endTime == null)) {
+      return null;
+    }
+    long start = toMillis(startTime);
+    long end = toMillis(endTime);
+    if (end - start < this.minRangeMillis) {
+      return null;
+    }
+    // Rollups only cover time between readings, so insist on data at both ends of the range just
+    // like the raw calculation does.
+    List<SensorDataStraddle> straddles =
+        this.dbImpl.getSensorDataStraddles(source, Arrays.asList(startTime, endTime));
+    if ((straddles == null) || straddles.contains(null)) {
+      return null;
+    }
+    return sumEnergy(source, start, end);
+  }
+
+  /**
+   * Sums the energy between the given times from the coarsest resolution that has at least one
+   * whole bucket inside the range, recursing on the leftover ends.
+   *
+   * @param source The non-virtual Source.
+   * @param start The start of the range in epoch milliseconds.
+   * @param end The end of the range in epoch milliseconds.
+   * @return Energy generated and energy consumed in Wh, or null if it could not be computed.
+   */
+  private double[] sumEnergy(Source source, long start, long end) {
+    for (int resolution : SensorDataRollup.RESOLUTIONS) {
+      long length = SensorDataRollup.bucketLength(resolution);
+      long first = SensorDataRollup.bucketStart(start + length - 1, resolution);
+      long last = SensorDataRollup.bucketStart(end, resolution);
+      if (last > first) {
+        List<SensorDataRollup> rollups =
+            this.dbImpl.getRollups(source.getName(), resolution, first, last);
+        if ((rollups == null) || (rollups.size() != (last - first) / length)) {
+          return null;
+        }
+        double[] energy = new double[2];
+        for (SensorDataRollup rollup : rollups) {
+          if (!rollup.isComplete()) {
+            return null;
+          }
+          energy[0] += rollup.getEnergyGenerated();
+          energy[1] += rollup.getEnergyConsumed();
+        }
+        // Whatever is left at either end is shorter than a bucket at this resolution
+        if (first > start) {
+          double[] head = sumEnergy(source, start, first);
+          if (head == null) {
+            return null;
+          }
+          energy[0] += head[0];
+          energy[1] += head[1];
+        }
+        if (end > last) {
+          double[] tail = sumEnergy(source, last, end);
+          if (tail == null) {
+            return null;
+          }
+          energy[0] += tail[0];
+          energy[1] += tail[1];
+        }
+        return energy;
+      }
+    }
+    // Shorter than the finest bucket
+    List<XMLGregorianCalendar> times = new ArrayList<XMLGregorianCalendar>(2);
+    times.add(Tstamp.makeTimestamp(start));
+    times.add(Tstamp.makeTimestamp(end));
+    List<SensorDataStraddle> straddles = this.dbImpl.getSensorDataStraddles(source, times);
+    if ((straddles == null) || straddles.contains(null)) {
+      return null;
+    }
+    Energy energy = new Energy(straddles.get(0), straddles.get(1), false);
+    return new double[] { energy.getEnergyGenerated(), energy.getEnergyConsumed() };
+  }
+
+  /**
+   * Adds a reading to the sample aggregates of the bucket that contains it at each resolution.
+   *
+   * @param buckets The buckets being updated.
+   * @param data The reading.
+   */
+  private void addSample(Buckets buckets, SensorData data) {
+    long millis = toMillis(data.getTimestamp());
+    for (int resolution : SensorDataRollup.RESOLUTIONS) {
+      buckets.get(resolution, SensorDataRollup.bucketStart(millis, resolution)).addSample(data);
+    }
+  }
+
+  /**
+   * Adds (or removes) the energy of the linearly interpolated power between two consecutive
+   * readings to the buckets the segment passes through at each resolution.
+   *
+   * @param buckets The buckets being updated.
+   * @param from The earlier reading.
+   * @param to The later reading.
+   * @param sign 1 to add the segment, -1 to remove it.
+   */
+  private void addSegment(Buckets buckets, SensorData from, SensorData to, int sign) {
+    long fromMillis = toMillis(from.getTimestamp());
+    long toMillis = toMillis(to.getTimestamp());
+    if (toMillis <= fromMillis) {
+      return;
+    }
+    double[] fromPower =
+        { from.getPropertyAsDouble(SensorData.POWER_GENERATED),
+            from.getPropertyAsDouble(SensorData.POWER_CONSUMED) };
+    double[] toPower =
+        { to.getPropertyAsDouble(SensorData.POWER_GENERATED),
+            to.getPropertyAsDouble(SensorData.POWER_CONSUMED) };
+    for (int resolution : SensorDataRollup.RESOLUTIONS) {
+      long length = SensorDataRollup.bucketLength(resolution);
+      long first = SensorDataRollup.bucketStart(fromMillis, resolution);
+      if ((toMillis - first) / length > MAX_SEGMENT_BUCKETS) {
+        // Not spread at this resolution, so the buckets at either end are missing energy
+        buckets.get(resolution, first).setComplete(false);
+        buckets.get(resolution, SensorDataRollup.bucketStart(toMillis, resolution)).setComplete(
+            false);
+        continue;
+      }
+      for (long bucket = first; bucket < toMillis; bucket += length) {
+        long x = Math.max(fromMillis, bucket);
+        long y = Math.min(toMillis, bucket + length);
+        double[] energy = new double[2];
+        for (int i = 0; i < 2; i++) {
+          double slope = (toPower[i] - fromPower[i]) / (toMillis - fromMillis);
+          double powerX = fromPower[i] + slope * (x - fromMillis);
+          double powerY = fromPower[i] + slope * (y - fromMillis);
+          energy[i] = sign * (y - x) * (powerX + powerY) / 2 / MILLIS_PER_HOUR;
+        }
+        buckets.get(resolution, bucket).addEnergy(energy[0], energy[1]);
+      }
+    }
+  }
+
+  /**
+   * Returns the lock object for the named Source, creating it if necessary.
+   *
+   * @param sourceName The name of the Source.
+   * @return The lock object.
+   */
+  private Object lockFor(String sourceName) {
+    Object lock = this.locks.get(sourceName);
+    if (lock == null) {
+      Object newLock = new Object();
+      lock = this.locks.putIfAbsent(sourceName, newLock);
+      if (lock == null) {
+        lock = newLock;
+      }
+    }
+    return lock;
+  }
+
+  /**
+   * Converts a timestamp to epoch milliseconds.
+   *
+   * @param timestamp The timestamp.
+   * @return The timestamp in epoch milliseconds.
+   */
+  private static long toMillis(XMLGregorianCalendar timestamp) {
+    return Tstamp.toMillis(timestamp);
+  }
+
+  /**
+   * The rollups of one Source loaded or created during an update, remembering which ones changed.
+   */
+  private static class Buckets {
+
+    /** The name of the Source. */
+    private String sourceName;
+
+    /** Known rollups, keyed by resolution and then bucket start. */
+    private Map<Integer, Map<Long, SensorDataRollup>> rollups =
+        new HashMap<Integer, Map<Long, SensorDataRollup>>();
+
+    /** Rollups that have been changed, in the order they were first changed. */
+    private Map<String, SensorDataRollup> touched = new LinkedHashMap<String, SensorDataRollup>();
+
+    /** Whether newly created rollups start out complete. */
+    private boolean createComplete = true;
+
+    /**
+     * Creates a new set of buckets holding the given existing rollups.
+     *
+     * @param sourceName The name of the Source.
+     * @param existing The rollups that already exist in storage.
+     */
+    Buckets(String sourceName, List<SensorDataRollup> existing) {
+      this.sourceName = sourceName;
+      for (int resolution : SensorDataRollup.RESOLUTIONS) {
+        this.rollups.put(resolution, new HashMap<Long, SensorDataRollup>());
+      }
+      if (existing != null) {
+        for (SensorDataRollup rollup : existing) {
+          this.rollups.get(rollup.getResolution()).put(rollup.getStart(), rollup);
+        }
+      }
+    }
+
+    /**
+     * Sets whether newly created rollups start out complete.
+     *
+     * @param createComplete True if new rollups are complete.
+     */
+    void setCreateComplete(boolean createComplete) {
+      this.createComplete = createComplete;
+    }
+
+    /**
+     * Returns true if a rollup exists for the given time at every resolution.
+     *
+     * @param millis The time in epoch milliseconds.
+     * @return True if all the rollups containing the time exist.
+     */
+    boolean containsAll(long millis) {
+      for (int resolution : SensorDataRollup.RESOLUTIONS) {
+        if (!this.rollups.get(resolution).containsKey(
+            SensorDataRollup.bucketStart(millis, resolution))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Returns the rollup for the given bucket if it is known, without marking it as changed.
+     *
+     * @param resolution The resolution of the bucket.
+     * @param start The start of the bucket in epoch milliseconds.
+     * @return The rollup, or null if there is none.
+     */
+    SensorDataRollup find(int resolution, long start) {
+      return this.rollups.get(resolution).get(start);
+    }
+
+    /**
+     * Returns the rollup for the given bucket, creating it if necessary, and marks it as changed.
+     *
+     * @param resolution The resolution of the bucket.
+     * @param start The start of the bucket in epoch milliseconds.
+     * @return The rollup.
+     */
+    SensorDataRollup get(int resolution, long start) {
+      Map<Long, SensorDataRollup> map = this.rollups.get(resolution);
+      SensorDataRollup rollup = map.get(start);
+      if (rollup == null) {
+        rollup = new SensorDataRollup(this.sourceName, resolution, start);
+        rollup.setComplete(this.createComplete);
+        map.put(start, rollup);
+      }
+      this.touched.put(resolution + ":" + start, rollup);
+      return rollup;
+    }
+
+    /**
+     * Returns the changed rollups.
+     *
+     * @return The changed rollups.
+     */
+    List<SensorDataRollup> getTouched() {
+      return new ArrayList<SensorDataRollup>(this.touched.values());
+    }
+
+    /**
+     * Forgets all rollups that end at or before the given time, returning the changed ones.
+     *
+     * @param millis The time in epoch milliseconds.
+     * @return The changed rollups that were forgotten.
+     */
+    List<SensorDataRollup> removeBefore(long millis) {
+      List<SensorDataRollup> removed = new ArrayList<SensorDataRollup>();
+      Iterator<SensorDataRollup> it = this.touched.values().iterator();
+      while (it.hasNext()) {
+        SensorDataRollup rollup = it.next();
+        if (rollup.getEnd() <= millis) {
+          removed.add(rollup);
+          it.remove();
+          this.rollups.get(rollup.getResolution()).remove(rollup.getStart());
+        }
+      }
+      return removed;
+    }
+  }
+}
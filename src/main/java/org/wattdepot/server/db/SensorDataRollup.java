@@ -0,0 +1,505 @@
+package org.wattdepot.server.db;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.util.tstamp.Tstamp;
+
+/**
+ * Aggregates of the SensorData of one non-virtual Source over a single fixed-length bucket of
+ * time. Buckets are aligned to the epoch, so a bucket of a given resolution always starts at a
+ * multiple of its length in milliseconds. Each rollup holds the min/max/total power of the readings
+ * that fall in the bucket, the first and last energy counter values in the bucket, and the energy
+ * obtained by integrating the linearly interpolated power curve over the bucket.
+ *
+ * A rollup that is not complete may be missing contributions (for example because a reading inside
+ * it was deleted, or because it was created for a Source that already held data before rollups
+ * were maintained), and must not be used to answer queries.
+ */
+public class SensorDataRollup {
+
+  /** Bucket length of the one minute rollups, in minutes. */
+  public static final int MINUTE = 1;
+
+  /** Bucket length of the fifteen minute rollups, in minutes. */
+  public static final int QUARTER_HOUR = 15;
+
+  /** Bucket length of the hourly rollups, in minutes. */
+  public static final int HOUR = 60;
+
+  /** Bucket length of the daily rollups, in minutes. */
+  public static final int DAY = 24 * 60;
+
+  /** All maintained resolutions, coarsest first. */
+  public static final List<Integer> RESOLUTIONS =
+      Collections.unmodifiableList(Arrays.asList(DAY, HOUR, QUARTER_HOUR, MINUTE));
+
+  /** Number of milliseconds in a minute. */
+  private static final long MILLIS_PER_MINUTE = 60L * 1000L;
+
+  /** The name of the Source this rollup belongs to. */
+  private String sourceName;
+
+  /** The length of the bucket in minutes. */
+  private int resolution;
+
+  /** The start of the bucket in epoch milliseconds. */
+  private long start;
+
+  /** False if the aggregates are known to be missing contributions. */
+  private boolean complete = true;
+
+  /** The number of readings in the bucket. */
+  private int count;
+
+  private double minPowerConsumed;
+  private double maxPowerConsumed;
+  private double totalPowerConsumed;
+  private double minPowerGenerated;
+  private double maxPowerGenerated;
+  private double totalPowerGenerated;
+
+  /** Timestamp of the earliest reading in the bucket in epoch milliseconds. */
+  private long firstTime;
+
+  /** Timestamp of the latest reading in the bucket in epoch milliseconds. */
+  private long lastTime;
+
+  private double firstEnergyConsumedToDate;
+  private double lastEnergyConsumedToDate;
+  private double firstEnergyGeneratedToDate;
+  private double lastEnergyGeneratedToDate;
+
+  /** Energy consumed over the bucket in Wh. */
+  private double energyConsumed;
+
+  /** Energy generated over the bucket in Wh. */
+  private double energyGenerated;
+
+  /**
+   * Creates a new empty rollup.
+   *
+   * @param sourceName The name of the Source.
+   * @param resolution The length of the bucket in minutes.
+   * @param start The start of the bucket in epoch milliseconds.
+   */
+  public SensorDataRollup(String sourceName, int resolution, long start) {
+    this.sourceName = sourceName;
+    this.resolution = resolution;
+    this.start = start;
+  }
+
+  /**
+   * Creates a copy of the given rollup.
+   *
+   * @param other The rollup to copy.
+   */
+  public SensorDataRollup(SensorDataRollup other) {
+    this(other.sourceName, other.resolution, other.start);
+    this.complete = other.complete;
+    setSamples(other.count, other.firstTime, other.lastTime);
+    setPowerConsumed(other.minPowerConsumed, other.maxPowerConsumed, other.totalPowerConsumed);
+    setPowerGenerated(other.minPowerGenerated, other.maxPowerGenerated,
+        other.totalPowerGenerated);
+    setCounters(other.firstEnergyConsumedToDate, other.lastEnergyConsumedToDate,
+        other.firstEnergyGeneratedToDate, other.lastEnergyGeneratedToDate);
+    setEnergy(other.energyGenerated, other.energyConsumed);
+  }
+
+  /**
+   * Returns the start of the bucket of the given resolution that contains the given time.
+   *
+   * @param millis The time in epoch milliseconds.
+   * @param resolution The length of the bucket in minutes.
+   * @return The start of the containing bucket in epoch milliseconds.
+   */
+  public static long bucketStart(long millis, int resolution) {
+    long length = resolution * MILLIS_PER_MINUTE;
+    long remainder = millis % length;
+    // % keeps the sign of the dividend, so times before the epoch need to be pushed down
+    return (remainder < 0) ? millis - remainder - length : millis - remainder;
+  }
+
+  /**
+   * Returns the length of a bucket of the given resolution in milliseconds.
+   *
+   * @param resolution The length of the bucket in minutes.
+   * @return The length of the bucket in milliseconds.
+   */
+  public static long bucketLength(int resolution) {
+    return resolution * MILLIS_PER_MINUTE;
+  }
+
+  /**
+   * Adds a reading to the sample aggregates of this rollup. The reading is assumed to fall inside
+   * the bucket. Energy is not affected, see addEnergy.
+   *
+   * @param data The reading to add.
+   */
+  public void addSample(SensorData data) {
+    long millis = Tstamp.toMillis(data.getTimestamp());
+    double consumed = data.getPropertyAsDouble(SensorData.POWER_CONSUMED);
+    double generated = data.getPropertyAsDouble(SensorData.POWER_GENERATED);
+    if (this.count == 0) {
+      this.minPowerConsumed = consumed;
+      this.maxPowerConsumed = consumed;
+      this.minPowerGenerated = generated;
+      this.maxPowerGenerated = generated;
+    }
+    else {
+      this.minPowerConsumed = Math.min(this.minPowerConsumed, consumed);
+      this.maxPowerConsumed = Math.max(this.maxPowerConsumed, consumed);
+      this.minPowerGenerated = Math.min(this.minPowerGenerated, generated);
+      this.maxPowerGenerated = Math.max(this.maxPowerGenerated, generated);
+    }
+    this.totalPowerConsumed += consumed;
+    this.totalPowerGenerated += generated;
+    if ((this.count == 0) || (millis < this.firstTime)) {
+      this.firstTime = millis;
+      this.firstEnergyConsumedToDate = data.getPropertyAsDouble(SensorData.ENERGY_CONSUMED_TO_DATE);
+      this.firstEnergyGeneratedToDate =
+          data.getPropertyAsDouble(SensorData.ENERGY_GENERATED_TO_DATE);
+    }
+    if ((this.count == 0) || (millis > this.lastTime)) {
+      this.lastTime = millis;
+      this.lastEnergyConsumedToDate = data.getPropertyAsDouble(SensorData.ENERGY_CONSUMED_TO_DATE);
+      this.lastEnergyGeneratedToDate =
+          data.getPropertyAsDouble(SensorData.ENERGY_GENERATED_TO_DATE);
+    }
+    this.count++;
+  }
+
+  /**
+   * Adds the sample aggregates of a finer rollup whose bucket lies inside this one, so a rollup
+   * can be recomputed from the rollups below it. Energy is not affected.
+   *
+   * @param other The finer rollup.
+   */
+  public void addSamples(SensorDataRollup other) {
+    if (other.count == 0) {
+      return;
+    }
+    if (this.count == 0) {
+      this.minPowerConsumed = other.minPowerConsumed;
+      this.maxPowerConsumed = other.maxPowerConsumed;
+      this.minPowerGenerated = other.minPowerGenerated;
+      this.maxPowerGenerated = other.maxPowerGenerated;
+    }
+    else {
+      this.minPowerConsumed = Math.min(this.minPowerConsumed, other.minPowerConsumed);
+      this.maxPowerConsumed = Math.max(this.maxPowerConsumed, other.maxPowerConsumed);
+      this.minPowerGenerated = Math.min(this.minPowerGenerated, other.minPowerGenerated);
+      this.maxPowerGenerated = Math.max(this.maxPowerGenerated, other.maxPowerGenerated);
+    }
+    this.totalPowerConsumed += other.totalPowerConsumed;
+    this.totalPowerGenerated += other.totalPowerGenerated;
+    if ((this.count == 0) || (other.firstTime < this.firstTime)) {
+      this.firstTime = other.firstTime;
+      this.firstEnergyConsumedToDate = other.firstEnergyConsumedToDate;
+      this.firstEnergyGeneratedToDate = other.firstEnergyGeneratedToDate;
+    }
+    if ((this.count == 0) || (other.lastTime > this.lastTime)) {
+      this.lastTime = other.lastTime;
+      this.lastEnergyConsumedToDate = other.lastEnergyConsumedToDate;
+      this.lastEnergyGeneratedToDate = other.lastEnergyGeneratedToDate;
+    }
+    this.count += other.count;
+  }
+
+  /**
+   * Clears the sample aggregates of this rollup, so they can be added again from the readings
+   * still in the bucket. Energy is not affected.
+   */
+  public void clearSamples() {
+    setSamples(0, 0, 0);
+    setPowerConsumed(0, 0, 0);
+    setPowerGenerated(0, 0, 0);
+    setCounters(0, 0, 0, 0);
+  }
+
+  /**
+   * Adds the given amounts of energy to this rollup. Negative amounts remove energy that was
+   * previously added.
+   *
+   * @param generated The energy generated in Wh.
+   * @param consumed The energy consumed in Wh.
+   */
+  public void addEnergy(double generated, double consumed) {
+    this.energyGenerated += generated;
+    this.energyConsumed += consumed;
+  }
+
+  /**
+   * Sets the sample count and the times of the first and last readings.
+   *
+   * @param count The number of readings in the bucket.
+   * @param firstTime The time of the earliest reading in epoch milliseconds.
+   * @param lastTime The time of the latest reading in epoch milliseconds.
+   */
+  public void setSamples(int count, long firstTime, long lastTime) {
+    this.count = count;
+    this.firstTime = firstTime;
+    this.lastTime = lastTime;
+  }
+
+  /**
+   * Sets the power consumed aggregates.
+   *
+   * @param min The minimum power consumed.
+   * @param max The maximum power consumed.
+   * @param total The sum of the power consumed over all readings.
+   */
+  public void setPowerConsumed(double min, double max, double total) {
+    this.minPowerConsumed = min;
+    this.maxPowerConsumed = max;
+    this.totalPowerConsumed = total;
+  }
+
+  /**
+   * Sets the power generated aggregates.
+   *
+   * @param min The minimum power generated.
+   * @param max The maximum power generated.
+   * @param total The sum of the power generated over all readings.
+   */
+  public void setPowerGenerated(double min, double max, double total) {
+    this.minPowerGenerated = min;
+    this.maxPowerGenerated = max;
+    this.totalPowerGenerated = total;
+  }
+
+  /**
+   * Sets the energy counter values of the first and last readings.
+   *
+   * @param firstConsumed The energyConsumedToDate of the first reading.
+   * @param lastConsumed The energyConsumedToDate of the last reading.
+   * @param firstGenerated The energyGeneratedToDate of the first reading.
+   * @param lastGenerated The energyGeneratedToDate of the last reading.
+   */
+  public void setCounters(double firstConsumed, double lastConsumed, double firstGenerated,
+      double lastGenerated) {
+    this.firstEnergyConsumedToDate = firstConsumed;
+    this.lastEnergyConsumedToDate = lastConsumed;
+    this.firstEnergyGeneratedToDate = firstGenerated;
+    this.lastEnergyGeneratedToDate = lastGenerated;
+  }
+
+  /**
+   * Sets the integrated energy of the bucket.
+   *
+   * @param generated The energy generated in Wh.
+   * @param consumed The energy consumed in Wh.
+   */
+  public void setEnergy(double generated, double consumed) {
+    this.energyGenerated = generated;
+    this.energyConsumed = consumed;
+  }
+
+  /**
+   * Sets whether this rollup holds every contribution to its bucket.
+   *
+   * @param complete False if the rollup must not be used to answer queries.
+   */
+  public void setComplete(boolean complete) {
+    this.complete = complete;
+  }
+
+  /**
+   * Returns the name of the Source.
+   *
+   * @return The name of the Source.
+   */
+  public String getSourceName() {
+    return this.sourceName;
+  }
+
+  /**
+   * Returns the length of the bucket in minutes.
+   *
+   * @return The resolution.
+   */
+  public int getResolution() {
+    return this.resolution;
+  }
+
+  /**
+   * Returns the start of the bucket in epoch milliseconds.
+   *
+   * @return The start of the bucket.
+   */
+  public long getStart() {
+    return this.start;
+  }
+
+  /**
+   * Returns the end (exclusive) of the bucket in epoch milliseconds.
+   *
+   * @return The end of the bucket.
+   */
+  public long getEnd() {
+    return this.start + bucketLength(this.resolution);
+  }
+
+  /**
+   * Returns true if this rollup can be used to answer queries.
+   *
+   * @return True if the rollup is complete.
+   */
+  public boolean isComplete() {
+    return this.complete;
+  }
+
+  /**
+   * Returns the number of readings in the bucket.
+   *
+   * @return The number of readings.
+   */
+  public int getCount() {
+    return this.count;
+  }
+
+  /**
+   * Returns the time of the earliest reading in the bucket.
+   *
+   * @return The time in epoch milliseconds, meaningless if the count is 0.
+   */
+  public long getFirstTime() {
+    return this.firstTime;
+  }
+
+  /**
+   * Returns the time of the latest reading in the bucket.
+   *
+   * @return The time in epoch milliseconds, meaningless if the count is 0.
+   */
+  public long getLastTime() {
+    return this.lastTime;
+  }
+
+  /**
+   * Returns the minimum power consumed of the readings in the bucket.
+   *
+   * @return The minimum power consumed in W.
+   */
+  public double getMinPowerConsumed() {
+    return this.minPowerConsumed;
+  }
+
+  /**
+   * Returns the maximum power consumed of the readings in the bucket.
+   *
+   * @return The maximum power consumed in W.
+   */
+  public double getMaxPowerConsumed() {
+    return this.maxPowerConsumed;
+  }
+
+  /**
+   * Returns the sum of the power consumed of the readings in the bucket.
+   *
+   * @return The total power consumed in W.
+   */
+  public double getTotalPowerConsumed() {
+    return this.totalPowerConsumed;
+  }
+
+  /**
+   * Returns the average power consumed of the readings in the bucket.
+   *
+   * @return The average power consumed in W, or 0 if the bucket holds no readings.
+   */
+  public double getAveragePowerConsumed() {
+    return (this.count == 0) ? 0 : this.totalPowerConsumed / this.count;
+  }
+
+  /**
+   * Returns the minimum power generated of the readings in the bucket.
+   *
+   * @return The minimum power generated in W.
+   */
+  public double getMinPowerGenerated() {
+    return this.minPowerGenerated;
+  }
+
+  /**
+   * Returns the maximum power generated of the readings in the bucket.
+   *
+   * @return The maximum power generated in W.
+   */
+  public double getMaxPowerGenerated() {
+    return this.maxPowerGenerated;
+  }
+
+  /**
+   * Returns the sum of the power generated of the readings in the bucket.
+   *
+   * @return The total power generated in W.
+   */
+  public double getTotalPowerGenerated() {
+    return this.totalPowerGenerated;
+  }
+
+  /**
+   * Returns the average power generated of the readings in the bucket.
+   *
+   * @return The average power generated in W, or 0 if the bucket holds no readings.
+   */
+  public double getAveragePowerGenerated() {
+    return (this.count == 0) ? 0 : this.totalPowerGenerated / this.count;
+  }
+
+  /**
+   * Returns the energyConsumedToDate counter of the earliest reading in the bucket.
+   *
+   * @return The counter value in Wh.
+   */
+  public double getFirstEnergyConsumedToDate() {
+    return this.firstEnergyConsumedToDate;
+  }
+
+  /**
+   * Returns the energyConsumedToDate counter of the latest reading in the bucket.
+   *
+   * @return The counter value in Wh.
+   */
+  public double getLastEnergyConsumedToDate() {
+    return this.lastEnergyConsumedToDate;
+  }
+
+  /**
+   * Returns the energyGeneratedToDate counter of the earliest reading in the bucket.
+   *
+   * @return The counter value in Wh.
+   */
+  public double getFirstEnergyGeneratedToDate() {
+    return this.firstEnergyGeneratedToDate;
+  }
+
+  /**
+   * Returns the energyGeneratedToDate counter of the latest reading in the bucket.
+   *
+   * @return The counter value in Wh.
+   */
+  public double getLastEnergyGeneratedToDate() {
+    return this.lastEnergyGeneratedToDate;
+  }
+
+  /**
+   * Returns the energy consumed over the bucket.
+   *
+   * @return The energy consumed in Wh.
+   */
+  public double getEnergyConsumed() {
+    return this.energyConsumed;
+  }
+
+  /**
+   * Returns the energy generated over the bucket.
+   *
+   * @return The energy generated in Wh.
+   */
+  public double getEnergyGenerated() {
+    return this.energyGenerated;
+  }
+}
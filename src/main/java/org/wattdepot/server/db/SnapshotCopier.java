@@ -0,0 +1,644 @@
+package org.wattdepot.server.db;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+import org.wattdepot.util.StackTrace;
+
+/**
+ * Copies database files into a snapshot directory for the DbImplementations that snapshot by
+ * copying files. Files are transferred from channel to channel with FileChannel.transferTo in large
+ * chunks, optionally gzipped, and several files are copied at once.
+ *
+ * When mirroring a directory, a manifest in the snapshot records the size, modification time and
+ * CRC32 checksum each file had when it was copied. Files whose size and modification time still
+ * match are not copied again, so only the files that changed since then are read. Modification
+ * times are coarse on some file systems, so a write in the same tick as the copy would leave them
+ * unchanged: files modified within SETTLE_MILLIS of being copied are checksummed and only skipped
+ * if their contents still match. Only those files have the checksum of their copy computed, in a
+ * separate pass over the copy once it is written.
+ *
+ * Snapshots can also be assembled in a staging directory with stagingDir and moved into place with
+ * publish, so that the snapshot directory never holds a partially updated snapshot.
+ */
+public class SnapshotCopier {
+
+  /** Suffix of compressed copies. */
+  public static final String COMPRESSED_SUFFIX = ".gz";
+
+  /** Suffix of copies still being written. */
+  private static final String PARTIAL_SUFFIX = ".part";
+
+  /** Name of the manifest kept in the root of a mirrored directory. */
+  private static final String MANIFEST_NAME = ".snapshot-manifest";
+
+  /** Suffix of the directory a snapshot is assembled in before it is published. */
+  private static final String STAGING_SUFFIX = ".staging";
+
+  /** Suffix the previous snapshot is moved to when a new one is published. */
+  private static final String PREVIOUS_SUFFIX = ".previous";
+
+  /**
+   * Files modified less than this many milliseconds before they were copied are checksummed
+   * before being skipped, since a later write in the same modification time tick is not visible.
+   */
+  private static final long SETTLE_MILLIS = 2000;
+
+  /** The most bytes transferred by one transferTo call. */
+  private static final long CHUNK_BYTES = 8L * 1024 * 1024;
+
+  /** The buffer size used when compressing. */
+  private static final int BUFFER_BYTES = 1024 * 1024;
+
+  /** The status updated as files are copied. */
+  private final SnapshotStatus status;
+
+  /** The number of files copied at once. */
+  private final int threads;
+
+  /** Whether copies are gzipped. */
+  private final boolean compress;
+
+  /** The logger for files that cannot be copied. */
+  private final Logger logger;
+
+  /**
+   * Creates a new SnapshotCopier.
+   *
+   * @param status The status updated as files are copied.
+   * @param threads The number of files copied at once.
+   * @param compress Whether copies are gzipped.
+   * @param logger The logger for files that cannot be copied.
+   */
+  public SnapshotCopier(SnapshotStatus status, int threads, boolean compress, Logger logger) {
+    this.status = status;
+    this.threads = Math.max(1, threads);
+    this.compress = compress;
+    this.logger = logger;
+  }
+
+  /**
+   * Returns the name of the copy of a file.
+   *
+   * @param name The name of the file.
+   * @return The name of its copy, which has COMPRESSED_SUFFIX if copies are compressed.
+   */
+  public String copyName(String name) {
+    return this.compress ? name + COMPRESSED_SUFFIX : name;
+  }
+
+  /**
+   * Makes destDir a copy of sourceDir, copying only the files that have changed since destDir was
+   * last made, and deleting files from destDir that are no longer in sourceDir. The manifest is
+   * written even if some files could not be copied, so the next mirror only copies those again.
+   * Manifests in subdirectories are kept, so a subdirectory can also be mirrored on its own.
+   *
+   * @param sourceDir The directory to copy.
+   * @param destDir The directory to copy it to.
+   * @param filter Accepts the files and directories to copy, or null to copy everything.
+   * @return True if every file was copied.
+   */
+  public boolean mirror(File sourceDir, File destDir, FileFilter filter) {
+    Map<String, Copy> previous = readManifest(destDir);
+    Map<String, Copy> current = new ConcurrentHashMap<String, Copy>();
+    List<Job> jobs = new ArrayList<Job>();
+    if (!findChanges(sourceDir, destDir, filter, "", previous, current, jobs)) {
+      return false;
+    }
+    boolean success = copy(jobs, current);
+    return writeManifest(destDir, current) && success;
+  }
+
+  /**
+   * Copies the named files from sourceDir into destDir, whether or not they have changed.
+   *
+   * @param sourceDir The directory the names are relative to.
+   * @param names The relative names of the files to copy.
+   * @param destDir The directory to copy them to, which gets no subdirectories.
+   * @return True if every file was copied.
+   */
+  public boolean copyFiles(File sourceDir, String[] names, File destDir) {
+    List<Job> jobs = new ArrayList<Job>();
+    for (String name : names) {
+      File source = new File(sourceDir, name);
+      jobs.add(new Job(source, new File(destDir, copyName(source.getName())), null));
+    }
+    this.status.addFiles(jobs.size());
+    return copy(jobs, null);
+  }
+
+  /**
+   * Returns the directory to assemble a new snapshot of destDir in, before publishing it. The
+   * snapshot replaced by the last publish is reused, so that mirroring into it only copies what
+   * changed since it was made.
+   *
+   * @param destDir The snapshot directory.
+   * @return The staging directory, which may not exist yet.
+   */
+  public File stagingDir(File destDir) {
+    File staging = new File(destDir.getPath() + STAGING_SUFFIX);
+    File previous = new File(destDir.getPath() + PREVIOUS_SUFFIX);
+    if (!staging.exists() && previous.isDirectory() && !previous.renameTo(staging)) {
+      this.logger.warning("Snapshot: unable to reuse " + previous);
+    }
+    return staging;
+  }
+
+  /**
+   * Replaces destDir with the snapshot assembled in stagingDir by renaming directories, so destDir
+   * holds either the old snapshot or the new one and never a mix. The old snapshot is kept to be
+   * reused by the next stagingDir. If the rename fails the old snapshot is put back.
+   *
+   * @param stagingDir The directory returned by stagingDir.
+   * @param destDir The snapshot directory.
+   * @return True if the new snapshot is in place.
+   */
+  public boolean publish(File stagingDir, File destDir) {
+    File previous = new File(destDir.getPath() + PREVIOUS_SUFFIX);
+    if (previous.exists()) {
+      delete(previous);
+    }
+    if (destDir.exists() && !destDir.renameTo(previous)) {
+      this.logger.warning("Snapshot: unable to move aside " + destDir);
+      return false;
+    }
+    if (!stagingDir.renameTo(destDir)) {
+      this.logger.warning("Snapshot: unable to publish " + stagingDir);
+      if (previous.exists() && !previous.renameTo(destDir)) {
+        this.logger.warning("Snapshot: unable to restore " + destDir);
+      }
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Walks sourceDir, adding the files that differ from their copies in destDir to the jobs and
+   * the records of those that do not to current, and deletes whatever in destDir has no
+   * counterpart in sourceDir.
+   *
+   * @param sourceDir The directory to copy.
+   * @param destDir The directory to copy it to.
+   * @param filter Accepts the files and directories to copy, or null to copy everything.
+   * @param prefix The path of destDir relative to the root of the mirror, ending with a slash.
+   * @param previous The records from the manifest, by path relative to the root of the mirror.
+   * @param current The records of the files kept, by path relative to the root of the mirror.
+   * @param jobs The list to add the files to copy to.
+   * @return False if sourceDir cannot be read or destDir cannot be created.
+   */
+  private boolean findChanges(File sourceDir, File destDir, FileFilter filter, String prefix,
+      Map<String, Copy> previous, Map<String, Copy> current, List<Job> jobs) {
+    File[] files = sourceDir.listFiles();
+    if (files == null) {
+      this.logger.warning("Snapshot: unable to read directory " + sourceDir);
+      return false;
+    }
+    if (!destDir.isDirectory() && !destDir.mkdirs()) {
+      this.logger.warning("Snapshot: unable to create directory " + destDir);
+      return false;
+    }
+    Set<String> expected = new HashSet<String>();
+    expected.add(MANIFEST_NAME);
+    boolean success = true;
+    for (File file : files) {
+      if ((filter != null) && !filter.accept(file)) {
+        continue;
+      }
+      if (file.isDirectory()) {
+        expected.add(file.getName());
+        success &=
+            findChanges(file, new File(destDir, file.getName()), filter,
+                prefix + file.getName() + "/", previous, current, jobs);
+        continue;
+      }
+      File dest = new File(destDir, copyName(file.getName()));
+      String key = prefix + dest.getName();
+      expected.add(dest.getName());
+      this.status.addFiles(1);
+      Copy copy = dest.isFile() ? unchanged(file, previous.get(key)) : null;
+      if (copy == null) {
+        jobs.add(new Job(file, dest, key));
+      }
+      else {
+        current.put(key, copy);
+        this.status.fileSkipped();
+      }
+    }
+    File[] existing = destDir.listFiles();
+    if (existing != null) {
+      for (File file : existing) {
+        if (!expected.contains(file.getName())) {
+          delete(file);
+        }
+      }
+    }
+    return success;
+  }
+
+  /**
+   * Checks whether a file still matches the record of its copy. Size and modification time must
+   * match, and if the file was modified shortly before it was copied its checksum must match too.
+   *
+   * @param file The file.
+   * @param copy The record of its copy, or null if there is none.
+   * @return The record to keep for the copy, or null if the file must be copied again.
+   */
+  private Copy unchanged(File file, Copy copy) {
+    if ((copy == null) || (copy.length != file.length())
+        || (copy.modified != file.lastModified())) {
+      return null;
+    }
+    if (copy.checked - copy.modified > SETTLE_MILLIS) {
+      return copy;
+    }
+    long checked = System.currentTimeMillis();
+    long modified = file.lastModified();
+    CRC32 crc = new CRC32();
+    try {
+      long length = checksum(file, crc);
+      if ((length != copy.length) || (modified != copy.modified) || (crc.getValue() != copy.crc)) {
+        return null;
+      }
+      return new Copy(length, modified, checked, copy.crc);
+    }
+    catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Adds the contents of a file to a checksum.
+   *
+   * @param file The file.
+   * @param crc The checksum to update.
+   * @return The number of bytes read.
+   * @throws IOException If the file cannot be read.
+   */
+  private long checksum(File file, CRC32 crc) throws IOException {
+    byte[] buffer = new byte[BUFFER_BYTES];
+    FileInputStream input = new FileInputStream(file);
+    try {
+      long length = 0;
+      int count;
+      while ((count = input.read(buffer)) > 0) {
+        crc.update(buffer, 0, count);
+        length += count;
+      }
+      return length;
+    }
+    finally {
+      input.close();
+    }
+  }
+
+  /**
+   * Returns the CRC32 of the bytes copied into a copy. For a compressed copy that is read from the
+   * gzip trailer, which holds the CRC32 of the uncompressed bytes, so nothing is decompressed.
+   *
+   * @param copy The copy.
+   * @return The checksum.
+   * @throws IOException If the copy cannot be read.
+   */
+  private long copyChecksum(File copy) throws IOException {
+    if (!this.compress) {
+      CRC32 crc = new CRC32();
+      checksum(copy, crc);
+      return crc.getValue();
+    }
+    RandomAccessFile file = new RandomAccessFile(copy, "r");
+    try {
+      // The trailer is the CRC32 then the length, both little endian
+      file.seek(file.length() - 8);
+      long crc = 0;
+      for (int i = 0; i < 4; i++) {
+        crc |= ((long) file.read()) << (8 * i);
+      }
+      return crc;
+    }
+    finally {
+      file.close();
+    }
+  }
+
+  /**
+   * Reads the manifest of a mirrored directory.
+   *
+   * @param destDir The root of the mirror.
+   * @return The records of the copies by path relative to destDir, empty if there is no manifest
+   * or it cannot be read.
+   */
+  private Map<String, Copy> readManifest(File destDir) {
+    Map<String, Copy> copies = new HashMap<String, Copy>();
+    File manifest = new File(destDir, MANIFEST_NAME);
+    if (!manifest.isFile()) {
+      return copies;
+    }
+    BufferedReader reader = null;
+    try {
+      reader = new BufferedReader(new FileReader(manifest));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        // length modified checked crc path, with the path last since it may contain spaces
+        String[] fields = line.split(" ", 5);
+        if (fields.length == 5) {
+          copies.put(fields[4], new Copy(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+              Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+        }
+      }
+      return copies;
+    }
+    catch (IOException e) {
+      this.logger.warning("Snapshot: unable to read " + manifest + ": " + StackTrace.toString(e));
+      return new HashMap<String, Copy>();
+    }
+    catch (NumberFormatException e) {
+      this.logger.warning("Snapshot: ignoring corrupt " + manifest);
+      return new HashMap<String, Copy>();
+    }
+    finally {
+      try {
+        if (reader != null) {
+          reader.close();
+        }
+      }
+      catch (IOException e) {
+        this.logger.warning("Snapshot: unable to close " + manifest);
+      }
+    }
+  }
+
+  /**
+   * Writes the manifest of a mirrored directory, replacing the old one once it is complete.
+   *
+   * @param destDir The root of the mirror.
+   * @param copies The records of the copies by path relative to destDir.
+   * @return True if the manifest was written.
+   */
+  private boolean writeManifest(File destDir, Map<String, Copy> copies) {
+    File manifest = new File(destDir, MANIFEST_NAME);
+    File partial = new File(manifest.getPath() + PARTIAL_SUFFIX);
+    PrintWriter writer = null;
+    try {
+      writer = new PrintWriter(partial);
+      for (Map.Entry<String, Copy> entry : copies.entrySet()) {
+        Copy copy = entry.getValue();
+        writer.println(copy.length + " " + copy.modified + " " + copy.checked + " " + copy.crc
+            + " " + entry.getKey());
+      }
+      writer.close();
+      if (writer.checkError()) {
+        this.logger.warning("Snapshot: unable to write " + partial);
+        return false;
+      }
+      writer = null;
+      if ((manifest.exists() && !manifest.delete()) || !partial.renameTo(manifest)) {
+        this.logger.warning("Snapshot: unable to replace " + manifest);
+        return false;
+      }
+      return true;
+    }
+    catch (IOException e) {
+      this.logger.warning("Snapshot: unable to write " + manifest + ": " + StackTrace.toString(e));
+      return false;
+    }
+    finally {
+      if (writer != null) {
+        writer.close();
+      }
+      if (partial.exists()) {
+        partial.delete();
+      }
+    }
+  }
+
+  /**
+   * Copies the file of each job, several at once.
+   *
+   * @param jobs The files to copy.
+   * @param copies The map to add the records of the copies of jobs with a key to, or null.
+   * @return True if every file was copied.
+   */
+  private boolean copy(List<Job> jobs, final Map<String, Copy> copies) {
+    if ((this.threads == 1) || (jobs.size() <= 1)) {
+      boolean success = true;
+      for (Job job : jobs) {
+        success &= copyFile(job, copies);
+      }
+      return success;
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(Math.min(this.threads, jobs.size()));
+    try {
+      List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+      for (final Job job : jobs) {
+        results.add(pool.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() {
+            return copyFile(job, copies);
+          }
+        }));
+      }
+      boolean success = true;
+      for (Future<Boolean> result : results) {
+        success &= result.get();
+      }
+      return success;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    catch (ExecutionException e) {
+      this.logger.warning("Snapshot: error copying files: " + StackTrace.toString(e.getCause()));
+      return false;
+    }
+    finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Copies one file, writing to a partial file that is renamed once complete, and gives the copy
+   * the modification time the source had when the copy started. That time is recorded, along with
+   * the checksum of the bytes copied if the file was modified within SETTLE_MILLIS of the copy and
+   * so will need it to be skipped next time.
+   *
+   * @param job The file to copy.
+   * @param copies The map to add the record of the copy to if the job has a key, or null.
+   * @return True if the file was copied.
+   */
+  private boolean copyFile(Job job, Map<String, Copy> copies) {
+    File source = job.source;
+    File dest = job.dest;
+    long checked = System.currentTimeMillis();
+    long modified = source.lastModified();
+    File partial = new File(dest.getPath() + PARTIAL_SUFFIX);
+    FileInputStream input = null;
+    OutputStream output = null;
+    try {
+      input = new FileInputStream(source);
+      FileOutputStream fileOutput = new FileOutputStream(partial);
+      output = fileOutput;
+      // File to file transfers stay in the kernel where the platform allows it
+      WritableByteChannel target = fileOutput.getChannel();
+      if (this.compress) {
+        output =
+            new GZIPOutputStream(new BufferedOutputStream(fileOutput, BUFFER_BYTES), BUFFER_BYTES);
+        target = Channels.newChannel(output);
+      }
+      FileChannel channel = input.getChannel();
+      long size = channel.size();
+      long position = 0;
+      while (position < size) {
+        long count = channel.transferTo(position, Math.min(CHUNK_BYTES, size - position), target);
+        if (count <= 0) {
+          // The file shrank while it was being copied
+          break;
+        }
+        position += count;
+        this.status.addBytes(count);
+      }
+      output.close();
+      output = null;
+      // Only a file modified just before it was copied has its checksum compared next time
+      long crc = 0;
+      if ((copies != null) && (job.key != null) && (checked - modified <= SETTLE_MILLIS)) {
+        crc = copyChecksum(partial);
+      }
+      if ((dest.exists() && !dest.delete()) || !partial.renameTo(dest)) {
+        this.logger.warning("Snapshot: unable to replace " + dest);
+        return false;
+      }
+      dest.setLastModified(modified);
+      if ((copies != null) && (job.key != null)) {
+        copies.put(job.key, new Copy(position, modified, checked, crc));
+      }
+      this.status.fileCopied();
+      return true;
+    }
+    catch (IOException e) {
+      this.logger.warning("Snapshot: unable to copy " + source + ": " + StackTrace.toString(e));
+      return false;
+    }
+    finally {
+      try {
+        if (input != null) {
+          input.close();
+        }
+        if (output != null) {
+          output.close();
+        }
+      }
+      catch (IOException e) {
+        this.logger.warning("Snapshot: unable to close " + source);
+      }
+      if (partial.exists()) {
+        partial.delete();
+      }
+    }
+  }
+
+  /**
+   * Deletes a file or directory tree that is no longer part of the snapshot.
+   *
+   * @param file The file or directory.
+   */
+  private void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    if (!file.delete()) {
+      this.logger.warning("Snapshot: unable to delete " + file);
+    }
+  }
+
+  /**
+   * A file to copy.
+   */
+  private static final class Job {
+
+    /** The file to copy. */
+    private final File source;
+
+    /** The copy. */
+    private final File dest;
+
+    /** The path of the copy relative to the root of the mirror, or null if not mirroring. */
+    private final String key;
+
+    /**
+     * Creates a new Job.
+     *
+     * @param source The file to copy.
+     * @param dest The copy.
+     * @param key The path of the copy relative to the root of the mirror, or null.
+     */
+    private Job(File source, File dest, String key) {
+      this.source = source;
+      this.dest = dest;
+      this.key = key;
+    }
+  }
+
+  /**
+   * The manifest record of a copy: the size and modification time of the file when it was copied
+   * or last checksummed, when that was, and the checksum of its contents.
+   */
+  private static final class Copy {
+
+    /** The number of bytes copied. */
+    private final long length;
+
+    /** The modification time of the file, read before it was copied. */
+    private final long modified;
+
+    /** When the file was copied or checksummed, in milliseconds. */
+    private final long checked;
+
+    /** The CRC32 of the bytes copied, or 0 if it was not computed because it is not needed. */
+    private final long crc;
+
+    /**
+     * Creates a new Copy.
+     *
+     * @param length The number of bytes copied.
+     * @param modified The modification time of the file, read before it was copied.
+     * @param checked When the file was copied or checksummed, in milliseconds.
+     * @param crc The CRC32 of the bytes copied, or 0 if it is not needed.
+     */
+    private Copy(long length, long modified, long checked, long crc) {
+      this.length = length;
+      this.modified = modified;
+      this.checked = checked;
+      this.crc = crc;
+    }
+  }
+}
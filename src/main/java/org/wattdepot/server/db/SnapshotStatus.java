@@ -0,0 +1,190 @@
+package org.wattdepot.server.db;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.wattdepot.util.tstamp.Tstamp;
+
+/**
+ * The progress of the current or most recent database snapshot, updated as files are copied so it
+ * can be reported while a snapshot runs in the background.
+ */
+public class SnapshotStatus {
+
+  /** The states a snapshot can be in. */
+  public enum State {
+    /** No snapshot has been made since the server started. */
+    IDLE,
+    /** A snapshot is being made. */
+    RUNNING,
+    /** The most recent snapshot completed. */
+    SUCCEEDED,
+    /** The most recent snapshot failed. */
+    FAILED
+  }
+
+  /** The state of the current or most recent snapshot. */
+  private volatile State state = State.IDLE;
+
+  /** When the current or most recent snapshot started, in milliseconds. */
+  private volatile long startTime;
+
+  /** When the most recent snapshot finished, in milliseconds, or 0 if one is running. */
+  private volatile long endTime;
+
+  /** The number of files the snapshot has found to copy or skip. */
+  private final AtomicLong filesTotal = new AtomicLong();
+
+  /** The number of files copied. */
+  private final AtomicLong filesCopied = new AtomicLong();
+
+  /** The number of files skipped because they had not changed since the last snapshot. */
+  private final AtomicLong filesSkipped = new AtomicLong();
+
+  /** The number of bytes read from the database files. */
+  private final AtomicLong bytesCopied = new AtomicLong();
+
+  /**
+   * Marks a snapshot as started, resetting the counts, unless one is already running.
+   *
+   * @return True if the snapshot was started, false if one is already running.
+   */
+  public synchronized boolean start() {
+    if (this.state == State.RUNNING) {
+      return false;
+    }
+    this.filesTotal.set(0);
+    this.filesCopied.set(0);
+    this.filesSkipped.set(0);
+    this.bytesCopied.set(0);
+    this.startTime = System.currentTimeMillis();
+    this.endTime = 0;
+    this.state = State.RUNNING;
+    return true;
+  }
+
+  /**
+   * Marks the running snapshot as finished.
+   *
+   * @param success True if the snapshot completed.
+   */
+  public synchronized void finish(boolean success) {
+    this.endTime = System.currentTimeMillis();
+    this.state = success ? State.SUCCEEDED : State.FAILED;
+  }
+
+  /**
+   * Records that the snapshot has found more files to copy or skip.
+   *
+   * @param count The number of files.
+   */
+  public void addFiles(long count) {
+    this.filesTotal.addAndGet(count);
+  }
+
+  /**
+   * Records that a file has been copied.
+   */
+  public void fileCopied() {
+    this.filesCopied.incrementAndGet();
+  }
+
+  /**
+   * Records that a file was skipped because it had not changed.
+   */
+  public void fileSkipped() {
+    this.filesSkipped.incrementAndGet();
+  }
+
+  /**
+   * Records that bytes have been copied.
+   *
+   * @param count The number of bytes.
+   */
+  public void addBytes(long count) {
+    this.bytesCopied.addAndGet(count);
+  }
+
+  /**
+   * Returns the state of the current or most recent snapshot.
+   *
+   * @return The state.
+   */
+  public State getState() {
+    return this.state;
+  }
+
+  /**
+   * Returns when the current or most recent snapshot started.
+   *
+   * @return The start time in milliseconds, or 0 if no snapshot has been made.
+   */
+  public long getStartTime() {
+    return this.startTime;
+  }
+
+  /**
+   * Returns when the most recent snapshot finished.
+   *
+   * @return The end time in milliseconds, or 0 if a snapshot is running or none has been made.
+   */
+  public long getEndTime() {
+    return this.endTime;
+  }
+
+  /**
+   * Returns the number of files the snapshot has found to copy or skip.
+   *
+   * @return The number of files.
+   */
+  public long getFilesTotal() {
+    return this.filesTotal.get();
+  }
+
+  /**
+   * Returns the number of files copied.
+   *
+   * @return The number of files.
+   */
+  public long getFilesCopied() {
+    return this.filesCopied.get();
+  }
+
+  /**
+   * Returns the number of files skipped because they had not changed since the last snapshot.
+   *
+   * @return The number of files.
+   */
+  public long getFilesSkipped() {
+    return this.filesSkipped.get();
+  }
+
+  /**
+   * Returns the number of bytes copied.
+   *
+   * @return The number of bytes.
+   */
+  public long getBytesCopied() {
+    return this.bytesCopied.get();
+  }
+
+  /**
+   * Returns the status as lines of "name: value", for the database resource.
+   *
+   * @return The status.
+   */
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("state: ").append(this.state).append('\n');
+    if (this.startTime > 0) {
+      builder.append("started: ").append(Tstamp.makeTimestamp(this.startTime)).append('\n');
+    }
+    if (this.endTime > 0) {
+      builder.append("finished: ").append(Tstamp.makeTimestamp(this.endTime)).append('\n');
+    }
+    builder.append("files: ").append(getFilesTotal()).append('\n');
+    builder.append("filesCopied: ").append(getFilesCopied()).append('\n');
+    builder.append("filesUnchanged: ").append(getFilesSkipped()).append('\n');
+    builder.append("bytesCopied: ").append(getBytesCopied()).append('\n');
+    return builder.toString();
+  }
+}
@@ -0,0 +1,147 @@
+package org.wattdepot.server.db;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.wattdepot.resource.source.jaxb.Source;
+import org.wattdepot.resource.source.jaxb.SourceIndex;
+import org.wattdepot.resource.source.jaxb.Sources;
+
+/**
+ * Read-through cache of Source metadata, so that the Source lookups made for nearly every request
+ * do not each go to storage. Individual Sources are cached by name, and the full Sources list and
+ * SourceIndex are cached as a whole. Every entry is dropped when a Source is stored or deleted.
+ *
+ * The cached Source objects are shared between callers, as they are by the memory storage
+ * implementation, so callers must not modify them. The Sources and SourceIndex returned are new
+ * containers each time, so their lists may be changed freely.
+ */
+public class SourceCache {
+
+  /** The storage implementation Sources are read from. */
+  private final DbImplementation dbImpl;
+
+  /** Sources read so far, keyed by name. */
+  private final ConcurrentMap<String, Source> sources = new ConcurrentHashMap<String, Source>();
+
+  /** All Sources, sorted by name, or null if not read since the last change. */
+  private volatile Sources allSources;
+
+  /** The index of all Sources, or null if not read since the last change. */
+  private volatile SourceIndex sourceIndex;
+
+  /** Incremented on every invalidation, so Sources read meanwhile are not kept. */
+  private final AtomicLong version = new AtomicLong();
+
+  /**
+   * Creates a new, empty SourceCache.
+   *
+   * @param dbImpl The storage implementation Sources are read from.
+   */
+  public SourceCache(DbImplementation dbImpl) {
+    this.dbImpl = dbImpl;
+  }
+
+  /**
+   * Returns the named Source, reading it from storage if it is not cached.
+   *
+   * @param sourceName The name of the Source.
+   * @return The requested Source, or null if not found.
+   */
+  public Source getSource(String sourceName) {
+    if (sourceName == null) {
+      return null;
+    }
+    Source source = this.sources.get(sourceName);
+    if (source != null) {
+      return source;
+    }
+    long startVersion = this.version.get();
+    source = this.dbImpl.getSource(sourceName);
+    if (source != null) {
+      this.sources.put(sourceName, source);
+      if (this.version.get() != startVersion) {
+        // Something was stored or deleted while reading, so the result may be stale
+        this.sources.remove(sourceName, source);
+      }
+    }
+    return source;
+  }
+
+  /**
+   * Returns all Sources, sorted by name, reading them from storage if they are not cached.
+   *
+   * @return A new Sources element holding the Sources, or null if there was a problem reading them.
+   */
+  public Sources getSources() {
+    Sources cached = this.allSources;
+    if (cached == null) {
+      long startVersion = this.version.get();
+      cached = this.dbImpl.getSources();
+      if (cached == null) {
+        return null;
+      }
+      synchronized (this) {
+        if (this.version.get() == startVersion) {
+          this.allSources = cached;
+        }
+      }
+    }
+    Sources sources = new Sources();
+    sources.getSource().addAll(cached.getSource());
+    return sources;
+  }
+
+  /**
+   * Returns the index of all Sources, reading it from storage if it is not cached.
+   *
+   * @return A new SourceIndex holding the SourceRefs, or null if there was a problem reading them.
+   */
+  public SourceIndex getSourceIndex() {
+    SourceIndex cached = this.sourceIndex;
+    if (cached == null) {
+      long startVersion = this.version.get();
+      cached = this.dbImpl.getSourceIndex();
+      if (cached == null) {
+        return null;
+      }
+      synchronized (this) {
+        if (this.version.get() == startVersion) {
+          this.sourceIndex = cached;
+        }
+      }
+    }
+    SourceIndex index = new SourceIndex(cached.getSourceRef().size());
+    index.getSourceRef().addAll(cached.getSourceRef());
+    return index;
+  }
+
+  /**
+   * Drops the named Source and the cached lists of all Sources. Must be called after the Source is
+   * stored or deleted.
+   *
+   * @param sourceName The name of the Source that changed.
+   */
+  public void invalidate(String sourceName) {
+    synchronized (this) {
+      this.version.incrementAndGet();
+      this.allSources = null;
+      this.sourceIndex = null;
+    }
+    if (sourceName != null) {
+      this.sources.remove(sourceName);
+    }
+  }
+
+  /**
+   * Drops all cached Sources, for changes that may affect many Sources at once.
+   */
+  public void clear() {
+    synchronized (this) {
+      this.version.incrementAndGet();
+      this.allSources = null;
+      this.sourceIndex = null;
+    }
+    this.sources.clear();
+  }
+}
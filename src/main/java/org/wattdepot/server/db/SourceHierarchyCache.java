@@ -0,0 +1,149 @@
+package org.wattdepot.server.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.wattdepot.resource.source.jaxb.Source;
+import org.wattdepot.util.UriUtils;
+
+/**
+ * Remembers the flattened list of non-virtual subsources of each virtual Source, so that requests
+ * on a virtual Source do not have to walk its hierarchy one getSource call at a time. Each cached
+ * list records every Source name the walk passed through, including subsources that did not exist
+ * at the time, and is dropped whenever one of those Sources is stored or deleted.
+ */
+public class SourceHierarchyCache {
+
+  /** The DbManager used to look up Sources. */
+  private final DbManager dbManager;
+
+  /** Flattened non-virtual subsources, in hierarchy order, keyed by virtual Source name. */
+  private final ConcurrentMap<String, List<Source>> hierarchies =
+      new ConcurrentHashMap<String, List<Source>>();
+
+  /** For each Source name, the virtual Sources whose cached hierarchy passes through it. */
+  private final ConcurrentMap<String, Set<String>> dependents =
+      new ConcurrentHashMap<String, Set<String>>();
+
+  /** Incremented on every invalidation, so hierarchies resolved meanwhile are not kept. */
+  private final AtomicLong version = new AtomicLong();
+
+  /**
+   * Creates a new, empty SourceHierarchyCache.
+   *
+   * @param dbManager The DbManager used to look up Sources.
+   */
+  public SourceHierarchyCache(DbManager dbManager) {
+    this.dbManager = dbManager;
+  }
+
+  /**
+   * Given a base Source, return a list of all non-virtual Sources that are subsources of the base
+   * Source, resolving and caching the hierarchy if it is not already cached.
+   *
+   * @param baseSource The Source to start from.
+   * @return A new list of all non-virtual Sources that are subsources of the base Source.
+   */
+  public List<Source> getAllNonVirtualSubSources(Source baseSource) {
+    if (!baseSource.isVirtual()) {
+      List<Source> sourceList = new ArrayList<Source>(1);
+      sourceList.add(baseSource);
+      return sourceList;
+    }
+    String name = baseSource.getName();
+    List<Source> cached = this.hierarchies.get(name);
+    if (cached != null) {
+      return new ArrayList<Source>(cached);
+    }
+
+    long startVersion = this.version.get();
+    List<Source> sourceList = new ArrayList<Source>();
+    Set<String> visited = new HashSet<String>();
+    visited.add(name);
+    // Only the stored definition is cached, since the given Source may have been changed
+    Source stored = this.dbManager.getSource(name);
+    if (stored == null) {
+      resolve(baseSource, sourceList, visited);
+      return sourceList;
+    }
+    resolve(stored, sourceList, visited);
+    for (String visitedName : visited) {
+      Set<String> roots = this.dependents.get(visitedName);
+      if (roots == null) {
+        Set<String> newRoots =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        roots = this.dependents.putIfAbsent(visitedName, newRoots);
+        if (roots == null) {
+          roots = newRoots;
+        }
+      }
+      roots.add(name);
+    }
+    List<Source> entry = Collections.unmodifiableList(new ArrayList<Source>(sourceList));
+    this.hierarchies.put(name, entry);
+    if (this.version.get() != startVersion) {
+      // Something was stored or deleted while resolving, so the result may be stale
+      this.hierarchies.remove(name, entry);
+    }
+    return sourceList;
+  }
+
+  /**
+   * Drops every cached hierarchy that passes through the named Source. Must be called after the
+   * Source is stored or deleted.
+   *
+   * @param sourceName The name of the Source that changed.
+   */
+  public void invalidate(String sourceName) {
+    this.version.incrementAndGet();
+    this.hierarchies.remove(sourceName);
+    Set<String> roots = this.dependents.remove(sourceName);
+    if (roots != null) {
+      for (String root : roots) {
+        this.hierarchies.remove(root);
+      }
+    }
+  }
+
+  /**
+   * Drops all cached hierarchies, for changes that may affect many Sources at once.
+   */
+  public void clear() {
+    this.version.incrementAndGet();
+    this.hierarchies.clear();
+    this.dependents.clear();
+  }
+
+  /**
+   * Appends the non-virtual subsources of the given Source to the list, recursing through virtual
+   * subsources, and records the name of every subsource looked up.
+   *
+   * @param source The Source whose subsources are wanted.
+   * @param sourceList The list to append non-virtual Sources to.
+   * @param visited The names of the Sources looked up so far.
+   */
+  private void resolve(Source source, List<Source> sourceList, Set<String> visited) {
+    if (!source.isSetSubSources()) {
+      return;
+    }
+    for (String subSourceUri : source.getSubSources().getHref()) {
+      String subSourceName = UriUtils.getUriSuffix(subSourceUri);
+      visited.add(subSourceName);
+      Source subSource = this.dbManager.getSource(subSourceName);
+      if (subSource == null) {
+        continue;
+      }
+      if (subSource.isVirtual()) {
+        resolve(subSource, sourceList, visited);
+      }
+      else {
+        sourceList.add(subSource);
+      }
+    }
+  }
+}
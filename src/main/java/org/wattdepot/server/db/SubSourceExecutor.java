@@ -0,0 +1,171 @@
+package org.wattdepot.server.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.wattdepot.resource.source.jaxb.Source;
+
+/**
+ * Evaluates independent pieces of work for each of the non-virtual subsources of a virtual Source
+ * in parallel, on a fixed number of threads shared by all requests. The calling thread works
+ * through the subsources too, taking any that no pool thread has started yet, so a request never
+ * waits on a pool that is busy with other requests.
+ */
+public class SubSourceExecutor {
+
+  /** How long idle pool threads are kept, in seconds. */
+  private static final long KEEP_ALIVE_SECONDS = 60;
+
+  /** The shared pool, or null if work is done on the calling thread only. */
+  private final ThreadPoolExecutor pool;
+
+  /**
+   * A piece of work to be done for one non-virtual subsource.
+   *
+   * @param <T> The type of the result.
+   */
+  public interface SubSourceTask<T> {
+
+    /**
+     * Does the work for the given subsource.
+     *
+     * @param source The non-virtual subsource.
+     * @return The result, or null if there is none.
+     */
+    T call(Source source);
+  }
+
+  /**
+   * Creates a new SubSourceExecutor.
+   *
+   * @param parallelism The number of pool threads. If 1 or less, all work is done on the calling
+   * thread.
+   */
+  public SubSourceExecutor(int parallelism) {
+    if (parallelism > 1) {
+      final AtomicInteger threadCount = new AtomicInteger();
+      this.pool =
+          new ThreadPoolExecutor(parallelism, parallelism, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+              new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                  Thread thread =
+                      new Thread(runnable, "wattdepot-subsource-"
+                          + threadCount.incrementAndGet());
+                  thread.setDaemon(true);
+                  return thread;
+                }
+              });
+      this.pool.allowCoreThreadTimeOut(true);
+    }
+    else {
+      this.pool = null;
+    }
+  }
+
+  /**
+   * Does the given work for each of the given subsources, and returns the results in the same
+   * order as the subsources.
+   *
+   * @param <T> The type of the results.
+   * @param sources The non-virtual subsources.
+   * @param task The work to do for each subsource.
+   * @param requireAll If true, any null result makes the whole result null, and the remaining work
+   * is abandoned.
+   * @return The results, which may include nulls unless requireAll is true. Null if requireAll is
+   * true and some result was null, or if the calling thread was interrupted.
+   */
+  public <T> List<T> map(List<Source> sources, final SubSourceTask<T> task, boolean requireAll) {
+    List<T> results = new ArrayList<T>(sources.size());
+    if ((this.pool == null) || (sources.size() < 2)) {
+      for (Source source : sources) {
+        T result = task.call(source);
+        if ((result == null) && requireAll) {
+          return null;
+        }
+        results.add(result);
+      }
+      return results;
+    }
+
+    List<FutureTask<T>> futures = new ArrayList<FutureTask<T>>(sources.size());
+    for (final Source source : sources) {
+      FutureTask<T> future = new FutureTask<T>(new Callable<T>() {
+        @Override
+        public T call() {
+          return task.call(source);
+        }
+      });
+      futures.add(future);
+    }
+    // The first is always done here, so only the rest are offered to the pool
+    try {
+      for (int i = 1; i < futures.size(); i++) {
+        this.pool.execute(futures.get(i));
+      }
+    }
+    catch (RejectedExecutionException e) {
+      // Shut down, so whatever was not accepted is done here below
+    }
+    try {
+      for (FutureTask<T> future : futures) {
+        // Does nothing if a pool thread has already started it
+        future.run();
+        T result = future.get();
+        if ((result == null) && requireAll) {
+          cancel(futures);
+          return null;
+        }
+        results.add(result);
+      }
+      return results;
+    }
+    catch (InterruptedException e) {
+      cancel(futures);
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    catch (ExecutionException e) {
+      cancel(futures);
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  /**
+   * Stops the pool threads. Work submitted afterward is done on the calling thread.
+   */
+  public void shutdown() {
+    if (this.pool != null) {
+      this.pool.shutdown();
+    }
+  }
+
+  /**
+   * Cancels all work that has not started yet, and removes it from the pool's queue.
+   *
+   * @param <T> The type of the results.
+   * @param futures The work to cancel.
+   */
+  private <T> void cancel(List<FutureTask<T>> futures) {
+    for (FutureTask<T> future : futures) {
+      if (future.cancel(false)) {
+        this.pool.remove(future);
+      }
+    }
+  }
+}
@@ -0,0 +1,844 @@
+package org.wattdepot.server.db;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import org.wattdepot.resource.sensordata.SensorDataEncoding;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.util.StackTrace;
+import org.wattdepot.util.UriUtils;
+
+/**
+ * Persists SensorData to storage in the background, so that request threads do not wait on the
+ * DbImplementation. Each SensorData added is first appended to a journal and forced to disk, then
+ * queued for a single writer thread that stores it in batches, one Source at a time and in the
+ * order queued. SensorData whose journal record cannot be forced is never queued, so it is either
+ * left to the caller or stored by the writer, not both. Journal forces are shared: a thread that finds no force in progress forces every
+ * record appended so far, and threads that appended meanwhile wait for it rather than forcing
+ * again.
+ *
+ * The journal is a series of segment files named after the journal path, each started once the
+ * previous one reaches its size limit. A segment is deleted once everything in it has been stored,
+ * and anything left in the segments after a crash is read back a batch at a time and stored when
+ * the queue is next created. SensorData that storage still fails on after RETRY_LIMIT attempts and
+ * a further attempt on its own is logged and written to a dead letter file instead of being
+ * retried forever. A Listener, if given, is told about SensorData once it has been stored.
+ *
+ * The queue is bounded: once it holds its capacity, adding blocks until the writer catches up.
+ */
+public class WriteBehindQueue {
+
+  /** How long the writer waits for SensorData before checking whether it should stop, in ms. */
+  private static final long POLL_MILLIS = 1000;
+
+  /** How long the writer waits before retrying a batch that storage failed on, in ms. */
+  private static final long RETRY_MILLIS = 1000;
+
+  /** The number of times a batch is attempted before its SensorData is stored one at a time. */
+  private static final int RETRY_LIMIT = 3;
+
+  /** The suffix of the file SensorData that could not be stored is written to. */
+  private static final String DEAD_LETTER_SUFFIX = ".dead";
+
+  /** The storage implementation SensorData is persisted to. */
+  private final DbImplementation dbImpl;
+
+  /** The logger for problems persisting SensorData. */
+  private final Logger logger;
+
+  /** Told about SensorData once it is stored, or null. */
+  private final Listener listener;
+
+  /** The maximum number of SensorData stored in one call to the DbImplementation. */
+  private final int batchSize;
+
+  /** The maximum number of SensorData waiting to be stored. */
+  private final int capacity;
+
+  /** The size in bytes after which a new journal segment is started. */
+  private final long segmentBytes;
+
+  /** Permits for each free place in the queue. */
+  private final Semaphore space;
+
+  /** SensorData waiting to be stored, in the order queued. */
+  private final LinkedBlockingQueue<Queued> queue = new LinkedBlockingQueue<Queued>();
+
+  /** The journal path, which segment numbers are appended to. */
+  private final File journalPath;
+
+  /** The journal segments still holding SensorData that may not be stored, oldest first. */
+  private final LinkedList<Segment> segments = new LinkedList<Segment>();
+
+  /** Guards the journal and the counts, and is notified whenever a batch or force completes. */
+  private final Object journalLock = new Object();
+
+  /** The number of SensorData added. Guarded by journalLock. */
+  private long addedCount;
+
+  /**
+   * The number of SensorData stored, rejected by storage, or never queued because its journal
+   * record could not be forced. Guarded by journalLock.
+   */
+  private long storedCount;
+
+  /** The number of SensorData whose journal records are on disk. Guarded by journalLock. */
+  private long forcedCount;
+
+  /** Whether a thread is forcing the journal. Guarded by journalLock. */
+  private boolean forcing;
+
+  /** The number of times adding had to wait for space in the queue. */
+  private final AtomicLong fullCount = new AtomicLong();
+
+  /** The largest number of SensorData waiting at once. Guarded by journalLock. */
+  private long maxDepth;
+
+  /** Set once the queue is closed, with journalLock held. */
+  private volatile boolean closed;
+
+  /** The thread storing queued SensorData. */
+  private final Thread writer;
+
+  /**
+   * Creates a new WriteBehindQueue, first storing any SensorData left in the journal by a previous
+   * run, and starts its writer thread.
+   *
+   * @param dbImpl The storage implementation SensorData is persisted to.
+   * @param logger The logger for problems persisting SensorData.
+   * @param journalPath The path of the journal, which segment numbers are appended to.
+   * @param capacity The maximum number of SensorData waiting to be stored.
+   * @param batchSize The maximum number of SensorData stored in one call to the DbImplementation.
+   * @param segmentBytes The size in bytes after which a new journal segment is started.
+   * @param listener Told about SensorData once it is stored, including SensorData left in the
+   * journal, or null.
+   * @param wipe If true, SensorData left in the journal is discarded instead of stored.
+   * @throws IOException If the journal cannot be opened or read.
+   */
+  public WriteBehindQueue(DbImplementation dbImpl, Logger logger, String journalPath,
+      int capacity, int batchSize, long segmentBytes, Listener listener, boolean wipe)
+      throws IOException {
+    this.dbImpl = dbImpl;
+    this.logger = logger;
+    this.listener = listener;
+    this.capacity = capacity;
+    this.batchSize = batchSize;
+    this.segmentBytes = segmentBytes;
+    this.space = new Semaphore(capacity);
+    this.journalPath = new File(journalPath).getAbsoluteFile();
+    this.journalPath.getParentFile().mkdirs();
+
+    // A journal written before segments were used is read back first
+    SortedMap<Long, File> oldSegments = findSegments();
+    long nextNumber = oldSegments.isEmpty() ? 0 : oldSegments.lastKey() + 1;
+    if (this.journalPath.exists()) {
+      oldSegments.put(-1L, this.journalPath);
+    }
+    for (File file : oldSegments.values()) {
+      if (!wipe) {
+        replaySegment(file);
+      }
+      if (!file.delete()) {
+        throw new IOException("Unable to delete journal segment " + file);
+      }
+    }
+    this.segments.add(new Segment(nextNumber, segmentFile(nextNumber)));
+
+    this.writer = new Thread("wattdepot-write-behind") {
+      @Override
+      public void run() {
+        writeQueued();
+      }
+    };
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  /**
+   * Journals the given SensorData and queues it to be stored, waiting for space in the queue if it
+   * is full. The SensorData is queued only once its journal record is on disk, so if this returns
+   * false nothing will store it but the caller.
+   *
+   * @param data The SensorData.
+   * @return True if the SensorData was queued, false if the queue is closed, the journal could not
+   * be written or forced or the calling thread was interrupted, in which case the caller must store
+   * it.
+   */
+  public boolean add(SensorData data) {
+    if (this.closed) {
+      return false;
+    }
+    if (!this.space.tryAcquire()) {
+      this.fullCount.incrementAndGet();
+      try {
+        this.space.acquire();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    byte[] record;
+    try {
+      record = encode(data);
+    }
+    catch (IOException e) {
+      this.space.release();
+      return false;
+    }
+    long index;
+    Segment segment;
+    synchronized (this.journalLock) {
+      if (this.closed) {
+        this.space.release();
+        return false;
+      }
+      try {
+        segment = this.segments.getLast();
+        if (segment.channel.size() >= this.segmentBytes) {
+          segment = rotate();
+        }
+        segment.channel.write(ByteBuffer.wrap(record), segment.channel.size());
+      }
+      catch (IOException e) {
+        this.logger.warning("Unable to write SensorData journal: " + StackTrace.toString(e));
+        this.space.release();
+        return false;
+      }
+      segment.outstanding++;
+      this.addedCount++;
+      index = this.addedCount;
+      this.maxDepth = Math.max(this.maxDepth, this.addedCount - this.storedCount);
+    }
+    if (!awaitForced(index)) {
+      // Never queued, so the caller's own store is the only one. The record is left in the journal
+      // until its segment is dropped, and replaying it after a crash is rejected as a duplicate.
+      synchronized (this.journalLock) {
+        segment.outstanding--;
+        this.storedCount++;
+        dropStoredSegments();
+        this.journalLock.notifyAll();
+      }
+      this.space.release();
+      return false;
+    }
+    this.queue.add(new Queued(data, segment));
+    return true;
+  }
+
+  /**
+   * Waits until the journal record of the given SensorData is on disk, forcing the journal for
+   * every thread waiting if no other thread is already doing so.
+   *
+   * @param index The number of SensorData added up to and including the one to wait for.
+   * @return True if the record is on disk, false if the journal could not be forced.
+   */
+  private boolean awaitForced(long index) {
+    while (true) {
+      FileChannel channel;
+      long target;
+      synchronized (this.journalLock) {
+        while (this.forcing && (this.forcedCount < index)) {
+          try {
+            this.journalLock.wait();
+          }
+          catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+          }
+        }
+        if (this.forcedCount >= index) {
+          return true;
+        }
+        this.forcing = true;
+        target = this.addedCount;
+        channel = this.segments.getLast().channel;
+      }
+      IOException failure = null;
+      try {
+        channel.force(false);
+      }
+      catch (IOException e) {
+        failure = e;
+      }
+      synchronized (this.journalLock) {
+        this.forcing = false;
+        if (failure == null) {
+          this.forcedCount = Math.max(this.forcedCount, target);
+          dropStoredSegments();
+        }
+        this.journalLock.notifyAll();
+        if ((failure != null) && (this.forcedCount < index)) {
+          this.logger.warning("Unable to force SensorData journal: "
+              + StackTrace.toString(failure));
+          return false;
+        }
+      }
+    }
+  }
+
+  /**
+   * Starts a new journal segment, forcing the current one first so that every record appended
+   * before the new segment is on disk. Called with journalLock held.
+   *
+   * @return The new segment.
+   * @throws IOException If the current segment cannot be forced or the new one created.
+   */
+  private Segment rotate() throws IOException {
+    Segment current = this.segments.getLast();
+    current.channel.force(false);
+    this.forcedCount = this.addedCount;
+    Segment next = new Segment(current.number + 1, segmentFile(current.number + 1));
+    this.segments.add(next);
+    return next;
+  }
+
+  /**
+   * Deletes the journal segments whose SensorData has all been stored or abandoned, and empties the
+   * current segment if everything added has been. Called with journalLock held.
+   */
+  private void dropStoredSegments() {
+    while ((this.segments.size() > 1) && (this.segments.getFirst().outstanding == 0)) {
+      this.segments.removeFirst().delete(this.logger);
+    }
+    if (this.storedCount == this.addedCount) {
+      // Everything journaled has been stored, so the current segment can start over
+      try {
+        this.segments.getLast().channel.truncate(0);
+      }
+      catch (IOException e) {
+        this.logger.warning("Unable to truncate SensorData journal: " + StackTrace.toString(e));
+      }
+    }
+  }
+
+  /**
+   * Waits until everything added so far has been stored.
+   */
+  public void flush() {
+    synchronized (this.journalLock) {
+      long target = this.addedCount;
+      while (this.storedCount < target && this.writer.isAlive()) {
+        try {
+          this.journalLock.wait(POLL_MILLIS);
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Stores everything queued, stops the writer thread and closes the journal. SensorData added
+   * afterward is refused.
+   */
+  public void close() {
+    flush();
+    // Not interrupted, as that would close the journal channel and may disturb storage. SensorData
+    // added before it is closed is still stored or abandoned by the thread adding it.
+    synchronized (this.journalLock) {
+      this.closed = true;
+    }
+    try {
+      this.writer.join();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this.journalLock) {
+      for (Segment segment : this.segments) {
+        try {
+          segment.file.close();
+        }
+        catch (IOException e) {
+          this.logger.warning("Unable to close SensorData journal: " + StackTrace.toString(e));
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the number of SensorData waiting to be stored.
+   *
+   * @return The queue depth.
+   */
+  public long getDepth() {
+    synchronized (this.journalLock) {
+      return this.addedCount - this.storedCount;
+    }
+  }
+
+  /**
+   * Returns the largest number of SensorData that has been waiting to be stored at once.
+   *
+   * @return The maximum queue depth.
+   */
+  public long getMaxDepth() {
+    synchronized (this.journalLock) {
+      return this.maxDepth;
+    }
+  }
+
+  /**
+   * Returns the number of SensorData stored since the queue was created.
+   *
+   * @return The number stored.
+   */
+  public long getStoredCount() {
+    synchronized (this.journalLock) {
+      return this.storedCount;
+    }
+  }
+
+  /**
+   * Returns the number of times adding SensorData had to wait because the queue was full.
+   *
+   * @return The number of waits.
+   */
+  public long getFullCount() {
+    return this.fullCount.get();
+  }
+
+  /**
+   * Returns the maximum number of SensorData waiting to be stored.
+   *
+   * @return The capacity.
+   */
+  public int getCapacity() {
+    return this.capacity;
+  }
+
+  /**
+   * Returns the number of journal segments, including the current one.
+   *
+   * @return The number of segments.
+   */
+  public int getSegmentCount() {
+    synchronized (this.journalLock) {
+      return this.segments.size();
+    }
+  }
+
+  /**
+   * Returns the total size of the journal segments.
+   *
+   * @return The size of the journal in bytes.
+   * @throws IOException If the size of a segment cannot be read.
+   */
+  public long getJournalBytes() throws IOException {
+    synchronized (this.journalLock) {
+      long bytes = 0;
+      for (Segment segment : this.segments) {
+        bytes += segment.channel.size();
+      }
+      return bytes;
+    }
+  }
+
+  /**
+   * Run by the writer thread: stores queued SensorData in batches until the queue is closed.
+   */
+  private void writeQueued() {
+    List<Queued> batch = new ArrayList<Queued>(this.batchSize);
+    List<SensorData> datas = new ArrayList<SensorData>(this.batchSize);
+    while (!this.closed || (getDepth() > 0)) {
+      Queued first;
+      try {
+        first = this.queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      if (first == null) {
+        continue;
+      }
+      batch.add(first);
+      this.queue.drainTo(batch, this.batchSize - 1);
+      for (Queued queued : batch) {
+        datas.add(queued.data);
+      }
+      store(datas);
+      this.space.release(batch.size());
+      synchronized (this.journalLock) {
+        for (Queued queued : batch) {
+          queued.segment.outstanding--;
+        }
+        this.storedCount += batch.size();
+        dropStoredSegments();
+        this.journalLock.notifyAll();
+      }
+      batch.clear();
+      datas.clear();
+    }
+  }
+
+  /**
+   * Stores a batch of SensorData, one Source at a time. Storage is attempted up to RETRY_LIMIT
+   * times for each Source, then once for each SensorData on its own, and SensorData that still
+   * fails is written to the dead letter file. SensorData that storage rejects, such as duplicates,
+   * is dropped. The listener is told about the rest.
+   *
+   * @param batch The SensorData, in the order added.
+   */
+  private void store(List<SensorData> batch) {
+    Map<String, List<SensorData>> bySource = new LinkedHashMap<String, List<SensorData>>();
+    for (SensorData data : batch) {
+      String sourceName = UriUtils.getUriSuffix(data.getSource());
+      List<SensorData> datas = bySource.get(sourceName);
+      if (datas == null) {
+        datas = new ArrayList<SensorData>();
+        bySource.put(sourceName, datas);
+      }
+      datas.add(data);
+    }
+    for (Map.Entry<String, List<SensorData>> entry : bySource.entrySet()) {
+      List<SensorData> rejected = storeWithRetries(entry.getKey(), entry.getValue());
+      if (rejected == null) {
+        rejected = new ArrayList<SensorData>();
+        List<SensorData> failed = new ArrayList<SensorData>();
+        for (SensorData data : entry.getValue()) {
+          try {
+            rejected.addAll(this.dbImpl.storeSensorDatas(Collections.singletonList(data)));
+          }
+          catch (RuntimeException e) {
+            failed.add(data);
+          }
+        }
+        if (!failed.isEmpty()) {
+          deadLetter(entry.getKey(), failed);
+          rejected.addAll(failed);
+        }
+      }
+      notifyStored(entry.getValue(), rejected);
+    }
+  }
+
+  /**
+   * Tells the listener about the SensorData of one Source that was stored.
+   *
+   * @param datas The SensorData of the Source, in the order added.
+   * @param notStored The SensorData that was rejected or could not be stored.
+   */
+  private void notifyStored(List<SensorData> datas, List<SensorData> notStored) {
+    if (this.listener == null) {
+      return;
+    }
+    // Rejected SensorData are the same objects that were handed in, so compare by identity
+    Set<SensorData> notStoredSet =
+        Collections.newSetFromMap(new IdentityHashMap<SensorData, Boolean>());
+    notStoredSet.addAll(notStored);
+    List<SensorData> stored = new ArrayList<SensorData>(datas.size());
+    for (SensorData data : datas) {
+      if (!notStoredSet.contains(data)) {
+        stored.add(data);
+      }
+    }
+    if (stored.isEmpty()) {
+      return;
+    }
+    try {
+      this.listener.stored(stored);
+    }
+    catch (RuntimeException e) {
+      this.logger.warning("Write-behind: listener failed on stored SensorData: "
+          + StackTrace.toString(e));
+    }
+  }
+
+  /**
+   * Attempts to store SensorData of one Source, up to RETRY_LIMIT times.
+   *
+   * @param sourceName The name of the Source.
+   * @param datas The SensorData, in the order added.
+   * @return The SensorData storage rejected, or null if storage kept failing.
+   */
+  private List<SensorData> storeWithRetries(String sourceName, List<SensorData> datas) {
+    for (int attempt = 1; attempt <= RETRY_LIMIT; attempt++) {
+      try {
+        List<SensorData> rejected = this.dbImpl.storeSensorDatas(datas);
+        if (rejected == null) {
+          rejected = new ArrayList<SensorData>();
+        }
+        else if (!rejected.isEmpty()) {
+          this.logger.fine("Write-behind: storage rejected " + rejected.size()
+              + " SensorData for " + sourceName);
+        }
+        return rejected;
+      }
+      catch (RuntimeException e) {
+        this.logger.warning("Write-behind: unable to store SensorData for " + sourceName
+            + " (attempt " + attempt + " of " + RETRY_LIMIT + "): " + StackTrace.toString(e));
+      }
+      if (attempt < RETRY_LIMIT) {
+        try {
+          Thread.sleep(RETRY_MILLIS);
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return null;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Logs SensorData that could not be stored and appends it to the dead letter file, in the same
+   * format as the journal, so that it can be recovered by hand.
+   *
+   * @param sourceName The name of the Source the SensorData belongs to.
+   * @param datas The SensorData.
+   */
+  private void deadLetter(String sourceName, List<SensorData> datas) {
+    File file = new File(this.journalPath.getPath() + DEAD_LETTER_SUFFIX);
+    this.logger.severe("Write-behind: dropping " + datas.size() + " SensorData for " + sourceName
+        + " that could not be stored, from " + datas.get(0).getTimestamp() + ", into " + file);
+    RandomAccessFile deadLetters = null;
+    try {
+      deadLetters = new RandomAccessFile(file, "rw");
+      FileChannel channel = deadLetters.getChannel();
+      for (SensorData data : datas) {
+        channel.write(ByteBuffer.wrap(encode(data)), channel.size());
+      }
+      channel.force(false);
+    }
+    catch (IOException e) {
+      this.logger.severe("Write-behind: unable to write dead letter file, SensorData lost: "
+          + StackTrace.toString(e));
+    }
+    finally {
+      if (deadLetters != null) {
+        try {
+          deadLetters.close();
+        }
+        catch (IOException e) {
+          this.logger.warning("Unable to close dead letter file: " + StackTrace.toString(e));
+        }
+      }
+    }
+  }
+
+  /**
+   * Stores the SensorData in a journal segment left by a previous run, reading it a batch at a
+   * time. A record cut short by a crash ends the segment.
+   *
+   * @param segment The segment file.
+   * @throws IOException If the segment cannot be opened.
+   */
+  private void replaySegment(File segment) throws IOException {
+    long remaining = segment.length();
+    if (remaining == 0) {
+      return;
+    }
+    DataInputStream input =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(segment)));
+    List<SensorData> batch = new ArrayList<SensorData>(this.batchSize);
+    int count = 0;
+    try {
+      while (true) {
+        int length = input.readInt();
+        long checksum = input.readLong();
+        remaining -= 12;
+        if ((length < 0) || (length > remaining)) {
+          break;
+        }
+        byte[] record = new byte[length];
+        input.readFully(record);
+        remaining -= length;
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        if (crc.getValue() != checksum) {
+          break;
+        }
+        batch.add(SensorDataEncoding.read(new DataInputStream(new ByteArrayInputStream(record))));
+        if (batch.size() == this.batchSize) {
+          store(batch);
+          count += batch.size();
+          batch.clear();
+        }
+      }
+    }
+    catch (EOFException e) {
+      // End of the segment
+    }
+    catch (IOException e) {
+      this.logger.warning("Write-behind: ignoring rest of journal segment " + segment + ": "
+          + e.getMessage());
+    }
+    finally {
+      input.close();
+    }
+    if (!batch.isEmpty()) {
+      store(batch);
+      count += batch.size();
+    }
+    if (count > 0) {
+      this.logger.info("Write-behind: stored " + count + " journaled SensorData from " + segment);
+    }
+  }
+
+  /**
+   * Finds the journal segments in the journal's directory.
+   *
+   * @return The segment files, keyed by segment number.
+   */
+  private SortedMap<Long, File> findSegments() {
+    SortedMap<Long, File> found = new TreeMap<Long, File>();
+    String prefix = this.journalPath.getName() + ".";
+    File[] files = this.journalPath.getParentFile().listFiles();
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        if (name.startsWith(prefix)) {
+          try {
+            found.put(Long.valueOf(name.substring(prefix.length())), file);
+          }
+          catch (NumberFormatException e) {
+            // Not a segment, such as the dead letter file
+            continue;
+          }
+        }
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Returns the file of a journal segment.
+   *
+   * @param number The segment number.
+   * @return The segment file.
+   */
+  private File segmentFile(long number) {
+    return new File(this.journalPath.getPath() + "." + number);
+  }
+
+  /**
+   * Encodes a SensorData as a journal record: its length and checksum, followed by the SensorData
+   * itself.
+   *
+   * @param data The SensorData.
+   * @return The journal record.
+   * @throws IOException Never, as the record is written to memory.
+   */
+  private static byte[] encode(SensorData data) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(bytes);
+    SensorDataEncoding.write(data, output);
+    output.flush();
+    byte[] body = bytes.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(body);
+    ByteBuffer record = ByteBuffer.allocate(12 + body.length);
+    record.putInt(body.length).putLong(crc.getValue()).put(body);
+    return record.array();
+  }
+
+  /** Told about SensorData once the writer has stored it. */
+  public interface Listener {
+
+    /**
+     * Called on the writer thread once SensorData of one Source has been stored.
+     *
+     * @param datas The SensorData stored, in the order added, leaving out any that storage
+     * rejected or that could not be stored.
+     */
+    void stored(List<SensorData> datas);
+  }
+
+  /** A SensorData waiting to be stored, with the journal segment holding its record. */
+  private static class Queued {
+    /** The SensorData. */
+    private final SensorData data;
+    /** The segment holding its journal record. */
+    private final Segment segment;
+
+    /**
+     * Creates a new Queued.
+     *
+     * @param data The SensorData.
+     * @param segment The segment holding its journal record.
+     */
+    Queued(SensorData data, Segment segment) {
+      this.data = data;
+      this.segment = segment;
+    }
+  }
+
+  /** A journal segment file. */
+  private static class Segment {
+    /** The segment number. */
+    private final long number;
+    /** The path of the segment. */
+    private final File path;
+    /** The segment file. */
+    private final RandomAccessFile file;
+    /** The channel of the segment file. */
+    private final FileChannel channel;
+    /**
+     * The number of SensorData in this segment not yet stored or abandoned. Guarded by the queue's
+     * journalLock.
+     */
+    private int outstanding;
+
+    /**
+     * Creates a new, empty segment.
+     *
+     * @param number The segment number.
+     * @param path The path of the segment.
+     * @throws IOException If the segment cannot be created.
+     */
+    Segment(long number, File path) throws IOException {
+      this.number = number;
+      this.path = path;
+      this.file = new RandomAccessFile(path, "rw");
+      this.channel = this.file.getChannel();
+      this.channel.truncate(0);
+    }
+
+    /**
+     * Closes and deletes the segment.
+     *
+     * @param logger The logger for problems deleting it.
+     */
+    void delete(Logger logger) {
+      try {
+        this.file.close();
+      }
+      catch (IOException e) {
+        logger.warning("Unable to close SensorData journal: " + StackTrace.toString(e));
+      }
+      if (!this.path.delete()) {
+        logger.warning("Unable to delete SensorData journal segment " + this.path);
+      }
+    }
+  }
+}
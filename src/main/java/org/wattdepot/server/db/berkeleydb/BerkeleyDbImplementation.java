@@ -1,13 +1,15 @@
 package org.wattdepot.server.db.berkeleydb;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 import javax.xml.datatype.DatatypeConstants;
 import javax.xml.datatype.XMLGregorianCalendar;
 import org.wattdepot.resource.property.jaxb.Property;
@@ -29,11 +31,16 @@ import org.wattdepot.server.ServerProperties;
 import org.wattdepot.server.db.DbBadIntervalException;
 import org.wattdepot.server.db.DbImplementation;
 import org.wattdepot.server.db.DbManager;
+import org.wattdepot.server.db.SensorDataRollup;
+import org.wattdepot.server.db.SnapshotCopier;
 import org.wattdepot.util.UriUtils;
 import org.wattdepot.util.tstamp.Tstamp;
+import com.sleepycat.je.Durability;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentConfig;
+import com.sleepycat.je.LockMode;
 import com.sleepycat.je.Transaction;
+import com.sleepycat.je.TransactionConfig;
 import com.sleepycat.je.util.DbBackup;
 import com.sleepycat.persist.EntityCursor;
 import com.sleepycat.persist.EntityStore;
@@ -57,7 +64,8 @@ public class BerkeleyDbImplementation extends DbImplementation {
   // SecondaryIndex <Key, PrimaryKey, Value>
   private PrimaryIndex<CompositeSensorDataKey, BerkeleyDbSensorData> sensorDataIndex;
   private PrimaryIndex<CompositeSensorDataPropertyKey, BerkeleyDbSensorDataProperty> sensorDataPropertyPrimaryIndex;
-  private SecondaryIndex<CompositeSensorDataKey, CompositeSensorDataPropertyKey, BerkeleyDbSensorDataProperty> sensorDataPropertyIndex;
+  private PrimaryIndex<CompositeRollupKey, BerkeleyDbSensorDataRollup> rollupIndex;
+  private PrimaryIndex<String, BerkeleyDbSourceSummary> summaryIndex;
   private PrimaryIndex<String, BerkeleyDbUser> userIndex;
   private PrimaryIndex<CompositeUserPropertyKey, BerkeleyDbUserProperty> userPropertyPrimaryIndex;
   private SecondaryIndex<String, CompositeUserPropertyKey, BerkeleyDbUserProperty> userPropertyIndex;
@@ -72,6 +80,20 @@ public class BerkeleyDbImplementation extends DbImplementation {
   private long lastBackupFileId;
   private File topDir;
   private File backupDir;
+  /** The configuration of transactions storing SensorData, which sets their durability. */
+  private TransactionConfig ingestConfig;
+  /** Flushes unsynced SensorData to disk periodically, or null if ingest is synced. */
+  private Timer syncTimer;
+  /** The maximum number of SensorData stores committed together in one transaction. */
+  private int groupCommitSize;
+  /** SensorData stores waiting to be committed, in arrival order. */
+  private final LinkedList<PendingStore> pendingStores = new LinkedList<PendingStore>();
+  /** Held by the thread committing a group of SensorData stores. */
+  private final Object commitLock = new Object();
+  /** The number of old SensorData properties embedded per transaction when upgrading. */
+  private static final int EMBED_BATCH_SIZE = 10000;
+  /** The most SensorData walked past to reach the next timestamp when finding straddles. */
+  private static final int STRADDLE_WALK_LIMIT = 64;
 
   /**
    * Instantiates the BerkeleyDB installation.
@@ -107,6 +129,8 @@ public class BerkeleyDbImplementation extends DbImplementation {
       this.lastBackupFileId = this.getLastBackedUpFile();
     }
 
+    configureIngest(props);
+
     // Configure BerkeleyDB.
     try {
       configure();
@@ -114,6 +138,10 @@ public class BerkeleyDbImplementation extends DbImplementation {
       if (wipe) {
         this.wipeData();
       }
+      else {
+        embedSensorDataProperties(EMBED_BATCH_SIZE);
+        createMissingSummaries();
+      }
     }
     catch (IncompatibleClassException e) {
       if (wipe) {
@@ -190,6 +218,62 @@ public class BerkeleyDbImplementation extends DbImplementation {
     return success;
   }
 
+  /**
+   * Reads the SensorData ingest settings from the server properties. Unless ingest is synced,
+   * starts a background task that flushes the environment to disk periodically, which bounds how
+   * much recently stored SensorData a crash can lose.
+   * 
+   * @param props The server properties.
+   */
+  private void configureIngest(ServerProperties props) {
+    String mode = props.get(ServerProperties.BERKELEYDB_DURABILITY_KEY);
+    Durability.SyncPolicy policy;
+    if ("write-no-sync".equals(mode)) {
+      policy = Durability.SyncPolicy.WRITE_NO_SYNC;
+    }
+    else if ("no-sync".equals(mode)) {
+      policy = Durability.SyncPolicy.NO_SYNC;
+    }
+    else {
+      if (!"sync".equals(mode)) {
+        this.logger.warning("BerkeleyDB: unknown durability " + mode + ", using sync");
+      }
+      policy = Durability.SyncPolicy.SYNC;
+    }
+    this.ingestConfig = new TransactionConfig();
+    this.ingestConfig.setDurability(new Durability(policy, null, null));
+    this.groupCommitSize =
+        Integer.parseInt(props.get(ServerProperties.BERKELEYDB_GROUP_COMMIT_KEY));
+
+    if (policy != Durability.SyncPolicy.SYNC) {
+      long interval =
+          Long.parseLong(props.get(ServerProperties.BERKELEYDB_SYNC_INTERVAL_KEY)) * 1000;
+      this.logger.info("BerkeleyDB: ingest durability " + mode + ", flushed every " + interval
+          + " ms");
+      this.syncTimer = new Timer("wattdepot-berkeleydb-sync", true);
+      this.syncTimer.schedule(new TimerTask() {
+        @Override
+        public void run() {
+          sync();
+        }
+      }, interval, interval);
+    }
+  }
+
+  /**
+   * Checkpoints the environment and flushes its log to disk, so that all committed transactions
+   * survive a crash.
+   */
+  private void sync() {
+    try {
+      this.environment.sync();
+    }
+    catch (RuntimeException e) {
+      // Also thrown once the environment has been closed at shutdown
+      this.logger.warning("BerkeleyDB: unable to sync: " + e.getMessage());
+    }
+  }
+
   /**
    * Configure the environment and stores.
    */
@@ -210,16 +294,20 @@ public class BerkeleyDbImplementation extends DbImplementation {
     stores.add(sensorDataStore);
     this.sensorDataIndex =
         sensorDataStore.getPrimaryIndex(CompositeSensorDataKey.class, BerkeleyDbSensorData.class);
+    // SensorData properties are now embedded, so this is only read when upgrading older stores.
     EntityStore sensorDataPropertyStore =
         new EntityStore(this.environment, "EntityStore", storeConfig);
     stores.add(sensorDataPropertyStore);
     this.sensorDataPropertyPrimaryIndex =
         sensorDataPropertyStore.getPrimaryIndex(CompositeSensorDataPropertyKey.class,
             BerkeleyDbSensorDataProperty.class);
-    // Add secondary index so we can search by source name and timestamp without property key.
-    this.sensorDataPropertyIndex =
-        sensorDataPropertyStore.getSecondaryIndex(sensorDataPropertyPrimaryIndex,
-            CompositeSensorDataKey.class, "sensorDataKey");
+    EntityStore rollupStore = new EntityStore(this.environment, "EntityStore", storeConfig);
+    stores.add(rollupStore);
+    this.rollupIndex =
+        rollupStore.getPrimaryIndex(CompositeRollupKey.class, BerkeleyDbSensorDataRollup.class);
+    EntityStore summaryStore = new EntityStore(this.environment, "EntityStore", storeConfig);
+    stores.add(summaryStore);
+    this.summaryIndex = summaryStore.getPrimaryIndex(String.class, BerkeleyDbSourceSummary.class);
 
     // Initialize data stores for users
     EntityStore userStore = new EntityStore(this.environment, "EntityStore", storeConfig);
@@ -311,11 +399,15 @@ public class BerkeleyDbImplementation extends DbImplementation {
     File[] files = this.backupDir.listFiles();
     String filename, substring;
 
-    // Go through the files and find files that end with .jdb.
+    // Go through the files and find files that end with .jdb, or .jdb.gz if compressed.
     for (File file : files) {
-      if (!file.isDirectory() && file.getName().endsWith(".jdb")) {
+      filename = file.getName();
+      if (filename.endsWith(SnapshotCopier.COMPRESSED_SUFFIX)) {
+        filename =
+            filename.substring(0, filename.length() - SnapshotCopier.COMPRESSED_SUFFIX.length());
+      }
+      if (!file.isDirectory() && filename.endsWith(".jdb")) {
         // Parse filename to get the id.
-        filename = file.getName();
         substring = filename.substring(0, filename.length() - 4);
         if (lastBackup < Long.parseLong(substring, 16)) {
           lastBackup = Long.parseLong(substring, 16);
@@ -338,7 +430,232 @@ public class BerkeleyDbImplementation extends DbImplementation {
     }
 
     CompositeSensorDataKey key = new CompositeSensorDataKey(sourceName, timestamp);
-    return sensorDataIndex.delete(key);
+    Transaction txn = environment.beginTransaction(null, null);
+    try {
+      if (!sensorDataIndex.delete(txn, key)) {
+        return false;
+      }
+      removeFromSummary(txn, sourceName, key.getTimestamp());
+      txn.commit();
+      txn = null;
+      return true;
+    }
+    finally {
+      if (txn != null) {
+        txn.abort();
+      }
+    }
+  }
+
+  /**
+   * Moves any SensorData properties stored as separate BerkeleyDbSensorDataProperty entities, as
+   * they were before BerkeleyDbSensorData version 1, into their BerkeleyDbSensorData. The move is
+   * done in batches of one transaction each, so an interrupted move resumes where it stopped the
+   * next time the store is opened. Properties whose SensorData no longer exists are dropped, and
+   * how many were dropped is logged.
+   * 
+   * @param batchSize The number of properties moved per transaction. A batch is extended past this
+   * to the end of the properties of the SensorData it stops in.
+   */
+  void embedSensorDataProperties(int batchSize) {
+    long moved = 0;
+    long dropped = 0;
+    boolean more = true;
+    while (more) {
+      Transaction txn = environment.beginTransaction(null, null);
+      EntityCursor<BerkeleyDbSensorDataProperty> cursor =
+          sensorDataPropertyPrimaryIndex.entities(txn, null);
+      try {
+        // Properties are ordered by Source, then timestamp, so each SensorData's are adjacent
+        int count = 0;
+        int orphans = 0;
+        CompositeSensorDataKey key = null;
+        List<Property> props = new ArrayList<Property>();
+        BerkeleyDbSensorDataProperty prop = cursor.next();
+        while (prop != null && (count < batchSize || sameSensorData(key, prop))) {
+          if (!sameSensorData(key, prop)) {
+            if (!embedProperties(txn, key, props)) {
+              orphans += props.size();
+            }
+            key = prop.getSensorDataKey();
+            props.clear();
+          }
+          props.add(prop.asSensorDataProperty());
+          cursor.delete();
+          count++;
+          prop = cursor.next();
+        }
+        if (!embedProperties(txn, key, props)) {
+          orphans += props.size();
+        }
+        more = prop != null;
+        cursor.close();
+        cursor = null;
+        txn.commit();
+        txn = null;
+        moved += count - orphans;
+        dropped += orphans;
+      }
+      finally {
+        if (cursor != null) {
+          cursor.close();
+        }
+        if (txn != null) {
+          txn.abort();
+        }
+      }
+    }
+    if (moved > 0) {
+      this.logger.info("BerkeleyDB: embedded " + moved + " SensorData properties");
+    }
+    if (dropped > 0) {
+      this.logger.warning("BerkeleyDB: dropped " + dropped
+          + " SensorData properties whose SensorData no longer exists");
+    }
+  }
+
+  /**
+   * Returns true if the given property belongs to the SensorData with the given key.
+   * 
+   * @param key The SensorData key, or null.
+   * @param prop The property.
+   * @return True if the property's SensorData key equals the given key.
+   */
+  private static boolean sameSensorData(CompositeSensorDataKey key,
+      BerkeleyDbSensorDataProperty prop) {
+    return (key != null) && key.getSourceName().equals(prop.getSensorDataKey().getSourceName())
+        && (key.getTimestamp() == prop.getSensorDataKey().getTimestamp());
+  }
+
+  /**
+   * Adds properties to those embedded in the SensorData with the given key.
+   * 
+   * @param txn The transaction to update the SensorData under.
+   * @param key The SensorData key, or null if there are no properties.
+   * @param props The properties to add.
+   * @return False if the SensorData no longer exists, so the properties were dropped.
+   */
+  private boolean embedProperties(Transaction txn, CompositeSensorDataKey key,
+      List<Property> props) {
+    if ((key == null) || props.isEmpty()) {
+      return true;
+    }
+    BerkeleyDbSensorData data = sensorDataIndex.get(txn, key, LockMode.RMW);
+    if (data == null) {
+      return false;
+    }
+    data.addProperties(props);
+    sensorDataIndex.put(txn, data);
+    return true;
+  }
+
+  /**
+   * Builds the summaries of all Sources from their SensorData in a single pass, if there are none
+   * yet but there is SensorData, as when opening a database created before summaries were kept.
+   */
+  private void createMissingSummaries() {
+    EntityCursor<BerkeleyDbSourceSummary> summaryCursor = summaryIndex.entities();
+    boolean hasSummaries;
+    try {
+      hasSummaries = summaryCursor.first() != null;
+    }
+    finally {
+      summaryCursor.close();
+    }
+    if (hasSummaries) {
+      return;
+    }
+    Transaction txn = environment.beginTransaction(null, null);
+    EntityCursor<CompositeSensorDataKey> cursor = sensorDataIndex.keys(txn, null);
+    try {
+      BerkeleyDbSourceSummary summary = null;
+      for (CompositeSensorDataKey key : cursor) {
+        // Keys are ordered by Source, then timestamp
+        if ((summary == null) || !summary.getSourceName().equals(key.getSourceName())) {
+          if (summary != null) {
+            summaryIndex.put(txn, summary);
+          }
+          summary = new BerkeleyDbSourceSummary(key.getSourceName());
+        }
+        summary.add(key.getTimestamp(), key.getTimestamp(), 1);
+      }
+      if (summary != null) {
+        summaryIndex.put(txn, summary);
+        this.logger.info("BerkeleyDB: built source summaries");
+      }
+      cursor.close();
+      cursor = null;
+      txn.commit();
+      txn = null;
+    }
+    finally {
+      if (cursor != null) {
+        cursor.close();
+      }
+      if (txn != null) {
+        txn.abort();
+      }
+    }
+  }
+
+  /**
+   * Adds newly stored SensorData to the summary of its Source.
+   * 
+   * @param txn The transaction the SensorData was stored under.
+   * @param sourceName The name of the Source.
+   * @param first The earliest timestamp stored, in milliseconds.
+   * @param last The latest timestamp stored, in milliseconds.
+   * @param count The number of SensorData stored.
+   */
+  private void addToSummary(Transaction txn, String sourceName, long first, long last,
+      long count) {
+    BerkeleyDbSourceSummary summary = summaryIndex.get(txn, sourceName, LockMode.RMW);
+    if (summary == null) {
+      summary = new BerkeleyDbSourceSummary(sourceName);
+    }
+    summary.add(first, last, count);
+    summaryIndex.put(txn, summary);
+  }
+
+  /**
+   * Removes a deleted SensorData from the summary of its Source. If it was the first or last
+   * SensorData, that end of the summary is looked up again.
+   * 
+   * @param txn The transaction the SensorData was deleted under.
+   * @param sourceName The name of the Source.
+   * @param millis The timestamp of the deleted SensorData, in milliseconds.
+   */
+  private void removeFromSummary(Transaction txn, String sourceName, long millis) {
+    BerkeleyDbSourceSummary summary = summaryIndex.get(txn, sourceName, LockMode.RMW);
+    if (summary == null) {
+      return;
+    }
+    if (summary.getCount() <= 1) {
+      summaryIndex.delete(txn, sourceName);
+      return;
+    }
+    summary.setCount(summary.getCount() - 1);
+    if ((millis == summary.getFirstTime()) || (millis == summary.getLastTime())) {
+      CompositeSensorDataKey start =
+          new CompositeSensorDataKey(sourceName, Tstamp.makeTimestamp(0));
+      CompositeSensorDataKey end = new CompositeSensorDataKey(sourceName, Tstamp.makeTimestamp());
+      EntityCursor<CompositeSensorDataKey> cursor =
+          sensorDataIndex.keys(txn, start, true, end, true, null);
+      try {
+        CompositeSensorDataKey key = cursor.first();
+        if (key != null) {
+          summary.setFirstTime(key.getTimestamp());
+        }
+        key = cursor.last();
+        if (key != null) {
+          summary.setLastTime(key.getTimestamp());
+        }
+      }
+      finally {
+        cursor.close();
+      }
+    }
+    summaryIndex.put(txn, summary);
   }
 
   @Override
@@ -352,12 +669,8 @@ public class BerkeleyDbImplementation extends DbImplementation {
     // Construct the range of sensor data.
     CompositeSensorDataKey start = new CompositeSensorDataKey(sourceName, Tstamp.makeTimestamp(0));
     CompositeSensorDataKey end = new CompositeSensorDataKey(sourceName, Tstamp.makeTimestamp());
-    EntityCursor<BerkeleyDbSensorDataProperty> pcursor =
-        sensorDataPropertyIndex.entities(txn, start, true, end, true, null);
-    while (pcursor.next() != null) {
-      sensorDataPropertyIndex.delete(txn, pcursor.current().getSensorDataKey());
-    }
-    pcursor.close();
+    deleteRollups(txn, sourceName);
+    summaryIndex.delete(txn, sourceName);
 
     EntityCursor<BerkeleyDbSensorData> cursor =
         sensorDataIndex.entities(txn, start, true, end, true, null);
@@ -394,12 +707,8 @@ public class BerkeleyDbImplementation extends DbImplementation {
     // Construct the range of sensor data.
     CompositeSensorDataKey start = new CompositeSensorDataKey(sourceName, Tstamp.makeTimestamp(0));
     CompositeSensorDataKey end = new CompositeSensorDataKey(sourceName, Tstamp.makeTimestamp());
-    EntityCursor<BerkeleyDbSensorDataProperty> pcursor =
-        sensorDataPropertyIndex.entities(txn, start, true, end, true, null);
-    while (pcursor.next() != null) {
-      sensorDataPropertyIndex.delete(txn, pcursor.current().getSensorDataKey());
-    }
-    pcursor.close();
+    deleteRollups(txn, sourceName);
+    summaryIndex.delete(txn, sourceName);
 
     EntityCursor<BerkeleyDbSensorData> cursor =
         sensorDataIndex.entities(txn, start, true, end, true, null);
@@ -412,6 +721,23 @@ public class BerkeleyDbImplementation extends DbImplementation {
     return count > 0;
   }
 
+  /**
+   * Deletes all of the rollups of the named Source.
+   * 
+   * @param txn The transaction to run the delete under.
+   * @param sourceName The name of the Source whose rollups are to be deleted.
+   */
+  private void deleteRollups(Transaction txn, String sourceName) {
+    CompositeRollupKey start = new CompositeRollupKey(sourceName, 0, Long.MIN_VALUE);
+    CompositeRollupKey end = new CompositeRollupKey(sourceName, Integer.MAX_VALUE, Long.MAX_VALUE);
+    EntityCursor<BerkeleyDbSensorDataRollup> cursor =
+        rollupIndex.entities(txn, start, true, end, true, null);
+    while (cursor.next() != null) {
+      cursor.delete();
+    }
+    cursor.close();
+  }
+
   @Override
   public boolean deleteSource(String sourceName) {
     if (sourceName == null) {
@@ -513,36 +839,7 @@ public class BerkeleyDbImplementation extends DbImplementation {
       return null;
     }
 
-    SensorData wdData = data.asSensorData(this.server);
-    wdData = getSensorDataProperties(key, wdData);
-    return wdData;
-  }
-
-  /**
-   * Select sensor data properties for a given sensor data key and add them to the given jaxb
-   * SensorData object.
-   * 
-   * @param key The sensor data key to find properties for.
-   * @param wdData The jaxb SensorData object to add properties to.
-   * @return The jaxb SensorData object with properties added.
-   */
-  private SensorData getSensorDataProperties(CompositeSensorDataKey key, SensorData wdData) {
-    EntityCursor<BerkeleyDbSensorDataProperty> cursor =
-        sensorDataPropertyIndex.entities(key, true, key, true);
-
-    for (BerkeleyDbSensorDataProperty dbProp : cursor) {
-      if (dbProp != null
-          && !dbProp.getCompositeKey().getPropertyKey().equals(SensorData.POWER_CONSUMED)
-          && !dbProp.getCompositeKey().getPropertyKey().equals(SensorData.ENERGY_CONSUMED_TO_DATE)
-          && !dbProp.getCompositeKey().getPropertyKey().equals(SensorData.POWER_GENERATED)
-          && !dbProp.getCompositeKey().getPropertyKey()
-              .equals(SensorData.ENERGY_GENERATED_TO_DATE)) {
-
-        wdData.addProperty(dbProp.asSensorDataProperty());
-      }
-    }
-    cursor.close();
-    return wdData;
+    return data.asSensorData(this.server);
   }
 
   @Override
@@ -599,6 +896,59 @@ public class BerkeleyDbImplementation extends DbImplementation {
     return index;
   }
 
+  @Override
+  public List<SensorDataRollup> getRollups(String sourceName, int resolution, long startMillis,
+      long endMillis) {
+    List<SensorDataRollup> rollups = new ArrayList<SensorDataRollup>();
+    if (sourceName == null || startMillis >= endMillis) {
+      return rollups;
+    }
+    CompositeRollupKey start = new CompositeRollupKey(sourceName, resolution, startMillis);
+    CompositeRollupKey end = new CompositeRollupKey(sourceName, resolution, endMillis);
+    EntityCursor<BerkeleyDbSensorDataRollup> cursor =
+        rollupIndex.entities(start, true, end, false);
+    try {
+      for (BerkeleyDbSensorDataRollup dbRollup : cursor) {
+        rollups.add(dbRollup.asSensorDataRollup());
+      }
+    }
+    finally {
+      cursor.close();
+    }
+    return rollups;
+  }
+
+  @Override
+  public List<SensorDataRollup> getRollups(String sourceName, long startMillis, long endMillis) {
+    List<SensorDataRollup> rollups = new ArrayList<SensorDataRollup>();
+    for (int resolution : SensorDataRollup.RESOLUTIONS) {
+      rollups.addAll(getRollups(sourceName, resolution,
+          SensorDataRollup.bucketStart(startMillis, resolution), endMillis + 1));
+    }
+    return rollups;
+  }
+
+  @Override
+  public boolean storeRollups(List<SensorDataRollup> rollups) {
+    if (rollups == null) {
+      return false;
+    }
+    Transaction txn = environment.beginTransaction(null, null);
+    try {
+      for (SensorDataRollup rollup : rollups) {
+        rollupIndex.put(txn, new BerkeleyDbSensorDataRollup(rollup));
+      }
+      txn.commit();
+      txn = null;
+      return true;
+    }
+    finally {
+      if (txn != null) {
+        txn.abort();
+      }
+    }
+  }
+
   @Override
   public SensorDataStraddle getSensorDataStraddle(Source source, XMLGregorianCalendar timestamp) {
     if (source == null || timestamp == null) {
@@ -623,9 +973,9 @@ public class BerkeleyDbImplementation extends DbImplementation {
       }
       beforeData = dbData.asSensorData(this.server);
 
-      // Grab the item immediately after.
+      // Grab the item immediately after, however far in the future.
       start = new CompositeSensorDataKey(source.getName(), timestamp);
-      end = new CompositeSensorDataKey(source.getName(), Tstamp.makeTimestamp());
+      end = new CompositeSensorDataKey(source.getName(), Long.MAX_VALUE);
       cursor = sensorDataIndex.entities(start, true, end, true);
       dbData = cursor.first();
       cursor.close();
@@ -642,6 +992,73 @@ public class BerkeleyDbImplementation extends DbImplementation {
     return new SensorDataStraddle(timestamp, data, data);
   }
 
+  /**
+   * {@inheritDoc}. Walks forward through the SensorData with a single cursor, from the last
+   * SensorData at or before the earliest timestamp, keeping only the SensorData either side of
+   * each timestamp. If the next timestamp is more than STRADDLE_WALK_LIMIT SensorData away, the
+   * cursor is repositioned at it instead, so sparse timestamps do not walk the whole history.
+   */
+  @Override
+  public List<SensorDataStraddle> getSensorDataStraddles(Source source,
+      List<XMLGregorianCalendar> timestampList) {
+    if (source == null || timestampList == null) {
+      return null;
+    }
+    if (timestampList.isEmpty()) {
+      return new ArrayList<SensorDataStraddle>();
+    }
+    String sourceName = source.getName();
+    CompositeSensorDataKey sourceEnd = new CompositeSensorDataKey(sourceName, Long.MAX_VALUE);
+    List<SensorData> datas = new ArrayList<SensorData>();
+    long lastKept = Long.MIN_VALUE;
+    EntityCursor<BerkeleyDbSensorData> cursor = null;
+    BerkeleyDbSensorData before = null;
+    BerkeleyDbSensorData after = null;
+    try {
+      for (XMLGregorianCalendar timestamp : Tstamp.sort(timestampList)) {
+        long millis = Tstamp.toMillis(timestamp);
+        int steps = 0;
+        while ((cursor != null) && (after != null)
+            && (after.getCompositeKey().getTimestamp() < millis) && (steps < STRADDLE_WALK_LIMIT)) {
+          before = after;
+          after = cursor.next();
+          steps++;
+        }
+        if ((cursor == null)
+            || ((after != null) && (after.getCompositeKey().getTimestamp() < millis))) {
+          // Too far to walk, so look up the SensorData either side of the timestamp directly
+          if (cursor != null) {
+            cursor.close();
+          }
+          CompositeSensorDataKey key = new CompositeSensorDataKey(sourceName, millis);
+          EntityCursor<BerkeleyDbSensorData> reverse =
+              sensorDataIndex.entities(new CompositeSensorDataKey(sourceName, Long.MIN_VALUE),
+                  true, key, true);
+          try {
+            before = reverse.last();
+          }
+          finally {
+            reverse.close();
+          }
+          cursor = sensorDataIndex.entities(key, true, sourceEnd, true);
+          after = cursor.first();
+        }
+        for (BerkeleyDbSensorData dbData : new BerkeleyDbSensorData[] { before, after }) {
+          if ((dbData != null) && (dbData.getCompositeKey().getTimestamp() > lastKept)) {
+            datas.add(dbData.asSensorData(this.server));
+            lastKept = dbData.getCompositeKey().getTimestamp();
+          }
+        }
+      }
+    }
+    finally {
+      if (cursor != null) {
+        cursor.close();
+      }
+    }
+    return SensorDataStraddle.getStraddlesFromList(datas, timestampList);
+  }
+
   @Override
   public SensorDatas getSensorDatas(String sourceName, XMLGregorianCalendar startTime,
       XMLGregorianCalendar endTime) throws DbBadIntervalException {
@@ -670,9 +1087,7 @@ public class BerkeleyDbImplementation extends DbImplementation {
 
     SensorDatas datas = new SensorDatas();
     for (BerkeleyDbSensorData data : cursor) {
-      SensorData wdData = data.asSensorData(this.server);
-      wdData = getSensorDataProperties(data.getCompositeKey(), wdData);
-      datas.getSensorData().add(wdData);
+      datas.getSensorData().add(data.asSensorData(this.server));
     }
     cursor.close();
     return datas;
@@ -726,42 +1141,25 @@ public class BerkeleyDbImplementation extends DbImplementation {
       summary.setTotalSensorDatas(0);
       return summary;
     }
-    XMLGregorianCalendar firstTimestamp = null, lastTimestamp = null;
-    int dataCount = 0;
-    BerkeleyDbSensorData temp;
-    CompositeSensorDataKey start, end;
-    EntityCursor<BerkeleyDbSensorData> cursor;
+    long firstTime = 0, lastTime = 0, dataCount = 0;
     for (Source subSource : sourceList) {
-      // Create cursor for getting data.
-      start = new CompositeSensorDataKey(subSource.getName(), Tstamp.makeTimestamp(0));
-      end = new CompositeSensorDataKey(subSource.getName(), Tstamp.makeTimestamp());
-      cursor = sensorDataIndex.entities(start, true, end, true);
-
-      // Get first timestamp of sensor data.
-      if ((temp = cursor.first()) != null
-          && (firstTimestamp == null || Tstamp.lessThan(temp.getTimestamp(), firstTimestamp))) {
-        firstTimestamp = temp.getTimestamp();
+      BerkeleyDbSourceSummary subSummary = summaryIndex.get(subSource.getName());
+      if ((subSummary == null) || (subSummary.getCount() <= 0)) {
+        continue;
       }
-
-      // Iterate through and count up the number of items
-      // Note that we are already starting from the first, so we add one extra.
-      dataCount++;
-      while (cursor.next() != null) {
-        dataCount++;
+      if ((dataCount == 0) || (subSummary.getFirstTime() < firstTime)) {
+        firstTime = subSummary.getFirstTime();
       }
-
-      // Get last timestamp of sensor data.
-      if ((temp = cursor.last()) != null
-          && (lastTimestamp == null || Tstamp.greaterThan(temp.getTimestamp(), lastTimestamp))) {
-        lastTimestamp = temp.getTimestamp();
+      if ((dataCount == 0) || (subSummary.getLastTime() > lastTime)) {
+        lastTime = subSummary.getLastTime();
       }
-
-      // Clean up
-      cursor.close();
+      dataCount += subSummary.getCount();
     }
 
-    summary.setFirstSensorData(firstTimestamp);
-    summary.setLastSensorData(lastTimestamp);
+    if (dataCount > 0) {
+      summary.setFirstSensorData(Tstamp.makeTimestamp(firstTime));
+      summary.setLastSensorData(Tstamp.makeTimestamp(lastTime));
+    }
     summary.setTotalSensorDatas(dataCount);
     return summary;
   }
@@ -889,6 +1287,11 @@ public class BerkeleyDbImplementation extends DbImplementation {
     // http://download.oracle.com/docs/cd/E17277_02/html/GettingStartedGuide/backup.html#dbbackuphelper
     DbBackup backupHelper = new DbBackup(this.environment, this.lastBackupFileId);
 
+    // SensorData committed without sync may not be in the log files yet, so flush it first.
+    if (this.syncTimer != null) {
+      sync();
+    }
+
     // Determine what was the last backup file.
     boolean success = false;
     backupHelper.startBackup();
@@ -906,36 +1309,198 @@ public class BerkeleyDbImplementation extends DbImplementation {
     return success;
   }
 
+  /**
+   * {@inheritDoc} Concurrent calls are grouped, so that SensorData stored by several threads at
+   * once is committed in a single transaction: each caller queues its SensorData, and whichever
+   * caller gets to commit first commits everything queued so far, while the others wait.
+   */
   @Override
   public boolean storeSensorData(SensorData data) {
     if (data == null) {
       return false;
     }
+    if (this.groupCommitSize <= 1) {
+      return storeSensorDataAlone(data);
+    }
+
+    PendingStore pending = new PendingStore(data);
+    synchronized (this.pendingStores) {
+      this.pendingStores.add(pending);
+    }
+    synchronized (this.commitLock) {
+      // Another caller may have committed it while this one waited for the lock
+      if (!pending.done) {
+        commitPendingStores();
+      }
+    }
+    if (pending.error != null) {
+      throw pending.error;
+    }
+    return pending.stored;
+  }
+
+  /**
+   * Commits up to groupCommitSize queued SensorData stores in a single transaction, including at
+   * least the oldest one. If the shared transaction fails, each store is retried in a transaction
+   * of its own, so one bad SensorData cannot fail the others. Must be called holding commitLock.
+   */
+  private void commitPendingStores() {
+    List<PendingStore> group = new ArrayList<PendingStore>();
+    synchronized (this.pendingStores) {
+      while (!this.pendingStores.isEmpty() && group.size() < this.groupCommitSize) {
+        group.add(this.pendingStores.removeFirst());
+      }
+    }
+    if (group.size() > 1) {
+      Map<String, Boolean> knownSources = new HashMap<String, Boolean>();
+      Map<String, long[]> added = new HashMap<String, long[]>();
+      Transaction txn = environment.beginTransaction(null, this.ingestConfig);
+      try {
+        for (PendingStore pending : group) {
+          pending.stored = storeSensorData(txn, pending.data, knownSources, added);
+        }
+        for (Map.Entry<String, long[]> entry : added.entrySet()) {
+          long[] range = entry.getValue();
+          addToSummary(txn, entry.getKey(), range[0], range[1], range[2]);
+        }
+        txn.commit();
+        txn = null;
+        for (PendingStore pending : group) {
+          pending.done = true;
+        }
+        return;
+      }
+      catch (RuntimeException e) {
+        this.logger.fine("BerkeleyDB: group commit failed, storing individually: "
+            + e.getMessage());
+      }
+      finally {
+        if (txn != null) {
+          txn.abort();
+        }
+      }
+    }
+    for (PendingStore pending : group) {
+      try {
+        pending.stored = storeSensorDataAlone(pending.data);
+      }
+      catch (RuntimeException e) {
+        pending.stored = false;
+        pending.error = e;
+      }
+      pending.done = true;
+    }
+  }
 
-    BerkeleyDbSensorData dbData;
+  /**
+   * Stores a single SensorData in a transaction of its own.
+   * 
+   * @param data The SensorData to store.
+   * @return True if it was stored, false if SensorData with the same [Source, timestamp] exists.
+   */
+  private boolean storeSensorDataAlone(SensorData data) {
     String sourceName = UriUtils.getUriSuffix(data.getSource());
-    if (data.isSetProperties()) {
-      dbData =
-          new BerkeleyDbSensorData(data.getTimestamp(), data.getTool(), sourceName,
-              data.getProperties());
-
-      for (Property p : data.getProperties().getProperty()) {
-        if (!p.getKey().equals(SensorData.POWER_CONSUMED)
-            && !p.getKey().equals(SensorData.ENERGY_CONSUMED_TO_DATE)
-            && !p.getKey().equals(SensorData.POWER_GENERATED)
-            && !p.getKey().equals(SensorData.ENERGY_GENERATED_TO_DATE)) {
-
-          BerkeleyDbSensorDataProperty dbProp =
-              new BerkeleyDbSensorDataProperty(sourceName, dbData.getTimestamp(), p.getKey(),
-                  p.getValue());
-          sensorDataPropertyPrimaryIndex.put(dbProp);
+    BerkeleyDbSensorData dbData =
+        new BerkeleyDbSensorData(data.getTimestamp(), data.getTool(), sourceName,
+            data.getProperties());
+    Transaction txn = environment.beginTransaction(null, this.ingestConfig);
+    try {
+      if (!sensorDataIndex.putNoOverwrite(txn, dbData)) {
+        return false;
+      }
+      long millis = dbData.getCompositeKey().getTimestamp();
+      addToSummary(txn, sourceName, millis, millis, 1);
+      txn.commit();
+      txn = null;
+      return true;
+    }
+    finally {
+      if (txn != null) {
+        txn.abort();
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc} All of the SensorData is written under a single transaction. SensorData whose
+   * Source is unknown or whose [Source, timestamp] already exists is skipped and returned, and the
+   * rest of the list is still committed.
+   */
+  @Override
+  public List<SensorData> storeSensorDatas(List<SensorData> datas) {
+    if (datas == null) {
+      return null;
+    }
+    List<SensorData> rejected = new ArrayList<SensorData>();
+    Map<String, Boolean> knownSources = new HashMap<String, Boolean>();
+    Map<String, long[]> added = new HashMap<String, long[]>();
+    Transaction txn = environment.beginTransaction(null, this.ingestConfig);
+    boolean committed = false;
+    try {
+      for (SensorData data : datas) {
+        if (!storeSensorData(txn, data, knownSources, added)) {
+          rejected.add(data);
         }
       }
+      for (Map.Entry<String, long[]> entry : added.entrySet()) {
+        long[] range = entry.getValue();
+        addToSummary(txn, entry.getKey(), range[0], range[1], range[2]);
+      }
+      txn.commit();
+      committed = true;
+    }
+    finally {
+      if (!committed) {
+        txn.abort();
+      }
+    }
+    return rejected;
+  }
+
+  /**
+   * Stores a single SensorData under the given transaction, as part of a batch.
+   * 
+   * @param txn The transaction to store the SensorData under.
+   * @param data The SensorData to store.
+   * @param knownSources Whether each Source name seen so far in this batch exists, so that each
+   * Source is only looked up once.
+   * @param added The earliest and latest timestamps and the number of SensorData stored so far in
+   * this batch for each Source, which is updated if this SensorData is stored.
+   * @return True if the SensorData was stored, false if it was invalid, its Source is unknown, or
+   * SensorData with the same [Source, timestamp] already exists.
+   */
+  private boolean storeSensorData(Transaction txn, SensorData data,
+      Map<String, Boolean> knownSources, Map<String, long[]> added) {
+    if (data == null || data.getTimestamp() == null || data.getSource() == null) {
+      return false;
+    }
+    String sourceName = UriUtils.getUriSuffix(data.getSource());
+    Boolean sourceExists = knownSources.get(sourceName);
+    if (sourceExists == null) {
+      sourceExists = sourceIndex.contains(txn, sourceName, null);
+      knownSources.put(sourceName, sourceExists);
+    }
+    if (!sourceExists) {
+      return false;
+    }
+
+    BerkeleyDbSensorData dbData =
+        new BerkeleyDbSensorData(data.getTimestamp(), data.getTool(), sourceName,
+            data.getProperties());
+    if (!sensorDataIndex.putNoOverwrite(txn, dbData)) {
+      return false;
+    }
+    long millis = dbData.getCompositeKey().getTimestamp();
+    long[] range = added.get(sourceName);
+    if (range == null) {
+      added.put(sourceName, new long[] { millis, millis, 1 });
     }
     else {
-      dbData = new BerkeleyDbSensorData(data.getTimestamp(), data.getTool(), sourceName);
+      range[0] = Math.min(range[0], millis);
+      range[1] = Math.max(range[1], millis);
+      range[2]++;
     }
-    return sensorDataIndex.putNoOverwrite(dbData);
+    return true;
   }
 
   @Override
@@ -1029,6 +1594,18 @@ public class BerkeleyDbImplementation extends DbImplementation {
     }
     sensorDataPropCursor.close();
 
+    EntityCursor<BerkeleyDbSensorDataRollup> rollupCursor = rollupIndex.entities(txn, null);
+    while (rollupCursor.next() != null) {
+      rollupCursor.delete();
+    }
+    rollupCursor.close();
+
+    EntityCursor<BerkeleyDbSourceSummary> summaryCursor = summaryIndex.entities(txn, null);
+    while (summaryCursor.next() != null) {
+      summaryCursor.delete();
+    }
+    summaryCursor.close();
+
     EntityCursor<BerkeleyDbSensorData> sensorDataCursor = sensorDataIndex.entities(txn, null);
     while (sensorDataCursor.next() != null) {
       sensorDataCursor.delete();
@@ -1074,54 +1651,28 @@ public class BerkeleyDbImplementation extends DbImplementation {
   }
 
   /**
-   * Write the files to the backup folder.
+   * Write the files to the backup folder. Files are streamed with the SnapshotCopier, and
+   * compressed if the Server Properties ask for it.
    * 
    * @param filenames List of files to backup.
    * @return True if the backup is successful, false otherwise.
    */
   private boolean writeBackup(String[] filenames) {
-    boolean success = false;
-    File sourceFile, destFile;
-    FileChannel source = null;
-    FileChannel dest = null;
-
-    if (filenames.length == 0) {
-      // Nothing to back up.
-      return true;
-    }
-
-    for (String filename : filenames) {
-      // Filenames are rooted in berkeleyDb folder.
-      sourceFile = new File(topDir, filename);
-      destFile = new File(this.backupDir, sourceFile.getName());
+    // Filenames are rooted in berkeleyDb folder.
+    return makeSnapshotCopier().copyFiles(topDir, filenames, this.backupDir);
+  }
 
-      try {
-        source = new FileInputStream(sourceFile).getChannel();
-        dest = new FileOutputStream(destFile).getChannel();
-        dest.transferFrom(source, 0, source.size());
-        success = true;
-      }
-      catch (FileNotFoundException e) {
-        this.logger.warning("BerkeleyDB: Could not backup file " + filename);
-      }
-      catch (IOException e) {
-        this.logger.warning("BerkeleyDB: Could not copy file " + filename);
-      }
-      finally {
-        try {
-          if (source != null) {
-            source.close();
-          }
-          if (dest != null) {
-            dest.close();
-          }
-        }
-        catch (IOException e) {
-          this.logger.warning("BerkeleyDB: Could not close source and dest channels.");
-        }
-      }
+  /**
+   * Stops the background flushing, after flushing one last time. The environment itself is closed
+   * by the shutdown hook registered in configure().
+   */
+  @Override
+  public void stop() {
+    if (this.syncTimer != null) {
+      this.syncTimer.cancel();
+      this.syncTimer = null;
+      sync();
     }
-    return success;
   }
 
   @Override
@@ -1131,4 +1682,28 @@ public class BerkeleyDbImplementation extends DbImplementation {
     // http://download.oracle.com/docs/cd/E17277_02/html/GettingStartedGuide/backgroundthreads.html
     return true;
   }
+
+  /**
+   * A SensorData store queued for a group commit, along with its outcome. The fields are only
+   * accessed while holding commitLock, or by the caller after the store is done.
+   */
+  private static class PendingStore {
+    /** The SensorData to store. */
+    private final SensorData data;
+    /** Whether the store has been attempted. */
+    private boolean done;
+    /** Whether the SensorData was stored. */
+    private boolean stored;
+    /** The exception thrown while storing the SensorData, if any. */
+    private RuntimeException error;
+
+    /**
+     * Creates a new PendingStore.
+     * 
+     * @param data The SensorData to store.
+     */
+    PendingStore(SensorData data) {
+      this.data = data;
+    }
+  }
 }
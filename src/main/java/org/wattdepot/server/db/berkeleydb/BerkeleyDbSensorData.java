@@ -1,5 +1,7 @@
 package org.wattdepot.server.db.berkeleydb;
 
+import java.util.ArrayList;
+import java.util.List;
 import javax.xml.datatype.XMLGregorianCalendar;
 import org.wattdepot.resource.property.jaxb.Properties;
 import org.wattdepot.resource.property.jaxb.Property;
@@ -13,12 +15,15 @@ import com.sleepycat.persist.model.Persistent;
 import com.sleepycat.persist.model.PrimaryKey;
 
 /**
- * Implementation of SensorData that is backed by BerkeleyDB.
+ * Implementation of SensorData that is backed by BerkeleyDB. Properties other than the four with
+ * fields of their own are embedded as a byte array made by PropertyListBinding, so a SensorData is
+ * read whole with a single lookup. Version 0 kept them as separate BerkeleyDbSensorDataProperty
+ * entities, which BerkeleyDbImplementation moves into the SensorData when opening such a store.
  * 
  * @author George Lee
  * 
  */
-@Entity
+@Entity(version = 1)
 public class BerkeleyDbSensorData {
   @PrimaryKey
   private CompositeSensorDataKey compositeKey;
@@ -28,6 +33,7 @@ public class BerkeleyDbSensorData {
   private Double powerGenerated;
   private Double energyGeneratedToDate;
   private long lastMod;
+  private byte[] properties;
 
   /**
    * Default constructor as required by BerkeleyDB.
@@ -76,7 +82,42 @@ public class BerkeleyDbSensorData {
         this.energyGeneratedToDate =
             properties.getPropertyAsDouble(SensorData.ENERGY_GENERATED_TO_DATE);
       }
+      List<Property> extra = new ArrayList<Property>();
+      for (Property p : properties.getProperty()) {
+        if (!isField(p.getKey())) {
+          extra.add(p);
+        }
+      }
+      this.properties = PropertyListBinding.toBytes(extra);
+    }
+  }
+
+  /**
+   * Returns true if the given property key has a field of its own.
+   * 
+   * @param key The property key.
+   * @return True if the property is kept in its own field rather than embedded.
+   */
+  static boolean isField(String key) {
+    return SensorData.POWER_CONSUMED.equals(key) || SensorData.ENERGY_CONSUMED_TO_DATE.equals(key)
+        || SensorData.POWER_GENERATED.equals(key)
+        || SensorData.ENERGY_GENERATED_TO_DATE.equals(key);
+  }
+
+  /**
+   * Adds properties to those embedded in this sensor data, as when moving them out of separate
+   * BerkeleyDbSensorDataProperty entities.
+   * 
+   * @param added The properties to add. Those with fields of their own are ignored.
+   */
+  void addProperties(List<Property> added) {
+    List<Property> embedded = PropertyListBinding.fromBytes(this.properties);
+    for (Property p : added) {
+      if (!isField(p.getKey())) {
+        embedded.add(p);
+      }
     }
+    this.properties = PropertyListBinding.toBytes(embedded);
   }
 
   /**
@@ -107,6 +148,11 @@ public class BerkeleyDbSensorData {
       returnData.addProperty(new Property(SensorData.ENERGY_GENERATED_TO_DATE,
           this.energyGeneratedToDate));
     }
+    if (this.properties != null) {
+      for (Property p : PropertyListBinding.fromBytes(this.properties)) {
+        returnData.addProperty(p);
+      }
+    }
 
     return returnData;
   }
@@ -190,6 +236,18 @@ class CompositeSensorDataKey {
     this.sourceName = sourceName;
   }
 
+  /**
+   * Constructor for our composite key from a timestamp in milliseconds, such as Long.MAX_VALUE to
+   * bound a range at the end of a source's sensor data.
+   * 
+   * @param sourceName The name of the sourceName.
+   * @param timestamp The timestamp of the sourceName data in milliseconds.
+   */
+  CompositeSensorDataKey(String sourceName, long timestamp) {
+    this.timestamp = timestamp;
+    this.sourceName = sourceName;
+  }
+
   /**
    * Get the sourceName associated with this compositeKey.
    * 
@@ -0,0 +1,156 @@
+package org.wattdepot.server.db.berkeleydb;
+
+import org.wattdepot.server.db.SensorDataRollup;
+import com.sleepycat.persist.model.Entity;
+import com.sleepycat.persist.model.KeyField;
+import com.sleepycat.persist.model.Persistent;
+import com.sleepycat.persist.model.PrimaryKey;
+
+/**
+ * Implementation of SensorDataRollup that is backed by BerkeleyDB.
+ */
+@Entity
+public class BerkeleyDbSensorDataRollup {
+  @PrimaryKey
+  private CompositeRollupKey compositeKey;
+  private boolean complete;
+  private int count;
+  private long firstTime;
+  private long lastTime;
+  private double minPowerConsumed;
+  private double maxPowerConsumed;
+  private double totalPowerConsumed;
+  private double minPowerGenerated;
+  private double maxPowerGenerated;
+  private double totalPowerGenerated;
+  private double firstEnergyConsumedToDate;
+  private double lastEnergyConsumedToDate;
+  private double firstEnergyGeneratedToDate;
+  private double lastEnergyGeneratedToDate;
+  private double energyConsumed;
+  private double energyGenerated;
+
+  /**
+   * Default constructor as required by BerkeleyDB.
+   */
+  public BerkeleyDbSensorDataRollup() {
+    // Required by BerkeleyDB.
+  }
+
+  /**
+   * Create a BerkeleyDbSensorDataRollup instance using the values from a SensorDataRollup.
+   * 
+   * @param rollup The rollup to store.
+   */
+  public BerkeleyDbSensorDataRollup(SensorDataRollup rollup) {
+    this.compositeKey =
+        new CompositeRollupKey(rollup.getSourceName(), rollup.getResolution(), rollup.getStart());
+    this.complete = rollup.isComplete();
+    this.count = rollup.getCount();
+    this.firstTime = rollup.getFirstTime();
+    this.lastTime = rollup.getLastTime();
+    this.minPowerConsumed = rollup.getMinPowerConsumed();
+    this.maxPowerConsumed = rollup.getMaxPowerConsumed();
+    this.totalPowerConsumed = rollup.getTotalPowerConsumed();
+    this.minPowerGenerated = rollup.getMinPowerGenerated();
+    this.maxPowerGenerated = rollup.getMaxPowerGenerated();
+    this.totalPowerGenerated = rollup.getTotalPowerGenerated();
+    this.firstEnergyConsumedToDate = rollup.getFirstEnergyConsumedToDate();
+    this.lastEnergyConsumedToDate = rollup.getLastEnergyConsumedToDate();
+    this.firstEnergyGeneratedToDate = rollup.getFirstEnergyGeneratedToDate();
+    this.lastEnergyGeneratedToDate = rollup.getLastEnergyGeneratedToDate();
+    this.energyConsumed = rollup.getEnergyConsumed();
+    this.energyGenerated = rollup.getEnergyGenerated();
+  }
+
+  /**
+   * Converts the BerkeleyDB representation of the rollup to a SensorDataRollup.
+   * 
+   * @return Instance of SensorDataRollup with the same values as this.
+   */
+  public SensorDataRollup asSensorDataRollup() {
+    SensorDataRollup rollup =
+        new SensorDataRollup(this.compositeKey.getSourceName(), this.compositeKey.getResolution(),
+            this.compositeKey.getStart());
+    rollup.setComplete(this.complete);
+    rollup.setSamples(this.count, this.firstTime, this.lastTime);
+    rollup.setPowerConsumed(this.minPowerConsumed, this.maxPowerConsumed,
+        this.totalPowerConsumed);
+    rollup.setPowerGenerated(this.minPowerGenerated, this.maxPowerGenerated,
+        this.totalPowerGenerated);
+    rollup.setCounters(this.firstEnergyConsumedToDate, this.lastEnergyConsumedToDate,
+        this.firstEnergyGeneratedToDate, this.lastEnergyGeneratedToDate);
+    rollup.setEnergy(this.energyGenerated, this.energyConsumed);
+    return rollup;
+  }
+
+  /**
+   * Get the compositeKey (which contains the sourceName, resolution and bucket start) associated
+   * with this rollup.
+   * 
+   * @return The compositeKey for this rollup.
+   */
+  public CompositeRollupKey getCompositeKey() {
+    return this.compositeKey;
+  }
+}
+
+/**
+ * Represents a composite key for sensor data rollups in BerkeleyDB.
+ */
+@Persistent
+class CompositeRollupKey {
+  @KeyField(1)
+  private String sourceName;
+  @KeyField(2)
+  private int resolution;
+  @KeyField(3)
+  private long start;
+
+  /**
+   * Default constructor required by BerkeleyDB.
+   */
+  CompositeRollupKey() {
+    // Required by BerkeleyDB.
+  }
+
+  /**
+   * Constructor for our composite key.
+   * 
+   * @param sourceName The name of the source.
+   * @param resolution The bucket length in minutes.
+   * @param start The start of the bucket in epoch milliseconds.
+   */
+  CompositeRollupKey(String sourceName, int resolution, long start) {
+    this.sourceName = sourceName;
+    this.resolution = resolution;
+    this.start = start;
+  }
+
+  /**
+   * Get the sourceName associated with this compositeKey.
+   * 
+   * @return The sourceName associated with this compositeKey.
+   */
+  String getSourceName() {
+    return this.sourceName;
+  }
+
+  /**
+   * Get the resolution associated with this compositeKey.
+   * 
+   * @return The resolution in minutes.
+   */
+  int getResolution() {
+    return this.resolution;
+  }
+
+  /**
+   * Get the bucket start associated with this compositeKey.
+   * 
+   * @return The bucket start in epoch milliseconds.
+   */
+  long getStart() {
+    return this.start;
+  }
+}
@@ -0,0 +1,116 @@
+package org.wattdepot.server.db.berkeleydb;
+
+import com.sleepycat.persist.model.Entity;
+import com.sleepycat.persist.model.PrimaryKey;
+
+/**
+ * The first and last timestamps and the number of SensorData stored for one non-virtual Source,
+ * kept up to date as SensorData is stored and deleted so that SourceSummaries do not require a
+ * walk over the SensorData.
+ */
+@Entity
+public class BerkeleyDbSourceSummary {
+  @PrimaryKey
+  private String sourceName;
+  private long firstTime;
+  private long lastTime;
+  private long count;
+
+  /**
+   * Default constructor as required by BerkeleyDB.
+   */
+  public BerkeleyDbSourceSummary() {
+    // Required by BerkeleyDB.
+  }
+
+  /**
+   * Create an empty summary for the named Source.
+   * 
+   * @param sourceName The name of the Source.
+   */
+  public BerkeleyDbSourceSummary(String sourceName) {
+    this.sourceName = sourceName;
+  }
+
+  /**
+   * Adds SensorData to the summary.
+   * 
+   * @param first The earliest timestamp added, in milliseconds.
+   * @param last The latest timestamp added, in milliseconds.
+   * @param added The number of SensorData added.
+   */
+  public void add(long first, long last, long added) {
+    if (this.count == 0) {
+      this.firstTime = first;
+      this.lastTime = last;
+    }
+    else {
+      this.firstTime = Math.min(this.firstTime, first);
+      this.lastTime = Math.max(this.lastTime, last);
+    }
+    this.count += added;
+  }
+
+  /**
+   * Get the name of the Source this summary is for.
+   * 
+   * @return The name of the Source.
+   */
+  public String getSourceName() {
+    return this.sourceName;
+  }
+
+  /**
+   * Get the timestamp of the first SensorData.
+   * 
+   * @return The timestamp in milliseconds. Meaningless if the count is 0.
+   */
+  public long getFirstTime() {
+    return this.firstTime;
+  }
+
+  /**
+   * Set the timestamp of the first SensorData.
+   * 
+   * @param firstTime The timestamp in milliseconds.
+   */
+  public void setFirstTime(long firstTime) {
+    this.firstTime = firstTime;
+  }
+
+  /**
+   * Get the timestamp of the last SensorData.
+   * 
+   * @return The timestamp in milliseconds. Meaningless if the count is 0.
+   */
+  public long getLastTime() {
+    return this.lastTime;
+  }
+
+  /**
+   * Set the timestamp of the last SensorData.
+   * 
+   * @param lastTime The timestamp in milliseconds.
+   */
+  public void setLastTime(long lastTime) {
+    this.lastTime = lastTime;
+  }
+
+  /**
+   * Get the number of SensorData.
+   * 
+   * @return The number of SensorData.
+   */
+  public long getCount() {
+    return this.count;
+  }
+
+  /**
+   * Set the number of SensorData.
+   * 
+   * @param count The number of SensorData.
+   */
+  public void setCount(long count) {
+    this.count = count;
+  }
+}
@@ -0,0 +1,68 @@
+package org.wattdepot.server.db.berkeleydb;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.wattdepot.resource.property.jaxb.Property;
+import com.sleepycat.bind.tuple.TupleBinding;
+import com.sleepycat.bind.tuple.TupleInput;
+import com.sleepycat.bind.tuple.TupleOutput;
+
+/**
+ * Converts a list of Properties to and from a compact byte array, so that the properties of a
+ * SensorData can be embedded in its BerkeleyDbSensorData without the overhead of storing each as a
+ * persistent object. The array holds the number of properties, followed by each key and value.
+ */
+public class PropertyListBinding extends TupleBinding<List<Property>> {
+
+  /** A shared instance, as the binding holds no state. */
+  private static final PropertyListBinding INSTANCE = new PropertyListBinding();
+
+  /**
+   * Converts the given properties to a byte array.
+   * 
+   * @param properties The properties.
+   * @return The byte array, or null if there are no properties.
+   */
+  public static byte[] toBytes(List<Property> properties) {
+    if ((properties == null) || properties.isEmpty()) {
+      return null;
+    }
+    TupleOutput output = new TupleOutput();
+    INSTANCE.objectToEntry(properties, output);
+    return output.toByteArray();
+  }
+
+  /**
+   * Converts a byte array made by toBytes back to properties.
+   * 
+   * @param bytes The byte array, which may be null.
+   * @return The properties, which are empty if the array is null.
+   */
+  public static List<Property> fromBytes(byte[] bytes) {
+    if (bytes == null) {
+      return new ArrayList<Property>();
+    }
+    return INSTANCE.entryToObject(new TupleInput(bytes));
+  }
+
+  @Override
+  public List<Property> entryToObject(TupleInput input) {
+    int count = input.readPackedInt();
+    List<Property> properties = new ArrayList<Property>(count);
+    for (int i = 0; i < count; i++) {
+      String key = input.readString();
+      String value = input.readString();
+      properties.add(new Property(key, value));
+    }
+    return properties;
+  }
+
+  @Override
+  public void objectToEntry(List<Property> properties, TupleOutput output) {
+    output.writePackedInt(properties.size());
+    for (Property property : properties) {
+      output.writeString(property.getKey());
+      output.writeString(property.getValue());
+    }
+  }
+}
@@ -1,11 +1,17 @@
 package org.wattdepot.server.db.memory;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.xml.datatype.DatatypeConstants;
 import javax.xml.datatype.XMLGregorianCalendar;
+import org.wattdepot.resource.sensordata.SensorDataRecord;
 import org.wattdepot.resource.sensordata.SensorDataStraddle;
 import org.wattdepot.resource.sensordata.jaxb.SensorData;
 import org.wattdepot.resource.sensordata.jaxb.SensorDataIndex;
@@ -23,6 +29,7 @@ import org.wattdepot.server.Server;
 import org.wattdepot.server.db.DbBadIntervalException;
 import org.wattdepot.server.db.DbImplementation;
 import org.wattdepot.server.db.DbManager;
+import org.wattdepot.server.db.SensorDataRollup;
 import org.wattdepot.util.tstamp.Tstamp;
 
 /**
@@ -31,14 +38,34 @@ import org.wattdepot.util.tstamp.Tstamp;
  * should only be used in special circumstances, such as during system development or performance
  * testing. <b>It is NOT for production use!</b>
  * 
+ * Each Source's SensorData is kept in a ConcurrentSkipListMap keyed by the timestamp in epoch
+ * milliseconds, so single, latest, straddle and range lookups are O(log n) and iteration is always
+ * in timestamp order. The SensorData is held as compact SensorDataRecords, which straddles use
+ * directly, and is only rebuilt as SensorData when it is returned.
+ * 
  * @author Robert Brewer
  */
 public class MemoryStorageImplementation extends DbImplementation {
 
   /** Holds the mapping from Source name to Source object. */
   private ConcurrentMap<String, Source> name2SourceHash;
-  /** Holds the mapping from Source name to a map of timestamp to SensorData. */
-  private ConcurrentMap<String, ConcurrentMap<XMLGregorianCalendar, SensorData>> source2SensorDatasHash;
+  /**
+   * Holds the mapping from Source name to a sorted map of timestamp (in millis) to SensorData, kept
+   * as compact SensorDataRecords.
+   */
+  private ConcurrentMap<String,
+      ConcurrentNavigableMap<Long, SensorDataRecord>> source2SensorDatasHash;
+  /**
+   * Holds the mapping from Source name to the number of SensorData stored for it, since the size of
+   * a skip list can only be found by walking it.
+   */
+  private ConcurrentMap<String, AtomicLong> source2CountHash;
+  /**
+   * Holds the mapping from Source name to resolution to a sorted map of bucket start (in millis) to
+   * SensorDataRollup.
+   */
+  private ConcurrentMap<String,
+      ConcurrentMap<Integer, ConcurrentNavigableMap<Long, SensorDataRollup>>> source2RollupsHash;
   /** Holds the mapping from username to a User object. */
   private ConcurrentMap<String, User> name2UserHash;
   /**
@@ -47,11 +74,6 @@ public class MemoryStorageImplementation extends DbImplementation {
    * resizing.
    */
   private static final int DEFAULT_NUM_SOURCES = 100;
-  /**
-   * The default size for containers that are indexed by SensorData. This should be set to a number
-   * larger than the expected number of SensorDatas per Source, to prevent containers from resizing.
-   */
-  private static final int DEFAULT_NUM_SENSORDATA = 3000;
   /**
    * The default size for containers that are indexed by User. This should be set to a number larger
    * than the expected number of users that will be stored, to prevent containers from resizing.
@@ -75,7 +97,12 @@ public class MemoryStorageImplementation extends DbImplementation {
     // Create the hash maps
     this.name2SourceHash = new ConcurrentHashMap<String, Source>(DEFAULT_NUM_SOURCES);
     this.source2SensorDatasHash =
-        new ConcurrentHashMap<String, ConcurrentMap<XMLGregorianCalendar, SensorData>>(
+        new ConcurrentHashMap<String, ConcurrentNavigableMap<Long, SensorDataRecord>>(
+            DEFAULT_NUM_SOURCES);
+    this.source2CountHash = new ConcurrentHashMap<String, AtomicLong>(DEFAULT_NUM_SOURCES);
+    this.source2RollupsHash =
+        new ConcurrentHashMap<String,
+            ConcurrentMap<Integer, ConcurrentNavigableMap<Long, SensorDataRollup>>>(
             DEFAULT_NUM_SOURCES);
     this.name2UserHash = new ConcurrentHashMap<String, User>(DEFAULT_NUM_USERS);
     // Since nothing is stored on disk, there is no data to be read into the hash maps
@@ -146,35 +173,33 @@ public class MemoryStorageImplementation extends DbImplementation {
       summary.setTotalSensorDatas(0);
       return summary;
     }
-    XMLGregorianCalendar firstTimestamp = null, lastTimestamp = null, dataTimestamp;
+    SensorDataRecord firstData = null, lastData = null;
     long dataCount = 0;
     for (Source subSource : sourceList) {
       String subSourceName = subSource.getName();
       // Retrieve this Source's map of timestamps to SensorData
-      ConcurrentMap<XMLGregorianCalendar, SensorData> sensorDataMap =
+      ConcurrentNavigableMap<Long, SensorDataRecord> sensorDataMap =
           this.source2SensorDatasHash.get(subSourceName);
       if (sensorDataMap != null) {
-        // Loop over all SensorData in hash
-        for (SensorData data : sensorDataMap.values()) {
-          dataCount++;
-          dataTimestamp = data.getTimestamp();
-          if (firstTimestamp == null) {
-            firstTimestamp = dataTimestamp;
-          }
-          if (lastTimestamp == null) {
-            lastTimestamp = dataTimestamp;
+        // The map is sorted, so the first and last entries are the earliest and latest data
+        Map.Entry<Long, SensorDataRecord> firstEntry = sensorDataMap.firstEntry();
+        Map.Entry<Long, SensorDataRecord> lastEntry = sensorDataMap.lastEntry();
+        AtomicLong count = this.source2CountHash.get(subSourceName);
+        if ((firstEntry != null) && (lastEntry != null)) {
+          if (count != null) {
+            dataCount += count.get();
           }
-          if (dataTimestamp.compare(firstTimestamp) == DatatypeConstants.LESSER) {
-            firstTimestamp = dataTimestamp;
+          if ((firstData == null) || (firstEntry.getKey() < firstData.getMillis())) {
+            firstData = firstEntry.getValue();
           }
-          if (dataTimestamp.compare(lastTimestamp) == DatatypeConstants.GREATER) {
-            lastTimestamp = dataTimestamp;
+          if ((lastData == null) || (lastEntry.getKey() > lastData.getMillis())) {
+            lastData = lastEntry.getValue();
           }
         }
       }
     }
-    summary.setFirstSensorData(firstTimestamp);
-    summary.setLastSensorData(lastTimestamp);
+    summary.setFirstSensorData((firstData == null) ? null : firstData.getTimestamp());
+    summary.setLastSensorData((lastData == null) ? null : lastData.getTimestamp());
     summary.setTotalSensorDatas(dataCount);
     return summary;
   }
@@ -229,23 +254,18 @@ public class MemoryStorageImplementation extends DbImplementation {
       return null;
     }
     else {
-      SensorDataIndex index;
+      SensorDataIndex index = new SensorDataIndex();
       // Retrieve this Source's map of timestamps to SensorData
-      ConcurrentMap<XMLGregorianCalendar, SensorData> sensorDataMap =
+      ConcurrentNavigableMap<Long, SensorDataRecord> sensorDataMap =
           this.source2SensorDatasHash.get(sourceName);
       // If there is any sensor data for this Source
-      if (sensorDataMap == null) {
-        index = new SensorDataIndex();
-      }
-      else {
-        index = new SensorDataIndex(sensorDataMap.size());
-        // Loop over all SensorData in hash
-        for (SensorData data : sensorDataMap.values()) {
+      if (sensorDataMap != null) {
+        // Loop over all SensorData in map, which are already in timestamp order
+        for (SensorDataRecord data : sensorDataMap.values()) {
           // Convert each SensorData to SensorDataRef, add to index
-          index.getSensorDataRef().add(new SensorDataRef(data));
+          index.getSensorDataRef().add(makeRef(data));
         }
       }
-      Collections.sort(index.getSensorDataRef());
       return index;
     }
   }
@@ -267,31 +287,16 @@ public class MemoryStorageImplementation extends DbImplementation {
     }
     else {
       SensorDataIndex index = new SensorDataIndex();
-      // Retrieve this Source's map of timestamps to SensorData
-      ConcurrentMap<XMLGregorianCalendar, SensorData> sensorDataMap =
-          this.source2SensorDatasHash.get(sourceName);
+      // Only interested in SensorData that is startTime <= data <= endTime
+      ConcurrentNavigableMap<Long, SensorDataRecord> rangeMap =
+          getSensorDataRange(sourceName, startTime, endTime);
       // If there is any sensor data for this Source
-      if (sensorDataMap != null) {
-        // Loop over all SensorData in hash
-        for (SensorData data : sensorDataMap.values()) {
-          // Only interested in SensorData that is startTime <= data <= endTime
-          int startComparison = data.getTimestamp().compare(startTime);
-          int endComparison;
-          if (endTime == null) {
-            endComparison = DatatypeConstants.LESSER;
-          }
-          else {
-            endComparison = data.getTimestamp().compare(endTime);
-          }
-          if ((startComparison == DatatypeConstants.EQUAL)
-              || (endComparison == DatatypeConstants.EQUAL)
-              || ((startComparison == DatatypeConstants.GREATER) && (endComparison == DatatypeConstants.LESSER))) {
-            // convert each matching SensorData to SensorDataRef, add to index
-            index.getSensorDataRef().add(new SensorDataRef(data));
-          }
+      if (rangeMap != null) {
+        for (SensorDataRecord data : rangeMap.values()) {
+          // convert each matching SensorData to SensorDataRef, add to index
+          index.getSensorDataRef().add(makeRef(data));
         }
       }
-      Collections.sort(index.getSensorDataRef());
       return index;
     }
   }
@@ -313,35 +318,64 @@ public class MemoryStorageImplementation extends DbImplementation {
     }
     else {
       SensorDatas datas = new SensorDatas();
-      // Retrieve this Source's map of timestamps to SensorData
-      ConcurrentMap<XMLGregorianCalendar, SensorData> sensorDataMap =
-          this.source2SensorDatasHash.get(sourceName);
+      // Only interested in SensorData that is startTime <= data <= endTime
+      ConcurrentNavigableMap<Long, SensorDataRecord> rangeMap =
+          getSensorDataRange(sourceName, startTime, endTime);
       // If there is any sensor data for this Source
-      if (sensorDataMap != null) {
-        // Loop over all SensorData in hash
-        for (SensorData data : sensorDataMap.values()) {
-          // Only interested in SensorData that is startTime <= data <= endTime
-          int startComparison = data.getTimestamp().compare(startTime);
-          int endComparison;
-          if (endTime == null) {
-            endComparison = DatatypeConstants.LESSER;
-          }
-          else {
-            endComparison = data.getTimestamp().compare(endTime);
-          }
-          if ((startComparison == DatatypeConstants.EQUAL)
-              || (endComparison == DatatypeConstants.EQUAL)
-              || ((startComparison == DatatypeConstants.GREATER) && (endComparison == DatatypeConstants.LESSER))) {
-            // add to SensorDatas
-            datas.getSensorData().add(data);
-          }
+      if (rangeMap != null) {
+        for (SensorDataRecord data : rangeMap.values()) {
+          datas.getSensorData().add(data.toSensorData());
         }
       }
-      Collections.sort(datas.getSensorData());
       return datas;
     }
   }
 
+  /**
+   * Returns a view of the given Source's SensorData with timestamps between startTime and endTime
+   * inclusive, in timestamp order.
+   * 
+   * @param sourceName The name of the Source whose SensorData is desired.
+   * @param startTime The earliest timestamp of interest.
+   * @param endTime The latest timestamp of interest, or null for no upper bound.
+   * @return The SensorData in the range, or null if there is no SensorData for this Source.
+   */
+  private ConcurrentNavigableMap<Long, SensorDataRecord> getSensorDataRange(String sourceName,
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime) {
+    // Retrieve this Source's map of timestamps to SensorData
+    ConcurrentNavigableMap<Long, SensorDataRecord> sensorDataMap =
+        this.source2SensorDatasHash.get(sourceName);
+    if (sensorDataMap == null) {
+      return null;
+    }
+    else if (endTime == null) {
+      return sensorDataMap.tailMap(toMillis(startTime), true);
+    }
+    else {
+      return sensorDataMap.subMap(toMillis(startTime), true, toMillis(endTime), true);
+    }
+  }
+
+  /**
+   * Converts a timestamp to the key used in the SensorData maps.
+   * 
+   * @param timestamp The timestamp to convert.
+   * @return The timestamp in milliseconds since the epoch.
+   */
+  private static long toMillis(XMLGregorianCalendar timestamp) {
+    return Tstamp.toMillis(timestamp);
+  }
+
+  /**
+   * Makes the SensorDataRef for a stored SensorData.
+   * 
+   * @param data The stored SensorData.
+   * @return The SensorDataRef.
+   */
+  private static SensorDataRef makeRef(SensorDataRecord data) {
+    return new SensorDataRef(data.getTimestamp(), data.getTool(), data.getSource());
+  }
+
   /** {@inheritDoc} */
   @Override
   public SensorData getSensorData(String sourceName, XMLGregorianCalendar timestamp) {
@@ -350,14 +384,15 @@ public class MemoryStorageImplementation extends DbImplementation {
     }
     else {
       // Retrieve this Source's map of timestamps to SensorData
-      ConcurrentMap<XMLGregorianCalendar, SensorData> sensorDataMap =
+      ConcurrentNavigableMap<Long, SensorDataRecord> sensorDataMap =
           this.source2SensorDatasHash.get(sourceName);
       // If there is any sensor data for this Source
       if (sensorDataMap == null) {
         return null;
       }
       else {
-        return sensorDataMap.get(timestamp);
+        SensorDataRecord data = sensorDataMap.get(toMillis(timestamp));
+        return (data == null) ? null : data.toSensorData();
       }
     }
   }
@@ -374,24 +409,16 @@ public class MemoryStorageImplementation extends DbImplementation {
     }
     else {
       // Retrieve this Source's map of timestamps to SensorData
-      ConcurrentMap<XMLGregorianCalendar, SensorData> sensorDataMap =
+      ConcurrentNavigableMap<Long, SensorDataRecord> sensorDataMap =
           this.source2SensorDatasHash.get(sourceName);
       // If there is any sensor data for this Source
       if (sensorDataMap == null) {
         return null;
       }
       else {
-        SensorData latestData = null;
-        XMLGregorianCalendar latestTimestamp = null, dataTimestamp = null;
-        // Loop over all SensorData in hash
-        for (SensorData data : sensorDataMap.values()) {
-          dataTimestamp = data.getTimestamp();
-          if ((latestTimestamp == null) || (Tstamp.greaterThan(dataTimestamp, latestTimestamp))) {
-            latestTimestamp = dataTimestamp;
-            latestData = data;
-          }
-        }
-        return latestData;
+        // The map is sorted, so the last entry is the latest data
+        Map.Entry<Long, SensorDataRecord> latestEntry = sensorDataMap.lastEntry();
+        return (latestEntry == null) ? null : latestEntry.getValue().toSensorData();
       }
     }
   }
@@ -399,7 +426,12 @@ public class MemoryStorageImplementation extends DbImplementation {
   /** {@inheritDoc} */
   @Override
   public boolean hasSensorData(String sourceName, XMLGregorianCalendar timestamp) {
-    return (getSensorData(sourceName, timestamp) != null);
+    if ((sourceName == null) || (timestamp == null)) {
+      return false;
+    }
+    ConcurrentNavigableMap<Long, SensorDataRecord> sensorDataMap =
+        this.source2SensorDatasHash.get(sourceName);
+    return (sensorDataMap != null) && sensorDataMap.containsKey(toMillis(timestamp));
   }
 
   /** {@inheritDoc} */
@@ -413,24 +445,31 @@ public class MemoryStorageImplementation extends DbImplementation {
       // taking everything after the last "/" in the URI.
       String sourceName = data.getSource().substring(data.getSource().lastIndexOf('/') + 1);
       // Retrieve this Source's map of timestamps to SensorData
-      ConcurrentMap<XMLGregorianCalendar, SensorData> sensorDataMap =
+      ConcurrentNavigableMap<Long, SensorDataRecord> sensorDataMap =
           this.source2SensorDatasHash.get(sourceName);
       // If there is no sensor data for this Source yet
       if (sensorDataMap == null) {
         // Create the sensorDataMap
-        sensorDataMap =
-            new ConcurrentHashMap<XMLGregorianCalendar, SensorData>(DEFAULT_NUM_SENSORDATA);
+        sensorDataMap = new ConcurrentSkipListMap<Long, SensorDataRecord>();
         // add to SenorDataHash in thread-safe manner (in case someone beats us to it)
-        this.source2SensorDatasHash.putIfAbsent(sourceName, sensorDataMap);
-        // Don't need to check result, since we only care that there is a hash we can store to,
-        // not whether the one we created actually got stored.
+        ConcurrentNavigableMap<Long, SensorDataRecord> existingMap =
+            this.source2SensorDatasHash.putIfAbsent(sourceName, sensorDataMap);
+        // If someone beat us to it, store into their map so the new data isn't lost
+        if (existingMap != null) {
+          sensorDataMap = existingMap;
+        }
       }
-      // Try putting the new SensorData into the hash for the appropriate source
-      SensorData previousValue = sensorDataMap.putIfAbsent(data.getTimestamp(), data);
+      // Try putting the new SensorData into the map for the appropriate source
+      SensorDataRecord record = SensorDataRecord.fromSensorData(data);
+      SensorDataRecord previousValue = sensorDataMap.putIfAbsent(record.getMillis(), record);
       // putIfAbsent returns the previous value that ended up in the hash, so if we get a null then
       // no value was previously stored, so we succeeded. If we get anything else, then there was
       // already a value in the hash for this username, so we failed.
-      return (previousValue == null);
+      if (previousValue == null) {
+        getCount(sourceName).incrementAndGet();
+        return true;
+      }
+      return false;
     }
   }
 
@@ -442,7 +481,7 @@ public class MemoryStorageImplementation extends DbImplementation {
     }
     else {
       // Retrieve this Source's map of timestamps to SensorData
-      ConcurrentMap<XMLGregorianCalendar, SensorData> sensorDataMap =
+      ConcurrentNavigableMap<Long, SensorDataRecord> sensorDataMap =
           this.source2SensorDatasHash.get(sourceName);
       // If there is any sensor data for this Source
       if (sensorDataMap == null) {
@@ -451,11 +490,33 @@ public class MemoryStorageImplementation extends DbImplementation {
       else {
         // remove() returns the value for the key, or null if there was no value in the hash. So
         // return true unless we got a null.
-        return (sensorDataMap.remove(timestamp) != null);
+        if (sensorDataMap.remove(toMillis(timestamp)) != null) {
+          getCount(sourceName).decrementAndGet();
+          return true;
+        }
+        return false;
       }
     }
   }
 
+  /**
+   * Returns the counter of SensorData stored for the named Source, creating it if necessary.
+   * 
+   * @param sourceName The name of the Source.
+   * @return The counter.
+   */
+  private AtomicLong getCount(String sourceName) {
+    AtomicLong count = this.source2CountHash.get(sourceName);
+    if (count == null) {
+      AtomicLong newCount = new AtomicLong();
+      count = this.source2CountHash.putIfAbsent(sourceName, newCount);
+      if (count == null) {
+        count = newCount;
+      }
+    }
+    return count;
+  }
+
   /** {@inheritDoc} */
   @Override
   public boolean deleteSensorData(String sourceName) {
@@ -463,12 +524,93 @@ public class MemoryStorageImplementation extends DbImplementation {
       return false;
     }
     else {
+      // Rollups go along with the sensor data they were computed from
+      this.source2RollupsHash.remove(sourceName);
+      this.source2CountHash.remove(sourceName);
       // Delete the hash of sensor data for this Source. If the source doesn't exist or there is no
       // sensor data, we'll get a null.
       return (this.source2SensorDatasHash.remove(sourceName) != null);
     }
   }
 
+  /** {@inheritDoc} */
+  @Override
+  public List<SensorDataRollup> getRollups(String sourceName, int resolution, long startMillis,
+      long endMillis) {
+    List<SensorDataRollup> rollups = new ArrayList<SensorDataRollup>();
+    ConcurrentNavigableMap<Long, SensorDataRollup> rollupMap =
+        getRollupMap(sourceName, resolution, false);
+    if ((rollupMap != null) && (startMillis < endMillis)) {
+      // Copies, so that callers can't change the stored rollups without calling storeRollups
+      for (SensorDataRollup rollup : rollupMap.subMap(startMillis, endMillis).values()) {
+        rollups.add(new SensorDataRollup(rollup));
+      }
+    }
+    return rollups;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public List<SensorDataRollup> getRollups(String sourceName, long startMillis, long endMillis) {
+    List<SensorDataRollup> rollups = new ArrayList<SensorDataRollup>();
+    for (int resolution : SensorDataRollup.RESOLUTIONS) {
+      rollups.addAll(getRollups(sourceName, resolution,
+          SensorDataRollup.bucketStart(startMillis, resolution), endMillis + 1));
+    }
+    return rollups;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean storeRollups(List<SensorDataRollup> rollups) {
+    if (rollups == null) {
+      return false;
+    }
+    for (SensorDataRollup rollup : rollups) {
+      getRollupMap(rollup.getSourceName(), rollup.getResolution(), true).put(rollup.getStart(),
+          new SensorDataRollup(rollup));
+    }
+    return true;
+  }
+
+  /**
+   * Returns the map of bucket start to rollup for the given Source and resolution.
+   * 
+   * @param sourceName The name of the Source.
+   * @param resolution The resolution of the rollups.
+   * @param create True if the map should be created when it doesn't exist yet.
+   * @return The map, or null if it doesn't exist and create is false.
+   */
+  private ConcurrentNavigableMap<Long, SensorDataRollup> getRollupMap(String sourceName,
+      int resolution, boolean create) {
+    if (sourceName == null) {
+      return null;
+    }
+    ConcurrentMap<Integer, ConcurrentNavigableMap<Long, SensorDataRollup>> resolutionMap =
+        this.source2RollupsHash.get(sourceName);
+    if (resolutionMap == null) {
+      if (!create) {
+        return null;
+      }
+      ConcurrentMap<Integer, ConcurrentNavigableMap<Long, SensorDataRollup>> newMap =
+          new ConcurrentHashMap<Integer, ConcurrentNavigableMap<Long, SensorDataRollup>>();
+      resolutionMap = this.source2RollupsHash.putIfAbsent(sourceName, newMap);
+      if (resolutionMap == null) {
+        resolutionMap = newMap;
+      }
+    }
+    ConcurrentNavigableMap<Long, SensorDataRollup> rollupMap = resolutionMap.get(resolution);
+    if ((rollupMap == null) && create) {
+      ConcurrentNavigableMap<Long, SensorDataRollup> newMap =
+          new ConcurrentSkipListMap<Long, SensorDataRollup>();
+      rollupMap = resolutionMap.putIfAbsent(resolution, newMap);
+      if (rollupMap == null) {
+        rollupMap = newMap;
+      }
+    }
+    return rollupMap;
+  }
+
   /**
    * Returns a SensorDataStraddle that straddles the given timestamp, using SensorData from the
    * given source. Note that a virtual source contains no SensorData directly, so this method will
@@ -488,59 +630,37 @@ public class MemoryStorageImplementation extends DbImplementation {
    */
   @Override
   public SensorDataStraddle getSensorDataStraddle(Source source, XMLGregorianCalendar timestamp) {
-    // This is a kludge, create sentinels for times way outside our expected range
-    SensorData beforeSentinel, afterSentinel;
-    try {
-      beforeSentinel =
-          new SensorData(Tstamp.makeTimestamp("1700-01-01T00:00:00.000-10:00"), "", "");
-      afterSentinel =
-          new SensorData(Tstamp.makeTimestamp("3000-01-01T00:00:00.000-10:00"), "", "");
-    }
-    catch (Exception e) {
-      throw new RuntimeException(
-          "Creating timestamp from static string failed. This should never happen", e);
-    }
-    // initialize beforeData & afterData to sentinel values
-    SensorData beforeData = beforeSentinel, afterData = afterSentinel;
     if ((source == null) || (timestamp == null)) {
       return null;
     }
 
-    XMLGregorianCalendar dataTimestamp;
-    int dataTimestampCompare;
     // Retrieve this Source's map of timestamps to SensorData
-    ConcurrentMap<XMLGregorianCalendar, SensorData> sensorDataMap =
+    ConcurrentNavigableMap<Long, SensorDataRecord> sensorDataMap =
         this.source2SensorDatasHash.get(source.getName());
     if (sensorDataMap == null) {
       return null;
     }
     else {
-      // Loop over all SensorData in hash
-      for (SensorData data : sensorDataMap.values()) {
-        dataTimestamp = data.getTimestamp();
-        dataTimestampCompare = dataTimestamp.compare(timestamp);
-        if (dataTimestampCompare == DatatypeConstants.EQUAL) {
-          // There is SensorData for the requested timestamp, so return degenerate
-          // SensorDataStraddle
-          return new SensorDataStraddle(timestamp, data, data);
-        }
-        if ((dataTimestamp.compare(beforeData.getTimestamp()) == DatatypeConstants.GREATER)
-            && (dataTimestampCompare == DatatypeConstants.LESSER)) {
-          // found closer beforeData
-          beforeData = data;
-        }
-        else if ((dataTimestamp.compare(afterData.getTimestamp()) == DatatypeConstants.LESSER)
-            && (dataTimestampCompare == DatatypeConstants.GREATER)) {
-          // found closer afterData
-          afterData = data;
-        }
+      long millis = toMillis(timestamp);
+      Map.Entry<Long, SensorDataRecord> beforeEntry = sensorDataMap.floorEntry(millis);
+      if (beforeEntry == null) {
+        // no data at or before the timestamp, so no straddle
+        return null;
+      }
+      else if (beforeEntry.getKey() == millis) {
+        // There is SensorData for the requested timestamp, so return degenerate
+        // SensorDataStraddle
+        return SensorDataStraddle.fromRecords(timestamp, beforeEntry.getValue(),
+            beforeEntry.getValue());
       }
-      if (beforeData.equals(beforeSentinel) || afterData.equals(afterSentinel)) {
-        // one of the sentinels never got changed, so no straddle
+      Map.Entry<Long, SensorDataRecord> afterEntry = sensorDataMap.higherEntry(millis);
+      if (afterEntry == null) {
+        // no data after the timestamp, so no straddle
         return null;
       }
       else {
-        return new SensorDataStraddle(timestamp, beforeData, afterData);
+        return SensorDataStraddle.fromRecords(timestamp, beforeEntry.getValue(),
+            afterEntry.getValue());
       }
     }
   }
@@ -610,14 +730,14 @@ public class MemoryStorageImplementation extends DbImplementation {
   /** {@inheritDoc} */
   @Override
   public boolean performMaintenance() {
-    // ConcurrentHashMaps don't need maintenance, so just return true.
+    // Concurrent maps don't need maintenance, so just return true.
     return true;
   }
 
   /** {@inheritDoc} */
   @Override
   public boolean indexTables() {
-    // ConcurrentHashMaps don't need indexes, so just return true.
+    // Concurrent maps don't need indexes, so just return true.
     return true;
   }
 
@@ -631,6 +751,8 @@ public class MemoryStorageImplementation extends DbImplementation {
       // Wipe the hash maps
       this.name2SourceHash.clear();
       this.source2SensorDatasHash.clear();
+      this.source2CountHash.clear();
+      this.source2RollupsHash.clear();
       this.name2UserHash.clear();
       return true;
     }
@@ -10,10 +10,6 @@ import static org.wattdepot.server.ServerProperties.POSTGRES_SCHEMA_KEY;
 import static org.wattdepot.server.ServerProperties.POSTGRES_MAX_ACTIVE_KEY;
 import static org.wattdepot.server.ServerProperties.POSTGRES_INITIAL_SIZE_KEY;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.DriverManager;
@@ -25,9 +21,11 @@ import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.Map;
+import java.util.Set;
 import javax.xml.datatype.DatatypeConstants;
 import javax.xml.datatype.XMLGregorianCalendar;
 import org.apache.tomcat.jdbc.pool.DataSource;
@@ -52,6 +50,9 @@ import org.wattdepot.server.ServerProperties;
 import org.wattdepot.server.db.DbBadIntervalException;
 import org.wattdepot.server.db.DbImplementation;
 import org.wattdepot.server.db.DbManager;
+import org.wattdepot.server.db.InlineProperties;
+import org.wattdepot.server.db.SensorDataRollup;
+import org.wattdepot.server.db.SnapshotCopier;
 import org.wattdepot.util.StackTrace;
 import org.wattdepot.util.UriUtils;
 import org.wattdepot.util.tstamp.Tstamp;
@@ -89,6 +90,21 @@ public class PostgresStorageImplementation extends DbImplementation {
   private static final String DUPLICATE_KEY = "23505";
   /** The SQL state indication that INSERT tried to violate a foreign key constraint. */
   private static final String FOREIGN_KEY_VIOLATION = "23503";
+
+  /** The number of SensorData rows to send to the database in each JDBC batch. */
+  private static final int BATCH_SIZE = 1000;
+  /** The SQL state indicating that a column does not exist. */
+  private static final String UNDEFINED_COLUMN = "42703";
+
+  /** Whether extra SensorData properties are written into the SensorData row. */
+  private boolean inlineProperties = false;
+  /**
+   * Whether SensorData properties must also be read from the SensorDataProperty table, which stays
+   * true until all of the properties there have been moved into the SensorData rows.
+   */
+  private volatile boolean readPropertyTable = true;
+  /** The thread moving properties into the SensorData rows, or null if none is running. */
+  private volatile Thread migrationThread;
   /** The SQL state indication that a connection was made to an invalid catalog name. */
   private static final String INVALID_CATALOG_NAME = "3D000";
 
@@ -441,6 +457,11 @@ public class PostgresStorageImplementation extends DbImplementation {
       else if (wipe) {
         wipeTables();
       }
+      // Databases created before the SensorDataSummary table existed need their summaries built
+      createMissingSensorDataSummaries();
+      // Likewise for the column holding inline SensorData properties
+      addExtraPropertiesColumn();
+      configurePropertyLayout();
     }
     catch (SQLException e) {
       String msg = errorPrefix + StackTrace.toString(e);
@@ -468,7 +489,8 @@ public class PostgresStorageImplementation extends DbImplementation {
           Arrays.asList(testUserTableStatement, testUserPropertyTableStatement,
               testSourceTableStatement, testSourceHierarchyTableStatement,
               testSourcePropertyTableStatement, testSensorDataTableStatement,
-              testSensorDataPropertyTableStatement);
+              testSensorDataPropertyTableStatement, testSensorDataRollupTableStatement,
+              testSensorDataSummaryTableStatement);
 
       s = conn.createStatement();
       for (String test : testStatements) {
@@ -521,7 +543,8 @@ public class PostgresStorageImplementation extends DbImplementation {
           Arrays.asList(createUserTableStatement, createUserPropertyTableStatement,
               createSourceTableStatement, createSourceHierarchyTableStatement,
               createSourcePropertyTableStatement, createSensorDataTableStatement,
-              createSensorDataPropertyTableStatement, indexSensorDataSourceTstampDescStatement);
+              createSensorDataPropertyTableStatement, indexSensorDataSourceTstampDescStatement,
+              createSensorDataRollupTableStatement, createSensorDataSummaryTableStatement);
 
       s = conn.createStatement();
       for (String create : createStatements) {
@@ -558,10 +581,11 @@ public class PostgresStorageImplementation extends DbImplementation {
     try {
       conn = connectionPool.getConnection();
       List<String> dropStatements =
-          Arrays.asList(dropSensorDataSourceTstampDescStatement,
-              dropSensorDataPropertyTableStatement, dropSensorDataTableStatement,
-              dropSourcePropertyTableStatement, dropSourceHierarchyTableStatement,
-              dropSourceTableStatement, dropUserPropertyTableStatement, dropUserTableStatement);
+          Arrays.asList(dropSensorDataSummaryTableStatement, dropSensorDataRollupTableStatement,
+              dropSensorDataSourceTstampDescStatement, dropSensorDataPropertyTableStatement,
+              dropSensorDataTableStatement, dropSourcePropertyTableStatement,
+              dropSourceHierarchyTableStatement, dropSourceTableStatement,
+              dropUserPropertyTableStatement, dropUserTableStatement);
 
       s = conn.createStatement();
       for (String drop : dropStatements) {
@@ -599,6 +623,8 @@ public class PostgresStorageImplementation extends DbImplementation {
     try {
       conn = connectionPool.getConnection();
       s = conn.createStatement();
+      s.execute("DELETE from SensorDataSummary");
+      s.execute("DELETE from SensorDataRollup");
       s.execute("DELETE from SensorDataProperty");
       s.execute("DELETE from SensorData");
       s.execute("DELETE from SourceProperty");
@@ -1056,12 +1082,11 @@ public class PostgresStorageImplementation extends DbImplementation {
 
     try {
       conn = connectionPool.getConnection();
-      // Get first timestamp, last timestamp, and count of all timestamps for this list of sources
+      // Combine the first timestamp, last timestamp, and count kept for each source in the list
       statement =
-          String
-              .format(
-                  "SELECT Max(Tstamp) as maxTime, Min(Tstamp) as minTime, Count(1) as dataCount FROM SensorData WHERE Source IN (%s)",
-                  preparePlaceHolders(sourceList.size()));
+          String.format("SELECT Max(LastTstamp) as maxTime, Min(FirstTstamp) as minTime, "
+              + "Sum(DataCount) as dataCount FROM SensorDataSummary WHERE Source IN (%s)",
+              preparePlaceHolders(sourceList.size()));
 
       server.getLogger().fine(executeQueryMsg + statement);
       s = conn.prepareStatement(statement);
@@ -1080,7 +1105,7 @@ public class PostgresStorageImplementation extends DbImplementation {
         if (sqlDataTimestamp != null) {
           lastTimestamp = Tstamp.makeTimestamp(sqlDataTimestamp);
         }
-        dataCount = rs.getInt("dataCount");
+        dataCount = rs.getLong("dataCount");
       }
     }
     catch (SQLException e) {
@@ -1145,6 +1170,7 @@ public class PostgresStorageImplementation extends DbImplementation {
           conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
         }
         conn.setAutoCommit(false);
+        boolean inserted = false;
         // If source exists already, then do update rather than insert IF overwrite is true
         if (sourceExists(source.getName())) {
           if (overwrite) {
@@ -1165,6 +1191,7 @@ public class PostgresStorageImplementation extends DbImplementation {
         else {
           s =
               conn.prepareStatement("INSERT INTO Source VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+          inserted = true;
         }
         // Order: Name Owner PublicP Virtual Coordinates Location Description SubSources
         // CarbonIntensity FuelType UpdateInterval EnergyDirection SupportsEnergyCounters LastMod
@@ -1212,6 +1239,9 @@ public class PostgresStorageImplementation extends DbImplementation {
 
         s.setTimestamp(15, new Timestamp(new Date().getTime()));
         s.executeUpdate();
+        if (inserted) {
+          insertSensorDataSummary(source.getName(), conn);
+        }
 
         if (overwrite) {
           deleteSubSources(source.getName(), conn);
@@ -1428,6 +1458,7 @@ public class PostgresStorageImplementation extends DbImplementation {
       + " Source VARCHAR(128) NOT NULL, " + " PowerConsumed DOUBLE PRECISION, "
       + " EnergyConsumedToDate DOUBLE PRECISION, " + " PowerGenerated DOUBLE PRECISION, "
       + " EnergyGeneratedToDate DOUBLE PRECISION, " + " LastMod TIMESTAMP NOT NULL, "
+      + " ExtraProperties TEXT, "
       + " PRIMARY KEY (Source, Tstamp), " + " FOREIGN KEY (Source) REFERENCES Source(Name)" + ")";
 
   /** An SQL string to test whether the SensorData table exists and has the correct schema. */
@@ -1441,6 +1472,16 @@ public class PostgresStorageImplementation extends DbImplementation {
   /** An SQL string to drop the SensorData table. */
   private static final String dropSensorDataTableStatement = "DROP TABLE SensorData";
 
+  /** An SQL string to add the ExtraProperties column to SensorData tables created before it. */
+  private static final String addExtraPropertiesColumnStatement =
+      "ALTER TABLE SensorData ADD COLUMN ExtraProperties TEXT";
+
+  /** The SQL string for inserting a SensorData row. */
+  private static final String insertSensorDataStatement =
+      "INSERT INTO SensorData (Tstamp, Tool, Source, PowerConsumed, EnergyConsumedToDate, "
+          + "PowerGenerated, EnergyGeneratedToDate, LastMod, ExtraProperties) "
+          + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
   /** The SQL string for creating the SensorDataProperty table. */
   private static final String createSensorDataPropertyTableStatement =
       "create table SensorDataProperty " + "(" + " Tstamp TIMESTAMP NOT NULL, "
@@ -1497,7 +1538,7 @@ public class PostgresStorageImplementation extends DbImplementation {
         data.addProperty(new Property(SensorData.ENERGY_GENERATED_TO_DATE, rs
             .getDouble("EnergyGeneratedToDate")));
       }
-
+      addExtraProperties(rs.getString("ExtraProperties"), data);
     }
     catch (SQLException e) {
       this.logger.info("DB: Error in getSource()" + StackTrace.toString(e));
@@ -1506,6 +1547,100 @@ public class PostgresStorageImplementation extends DbImplementation {
     return data;
   }
 
+  /**
+   * Adds the properties read from the ExtraProperties column to the given SensorData. A malformed
+   * column is logged and skipped, so one bad row does not fail the whole query; the SensorData
+   * keeps the properties read from its other columns.
+   * 
+   * @param encoded The contents of the ExtraProperties column, which may be null.
+   * @param data The SensorData to add the properties to.
+   */
+  private void addExtraProperties(String encoded, SensorData data) {
+    try {
+      InlineProperties.addTo(encoded, data);
+    }
+    catch (IllegalArgumentException e) {
+      this.logger.warning("Postgres: Ignoring malformed ExtraProperties of SensorData "
+          + data.getSource() + " " + data.getTimestamp() + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Returns the start of a query returning SensorData rows left joined with their
+   * SensorDataProperty rows, so a SensorData and all of its properties can be read in one query.
+   * The SensorData table is aliased as d. Results should be ordered with
+   * orderSensorDataWithProperties and converted with resultSetToSensorDatas.
+   * 
+   * @return The start of the query.
+   */
+  private String selectSensorDataWithProperties() {
+    return selectSensorDataWithProperties("SensorData");
+  }
+
+  /**
+   * Returns the start of a query returning the rows of the given table or subquery, which has the
+   * columns of SensorData, left joined with their SensorDataProperty rows. Once all properties are
+   * stored inline the join is left out, and PropertyKey and PropertyValue are always null.
+   * 
+   * @param from The table or parenthesized subquery, which is aliased as d.
+   * @return The start of the query.
+   */
+  private String selectSensorDataWithProperties(String from) {
+    if (this.readPropertyTable) {
+      return "SELECT d.*, p.PropertyKey, p.PropertyValue FROM " + from + " d "
+          + "LEFT JOIN SensorDataProperty p ON p.Source = d.Source AND p.Tstamp = d.Tstamp ";
+    }
+    return "SELECT d.*, NULL AS PropertyKey, NULL AS PropertyValue FROM " + from + " d ";
+  }
+
+  /**
+   * Returns the ordering that keeps all rows for each SensorData adjacent, as
+   * resultSetToSensorDatas needs.
+   * 
+   * @return The ORDER BY clause.
+   */
+  private String orderSensorDataWithProperties() {
+    return this.readPropertyTable ? "ORDER BY d.Source, d.Tstamp, p.PropertyKey"
+        : "ORDER BY d.Source, d.Tstamp";
+  }
+
+  /**
+   * Converts the rows of a query over SensorData left joined with SensorDataProperty (see
+   * selectSensorDataWithProperties) to SensorData objects. Each SensorData spans one row per
+   * property, or a single row with a null PropertyKey if it has no properties in the
+   * SensorDataProperty table. The rows are consumed in a single pass, so the caller must order them
+   * such that all rows for a [Source, Tstamp] are adjacent. The caller should not have advanced the
+   * cursor.
+   * 
+   * @param rs The result set to be examined.
+   * @return The SensorData objects, in the order they appear in the result set.
+   * @throws SQLException If there are problems reading the result set.
+   */
+  private List<SensorData> resultSetToSensorDatas(ResultSet rs) throws SQLException {
+    List<SensorData> datas = new ArrayList<SensorData>();
+    SensorData current = null;
+    Timestamp currentTstamp = null;
+    String currentSource = null;
+    while (rs.next()) {
+      Timestamp tstamp = rs.getTimestamp("Tstamp");
+      String source = rs.getString("Source");
+      if (current == null || !tstamp.equals(currentTstamp) || !source.equals(currentSource)) {
+        current = resultSetToSensorData(rs);
+        if (current == null) {
+          throw new SQLException("Unable to read SensorData row for " + source + " " + tstamp);
+        }
+        currentTstamp = tstamp;
+        currentSource = source;
+        datas.add(current);
+      }
+      String key = rs.getString("PropertyKey");
+      if (key != null) {
+        current.addProperty(new Property(key, rs.getString("PropertyValue")));
+      }
+    }
+    return datas;
+  }
+
   /** {@inheritDoc} */
   @Override
   public SensorDataIndex getSensorDataIndex(String sourceName) {
@@ -1655,12 +1790,14 @@ public class PostgresStorageImplementation extends DbImplementation {
       SensorDatas datas = new SensorDatas();
       String statement;
       if (endTime == null) {
-        statement = "SELECT * FROM SensorData WHERE Source = ? AND Tstamp >= ? ORDER BY Tstamp";
+        statement =
+            selectSensorDataWithProperties() + "WHERE d.Source = ? AND d.Tstamp >= ? "
+                + orderSensorDataWithProperties();
       }
       else {
         statement =
-            "SELECT * FROM SensorData WHERE Source = ? AND (Tstamp BETWEEN ? AND ?)"
-                + " ORDER BY Tstamp";
+            selectSensorDataWithProperties() + "WHERE d.Source = ? AND (d.Tstamp BETWEEN ? AND ?) "
+                + orderSensorDataWithProperties();
       }
       Connection conn = null;
       PreparedStatement s = null;
@@ -1675,14 +1812,7 @@ public class PostgresStorageImplementation extends DbImplementation {
           s.setTimestamp(3, Tstamp.makeTimestamp(endTime));
         }
         rs = s.executeQuery();
-        while (rs.next()) {
-          SensorData data = resultSetToSensorData(rs);
-          List<Property> props = getSensorDataProperties(sourceName, data.getTimestamp());
-          for (Property p : props) {
-            data.addProperty(p);
-          }
-          datas.getSensorData().add(data);
-        }
+        datas.getSensorData().addAll(resultSetToSensorDatas(rs));
       }
       catch (SQLException e) {
         this.logger.info("DB: Error in getSensorDatas()" + StackTrace.toString(e));
@@ -1714,12 +1844,13 @@ public class PostgresStorageImplementation extends DbImplementation {
       return null;
     }
     else {
-      String statement = "SELECT * FROM SensorData WHERE Source = ? AND Tstamp = ?";
+      String statement =
+          selectSensorDataWithProperties() + "WHERE d.Source = ? AND d.Tstamp = ? "
+              + orderSensorDataWithProperties();
       Connection conn = null;
       PreparedStatement s = null;
       ResultSet rs = null;
-      boolean hasData = false;
-      SensorData data = new SensorData();
+      SensorData data = null;
       try {
         conn = connectionPool.getConnection();
         server.getLogger().fine(executeQueryMsg + statement);
@@ -1727,13 +1858,10 @@ public class PostgresStorageImplementation extends DbImplementation {
         s.setString(1, sourceName);
         s.setTimestamp(2, Tstamp.makeTimestamp(timestamp));
         rs = s.executeQuery();
-        while (rs.next()) { // the select statement must guarantee only one row is returned.
-          hasData = true;
-          data = resultSetToSensorData(rs);
-          List<Property> props = getSensorDataProperties(sourceName, data.getTimestamp());
-          for (Property p : props) {
-            data.addProperty(p);
-          }
+        // The primary key guarantees at most one SensorData is returned.
+        List<SensorData> datas = resultSetToSensorDatas(rs);
+        if (!datas.isEmpty()) {
+          data = datas.get(0);
         }
       }
       catch (SQLException e) {
@@ -1755,7 +1883,7 @@ public class PostgresStorageImplementation extends DbImplementation {
           this.logger.warning(errorClosingMsg + StackTrace.toString(e));
         }
       }
-      return (hasData) ? data : null;
+      return data;
     }
   }
 
@@ -1768,75 +1896,23 @@ public class PostgresStorageImplementation extends DbImplementation {
     Connection conn = null;
     PreparedStatement s = null;
     ResultSet rs = null;
-    boolean hasData = false;
-    SensorData data = new SensorData();
-    try {
-      conn = connectionPool.getConnection();
-      String statement = "SELECT * FROM SensorData WHERE Source = ? ORDER BY Tstamp DESC LIMIT 1";
-      server.getLogger().fine(executeQueryMsg + statement);
-      s = conn.prepareStatement(statement);
-      s.setString(1, sourceName);
-      rs = s.executeQuery();
-      if (rs.next()) {
-        hasData = true;
-        data = resultSetToSensorData(rs);
-        List<Property> props = getSensorDataProperties(sourceName, data.getTimestamp());
-        for (Property p : props) {
-          data.addProperty(p);
-        }
-      }
-    }
-    catch (SQLException e) {
-      this.logger.info("DB: Error in getSensorData()" + StackTrace.toString(e));
-    }
-    finally {
-      try {
-        if (rs != null) {
-          rs.close();
-        }
-        if (s != null) {
-          s.close();
-        }
-        if (conn != null) {
-          conn.close();
-        }
-      }
-      catch (SQLException e) {
-        this.logger.warning(errorClosingMsg + StackTrace.toString(e));
-      }
-    }
-    return (hasData) ? data : null;
-  }
-
-  /**
-   * Get Properties for a SensorData.
-   * 
-   * @param sourceName The source to get properties for.
-   * @param timestamp The timestamp to get properties for.
-   * @return The list of properties for the Source and Timestamp.
-   */
-  private List<Property> getSensorDataProperties(String sourceName, XMLGregorianCalendar timestamp) {
-    List<Property> props = new ArrayList<Property>();
-
-    Connection conn = null;
-    PreparedStatement s = null;
-    ResultSet rs = null;
+    SensorData data = null;
     try {
       conn = connectionPool.getConnection();
       String statement =
-          "SELECT * FROM SensorDataProperty WHERE Source = ? AND Tstamp = ? ORDER BY PropertyKey ";
+          selectSensorDataWithProperties("(SELECT * FROM SensorData WHERE Source = ? "
+              + "ORDER BY Tstamp DESC LIMIT 1)") + orderSensorDataWithProperties();
       server.getLogger().fine(executeQueryMsg + statement);
       s = conn.prepareStatement(statement);
       s.setString(1, sourceName);
-      s.setTimestamp(2, Tstamp.makeTimestamp(timestamp));
       rs = s.executeQuery();
-      while (rs.next()) {
-        props.add(new Property(rs.getString("PropertyKey"), rs.getString("PropertyValue")));
+      List<SensorData> datas = resultSetToSensorDatas(rs);
+      if (!datas.isEmpty()) {
+        data = datas.get(0);
       }
-
     }
     catch (SQLException e) {
-      this.logger.info("DB: Error in getSensorDataProperties()" + StackTrace.toString(e));
+      this.logger.info("DB: Error in getSensorData()" + StackTrace.toString(e));
     }
     finally {
       try {
@@ -1854,7 +1930,7 @@ public class PostgresStorageImplementation extends DbImplementation {
         this.logger.warning(errorClosingMsg + StackTrace.toString(e));
       }
     }
-    return props;
+    return data;
   }
 
   /** {@inheritDoc} */
@@ -1881,7 +1957,7 @@ public class PostgresStorageImplementation extends DbImplementation {
           conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
         }
         conn.setAutoCommit(false);
-        s = conn.prepareStatement("INSERT INTO SensorData VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+        s = conn.prepareStatement(insertSensorDataStatement);
         // Order: Tstamp Tool Source PowerConsumed EnergyConsumedToDate PowerGenerated
         // EnergyGeneratedToDate LastMod
         s.setTimestamp(1, Tstamp.makeTimestamp(data.getTimestamp()));
@@ -1912,9 +1988,10 @@ public class PostgresStorageImplementation extends DbImplementation {
         }
 
         s.setTimestamp(8, new Timestamp(new Date().getTime()));
+        s.setString(9, this.inlineProperties ? InlineProperties.encode(data) : null);
         s.executeUpdate();
 
-        if (data.isSetProperties()) {
+        if (!this.inlineProperties && data.isSetProperties()) {
           for (Property p : data.getProperties().getProperty()) {
             if (!p.getKey().equals(SensorData.POWER_CONSUMED)
                 && !p.getKey().equals(SensorData.ENERGY_CONSUMED_TO_DATE)
@@ -1930,11 +2007,14 @@ public class PostgresStorageImplementation extends DbImplementation {
           }
         }
 
+        Timestamp tstamp = Tstamp.makeTimestamp(data.getTimestamp());
+        addToSensorDataSummary(UriUtils.getUriSuffix(data.getSource()), tstamp, tstamp, 1, conn);
         conn.commit();
         this.logger.fine("PostgreSQL: Inserted SensorData" + data.getTimestamp());
         return true;
       }
       catch (SQLException e) {
+        rollback(conn);
         if (DUPLICATE_KEY.equals(e.getSQLState())) {
           this.logger.fine("PostgreSQL: Attempted to overwrite SensorData " + data.getTimestamp());
           return false;
@@ -1966,6 +2046,248 @@ public class PostgresStorageImplementation extends DbImplementation {
     }
   }
 
+  /**
+   * {@inheritDoc} The SensorData is written using JDBC batches in a single transaction. Before the
+   * batches are executed, SensorData whose Source is unknown or whose [Source, timestamp] already
+   * exists (in the table or earlier in the list) is set aside, so one conflicting item does not
+   * roll back the others. If the transaction still fails, for example because another request
+   * stored the same row in the meantime, each SensorData is retried individually with
+   * storeSensorData.
+   */
+  @Override
+  public List<SensorData> storeSensorDatas(List<SensorData> datas) {
+    if (datas == null) {
+      return null;
+    }
+    List<SensorData> rejected = new ArrayList<SensorData>();
+    boolean batchFailed = false;
+    Connection conn = null;
+    PreparedStatement dataStatement = null;
+    PreparedStatement propStatement = null;
+    try {
+      conn = connectionPool.getConnection();
+      if (conn.getMetaData().supportsTransactionIsolationLevel(
+          Connection.TRANSACTION_READ_COMMITTED)) {
+        conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+      }
+      conn.setAutoCommit(false);
+
+      // Sources that don't exist have no entry in this map.
+      Map<String, Set<Long>> existingTimes = getExistingSensorDataTimes(conn, datas);
+      // The earliest time, latest time and count of the SensorData added for each source
+      Map<String, long[]> added = new HashMap<String, long[]>();
+
+      dataStatement =
+          conn.prepareStatement(insertSensorDataStatement);
+      propStatement = conn.prepareStatement("INSERT INTO SensorDataProperty VALUES (?, ?, ?, ?)");
+      Timestamp lastMod = new Timestamp(new Date().getTime());
+      int batchCount = 0;
+      for (SensorData data : datas) {
+        Set<Long> times = null;
+        Timestamp tstamp = null;
+        if (data != null && data.getTimestamp() != null && data.getSource() != null) {
+          times = existingTimes.get(UriUtils.getUriSuffix(data.getSource()));
+          tstamp = Tstamp.makeTimestamp(data.getTimestamp());
+        }
+        if (times == null || !times.add(tstamp.getTime())) {
+          rejected.add(data);
+        }
+        else {
+          addSensorDataToBatch(data, tstamp, lastMod, dataStatement, propStatement);
+          batchCount++;
+          String sourceName = UriUtils.getUriSuffix(data.getSource());
+          long[] range = added.get(sourceName);
+          if (range == null) {
+            added.put(sourceName, new long[] { tstamp.getTime(), tstamp.getTime(), 1 });
+          }
+          else {
+            range[0] = Math.min(range[0], tstamp.getTime());
+            range[1] = Math.max(range[1], tstamp.getTime());
+            range[2]++;
+          }
+          if (batchCount % BATCH_SIZE == 0) {
+            // SensorData rows must be inserted before their properties to satisfy the foreign key.
+            dataStatement.executeBatch();
+            propStatement.executeBatch();
+          }
+        }
+      }
+      dataStatement.executeBatch();
+      propStatement.executeBatch();
+      for (Map.Entry<String, long[]> entry : added.entrySet()) {
+        long[] range = entry.getValue();
+        addToSensorDataSummary(entry.getKey(), new Timestamp(range[0]), new Timestamp(range[1]),
+            range[2], conn);
+      }
+      conn.commit();
+      this.logger.fine("PostgreSQL: Inserted " + batchCount + " SensorData in batch");
+    }
+    catch (SQLException e) {
+      this.logger.info("PostgreSQL: Batch insert of SensorData failed, storing individually. "
+          + StackTrace.toString(e));
+      batchFailed = true;
+      try {
+        if (conn != null) {
+          conn.rollback();
+        }
+      }
+      catch (SQLException e1) {
+        this.logger.info(postgresError + StackTrace.toString(e1));
+      }
+    }
+    finally {
+      try {
+        if (dataStatement != null) {
+          dataStatement.close();
+        }
+        if (propStatement != null) {
+          propStatement.close();
+        }
+        if (conn != null) {
+          conn.setAutoCommit(true);
+          conn.close();
+        }
+      }
+      catch (SQLException e) {
+        this.logger.warning(errorClosingMsg + StackTrace.toString(e));
+      }
+    }
+
+    if (batchFailed) {
+      rejected.clear();
+      for (SensorData data : datas) {
+        if (!storeSensorData(data)) {
+          rejected.add(data);
+        }
+      }
+    }
+    return rejected;
+  }
+
+  /**
+   * Adds the given SensorData to the batches of the provided SensorData and SensorDataProperty
+   * insert statements. Extra properties go to the SensorDataProperty batch only if they are not
+   * being stored inline.
+   * 
+   * @param data The SensorData to add.
+   * @param tstamp The timestamp of the SensorData, already converted to a SQL Timestamp.
+   * @param lastMod The modification time to record for the SensorData.
+   * @param dataStatement The prepared statement that inserts into the SensorData table.
+   * @param propStatement The prepared statement that inserts into the SensorDataProperty table.
+   * @throws SQLException If there are problems adding to either batch.
+   */
+  private void addSensorDataToBatch(SensorData data, Timestamp tstamp, Timestamp lastMod,
+      PreparedStatement dataStatement, PreparedStatement propStatement) throws SQLException {
+    String sourceName = UriUtils.getUriSuffix(data.getSource());
+    // Order: Tstamp Tool Source PowerConsumed EnergyConsumedToDate PowerGenerated
+    // EnergyGeneratedToDate LastMod
+    dataStatement.setTimestamp(1, tstamp);
+    dataStatement.setString(2, data.getTool());
+    dataStatement.setString(3, sourceName);
+    dataStatement.setNull(4, java.sql.Types.DOUBLE);
+    dataStatement.setNull(5, java.sql.Types.DOUBLE);
+    dataStatement.setNull(6, java.sql.Types.DOUBLE);
+    dataStatement.setNull(7, java.sql.Types.DOUBLE);
+    if (data.isSetProperties()) {
+      for (Property p : data.getProperties().getProperty()) {
+        if (p.getKey().equals(SensorData.POWER_CONSUMED)) {
+          dataStatement.setDouble(4, Double.valueOf(p.getValue()));
+        }
+        else if (p.getKey().equals(SensorData.ENERGY_CONSUMED_TO_DATE)) {
+          dataStatement.setDouble(5, Double.valueOf(p.getValue()));
+        }
+        else if (p.getKey().equals(SensorData.POWER_GENERATED)) {
+          dataStatement.setDouble(6, Double.valueOf(p.getValue()));
+        }
+        else if (p.getKey().equals(SensorData.ENERGY_GENERATED_TO_DATE)) {
+          dataStatement.setDouble(7, Double.valueOf(p.getValue()));
+        }
+        else if (!this.inlineProperties) {
+          propStatement.setTimestamp(1, tstamp);
+          propStatement.setString(2, sourceName);
+          propStatement.setString(3, p.getKey());
+          propStatement.setString(4, p.getValue());
+          propStatement.addBatch();
+        }
+      }
+    }
+    dataStatement.setTimestamp(8, lastMod);
+    dataStatement.setString(9, this.inlineProperties ? InlineProperties.encode(data) : null);
+    dataStatement.addBatch();
+  }
+
+  /**
+   * Looks up, for each Source referenced in the given list of SensorData, the timestamps of the
+   * SensorData already stored for that Source within the range spanned by the list. Only one
+   * range query is issued per Source.
+   * 
+   * @param conn The connection to query on.
+   * @param datas The SensorData about to be stored.
+   * @return A map from Source name to the set of stored timestamps (in milliseconds). Sources that
+   * do not exist are not present in the map.
+   * @throws SQLException If there are problems querying the database.
+   */
+  private Map<String, Set<Long>> getExistingSensorDataTimes(Connection conn,
+      List<SensorData> datas) throws SQLException {
+    // First find the range of timestamps for each source.
+    Map<String, long[]> ranges = new HashMap<String, long[]>();
+    for (SensorData data : datas) {
+      if (data != null && data.getTimestamp() != null && data.getSource() != null) {
+        String sourceName = UriUtils.getUriSuffix(data.getSource());
+        long time = Tstamp.makeTimestamp(data.getTimestamp()).getTime();
+        long[] range = ranges.get(sourceName);
+        if (range == null) {
+          ranges.put(sourceName, new long[] { time, time });
+        }
+        else {
+          range[0] = Math.min(range[0], time);
+          range[1] = Math.max(range[1], time);
+        }
+      }
+    }
+
+    Map<String, Set<Long>> existingTimes = new HashMap<String, Set<Long>>();
+    PreparedStatement sourceStatement = null;
+    PreparedStatement timeStatement = null;
+    ResultSet rs = null;
+    try {
+      sourceStatement = conn.prepareStatement("SELECT Name FROM Source WHERE Name = ?");
+      timeStatement =
+          conn.prepareStatement("SELECT Tstamp FROM SensorData WHERE Source = ? AND "
+              + "Tstamp >= ? AND Tstamp <= ?");
+      for (Map.Entry<String, long[]> entry : ranges.entrySet()) {
+        sourceStatement.setString(1, entry.getKey());
+        rs = sourceStatement.executeQuery();
+        boolean sourceExists = rs.next();
+        rs.close();
+        if (sourceExists) {
+          Set<Long> times = new HashSet<Long>();
+          timeStatement.setString(1, entry.getKey());
+          timeStatement.setTimestamp(2, new Timestamp(entry.getValue()[0]));
+          timeStatement.setTimestamp(3, new Timestamp(entry.getValue()[1]));
+          rs = timeStatement.executeQuery();
+          while (rs.next()) {
+            times.add(rs.getTimestamp(1).getTime());
+          }
+          rs.close();
+          existingTimes.put(entry.getKey(), times);
+        }
+      }
+    }
+    finally {
+      if (rs != null) {
+        rs.close();
+      }
+      if (sourceStatement != null) {
+        sourceStatement.close();
+      }
+      if (timeStatement != null) {
+        timeStatement.close();
+      }
+    }
+    return existingTimes;
+  }
+
   /** {@inheritDoc} */
   @Override
   public boolean deleteSensorData(String sourceName, XMLGregorianCalendar timestamp) {
@@ -1983,9 +2305,13 @@ public class PostgresStorageImplementation extends DbImplementation {
           "DELETE FROM SensorData WHERE Source='" + sourceName.replace("'", "''")
               + "' AND Tstamp='" + Tstamp.makeTimestamp(timestamp) + "'";
       succeeded = deleteResource(statement, conn);
+      if (succeeded) {
+        removeFromSensorDataSummary(sourceName, Tstamp.makeTimestamp(timestamp), conn);
+      }
       return succeeded;
     }
     catch (SQLException e) {
+      rollback(conn);
       return false;
     }
     finally {
@@ -2001,6 +2327,64 @@ public class PostgresStorageImplementation extends DbImplementation {
     }
   }
 
+  /** {@inheritDoc} */
+  @Override
+  public int deleteSensorData(String sourceName, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime) {
+    if ((sourceName == null) || (startTime == null) || (endTime == null)
+        || (startTime.compare(endTime) == DatatypeConstants.GREATER)) {
+      return -1;
+    }
+    Timestamp start = Tstamp.makeTimestamp(startTime);
+    Timestamp end = Tstamp.makeTimestamp(endTime);
+    Connection conn = null;
+    PreparedStatement s = null;
+    try {
+      conn = connectionPool.getConnection();
+      conn.setAutoCommit(false);
+      s =
+          conn.prepareStatement("DELETE FROM SensorDataProperty WHERE Source = ? AND "
+              + "(Tstamp BETWEEN ? AND ?)");
+      s.setString(1, sourceName);
+      s.setTimestamp(2, start);
+      s.setTimestamp(3, end);
+      s.executeUpdate();
+      s.close();
+      s =
+          conn.prepareStatement("DELETE FROM SensorData WHERE Source = ? AND "
+              + "(Tstamp BETWEEN ? AND ?)");
+      s.setString(1, sourceName);
+      s.setTimestamp(2, start);
+      s.setTimestamp(3, end);
+      int deleted = s.executeUpdate();
+      s.close();
+      s = null;
+      if (deleted > 0) {
+        removeFromSensorDataSummary(sourceName, deleted, start, end, conn);
+      }
+      return deleted;
+    }
+    catch (SQLException e) {
+      this.logger.info("PostgreSQL: Error in deleteSensorData()" + StackTrace.toString(e));
+      rollback(conn);
+      return -1;
+    }
+    finally {
+      try {
+        if (s != null) {
+          s.close();
+        }
+        if (conn != null) {
+          conn.setAutoCommit(true);
+          conn.close();
+        }
+      }
+      catch (SQLException e) { // NOPMD
+
+      }
+    }
+  }
+
   /** {@inheritDoc} */
   @Override
   public boolean deleteSensorData(String sourceName) {
@@ -2013,11 +2397,15 @@ public class PostgresStorageImplementation extends DbImplementation {
       conn = connectionPool.getConnection();
       conn.setAutoCommit(false);
       deleteSensorDataProperties(sourceName, conn);
+      deleteSensorDataRollups(sourceName, conn);
       String statement =
           "DELETE FROM SensorData WHERE Source='" + sourceName.replace("'", "''") + "'";
-      return deleteResource(statement, conn);
+      boolean deleted = deleteResource(statement, conn);
+      resetSensorDataSummary(sourceName, conn);
+      return deleted;
     }
     catch (SQLException e) {
+      rollback(conn);
       return false;
     }
     finally {
@@ -2049,6 +2437,8 @@ public class PostgresStorageImplementation extends DbImplementation {
     }
     else {
       deleteSensorDataProperties(sourceName, conn);
+      deleteSensorDataRollups(sourceName, conn);
+      deleteSensorDataSummary(sourceName, conn);
       String statement =
           "DELETE FROM SensorData WHERE Source='" + sourceName.replace("'", "''") + "'";
       succeeded = deleteResource(statement, conn);
@@ -2083,6 +2473,18 @@ public class PostgresStorageImplementation extends DbImplementation {
         "DELETE FROM SensorDataProperty WHERE Source='" + sourceName.replace("'", "''") + "'", conn);
   }
 
+  /**
+   * Delete a source's rollups from the SensorDataRollup table.
+   * 
+   * @param sourceName The source to delete rollups for.
+   * @param conn The connection encapsulating this transaction.
+   * @return True if the rollups were successfully deleted.
+   */
+  private boolean deleteSensorDataRollups(String sourceName, Connection conn) {
+    return deleteResource(
+        "DELETE FROM SensorDataRollup WHERE Source='" + sourceName.replace("'", "''") + "'", conn);
+  }
+
   /**
    * Returns a SensorDataStraddle that straddles the given timestamp, using SensorData from the
    * given source. Note that a virtual source contains no SensorData directly, so this method will
@@ -2102,73 +2504,44 @@ public class PostgresStorageImplementation extends DbImplementation {
    */
   @Override
   public SensorDataStraddle getSensorDataStraddle(Source source, XMLGregorianCalendar timestamp) {
-
-    SensorData beforeData = null, afterData = null;
     if ((source == null) || (timestamp == null)) {
       return null;
     }
     String sourceName = source.getName();
 
-    XMLGregorianCalendar dataTimestamp;
-    int dataTimestampCompare;
-
     Connection conn = null;
     PreparedStatement s = null;
     ResultSet rs = null;
-    String statement;
 
     try {
       conn = connectionPool.getConnection();
-      // Find data just before desired timestamp
-      statement =
-          "Select * FROM SensorData WHERE Source = ? AND Tstamp <= ? ORDER BY Tstamp DESC LIMIT 1";
+      // Find the data at or just before the desired timestamp, and the data just after it, along
+      // with their properties, in a single query.
+      String statement =
+          selectSensorDataWithProperties("((SELECT * FROM SensorData WHERE Source = ? "
+              + "AND Tstamp <= ? ORDER BY Tstamp DESC LIMIT 1) UNION ALL "
+              + "(SELECT * FROM SensorData WHERE Source = ? AND Tstamp > ? "
+              + "ORDER BY Tstamp ASC LIMIT 1))") + orderSensorDataWithProperties();
       server.getLogger().fine(executeQueryMsg + statement);
       s = conn.prepareStatement(statement);
       s.setString(1, sourceName);
       s.setTimestamp(2, Tstamp.makeTimestamp(timestamp));
+      s.setString(3, sourceName);
+      s.setTimestamp(4, Tstamp.makeTimestamp(timestamp));
       rs = s.executeQuery();
-      // Expecting only one row of data (fetch first row only)
-      while (rs.next()) {
-        beforeData = resultSetToSensorData(rs);
-        dataTimestamp = beforeData.getTimestamp(); // Tstamp.makeTimestamp(rs.getTimestamp("Tstamp"));
-        dataTimestampCompare = dataTimestamp.compare(timestamp);
-        if (dataTimestampCompare == DatatypeConstants.EQUAL) {
-          return new SensorDataStraddle(timestamp, beforeData, beforeData);
-        }
-      }
-      // Close those statement and result set resources before we reuse the variables
-      s.close();
-      rs.close();
+      List<SensorData> datas = resultSetToSensorDatas(rs);
 
-      // Find data just after desired timestamp
-      statement =
-          "SELECT * FROM SensorData WHERE Source = ? AND Tstamp >= ? "
-              + "ORDER BY Tstamp ASC LIMIT 1";
-      server.getLogger().fine(executeQueryMsg + statement);
-      s = conn.prepareStatement(statement);
-      s.setString(1, sourceName);
-      s.setTimestamp(2, Tstamp.makeTimestamp(timestamp));
-      rs = s.executeQuery();
-      // Expecting only one row of data (fetch first row only)
-      while (rs.next()) {
-        afterData = resultSetToSensorData(rs);
-        dataTimestamp = afterData.getTimestamp(); // Tstamp.makeTimestamp(rs.getTimestamp("Tstamp"));
-        dataTimestampCompare = dataTimestamp.compare(timestamp);
-        if (dataTimestampCompare == DatatypeConstants.EQUAL) {
-          // There is SensorData for the requested timestamp, but we already checked for this.
-          // Thus there is a logic error somewhere
-          this.logger
-              .warning("Found sensordata that matches timestamp, but after already checked!");
-          return new SensorDataStraddle(timestamp, afterData, afterData);
-        }
+      if (!datas.isEmpty()
+          && datas.get(0).getTimestamp().compare(timestamp) == DatatypeConstants.EQUAL) {
+        // There is SensorData for the requested timestamp, so just return the same data twice.
+        return new SensorDataStraddle(timestamp, datas.get(0), datas.get(0));
       }
-
-      if ((beforeData == null) || (afterData == null)) {
-        // one of the sentinels never got changed, so no straddle
+      else if (datas.size() < 2) {
+        // Either no data before or no data after the timestamp, so no straddle
         return null;
       }
       else {
-        return new SensorDataStraddle(timestamp, beforeData, afterData);
+        return new SensorDataStraddle(timestamp, datas.get(0), datas.get(1));
       }
     }
     catch (SQLException e) {
@@ -2193,22 +2566,802 @@ public class PostgresStorageImplementation extends DbImplementation {
     }
   }
 
-  /** The SQL string for creating the WattDepotUser table. So named because 'User' is reserved. */
-  private static final String createUserTableStatement = "create table WattDepotUser  " + "("
-      + " Username VARCHAR(128) NOT NULL, " + " Password VARCHAR(128) NOT NULL, "
-      + " Admin BOOLEAN NOT NULL, " + " LastMod TIMESTAMP NOT NULL, " + " PRIMARY KEY (Username) "
-      + ")";
-
-  /** An SQL string to test whether the User table exists and has the correct schema. */
-  private static final String testUserTableStatement = " UPDATE WattDepotUser SET "
-      + " Username = 'TestEmail@foo.com', " + " Password = 'changeme', " + " Admin = FALSE, "
-      + " LastMod = '" + new Timestamp(new Date().getTime()).toString() + "' " + " WHERE 1=3";
-
-  /** An SQL string to drop the User table. */
-  private static final String dropUserTableStatement = "DROP TABLE WattDepotUser";
+  /**
+   * {@inheritDoc}. Finds all of the straddles with a single range scan, from the SensorData at or
+   * before the earliest timestamp to the SensorData at or after the latest timestamp. The scan
+   * reads at most getStraddleScanLimit SensorData, and any timestamps it does not reach are looked
+   * up one at a time.
+   */
+  @Override
+  public List<SensorDataStraddle> getSensorDataStraddles(Source source,
+      List<XMLGregorianCalendar> timestampList) {
+    if ((source == null) || (timestampList == null)) {
+      return null;
+    }
+    else if (timestampList.isEmpty()) {
+      return new ArrayList<SensorDataStraddle>();
+    }
+    String sourceName = source.getName();
+    List<XMLGregorianCalendar> sortedList = Tstamp.sort(timestampList);
+    Timestamp first = Tstamp.makeTimestamp(sortedList.get(0));
+    Timestamp last = Tstamp.makeTimestamp(sortedList.get(sortedList.size() - 1));
+    int limit = getStraddleScanLimit(sortedList.size());
+    List<SensorData> datas;
 
-  /** The SQL string for creating the WattDepotUserProperty table. */
-  private static final String createUserPropertyTableStatement =
+    Connection conn = null;
+    PreparedStatement s = null;
+    ResultSet rs = null;
+    try {
+      // If there is no data on one side of the range, fall back to the range itself so the
+      // timestamps that can be straddled still are.
+      // The limit applies to SensorData rows, before their properties are joined
+      String statement =
+          selectSensorDataWithProperties("(SELECT * FROM SensorData WHERE Source = ? "
+              + "AND Tstamp >= COALESCE("
+              + "(SELECT MAX(Tstamp) FROM SensorData WHERE Source = ? AND Tstamp <= ?), ?) "
+              + "AND Tstamp <= COALESCE("
+              + "(SELECT MIN(Tstamp) FROM SensorData WHERE Source = ? AND Tstamp >= ?), ?) "
+              + "ORDER BY Tstamp LIMIT " + limit + ")")
+              + orderSensorDataWithProperties();
+      conn = connectionPool.getConnection();
+      server.getLogger().fine(executeQueryMsg + statement);
+      s = conn.prepareStatement(statement);
+      s.setString(1, sourceName);
+      s.setString(2, sourceName);
+      s.setTimestamp(3, first);
+      s.setTimestamp(4, first);
+      s.setString(5, sourceName);
+      s.setTimestamp(6, last);
+      s.setTimestamp(7, last);
+      rs = s.executeQuery();
+      datas = resultSetToSensorDatas(rs);
+    }
+    catch (SQLException e) {
+      this.logger.info("DB: Error in getSensorDataStraddles()" + StackTrace.toString(e));
+      return null;
+    }
+    finally {
+      try {
+        if (rs != null) {
+          rs.close();
+        }
+        if (s != null) {
+          s.close();
+        }
+        if (conn != null) {
+          conn.close();
+        }
+      }
+      catch (SQLException e) {
+        this.logger.warning(errorClosingMsg + StackTrace.toString(e));
+      }
+    }
+    return getStraddlesFromScan(source, datas, limit, timestampList);
+  }
+
+  /**
+   * Adds the ExtraProperties column to the SensorData table if it was created before the column
+   * existed.
+   * 
+   * @throws SQLException If the column cannot be added.
+   */
+  private void addExtraPropertiesColumn() throws SQLException {
+    Connection conn = null;
+    Statement s = null;
+    try {
+      conn = this.connectionPool.getConnection();
+      s = conn.createStatement();
+      try {
+        s.executeQuery("SELECT ExtraProperties FROM SensorData WHERE 1=3").close();
+      }
+      catch (SQLException e) {
+        if (!UNDEFINED_COLUMN.equals(e.getSQLState())) {
+          throw e;
+        }
+        this.logger.info("PostgreSQL: Adding ExtraProperties column to SensorData");
+        s.execute(addExtraPropertiesColumnStatement);
+      }
+    }
+    finally {
+      if (s != null) {
+        s.close();
+      }
+      if (conn != null) {
+        conn.close();
+      }
+    }
+  }
+
+  /**
+   * Reads where extra SensorData properties are to be stored from the server properties. If they
+   * are to be stored inline and there are still properties in the SensorDataProperty table, starts
+   * moving them into the SensorData rows in the background.
+   * 
+   * @throws SQLException If the SensorDataProperty table cannot be checked.
+   */
+  private void configurePropertyLayout() throws SQLException {
+    ServerProperties props = server.getServerProperties();
+    this.inlineProperties =
+        InlineProperties.INLINE_LAYOUT.equals(props
+            .get(ServerProperties.SENSORDATA_PROPERTY_LAYOUT_KEY));
+    if (!this.inlineProperties) {
+      this.readPropertyTable = true;
+      return;
+    }
+    this.readPropertyTable = hasSensorDataProperties();
+    if (this.readPropertyTable) {
+      final int batchSize =
+          Integer.parseInt(props.get(ServerProperties.SENSORDATA_PROPERTY_MIGRATION_BATCH_KEY));
+      this.logger.info("PostgreSQL: Moving SensorData properties into SensorData rows");
+      Thread thread = new Thread("wattdepot-property-migration") {
+        @Override
+        public void run() {
+          migrateSensorDataProperties(batchSize);
+        }
+      };
+      thread.setDaemon(true);
+      this.migrationThread = thread;
+      thread.start();
+    }
+  }
+
+  /**
+   * Returns true if there are any rows in the SensorDataProperty table.
+   * 
+   * @return True if there are any SensorData properties stored in their own rows.
+   * @throws SQLException If the table cannot be read.
+   */
+  private boolean hasSensorDataProperties() throws SQLException {
+    Connection conn = null;
+    Statement s = null;
+    ResultSet rs = null;
+    try {
+      conn = this.connectionPool.getConnection();
+      s = conn.createStatement();
+      rs = s.executeQuery("SELECT Source FROM SensorDataProperty LIMIT 1");
+      return rs.next();
+    }
+    finally {
+      if (rs != null) {
+        rs.close();
+      }
+      if (s != null) {
+        s.close();
+      }
+      if (conn != null) {
+        conn.close();
+      }
+    }
+  }
+
+  /**
+   * Moves SensorData properties from the SensorDataProperty table into the ExtraProperties column
+   * of their SensorData rows, a batch at a time so that each transaction is short and the server
+   * keeps serving requests meanwhile. Once the table is empty, it is no longer read.
+   * 
+   * @param batchSize The number of properties to move in each transaction.
+   */
+  private void migrateSensorDataProperties(int batchSize) {
+    long moved = 0;
+    try {
+      int count;
+      do {
+        if (Thread.currentThread().isInterrupted()) {
+          this.logger.info("PostgreSQL: Stopped moving SensorData properties after " + moved);
+          return;
+        }
+        count = migrateSensorDataPropertyBatch(batchSize);
+        moved += count;
+      } while (count > 0);
+      // Nothing writes to the table any more, so it stays empty
+      this.readPropertyTable = false;
+      this.logger.info("PostgreSQL: Moved " + moved
+          + " SensorData properties into SensorData rows");
+    }
+    catch (SQLException e) {
+      this.logger.warning(postgresError + "while moving SensorData properties: "
+          + StackTrace.toString(e));
+    }
+    finally {
+      this.migrationThread = null;
+    }
+  }
+
+  /**
+   * Moves one batch of SensorData properties into their SensorData rows, in a single transaction.
+   * The properties of one SensorData may be split across batches, in which case the later ones are
+   * appended to those already moved.
+   * 
+   * @param batchSize The maximum number of properties to move.
+   * @return The number of properties moved, which is 0 once the SensorDataProperty table is empty.
+   * @throws SQLException If the batch cannot be moved.
+   */
+  private int migrateSensorDataPropertyBatch(int batchSize) throws SQLException {
+    Connection conn = null;
+    PreparedStatement select = null;
+    PreparedStatement read = null;
+    PreparedStatement update = null;
+    PreparedStatement delete = null;
+    ResultSet rs = null;
+    int count = 0;
+    try {
+      conn = this.connectionPool.getConnection();
+      conn.setAutoCommit(false);
+      select =
+          conn.prepareStatement("SELECT Source, Tstamp, PropertyKey, PropertyValue "
+              + "FROM SensorDataProperty ORDER BY Tstamp, Source, PropertyKey LIMIT "
+              + batchSize);
+      delete =
+          conn.prepareStatement("DELETE FROM SensorDataProperty "
+              + "WHERE Source = ? AND Tstamp = ? AND PropertyKey = ?");
+      // Ordered by the primary key, so the batch is read straight off its index, and the rows of
+      // each SensorData are adjacent, so its properties can be encoded as they come
+      List<String> sources = new ArrayList<String>();
+      List<Timestamp> tstamps = new ArrayList<Timestamp>();
+      List<String> encoded = new ArrayList<String>();
+      rs = select.executeQuery();
+      while (rs.next()) {
+        String source = rs.getString(1);
+        Timestamp tstamp = rs.getTimestamp(2);
+        String key = rs.getString(3);
+        int last = sources.size() - 1;
+        if ((last < 0) || !sources.get(last).equals(source) || !tstamps.get(last).equals(tstamp)) {
+          sources.add(source);
+          tstamps.add(tstamp);
+          encoded.add(null);
+          last++;
+        }
+        encoded.set(last, InlineProperties.append(encoded.get(last), key, rs.getString(4)));
+        delete.setString(1, source);
+        delete.setTimestamp(2, tstamp);
+        delete.setString(3, key);
+        delete.addBatch();
+        count++;
+      }
+      rs.close();
+      rs = null;
+      if (count == 0) {
+        conn.commit();
+        return 0;
+      }
+
+      read =
+          conn.prepareStatement("SELECT ExtraProperties FROM SensorData "
+              + "WHERE Source = ? AND Tstamp = ?");
+      update =
+          conn.prepareStatement("UPDATE SensorData SET ExtraProperties = ? "
+              + "WHERE Source = ? AND Tstamp = ?");
+      for (int i = 0; i < sources.size(); i++) {
+        read.setString(1, sources.get(i));
+        read.setTimestamp(2, tstamps.get(i));
+        rs = read.executeQuery();
+        String existing = rs.next() ? rs.getString(1) : null;
+        rs.close();
+        rs = null;
+        // Encoded properties can simply be concatenated
+        update.setString(1, (existing == null) ? encoded.get(i) : existing + encoded.get(i));
+        update.setString(2, sources.get(i));
+        update.setTimestamp(3, tstamps.get(i));
+        update.addBatch();
+      }
+      update.executeBatch();
+      delete.executeBatch();
+      conn.commit();
+      return count;
+    }
+    catch (SQLException e) {
+      rollback(conn);
+      throw e;
+    }
+    finally {
+      if (rs != null) {
+        rs.close();
+      }
+      for (PreparedStatement s : new PreparedStatement[] { select, read, update, delete }) {
+        if (s != null) {
+          s.close();
+        }
+      }
+      if (conn != null) {
+        conn.setAutoCommit(true);
+        conn.close();
+      }
+    }
+  }
+
+  /** The SQL string for creating the SensorDataSummary table. */
+  private static final String createSensorDataSummaryTableStatement =
+      "create table SensorDataSummary " + "(" + " Source VARCHAR(128) NOT NULL, "
+          + " FirstTstamp TIMESTAMP, " + " LastTstamp TIMESTAMP, "
+          + " DataCount BIGINT NOT NULL, " + " PRIMARY KEY (Source)" + ")";
+
+  /** An SQL string to test whether the SensorDataSummary table exists and has the right schema. */
+  private static final String testSensorDataSummaryTableStatement =
+      " UPDATE SensorDataSummary SET " + " Source = 'test-db-source', " + " FirstTstamp = '"
+          + new Timestamp(new Date().getTime()).toString() + "', " + " LastTstamp = '"
+          + new Timestamp(new Date().getTime()).toString() + "', " + " DataCount = 0 "
+          + " WHERE 1=3";
+
+  /** An SQL string to drop the SensorDataSummary table. */
+  private static final String dropSensorDataSummaryTableStatement = "DROP TABLE SensorDataSummary";
+
+  /**
+   * Adds a row to the SensorDataSummary table, computed from the SensorData table, for each Source
+   * that does not have one yet.
+   * 
+   * @throws SQLException If the rows cannot be added.
+   */
+  private void createMissingSensorDataSummaries() throws SQLException {
+    Connection conn = null;
+    Statement s = null;
+    try {
+      conn = this.connectionPool.getConnection();
+      s = conn.createStatement();
+      int rowCount =
+          s.executeUpdate("INSERT INTO SensorDataSummary (Source, FirstTstamp, LastTstamp, "
+              + "DataCount) SELECT src.Name, Min(d.Tstamp), Max(d.Tstamp), Count(d.Tstamp) "
+              + "FROM Source src LEFT OUTER JOIN SensorData d ON d.Source = src.Name "
+              + "WHERE src.Name NOT IN (SELECT Source FROM SensorDataSummary) GROUP BY src.Name");
+      if (rowCount > 0) {
+        this.logger.info("PostgreSQL: Built SensorDataSummary for " + rowCount + " sources");
+      }
+    }
+    finally {
+      if (s != null) {
+        s.close();
+      }
+      if (conn != null) {
+        conn.close();
+      }
+    }
+  }
+
+  /**
+   * Adds the row for the given Source to the SensorDataSummary table, computed from its SensorData.
+   * 
+   * @param sourceName The name of the Source.
+   * @param conn The connection encapsulating this transaction.
+   * @throws SQLException If the row cannot be added.
+   */
+  private void insertSensorDataSummary(String sourceName, Connection conn) throws SQLException {
+    PreparedStatement s = null;
+    try {
+      s =
+          conn.prepareStatement("INSERT INTO SensorDataSummary (Source, FirstTstamp, LastTstamp, "
+              + "DataCount) SELECT CAST(? AS VARCHAR(128)), Min(Tstamp), Max(Tstamp), Count(1) "
+              + "FROM SensorData WHERE Source = ?");
+      s.setString(1, sourceName);
+      s.setString(2, sourceName);
+      s.executeUpdate();
+    }
+    finally {
+      if (s != null) {
+        s.close();
+      }
+    }
+  }
+
+  /**
+   * Adds newly inserted SensorData to the summary of its Source.
+   * 
+   * @param sourceName The name of the Source.
+   * @param first The earliest timestamp inserted.
+   * @param last The latest timestamp inserted.
+   * @param count The number of SensorData inserted.
+   * @param conn The connection encapsulating this transaction.
+   * @throws SQLException If the summary cannot be updated.
+   */
+  private void addToSensorDataSummary(String sourceName, Timestamp first, Timestamp last,
+      long count, Connection conn) throws SQLException {
+    PreparedStatement s = null;
+    int rowCount;
+    try {
+      s =
+          conn.prepareStatement("UPDATE SensorDataSummary SET DataCount = DataCount + ?, "
+              + "FirstTstamp = CASE WHEN FirstTstamp IS NULL OR FirstTstamp > ? THEN ? "
+              + "ELSE FirstTstamp END, "
+              + "LastTstamp = CASE WHEN LastTstamp IS NULL OR LastTstamp < ? THEN ? "
+              + "ELSE LastTstamp END WHERE Source = ?");
+      s.setLong(1, count);
+      s.setTimestamp(2, first);
+      s.setTimestamp(3, first);
+      s.setTimestamp(4, last);
+      s.setTimestamp(5, last);
+      s.setString(6, sourceName);
+      rowCount = s.executeUpdate();
+    }
+    finally {
+      if (s != null) {
+        s.close();
+      }
+    }
+    if (rowCount == 0) {
+      // Every Source should have a row, but if not this one is computed with the new data included
+      insertSensorDataSummary(sourceName, conn);
+    }
+  }
+
+  /**
+   * Removes a deleted SensorData from the summary of its Source. If it was the first or last
+   * SensorData, that end of the summary is looked up again.
+   * 
+   * @param sourceName The name of the Source.
+   * @param tstamp The timestamp of the deleted SensorData.
+   * @param conn The connection encapsulating this transaction.
+   * @throws SQLException If the summary cannot be updated.
+   */
+  private void removeFromSensorDataSummary(String sourceName, Timestamp tstamp, Connection conn)
+      throws SQLException {
+    PreparedStatement s = null;
+    try {
+      s =
+          conn.prepareStatement("UPDATE SensorDataSummary SET DataCount = DataCount - 1 "
+              + "WHERE Source = ?");
+      s.setString(1, sourceName);
+      s.executeUpdate();
+      s.close();
+      s =
+          conn.prepareStatement("UPDATE SensorDataSummary SET "
+              + "FirstTstamp = (SELECT Min(Tstamp) FROM SensorData WHERE Source = ?), "
+              + "LastTstamp = (SELECT Max(Tstamp) FROM SensorData WHERE Source = ?) "
+              + "WHERE Source = ? AND (FirstTstamp = ? OR LastTstamp = ?)");
+      s.setString(1, sourceName);
+      s.setString(2, sourceName);
+      s.setString(3, sourceName);
+      s.setTimestamp(4, tstamp);
+      s.setTimestamp(5, tstamp);
+      s.executeUpdate();
+    }
+    finally {
+      if (s != null) {
+        s.close();
+      }
+    }
+  }
+
+  /**
+   * Updates the summary of a Source after a range of its SensorData has been deleted.
+   * 
+   * @param sourceName The name of the Source.
+   * @param count The number of SensorData deleted.
+   * @param start The start of the deleted range.
+   * @param end The end of the deleted range.
+   * @param conn The connection encapsulating this transaction.
+   * @throws SQLException If the summary cannot be updated.
+   */
+  private void removeFromSensorDataSummary(String sourceName, int count, Timestamp start,
+      Timestamp end, Connection conn) throws SQLException {
+    PreparedStatement s = null;
+    try {
+      s =
+          conn.prepareStatement("UPDATE SensorDataSummary SET DataCount = DataCount - ? "
+              + "WHERE Source = ?");
+      s.setInt(1, count);
+      s.setString(2, sourceName);
+      s.executeUpdate();
+      s.close();
+      s =
+          conn.prepareStatement("UPDATE SensorDataSummary SET "
+              + "FirstTstamp = (SELECT Min(Tstamp) FROM SensorData WHERE Source = ?), "
+              + "LastTstamp = (SELECT Max(Tstamp) FROM SensorData WHERE Source = ?) "
+              + "WHERE Source = ? AND ((FirstTstamp BETWEEN ? AND ?) "
+              + "OR (LastTstamp BETWEEN ? AND ?))");
+      s.setString(1, sourceName);
+      s.setString(2, sourceName);
+      s.setString(3, sourceName);
+      s.setTimestamp(4, start);
+      s.setTimestamp(5, end);
+      s.setTimestamp(6, start);
+      s.setTimestamp(7, end);
+      s.executeUpdate();
+    }
+    finally {
+      if (s != null) {
+        s.close();
+      }
+    }
+  }
+
+  /**
+   * Empties the summary of a Source whose SensorData have all been deleted.
+   * 
+   * @param sourceName The name of the Source.
+   * @param conn The connection encapsulating this transaction.
+   * @throws SQLException If the summary cannot be updated.
+   */
+  private void resetSensorDataSummary(String sourceName, Connection conn) throws SQLException {
+    PreparedStatement s = null;
+    try {
+      s =
+          conn.prepareStatement("UPDATE SensorDataSummary SET FirstTstamp = NULL, "
+              + "LastTstamp = NULL, DataCount = 0 WHERE Source = ?");
+      s.setString(1, sourceName);
+      s.executeUpdate();
+    }
+    finally {
+      if (s != null) {
+        s.close();
+      }
+    }
+  }
+
+  /**
+   * Delete a source's row from the SensorDataSummary table.
+   * 
+   * @param sourceName The source to delete the summary for.
+   * @param conn The connection encapsulating this transaction.
+   * @return True if the summary was successfully deleted.
+   */
+  private boolean deleteSensorDataSummary(String sourceName, Connection conn) {
+    return deleteResource(
+        "DELETE FROM SensorDataSummary WHERE Source='" + sourceName.replace("'", "''") + "'", conn);
+  }
+
+  /**
+   * Rolls back the transaction on the given connection after a failure, so that none of its
+   * statements are committed when auto-commit is turned back on.
+   * 
+   * @param conn The connection, which may be null.
+   */
+  private void rollback(Connection conn) {
+    try {
+      if (conn != null) {
+        conn.rollback();
+      }
+    }
+    catch (SQLException e) {
+      this.logger.info(postgresError + StackTrace.toString(e));
+    }
+  }
+
+  /** The SQL string for creating the SensorDataRollup table. */
+  private static final String createSensorDataRollupTableStatement =
+      "create table SensorDataRollup " + "(" + " Source VARCHAR(128) NOT NULL, "
+          + " Resolution INTEGER NOT NULL, " + " BucketStart BIGINT NOT NULL, "
+          + " Complete BOOLEAN NOT NULL, " + " SampleCount INTEGER NOT NULL, "
+          + " FirstTime BIGINT NOT NULL, " + " LastTime BIGINT NOT NULL, "
+          + " MinPowerConsumed DOUBLE PRECISION NOT NULL, "
+          + " MaxPowerConsumed DOUBLE PRECISION NOT NULL, "
+          + " TotalPowerConsumed DOUBLE PRECISION NOT NULL, "
+          + " MinPowerGenerated DOUBLE PRECISION NOT NULL, "
+          + " MaxPowerGenerated DOUBLE PRECISION NOT NULL, "
+          + " TotalPowerGenerated DOUBLE PRECISION NOT NULL, "
+          + " FirstEnergyConsumedToDate DOUBLE PRECISION NOT NULL, "
+          + " LastEnergyConsumedToDate DOUBLE PRECISION NOT NULL, "
+          + " FirstEnergyGeneratedToDate DOUBLE PRECISION NOT NULL, "
+          + " LastEnergyGeneratedToDate DOUBLE PRECISION NOT NULL, "
+          + " EnergyConsumed DOUBLE PRECISION NOT NULL, "
+          + " EnergyGenerated DOUBLE PRECISION NOT NULL, "
+          + " PRIMARY KEY (Source, Resolution, BucketStart), "
+          + " FOREIGN KEY (Source) REFERENCES Source(Name)" + ")";
+
+  /** An SQL string to test whether the SensorDataRollup table exists and has the correct schema. */
+  private static final String testSensorDataRollupTableStatement =
+      " UPDATE SensorDataRollup SET " + " Source = 'test-db-source', " + " Resolution = 60, "
+          + " BucketStart = 1248775200000, " + " Complete = TRUE, " + " SampleCount = 4, "
+          + " FirstTime = 1248775200000, " + " LastTime = 1248777900000, "
+          + " MinPowerConsumed = 100.0, " + " MaxPowerConsumed = 400.0, "
+          + " TotalPowerConsumed = 1000.0, " + " MinPowerGenerated = 0.0, "
+          + " MaxPowerGenerated = 0.0, " + " TotalPowerGenerated = 0.0, "
+          + " FirstEnergyConsumedToDate = 1000.0, " + " LastEnergyConsumedToDate = 1250.0, "
+          + " FirstEnergyGeneratedToDate = 0.0, " + " LastEnergyGeneratedToDate = 0.0, "
+          + " EnergyConsumed = 250.0, " + " EnergyGenerated = 0.0 " + " WHERE 1=3";
+
+  /** An SQL string to drop the SensorDataRollup table. */
+  private static final String dropSensorDataRollupTableStatement = "DROP TABLE SensorDataRollup";
+
+  /**
+   * Converts a database row from the SensorDataRollup table to a SensorDataRollup object. The
+   * caller should have advanced the cursor to the next row via rs.next() before calling this
+   * method.
+   * 
+   * @param rs The result set to be examined.
+   * @return The new SensorDataRollup object.
+   * @throws SQLException If the row cannot be read.
+   */
+  private SensorDataRollup resultSetToRollup(ResultSet rs) throws SQLException {
+    SensorDataRollup rollup =
+        new SensorDataRollup(rs.getString("Source"), rs.getInt("Resolution"),
+            rs.getLong("BucketStart"));
+    rollup.setComplete(rs.getBoolean("Complete"));
+    rollup.setSamples(rs.getInt("SampleCount"), rs.getLong("FirstTime"), rs.getLong("LastTime"));
+    rollup.setPowerConsumed(rs.getDouble("MinPowerConsumed"), rs.getDouble("MaxPowerConsumed"),
+        rs.getDouble("TotalPowerConsumed"));
+    rollup.setPowerGenerated(rs.getDouble("MinPowerGenerated"), rs.getDouble("MaxPowerGenerated"),
+        rs.getDouble("TotalPowerGenerated"));
+    rollup.setCounters(rs.getDouble("FirstEnergyConsumedToDate"),
+        rs.getDouble("LastEnergyConsumedToDate"), rs.getDouble("FirstEnergyGeneratedToDate"),
+        rs.getDouble("LastEnergyGeneratedToDate"));
+    rollup.setEnergy(rs.getDouble("EnergyGenerated"), rs.getDouble("EnergyConsumed"));
+    return rollup;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public List<SensorDataRollup> getRollups(String sourceName, int resolution, long startMillis,
+      long endMillis) {
+    String statement =
+        "SELECT * FROM SensorDataRollup WHERE Source = ? AND Resolution = ? "
+            + "AND BucketStart >= ? AND BucketStart < ? ORDER BY BucketStart";
+    return getRollups(statement, sourceName, resolution, startMillis, endMillis);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public List<SensorDataRollup> getRollups(String sourceName, long startMillis, long endMillis) {
+    // The bucket length in millis is Resolution * 60000
+    String statement =
+        "SELECT * FROM SensorDataRollup WHERE Source = ? "
+            + "AND BucketStart + Resolution * 60000 > ? AND BucketStart <= ?";
+    return getRollups(statement, sourceName, null, startMillis, endMillis);
+  }
+
+  /**
+   * Runs one of the rollup queries, which take the Source name, optionally the resolution, and then
+   * the start and end of the range in epoch milliseconds as parameters.
+   * 
+   * @param statement The SQL query.
+   * @param sourceName The name of the Source.
+   * @param resolution The resolution, or null if the query doesn't take one.
+   * @param startMillis The start of the range in epoch milliseconds.
+   * @param endMillis The end of the range in epoch milliseconds.
+   * @return The list of rollups, or null if there was a problem reading them.
+   */
+  private List<SensorDataRollup> getRollups(String statement, String sourceName,
+      Integer resolution, long startMillis, long endMillis) {
+    if (sourceName == null) {
+      return null;
+    }
+    List<SensorDataRollup> rollups = new ArrayList<SensorDataRollup>();
+    Connection conn = null;
+    PreparedStatement s = null;
+    ResultSet rs = null;
+    try {
+      conn = this.connectionPool.getConnection();
+      server.getLogger().fine(executeQueryMsg + statement);
+      s = conn.prepareStatement(statement);
+      int index = 1;
+      s.setString(index++, sourceName);
+      if (resolution != null) {
+        s.setInt(index++, resolution);
+      }
+      s.setLong(index++, startMillis);
+      s.setLong(index, endMillis);
+      rs = s.executeQuery();
+      while (rs.next()) {
+        rollups.add(resultSetToRollup(rs));
+      }
+    }
+    catch (SQLException e) {
+      this.logger.info("DB: Error in getRollups()" + StackTrace.toString(e));
+      return null;
+    }
+    finally {
+      try {
+        if (rs != null) {
+          rs.close();
+        }
+        if (s != null) {
+          s.close();
+        }
+        if (conn != null) {
+          conn.close();
+        }
+      }
+      catch (SQLException e) {
+        this.logger.warning(errorClosingMsg + StackTrace.toString(e));
+      }
+    }
+    return rollups;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean storeRollups(List<SensorDataRollup> rollups) {
+    if (rollups == null) {
+      return false;
+    }
+    else if (rollups.isEmpty()) {
+      return true;
+    }
+    boolean succeeded = false;
+    Connection conn = null;
+    PreparedStatement deleteStatement = null;
+    PreparedStatement insertStatement = null;
+    try {
+      conn = this.connectionPool.getConnection();
+      conn.setAutoCommit(false);
+      deleteStatement =
+          conn.prepareStatement("DELETE FROM SensorDataRollup "
+              + "WHERE Source = ? AND Resolution = ? AND BucketStart = ?");
+      insertStatement =
+          conn.prepareStatement("INSERT INTO SensorDataRollup VALUES "
+              + "(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+      int batchCount = 0;
+      for (SensorDataRollup rollup : rollups) {
+        deleteStatement.setString(1, rollup.getSourceName());
+        deleteStatement.setInt(2, rollup.getResolution());
+        deleteStatement.setLong(3, rollup.getStart());
+        deleteStatement.addBatch();
+        insertStatement.setString(1, rollup.getSourceName());
+        insertStatement.setInt(2, rollup.getResolution());
+        insertStatement.setLong(3, rollup.getStart());
+        insertStatement.setBoolean(4, rollup.isComplete());
+        insertStatement.setInt(5, rollup.getCount());
+        insertStatement.setLong(6, rollup.getFirstTime());
+        insertStatement.setLong(7, rollup.getLastTime());
+        insertStatement.setDouble(8, rollup.getMinPowerConsumed());
+        insertStatement.setDouble(9, rollup.getMaxPowerConsumed());
+        insertStatement.setDouble(10, rollup.getTotalPowerConsumed());
+        insertStatement.setDouble(11, rollup.getMinPowerGenerated());
+        insertStatement.setDouble(12, rollup.getMaxPowerGenerated());
+        insertStatement.setDouble(13, rollup.getTotalPowerGenerated());
+        insertStatement.setDouble(14, rollup.getFirstEnergyConsumedToDate());
+        insertStatement.setDouble(15, rollup.getLastEnergyConsumedToDate());
+        insertStatement.setDouble(16, rollup.getFirstEnergyGeneratedToDate());
+        insertStatement.setDouble(17, rollup.getLastEnergyGeneratedToDate());
+        insertStatement.setDouble(18, rollup.getEnergyConsumed());
+        insertStatement.setDouble(19, rollup.getEnergyGenerated());
+        insertStatement.addBatch();
+        batchCount++;
+        if (batchCount % BATCH_SIZE == 0) {
+          // Old rows must be gone before their replacements are inserted
+          deleteStatement.executeBatch();
+          insertStatement.executeBatch();
+        }
+      }
+      deleteStatement.executeBatch();
+      insertStatement.executeBatch();
+      conn.commit();
+      succeeded = true;
+    }
+    catch (SQLException e) {
+      this.logger.info("DB: Error in storeRollups()" + StackTrace.toString(e));
+      try {
+        if (conn != null) {
+          conn.rollback();
+        }
+      }
+      catch (SQLException e1) {
+        this.logger.info(postgresError + StackTrace.toString(e1));
+      }
+    }
+    finally {
+      try {
+        if (deleteStatement != null) {
+          deleteStatement.close();
+        }
+        if (insertStatement != null) {
+          insertStatement.close();
+        }
+        if (conn != null) {
+          conn.setAutoCommit(true);
+          conn.close();
+        }
+      }
+      catch (SQLException e) {
+        this.logger.warning(errorClosingMsg + StackTrace.toString(e));
+      }
+    }
+    return succeeded;
+  }
+
+  /** The SQL string for creating the WattDepotUser table. So named because 'User' is reserved. */
+  private static final String createUserTableStatement = "create table WattDepotUser  " + "("
+      + " Username VARCHAR(128) NOT NULL, " + " Password VARCHAR(128) NOT NULL, "
+      + " Admin BOOLEAN NOT NULL, " + " LastMod TIMESTAMP NOT NULL, " + " PRIMARY KEY (Username) "
+      + ")";
+
+  /** An SQL string to test whether the User table exists and has the correct schema. */
+  private static final String testUserTableStatement = " UPDATE WattDepotUser SET "
+      + " Username = 'TestEmail@foo.com', " + " Password = 'changeme', " + " Admin = FALSE, "
+      + " LastMod = '" + new Timestamp(new Date().getTime()).toString() + "' " + " WHERE 1=3";
+
+  /** An SQL string to drop the User table. */
+  private static final String dropUserTableStatement = "DROP TABLE WattDepotUser";
+
+  /** The SQL string for creating the WattDepotUserProperty table. */
+  private static final String createUserPropertyTableStatement =
       "create table WattDepotUserProperty " + "(" + " Username VARCHAR(128) NOT NULL, "
           + " PropertyKey VARCHAR(128) NOT NULL, " + " PropertyValue VARCHAR(128) NOT NULL, "
           + " PRIMARY KEY (Username, PropertyKey), "
@@ -2633,11 +3786,23 @@ public class PostgresStorageImplementation extends DbImplementation {
    * 
    * This doesn't work on all systems because of permissions. Backups can also be done fairly easily
    * outside of the WattDepot system.
+   * 
+   * The data directory, write ahead log included, is mirrored into a staging directory between
+   * pg_start_backup and pg_stop_backup, which copies only the files that have changed since the
+   * snapshot the staging directory last held. Once the backup has stopped the write ahead log is
+   * mirrored again, so that the snapshot has the WAL written while it was copied, which is needed
+   * to restore it. The staging directory then replaces the snapshot in the POSTGRES_SNAPSHOT_KEY
+   * directory, so a failed or partial run leaves the previous snapshot in place.
    */
   @Override
   public boolean makeSnapshot() {
     this.logger.fine("Creating snapshot of database.");
     boolean success = false;
+    File snapshotDir =
+        new File(server.getServerProperties().get(ServerProperties.POSTGRES_SNAPSHOT_KEY));
+    SnapshotCopier copier = makeSnapshotCopier();
+    File stagingDir = copier.stagingDir(snapshotDir);
+    String dataPath = null;
 
     Connection conn = null;
     PreparedStatement s = null;
@@ -2651,26 +3816,15 @@ public class PostgresStorageImplementation extends DbImplementation {
       // figure out where postgres stores its data
       s = conn.prepareCall("select setting from pg_settings where name='data_directory'");
       rs = s.executeQuery();
-      String dataPath = "";
       if (rs.next()) {
         dataPath = rs.getString("setting");
 
         s.close();
         rs.close();
 
-        // now zip the whole data directory up as a backup
-        this.logger.info("PostgreSQL: Creating zip backup from " + dataPath);
-
-        FileOutputStream fout =
-            new FileOutputStream(server.getServerProperties().get(
-                ServerProperties.POSTGRES_SNAPSHOT_KEY)
-                + ".zip");
-        ZipOutputStream zout = new ZipOutputStream(fout);
-        File fileSource = new File(dataPath);
-        addDirectory(zout, fileSource, "");
-        zout.close();
-
-        success = true;
+        // now copy the changed files of the data directory as a backup
+        this.logger.info("PostgreSQL: Creating backup from " + dataPath);
+        success = copier.mirror(new File(dataPath), stagingDir, null);
       }
       else {
         success = false;
@@ -2680,14 +3834,6 @@ public class PostgresStorageImplementation extends DbImplementation {
       this.logger.warning("PostgreSQL: Error in makeSnapshot():" + StackTrace.toString(e));
       success = false;
     }
-    catch (FileNotFoundException e) {
-      this.logger.warning("PostgreSQL: Error in makeSnapshot():" + StackTrace.toString(e));
-      success = false;
-    }
-    catch (IOException e) {
-      this.logger.warning("PostgreSQL: IO Error in makeSnapshot():" + StackTrace.toString(e));
-      success = false;
-    }
     finally {
       try {
         // always stop backup at the end
@@ -2722,67 +3868,27 @@ public class PostgresStorageImplementation extends DbImplementation {
         }
       }
     }
+    if (success) {
+      // The WAL up to the end of the backup, which pg_stop_backup has now written
+      File xlogDir = new File(dataPath, "pg_xlog");
+      success =
+          copier.mirror(xlogDir, new File(stagingDir, xlogDir.getName()), null)
+              && copier.publish(stagingDir, snapshotDir);
+    }
     this.logger.fine("PostgreSQL: Created snapshot of database.");
 
     return success;
   }
 
-  /**
-   * Recursively add everything in fileSource to zout zip file. Adapted from
-   * www.java-examples.com/create-zip-file-directory-recursively-using-zipoutputstream-example
-   * 
-   * @param zout The zip file to make
-   * @param fileSource The directory to zip
-   * @param parent The name of the parent directory
-   */
-  private void addDirectory(ZipOutputStream zout, File fileSource, String parent) {
-
-    // get sub-folder/files list
-    File[] files = fileSource.listFiles();
-    if (files != null) {
-
-      for (int i = 0; i < files.length; i++) {
-        // if the file is directory, call the function recursively
-        if (files[i].isDirectory()) {
-          if (!files[i].getName().equals("pg_xlog")) {
-            addDirectory(zout, files[i], parent + files[i].getName() + "/");
-          }
-          continue;
-        }
-
-        // it is a file and not directory, so add it to the zip file
-        try {
-          byte[] buffer = new byte[1024];
-          FileInputStream fin = new FileInputStream(files[i]);
-          zout.putNextEntry(new ZipEntry(parent + files[i].getName()));
-
-          // After creating entry in the zip file, actually write the file.
-          int length;
-
-          while ((length = fin.read(buffer)) > 0) {
-            zout.write(buffer, 0, length);
-          }
-
-          zout.closeEntry();
-          fin.close();
-
-        }
-        catch (IOException ioe) {
-          System.out.println("IOException :" + ioe);
-        }
-      }
-    }
-    else {
-      this.logger.info("PostgreSQL: makeSnapshot() tried to zip null file " + fileSource.getName());
-    }
-
-  }
-
   /**
    * Close the connection object pool.
    */
   @Override
   public void stop() {
+    Thread migration = this.migrationThread;
+    if (migration != null) {
+      migration.interrupt();
+    }
     try {
       this.connectionPool.close();
     }
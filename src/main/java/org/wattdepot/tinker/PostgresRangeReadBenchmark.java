@@ -0,0 +1,103 @@
+package org.wattdepot.tinker;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import javax.xml.datatype.XMLGregorianCalendar;
+import org.wattdepot.resource.property.jaxb.Property;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.resource.source.jaxb.Source;
+import org.wattdepot.resource.user.jaxb.User;
+import org.wattdepot.server.Server;
+import org.wattdepot.server.ServerProperties;
+import org.wattdepot.server.db.DbManager;
+import org.wattdepot.util.tstamp.Tstamp;
+
+/**
+ * Benchmarks the SensorData read paths of PostgresStorageImplementation against a local
+ * PostgreSQL configured through the usual server properties. Seeds one Source with a day of
+ * readings at 10 second resolution, each with extra properties stored in the SensorDataProperty
+ * table, then times range, single, latest and straddle reads. Run it on builds before and after a
+ * change to the read queries to compare them.
+ */
+public class PostgresRangeReadBenchmark {
+
+  /** Seconds between seeded readings. */
+  private static final int INTERVAL = 10;
+
+  /** Number of seeded readings, one day at INTERVAL resolution. */
+  private static final int NUM_READINGS = 24 * 60 * 60 / INTERVAL;
+
+  /** Number of timestamps to use for the single and straddle read timings. */
+  private static final int NUM_LOOKUPS = 500;
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args Ignored.
+   * @throws Exception If there are problems.
+   */
+  public static void main(String[] args) throws Exception {
+    Server server = Server.newTestInstance();
+    ServerProperties props = server.getServerProperties();
+    DbManager manager =
+        new DbManager(server,
+            "org.wattdepot.server.db.postgres.PostgresStorageImplementation", true);
+    String owner = props.get(ServerProperties.ADMIN_EMAIL_KEY);
+    Source source = new Source("benchmark-source", User.userToUri(owner, server), true);
+    manager.storeSource(source);
+    String sourceUri = Source.sourceToUri(source.getName(), server);
+
+    XMLGregorianCalendar start = Tstamp.makeTimestamp("2011-01-01T00:00:00.000-10:00");
+    List<SensorData> datas = new ArrayList<SensorData>(NUM_READINGS);
+    for (int i = 0; i < NUM_READINGS; i++) {
+      SensorData data =
+          new SensorData(Tstamp.incrementSeconds(start, i * INTERVAL), "Benchmark", sourceUri);
+      data.addProperty(new Property(SensorData.POWER_CONSUMED, 1000.0 + i));
+      data.addProperty(new Property(SensorData.ENERGY_CONSUMED_TO_DATE, 10.0 * i));
+      data.addProperty(new Property("voltage", "120.1"));
+      data.addProperty(new Property("powerFactor", "0.97"));
+      datas.add(data);
+    }
+    long before = new Date().getTime();
+    manager.storeSensorDatas(datas, source);
+    long after = new Date().getTime();
+    System.out.format("Seeded %d readings in %d ms%n", NUM_READINGS, after - before);
+    XMLGregorianCalendar end = Tstamp.incrementSeconds(start, (NUM_READINGS - 1) * INTERVAL);
+
+    // Warm up the connection pool and the database caches before timing anything.
+    manager.getSensorDatas(source.getName(), start, end);
+
+    before = new Date().getTime();
+    int count = manager.getSensorDatas(source.getName(), start, end).getSensorData().size();
+    after = new Date().getTime();
+    System.out.format("getSensorDatas for one day (%d readings): %d ms%n", count, after - before);
+
+    int step = NUM_READINGS / NUM_LOOKUPS;
+    before = new Date().getTime();
+    for (int i = 0; i < NUM_LOOKUPS; i++) {
+      manager.getSensorData(source.getName(), datas.get(i * step).getTimestamp());
+    }
+    after = new Date().getTime();
+    System.out.format("getSensorData x %d: %d ms%n", NUM_LOOKUPS, after - before);
+
+    before = new Date().getTime();
+    for (int i = 0; i < NUM_LOOKUPS; i++) {
+      // Halfway between readings, so a real straddle is needed
+      manager.getSensorDataStraddle(source,
+          Tstamp.incrementSeconds(datas.get(i * step).getTimestamp(), INTERVAL / 2));
+    }
+    after = new Date().getTime();
+    System.out.format("getSensorDataStraddle x %d: %d ms%n", NUM_LOOKUPS, after - before);
+
+    before = new Date().getTime();
+    for (int i = 0; i < NUM_LOOKUPS; i++) {
+      manager.getLatestSensorData(source.getName());
+    }
+    after = new Date().getTime();
+    System.out.format("getLatestSensorData x %d: %d ms%n", NUM_LOOKUPS, after - before);
+
+    manager.wipeData();
+    server.shutdown();
+  }
+}
@@ -0,0 +1,153 @@
+package org.wattdepot.tinker;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.datatype.XMLGregorianCalendar;
+import org.wattdepot.resource.property.jaxb.Properties;
+import org.wattdepot.resource.property.jaxb.Property;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.util.tstamp.Tstamp;
+
+/**
+ * Compares the indexed Properties.getPropertyAsDouble with the linear scan and parse it used to
+ * make on every call. Times lookups of the power properties of a day of typical SensorData at 10
+ * second resolution, read many times each as a chart over the same data does, and read only once
+ * each as a single pass over freshly retrieved data does.
+ */
+public class PropertyAccessBenchmark {
+
+  /** Seconds between readings. */
+  private static final int INTERVAL = 10;
+
+  /** Number of readings, one day at INTERVAL resolution. */
+  private static final int NUM_READINGS = 24 * 60 * 60 / INTERVAL;
+
+  /** Number of times each reading is looked up in the repeated test. */
+  private static final int NUM_LOOKUPS = 10;
+
+  /** Number of times each test is repeated. */
+  private static final int NUM_RUNS = 10;
+
+  /** The keys looked up, as interpolation does. */
+  private static final String[] KEYS = { SensorData.POWER_GENERATED, SensorData.POWER_CONSUMED };
+
+  /** Accumulates the values read, so the lookups cannot be optimized away. */
+  private static double sink;
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args Ignored.
+   * @throws Exception If there are problems.
+   */
+  public static void main(String[] args) throws Exception {
+    XMLGregorianCalendar start = Tstamp.makeTimestamp("2011-01-01T00:00:00.000-10:00");
+
+    // Warm up both versions before timing anything.
+    for (int run = 0; run < 5; run++) {
+      List<SensorData> datas = makeDatas(start);
+      lookup(datas, NUM_LOOKUPS, false);
+      lookup(datas, NUM_LOOKUPS, true);
+    }
+
+    List<SensorData> datas = makeDatas(start);
+    long before = System.nanoTime();
+    for (int run = 0; run < NUM_RUNS; run++) {
+      lookup(datas, NUM_LOOKUPS, false);
+    }
+    report("repeated lookups, old", NUM_RUNS * NUM_LOOKUPS, System.nanoTime() - before);
+    before = System.nanoTime();
+    for (int run = 0; run < NUM_RUNS; run++) {
+      lookup(datas, NUM_LOOKUPS, true);
+    }
+    report("repeated lookups, new", NUM_RUNS * NUM_LOOKUPS, System.nanoTime() - before);
+
+    long nanos = 0;
+    for (int run = 0; run < NUM_RUNS; run++) {
+      datas = makeDatas(start);
+      before = System.nanoTime();
+      lookup(datas, 1, false);
+      nanos += System.nanoTime() - before;
+    }
+    report("single lookups, old", NUM_RUNS, nanos);
+    nanos = 0;
+    for (int run = 0; run < NUM_RUNS; run++) {
+      datas = makeDatas(start);
+      before = System.nanoTime();
+      lookup(datas, 1, true);
+      nanos += System.nanoTime() - before;
+    }
+    report("single lookups, new", NUM_RUNS, nanos);
+    System.out.println("(checksum " + sink + ")");
+  }
+
+  /**
+   * Makes a day of typical SensorData.
+   *
+   * @param start The timestamp of the first reading.
+   * @return The SensorData.
+   */
+  private static List<SensorData> makeDatas(XMLGregorianCalendar start) {
+    List<SensorData> datas = new ArrayList<SensorData>(NUM_READINGS);
+    String sourceUri = "http://localhost:8182/wattdepot/sources/benchmark-source";
+    for (int i = 0; i < NUM_READINGS; i++) {
+      SensorData data = new SensorData(start, "Benchmark", sourceUri);
+      data.addProperty(new Property(SensorData.POWER_CONSUMED, 1000.0 + i));
+      data.addProperty(new Property(SensorData.ENERGY_CONSUMED_TO_DATE, 10.0 * i));
+      data.addProperty(new Property(SensorData.POWER_GENERATED, 500.0 + i));
+      data.addProperty(new Property(SensorData.ENERGY_GENERATED_TO_DATE, 5.0 * i));
+      datas.add(data);
+    }
+    return datas;
+  }
+
+  /**
+   * Looks up the power properties of each SensorData.
+   *
+   * @param datas The SensorData.
+   * @param lookups The number of times each SensorData is looked up.
+   * @param indexed True to use Properties, false to use the old linear scan.
+   */
+  private static void lookup(List<SensorData> datas, int lookups, boolean indexed) {
+    double sum = 0;
+    for (SensorData data : datas) {
+      for (int i = 0; i < lookups; i++) {
+        for (String key : KEYS) {
+          sum +=
+              indexed ? data.getPropertyAsDouble(key) : oldGetPropertyAsDouble(data
+                  .getProperties(), key);
+        }
+      }
+    }
+    sink += sum;
+  }
+
+  /**
+   * Prints the time taken per lookup.
+   *
+   * @param name The name of the test.
+   * @param passes The number of passes over the day of readings.
+   * @param nanos The time taken in nanoseconds.
+   */
+  private static void report(String name, int passes, long nanos) {
+    long count = (long) passes * NUM_READINGS * KEYS.length;
+    System.out.format("%s: %d lookups in %d ms (%.0f ns each)%n", name, count, nanos / 1000000,
+        (double) nanos / count);
+  }
+
+  /**
+   * The lookup Properties.getPropertyAsDouble used to make.
+   *
+   * @param properties The properties.
+   * @param key The key.
+   * @return The key's value as a double.
+   */
+  private static double oldGetPropertyAsDouble(Properties properties, String key) {
+    for (Property prop : properties.getProperty()) {
+      if (key.equals(prop.getKey())) {
+        return Double.valueOf(prop.getValue());
+      }
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,101 @@
+package org.wattdepot.tinker;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import javax.xml.datatype.XMLGregorianCalendar;
+import org.wattdepot.resource.property.jaxb.Property;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.resource.source.jaxb.Source;
+import org.wattdepot.resource.user.jaxb.User;
+import org.wattdepot.server.Server;
+import org.wattdepot.server.ServerProperties;
+import org.wattdepot.server.db.DbManager;
+import org.wattdepot.server.db.InlineProperties;
+import org.wattdepot.util.tstamp.Tstamp;
+
+/**
+ * Compares the two layouts for extra SensorData properties: one SensorDataProperty row per
+ * property, and all of them inline in the SensorData row. For each layout, seeds one Source with a
+ * day of readings at 10 second resolution, each with extra properties, then times range reads.
+ * Takes the storage implementation class as its argument, and defaults to Derby.
+ */
+public class SensorDataPropertyLayoutBenchmark {
+
+  /** Seconds between seeded readings. */
+  private static final int INTERVAL = 10;
+
+  /** Number of seeded readings, one day at INTERVAL resolution. */
+  private static final int NUM_READINGS = 24 * 60 * 60 / INTERVAL;
+
+  /** Number of times the whole day is read. */
+  private static final int NUM_READS = 10;
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args The storage implementation class name, optionally.
+   * @throws Exception If there are problems.
+   */
+  public static void main(String[] args) throws Exception {
+    String implClass =
+        (args.length > 0) ? args[0]
+            : "org.wattdepot.server.db.derby.DerbyStorageImplementation";
+    for (String layout : new String[] { InlineProperties.TABLE_LAYOUT,
+        InlineProperties.INLINE_LAYOUT }) {
+      System.setProperty(ServerProperties.SENSORDATA_PROPERTY_LAYOUT_KEY, layout);
+      runLayout(implClass, layout);
+    }
+  }
+
+  /**
+   * Seeds and reads SensorData with the given property layout.
+   *
+   * @param implClass The storage implementation class name.
+   * @param layout The property layout in use.
+   * @throws Exception If there are problems.
+   */
+  private static void runLayout(String implClass, String layout) throws Exception {
+    Server server = Server.newTestInstance();
+    ServerProperties props = server.getServerProperties();
+    DbManager manager = new DbManager(server, implClass, true);
+    String owner = props.get(ServerProperties.ADMIN_EMAIL_KEY);
+    Source source = new Source("benchmark-source", User.userToUri(owner, server), true);
+    manager.storeSource(source);
+    String sourceUri = Source.sourceToUri(source.getName(), server);
+
+    XMLGregorianCalendar start = Tstamp.makeTimestamp("2011-01-01T00:00:00.000-10:00");
+    List<SensorData> datas = new ArrayList<SensorData>(NUM_READINGS);
+    for (int i = 0; i < NUM_READINGS; i++) {
+      SensorData data =
+          new SensorData(Tstamp.incrementSeconds(start, i * INTERVAL), "Benchmark", sourceUri);
+      data.addProperty(new Property(SensorData.POWER_CONSUMED, 1000.0 + i));
+      data.addProperty(new Property(SensorData.ENERGY_CONSUMED_TO_DATE, 10.0 * i));
+      data.addProperty(new Property("voltage", "120.1"));
+      data.addProperty(new Property("powerFactor", "0.97"));
+      data.addProperty(new Property("frequency", "60.0"));
+      datas.add(data);
+    }
+    long before = new Date().getTime();
+    manager.storeSensorDatas(datas, source);
+    long after = new Date().getTime();
+    System.out.format("%s: stored %d readings in %d ms (%.0f/s)%n", layout, NUM_READINGS,
+        after - before, NUM_READINGS * 1000.0 / Math.max(1, after - before));
+    XMLGregorianCalendar end = Tstamp.incrementSeconds(start, (NUM_READINGS - 1) * INTERVAL);
+
+    // Warm up the connection pool and the database caches before timing anything.
+    manager.getSensorDatas(source.getName(), start, end);
+
+    int count = 0;
+    before = new Date().getTime();
+    for (int i = 0; i < NUM_READS; i++) {
+      count += manager.getSensorDatas(source.getName(), start, end).getSensorData().size();
+    }
+    after = new Date().getTime();
+    System.out.format("%s: read %d readings in %d ms (%.0f/s)%n", layout, count, after - before,
+        count * 1000.0 / Math.max(1, after - before));
+
+    manager.wipeData();
+    server.shutdown();
+  }
+}
@@ -0,0 +1,135 @@
+package org.wattdepot.tinker;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.List;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+import org.wattdepot.util.tstamp.Tstamp;
+
+/**
+ * Compares Tstamp with the GregorianCalendar and DatatypeFactory.newInstance() conversions it used
+ * to make on every call. Times the timestamp conversion resultSetToSensorData makes for each row
+ * of a day of readings at 10 second resolution, and getTimestampList over a day at 1 minute
+ * intervals, as a chart request makes.
+ */
+public class TstampBenchmark {
+
+  /** Seconds between rows. */
+  private static final int INTERVAL = 10;
+
+  /** Number of rows, one day at INTERVAL resolution. */
+  private static final int NUM_ROWS = 24 * 60 * 60 / INTERVAL;
+
+  /** Number of times each test is repeated. */
+  private static final int NUM_RUNS = 10;
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args Ignored.
+   * @throws Exception If there are problems.
+   */
+  public static void main(String[] args) throws Exception {
+    XMLGregorianCalendar start = Tstamp.makeTimestamp("2011-01-01T00:00:00.000-10:00");
+    long startMillis = Tstamp.toMillis(start);
+    Timestamp[] rows = new Timestamp[NUM_ROWS];
+    for (int i = 0; i < NUM_ROWS; i++) {
+      rows[i] = new Timestamp(startMillis + i * INTERVAL * 1000L);
+    }
+    XMLGregorianCalendar end = Tstamp.incrementDays(start, 1);
+
+    // Warm up both versions before timing anything.
+    for (int run = 0; run < 5; run++) {
+      for (Timestamp row : rows) {
+        oldMakeTimestamp(row);
+        Tstamp.makeTimestamp(row);
+      }
+      oldGetTimestampList(start, end, 1);
+      Tstamp.getTimestampList(start, end, 1);
+    }
+
+    long before = System.nanoTime();
+    for (int run = 0; run < NUM_RUNS; run++) {
+      for (Timestamp row : rows) {
+        oldMakeTimestamp(row);
+      }
+    }
+    report("row conversion, old", NUM_RUNS * NUM_ROWS, before);
+    before = System.nanoTime();
+    for (int run = 0; run < NUM_RUNS; run++) {
+      for (Timestamp row : rows) {
+        Tstamp.makeTimestamp(row);
+      }
+    }
+    report("row conversion, new", NUM_RUNS * NUM_ROWS, before);
+
+    int count = 0;
+    before = System.nanoTime();
+    for (int run = 0; run < NUM_RUNS; run++) {
+      count += oldGetTimestampList(start, end, 1).size();
+    }
+    report("getTimestampList, old", count, before);
+    count = 0;
+    before = System.nanoTime();
+    for (int run = 0; run < NUM_RUNS; run++) {
+      count += Tstamp.getTimestampList(start, end, 1).size();
+    }
+    report("getTimestampList, new", count, before);
+  }
+
+  /**
+   * Prints the time taken per timestamp since a start time.
+   *
+   * @param name The name of the test.
+   * @param count The number of timestamps made.
+   * @param before The start time from System.nanoTime().
+   */
+  private static void report(String name, int count, long before) {
+    long nanos = System.nanoTime() - before;
+    System.out.format("%s: %d timestamps in %d ms (%.0f ns each)%n", name, count,
+        nanos / 1000000, (double) nanos / count);
+  }
+
+  /**
+   * The conversion Tstamp.makeTimestamp(Timestamp) used to make.
+   *
+   * @param tstamp The SQL timestamp.
+   * @return The XML timestamp.
+   * @throws Exception If there is no DatatypeFactory.
+   */
+  private static XMLGregorianCalendar oldMakeTimestamp(Timestamp tstamp) throws Exception {
+    DatatypeFactory factory = DatatypeFactory.newInstance();
+    GregorianCalendar calendar = new GregorianCalendar();
+    calendar.setTimeInMillis(tstamp.getTime());
+    return factory.newXMLGregorianCalendar(calendar);
+  }
+
+  /**
+   * The list Tstamp.getTimestampList used to make for a valid interval, incrementing each
+   * timestamp through GregorianCalendar.
+   *
+   * @param startTime The start of the range.
+   * @param endTime The end of the range.
+   * @param intervalMinutes The sampling interval in minutes.
+   * @return The timestamps.
+   * @throws Exception If there is no DatatypeFactory.
+   */
+  private static List<XMLGregorianCalendar> oldGetTimestampList(XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime, int intervalMinutes) throws Exception {
+    long endMillis = endTime.toGregorianCalendar().getTimeInMillis();
+    List<XMLGregorianCalendar> timestampList = new ArrayList<XMLGregorianCalendar>();
+    XMLGregorianCalendar timestamp = startTime;
+    while (timestamp.toGregorianCalendar().getTimeInMillis() < endMillis) {
+      timestampList.add(timestamp);
+      DatatypeFactory factory = DatatypeFactory.newInstance();
+      GregorianCalendar calendar = new GregorianCalendar();
+      calendar.setTimeInMillis(timestamp.toGregorianCalendar().getTimeInMillis()
+          + intervalMinutes * 60000L);
+      timestamp = factory.newXMLGregorianCalendar(calendar);
+    }
+    timestampList.add(endTime);
+    return timestampList;
+  }
+}
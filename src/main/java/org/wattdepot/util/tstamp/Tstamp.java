@@ -6,7 +6,10 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.SimpleTimeZone;
+import java.util.TimeZone;
 import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeConstants;
 import javax.xml.datatype.DatatypeFactory;
 import javax.xml.datatype.XMLGregorianCalendar;
 
@@ -14,6 +17,12 @@ import javax.xml.datatype.XMLGregorianCalendar;
  * Utility class that facilitates Timestamp representation and processing. There are too many
  * classes already named "Timestamp", thus the abbreviated name.
  * 
+ * Timestamps are converted to and from epoch milliseconds by hand rather than through
+ * GregorianCalendar, and each thread reuses one DatatypeFactory, since
+ * DatatypeFactory.newInstance() looks up the implementation on every call. Strings in the
+ * xsd:dateTime form WattDepot produces (yyyy-MM-ddTHH:mm:ss[.SSS] followed by Z or +/-hh:mm) are
+ * parsed by hand, and anything else is left to the DatatypeFactory.
+ * 
  * @author Philip Johnson
  */
 public final class Tstamp {
@@ -27,6 +36,40 @@ public final class Tstamp {
 
   private static long MILLISECS_PER_DAY = 24 * 60 * 60 * 1000;
 
+  /** Milliseconds in a day, for the calendar arithmetic. */
+  private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+  /**
+   * The first millisecond of the Gregorian calendar. GregorianCalendar uses the Julian calendar
+   * before it, so earlier times take the GregorianCalendar path.
+   */
+  private static final long GREGORIAN_START_MILLIS = -12219292800000L;
+
+  /** Returned by parseFast for strings it does not handle. */
+  private static final long NOT_PARSED = Long.MIN_VALUE;
+
+  /** Each thread's DatatypeFactory, which is not guaranteed to be thread-safe. */
+  private static final ThreadLocal<DatatypeFactory> FACTORY = new ThreadLocal<DatatypeFactory>() {
+    @Override
+    protected DatatypeFactory initialValue() {
+      try {
+        return DatatypeFactory.newInstance();
+      }
+      catch (DatatypeConfigurationException e) {
+        throw new RuntimeException(factoryErrorMsg, e);
+      }
+    }
+  };
+
+  /**
+   * Returns this thread's DatatypeFactory.
+   * 
+   * @return The factory.
+   */
+  private static DatatypeFactory getFactory() {
+    return FACTORY.get();
+  }
+
   /**
    * Returns true if the passed string can be parsed into an XMLGregorianCalendar object.
    * 
@@ -34,9 +77,11 @@ public final class Tstamp {
    * @return True if the string is a legal XMLGregorianCalendar.
    */
   public static boolean isTimestamp(String lexicalRepresentation) {
+    if ((lexicalRepresentation != null) && (parseFast(lexicalRepresentation) != NOT_PARSED)) {
+      return true;
+    }
     try {
-      DatatypeFactory factory = DatatypeFactory.newInstance();
-      factory.newXMLGregorianCalendar(lexicalRepresentation);
+      getFactory().newXMLGregorianCalendar(lexicalRepresentation);
       return true;
 
     }
@@ -54,9 +99,23 @@ public final class Tstamp {
    * @throws Exception If the string cannot be parsed into a timestamp.
    */
   public static XMLGregorianCalendar makeTimestamp(String rep) throws Exception {
-    DatatypeFactory factory = DatatypeFactory.newInstance();
-    long mills = factory.newXMLGregorianCalendar(rep).toGregorianCalendar().getTimeInMillis();
-    return makeTimestamp(mills);
+    return makeTimestamp(parseMillis(rep));
+  }
+
+  /**
+   * Returns the epoch milliseconds of a timestamp, given its string representation. Missing hours,
+   * minutes, second, millisecond, and timezone fields are given defaults.
+   * 
+   * @param rep The string representation.
+   * @return The time in milliseconds.
+   * @throws IllegalArgumentException If the string cannot be parsed into a timestamp.
+   */
+  public static long parseMillis(String rep) {
+    long millis = parseFast(rep);
+    if (millis != NOT_PARSED) {
+      return millis;
+    }
+    return getFactory().newXMLGregorianCalendar(rep).toGregorianCalendar().getTimeInMillis();
   }
 
   /**
@@ -66,35 +125,296 @@ public final class Tstamp {
    * @return A new instance of a javax.xml.datatype.XmlGregorianCalendar
    */
   public static XMLGregorianCalendar makeTimestamp(java.sql.Timestamp tstamp) {
-    DatatypeFactory factory = null;
-    try {
-      factory = DatatypeFactory.newInstance();
-      GregorianCalendar calendar = new GregorianCalendar();
-      calendar.setTimeInMillis(tstamp.getTime());
-      return factory.newXMLGregorianCalendar(calendar);
-    }
-    catch (DatatypeConfigurationException e) {
-      throw new RuntimeException(factoryErrorMsg, e);
-    }
+    return makeTimestamp(tstamp.getTime());
   }
 
   /**
    * Converts the specified time in milliseconds into a javax.xml.datatype.XMLGregorianCalendar.
+   * The timestamp has the offset of the default time zone at that time, as it would if made from a
+   * GregorianCalendar.
    * 
    * @param timeInMillis the specified time in milliseconds to convert.
    * @return A new instance of a javax.xml.datatype.XmlGregorianCalendar
    */
   public static XMLGregorianCalendar makeTimestamp(long timeInMillis) {
-    DatatypeFactory factory = null;
-    try {
-      factory = DatatypeFactory.newInstance();
+    if (timeInMillis < GREGORIAN_START_MILLIS) {
       GregorianCalendar calendar = new GregorianCalendar();
       calendar.setTimeInMillis(timeInMillis);
-      return factory.newXMLGregorianCalendar(calendar);
+      return getFactory().newXMLGregorianCalendar(calendar);
     }
-    catch (DatatypeConfigurationException e) {
-      throw new RuntimeException(factoryErrorMsg, e);
+    int offset = TimeZone.getDefault().getOffset(timeInMillis);
+    int[] fields = toFields(timeInMillis + offset);
+    return getFactory().newXMLGregorianCalendar(fields[0], fields[1], fields[2], fields[3],
+        fields[4], fields[5], fields[6], offset / 60000);
+  }
+
+  /**
+   * Converts the specified time in milliseconds into a javax.xml.datatype.XMLGregorianCalendar
+   * with the given timezone offset, such as the one the time was originally given in.
+   * 
+   * @param timeInMillis the specified time in milliseconds to convert.
+   * @param timezoneMinutes The timezone offset in minutes.
+   * @return A new instance of a javax.xml.datatype.XmlGregorianCalendar
+   */
+  public static XMLGregorianCalendar makeTimestamp(long timeInMillis, int timezoneMinutes) {
+    int offset = timezoneMinutes * 60000;
+    if (timeInMillis < GREGORIAN_START_MILLIS) {
+      GregorianCalendar calendar = new GregorianCalendar(new SimpleTimeZone(offset, "Custom"));
+      calendar.setTimeInMillis(timeInMillis);
+      return getFactory().newXMLGregorianCalendar(calendar);
     }
+    int[] fields = toFields(timeInMillis + offset);
+    return getFactory().newXMLGregorianCalendar(fields[0], fields[1], fields[2], fields[3],
+        fields[4], fields[5], fields[6], timezoneMinutes);
+  }
+
+  /**
+   * Returns the epoch milliseconds of a timestamp. Timestamps with all their date, time and
+   * timezone fields set are converted by hand, others through GregorianCalendar.
+   * 
+   * @param tstamp The timestamp.
+   * @return The time in milliseconds.
+   */
+  public static long toMillis(XMLGregorianCalendar tstamp) {
+    int year = tstamp.getYear();
+    int month = tstamp.getMonth();
+    int day = tstamp.getDay();
+    int hour = tstamp.getHour();
+    int minute = tstamp.getMinute();
+    int second = tstamp.getSecond();
+    int timezone = tstamp.getTimezone();
+    if ((year < 1) || (tstamp.getEon() != null) || (month == DatatypeConstants.FIELD_UNDEFINED)
+        || (day == DatatypeConstants.FIELD_UNDEFINED)
+        || (hour == DatatypeConstants.FIELD_UNDEFINED)
+        || (minute == DatatypeConstants.FIELD_UNDEFINED)
+        || (second == DatatypeConstants.FIELD_UNDEFINED)
+        || (timezone == DatatypeConstants.FIELD_UNDEFINED)) {
+      return tstamp.toGregorianCalendar().getTimeInMillis();
+    }
+    int millisecond = tstamp.getMillisecond();
+    if (millisecond == DatatypeConstants.FIELD_UNDEFINED) {
+      millisecond = 0;
+    }
+    return toMillis(year, month, day, hour, minute, second, millisecond, timezone);
+  }
+
+  /**
+   * Formats epoch milliseconds as the string representation of makeTimestamp(timeInMillis), such
+   * as 2009-07-28T09:00:00.000-10:00.
+   * 
+   * @param timeInMillis The time in milliseconds.
+   * @return The string representation.
+   */
+  public static String format(long timeInMillis) {
+    if (timeInMillis < GREGORIAN_START_MILLIS) {
+      return makeTimestamp(timeInMillis).toXMLFormat();
+    }
+    int offset = TimeZone.getDefault().getOffset(timeInMillis);
+    int[] fields = toFields(timeInMillis + offset);
+    StringBuilder builder = new StringBuilder(29);
+    appendDigits(builder, fields[0], 4);
+    builder.append('-');
+    appendDigits(builder, fields[1], 2);
+    builder.append('-');
+    appendDigits(builder, fields[2], 2);
+    builder.append('T');
+    appendDigits(builder, fields[3], 2);
+    builder.append(':');
+    appendDigits(builder, fields[4], 2);
+    builder.append(':');
+    appendDigits(builder, fields[5], 2);
+    builder.append('.');
+    appendDigits(builder, fields[6], 3);
+    int offsetMinutes = offset / 60000;
+    if (offsetMinutes == 0) {
+      builder.append('Z');
+    }
+    else {
+      builder.append((offsetMinutes < 0) ? '-' : '+');
+      offsetMinutes = Math.abs(offsetMinutes);
+      appendDigits(builder, offsetMinutes / 60, 2);
+      builder.append(':');
+      appendDigits(builder, offsetMinutes % 60, 2);
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Parses the xsd:dateTime strings WattDepot produces: yyyy-MM-ddTHH:mm:ss, optionally followed
+   * by a fraction of a second, and followed by Z or a +/-hh:mm offset.
+   * 
+   * @param rep The string representation.
+   * @return The time in milliseconds, or NOT_PARSED if the string is not of that form or its fields
+   * are out of range.
+   */
+  private static long parseFast(String rep) {
+    int length = rep.length();
+    if ((length < 20) || (rep.charAt(4) != '-') || (rep.charAt(7) != '-')
+        || (rep.charAt(10) != 'T') || (rep.charAt(13) != ':') || (rep.charAt(16) != ':')) {
+      return NOT_PARSED;
+    }
+    int year = parseDigits(rep, 0, 4);
+    int month = parseDigits(rep, 5, 2);
+    int day = parseDigits(rep, 8, 2);
+    int hour = parseDigits(rep, 11, 2);
+    int minute = parseDigits(rep, 14, 2);
+    int second = parseDigits(rep, 17, 2);
+    if ((year < 1583) || (month < 1) || (month > 12) || (day < 1)
+        || (day > daysInMonth(year, month)) || (hour < 0) || (hour > 23) || (minute < 0)
+        || (minute > 59) || (second < 0) || (second > 59)) {
+      return NOT_PARSED;
+    }
+    int position = 19;
+    int millisecond = 0;
+    if (rep.charAt(position) == '.') {
+      int start = ++position;
+      while ((position < length) && Character.isDigit(rep.charAt(position))) {
+        position++;
+      }
+      if (position == start) {
+        return NOT_PARSED;
+      }
+      // Fractions finer than a millisecond are truncated, as GregorianCalendar does
+      int digits = Math.min(position - start, 3);
+      millisecond = parseDigits(rep, start, digits);
+      for (int i = digits; i < 3; i++) {
+        millisecond *= 10;
+      }
+    }
+    int timezone;
+    if ((position == length - 1) && (rep.charAt(position) == 'Z')) {
+      timezone = 0;
+    }
+    else if ((position == length - 6)
+        && ((rep.charAt(position) == '+') || (rep.charAt(position) == '-'))
+        && (rep.charAt(position + 3) == ':')) {
+      int hours = parseDigits(rep, position + 1, 2);
+      int minutes = parseDigits(rep, position + 4, 2);
+      if ((hours < 0) || (hours > 14) || (minutes < 0) || (minutes > 59)) {
+        return NOT_PARSED;
+      }
+      timezone = hours * 60 + minutes;
+      if (rep.charAt(position) == '-') {
+        timezone = -timezone;
+      }
+    }
+    else {
+      // No timezone, which means the default time zone, or something else entirely
+      return NOT_PARSED;
+    }
+    return toMillis(year, month, day, hour, minute, second, millisecond, timezone);
+  }
+
+  /**
+   * Parses a run of decimal digits.
+   * 
+   * @param rep The string.
+   * @param start The index of the first digit.
+   * @param count The number of digits.
+   * @return The value, or -1 if any of the characters is not a digit.
+   */
+  private static int parseDigits(String rep, int start, int count) {
+    int value = 0;
+    for (int i = start; i < start + count; i++) {
+      char c = rep.charAt(i);
+      if ((c < '0') || (c > '9')) {
+        return -1;
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  /**
+   * Appends a number padded with leading zeros.
+   * 
+   * @param builder The builder to append to.
+   * @param value The non-negative number.
+   * @param width The minimum number of digits.
+   */
+  private static void appendDigits(StringBuilder builder, int value, int width) {
+    String digits = Integer.toString(value);
+    for (int i = digits.length(); i < width; i++) {
+      builder.append('0');
+    }
+    builder.append(digits);
+  }
+
+  /**
+   * Returns the number of days in a month of the Gregorian calendar.
+   * 
+   * @param year The year.
+   * @param month The month, from 1.
+   * @return The number of days.
+   */
+  private static int daysInMonth(int year, int month) {
+    switch (month) {
+    case 2:
+      boolean leap = ((year % 4) == 0) && (((year % 100) != 0) || ((year % 400) == 0));
+      return leap ? 29 : 28;
+    case 4:
+    case 6:
+    case 9:
+    case 11:
+      return 30;
+    default:
+      return 31;
+    }
+  }
+
+  /**
+   * Returns the epoch milliseconds of a time given by its fields in the proleptic Gregorian
+   * calendar, as XMLGregorianCalendar.toGregorianCalendar() interprets them.
+   * 
+   * @param year The year.
+   * @param month The month, from 1.
+   * @param day The day of the month, from 1.
+   * @param hour The hour.
+   * @param minute The minute.
+   * @param second The second.
+   * @param millisecond The millisecond.
+   * @param timezone The offset from UTC in minutes.
+   * @return The time in milliseconds.
+   */
+  private static long toMillis(int year, int month, int day, int hour, int minute, int second,
+      int millisecond, int timezone) {
+    // Days since the epoch, counting years from March so leap days fall at the end of a year
+    long y = (month <= 2) ? year - 1 : year;
+    long era = ((y >= 0) ? y : y - 399) / 400;
+    long yearOfEra = y - era * 400;
+    long dayOfYear = (153 * ((month > 2) ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    long days = era * 146097 + dayOfEra - 719468;
+    return days * DAY_MILLIS + hour * 3600000L + minute * 60000L + second * 1000L + millisecond
+        - timezone * 60000L;
+  }
+
+  /**
+   * Splits a local time in milliseconds into its fields in the Gregorian calendar.
+   * 
+   * @param localMillis The epoch milliseconds plus the offset from UTC.
+   * @return The year, month from 1, day, hour, minute, second and millisecond.
+   */
+  private static int[] toFields(long localMillis) {
+    long days = localMillis / DAY_MILLIS;
+    long millisOfDay = localMillis % DAY_MILLIS;
+    if (millisOfDay < 0) {
+      days--;
+      millisOfDay += DAY_MILLIS;
+    }
+    long z = days + 719468;
+    long era = ((z >= 0) ? z : z - 146096) / 146097;
+    long dayOfEra = z - era * 146097;
+    long yearOfEra =
+        (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    long monthIndex = (5 * dayOfYear + 2) / 153;
+    int day = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+    int month = (int) ((monthIndex < 10) ? monthIndex + 3 : monthIndex - 9);
+    int year = (int) (yearOfEra + era * 400 + ((month <= 2) ? 1 : 0));
+    int millis = (int) millisOfDay;
+    return new int[] { year, month, day, millis / 3600000, (millis / 60000) % 60,
+        (millis / 1000) % 60, millis % 1000 };
   }
 
   // /**
@@ -124,18 +444,7 @@ public final class Tstamp {
    * @return A new XMLGregorianCalendar instance representing the inc'd time.
    */
   public static XMLGregorianCalendar incrementDays(XMLGregorianCalendar tstamp, int days) {
-    DatatypeFactory factory = null;
-    try {
-      factory = DatatypeFactory.newInstance();
-      GregorianCalendar calendar = new GregorianCalendar();
-      long millis = tstamp.toGregorianCalendar().getTimeInMillis();
-      millis += 1000L * 60 * 60 * 24 * days;
-      calendar.setTimeInMillis(millis);
-      return factory.newXMLGregorianCalendar(calendar);
-    }
-    catch (DatatypeConfigurationException e) {
-      throw new RuntimeException(factoryErrorMsg, e);
-    }
+    return makeTimestamp(toMillis(tstamp) + 1000L * 60 * 60 * 24 * days);
   }
 
   /**
@@ -147,18 +456,7 @@ public final class Tstamp {
    * @return A new XMLGregorianCalendar instance representing the inc'd time.
    */
   public static XMLGregorianCalendar incrementHours(XMLGregorianCalendar tstamp, int hours) {
-    DatatypeFactory factory = null;
-    try {
-      factory = DatatypeFactory.newInstance();
-      GregorianCalendar calendar = new GregorianCalendar();
-      long millis = tstamp.toGregorianCalendar().getTimeInMillis();
-      millis += 1000L * 60 * 60 * hours;
-      calendar.setTimeInMillis(millis);
-      return factory.newXMLGregorianCalendar(calendar);
-    }
-    catch (DatatypeConfigurationException e) {
-      throw new RuntimeException(factoryErrorMsg, e);
-    }
+    return makeTimestamp(toMillis(tstamp) + 1000L * 60 * 60 * hours);
   }
 
   /**
@@ -170,18 +468,7 @@ public final class Tstamp {
    * @return A new XMLGregorianCalendar instance representing the inc'd time.
    */
   public static XMLGregorianCalendar incrementMinutes(XMLGregorianCalendar tstamp, int minutes) {
-    DatatypeFactory factory = null;
-    try {
-      factory = DatatypeFactory.newInstance();
-      GregorianCalendar calendar = new GregorianCalendar();
-      long millis = tstamp.toGregorianCalendar().getTimeInMillis();
-      millis += 1000L * 60 * minutes;
-      calendar.setTimeInMillis(millis);
-      return factory.newXMLGregorianCalendar(calendar);
-    }
-    catch (DatatypeConfigurationException e) {
-      throw new RuntimeException(factoryErrorMsg, e);
-    }
+    return makeTimestamp(toMillis(tstamp) + 1000L * 60 * minutes);
   }
 
   /**
@@ -193,18 +480,7 @@ public final class Tstamp {
    * @return A new XMLGregorianCalendar instance representing the inc'd time.
    */
   public static XMLGregorianCalendar incrementSeconds(XMLGregorianCalendar tstamp, int seconds) {
-    DatatypeFactory factory = null;
-    try {
-      factory = DatatypeFactory.newInstance();
-      GregorianCalendar calendar = new GregorianCalendar();
-      long millis = tstamp.toGregorianCalendar().getTimeInMillis();
-      millis += 1000L * seconds;
-      calendar.setTimeInMillis(millis);
-      return factory.newXMLGregorianCalendar(calendar);
-    }
-    catch (DatatypeConfigurationException e) {
-      throw new RuntimeException(factoryErrorMsg, e);
-    }
+    return makeTimestamp(toMillis(tstamp) + 1000L * seconds);
   }
 
   /**
@@ -217,18 +493,7 @@ public final class Tstamp {
    */
   public static XMLGregorianCalendar incrementMilliseconds(XMLGregorianCalendar tstamp,
       long milliseconds) {
-    DatatypeFactory factory = null;
-    try {
-      factory = DatatypeFactory.newInstance();
-      GregorianCalendar calendar = new GregorianCalendar();
-      long millis = tstamp.toGregorianCalendar().getTimeInMillis();
-      millis += milliseconds;
-      calendar.setTimeInMillis(millis);
-      return factory.newXMLGregorianCalendar(calendar);
-    }
-    catch (DatatypeConfigurationException e) {
-      throw new RuntimeException(factoryErrorMsg, e);
-    }
+    return makeTimestamp(toMillis(tstamp) + milliseconds);
   }
 
   /**
@@ -238,7 +503,7 @@ public final class Tstamp {
    * @return The SQL timestamp.
    */
   public static java.sql.Timestamp makeTimestamp(XMLGregorianCalendar calendar) {
-    return new java.sql.Timestamp(calendar.toGregorianCalendar().getTimeInMillis());
+    return new java.sql.Timestamp(toMillis(calendar));
   }
 
   /**
@@ -247,13 +512,7 @@ public final class Tstamp {
    * @return The timestamp.
    */
   public static XMLGregorianCalendar makeTimestamp() {
-    try {
-      DatatypeFactory factory = DatatypeFactory.newInstance();
-      return factory.newXMLGregorianCalendar(new GregorianCalendar());
-    }
-    catch (Exception e) {
-      throw new RuntimeException(factoryErrorMsg, e);
-    }
+    return makeTimestamp(System.currentTimeMillis());
   }
 
   /**
@@ -266,9 +525,9 @@ public final class Tstamp {
    */
   public static boolean inBetween(XMLGregorianCalendar start, XMLGregorianCalendar tstamp,
       XMLGregorianCalendar end) {
-    long startMillis = start.toGregorianCalendar().getTimeInMillis();
-    long endMillis = end.toGregorianCalendar().getTimeInMillis();
-    long tstampMillis = tstamp.toGregorianCalendar().getTimeInMillis();
+    long startMillis = toMillis(start);
+    long endMillis = toMillis(end);
+    long tstampMillis = toMillis(tstamp);
     return ((tstampMillis >= startMillis) && (tstampMillis <= endMillis));
   }
 
@@ -280,8 +539,8 @@ public final class Tstamp {
    * @return True if time1 > time2
    */
   public static boolean greaterThan(XMLGregorianCalendar time1, XMLGregorianCalendar time2) {
-    long time1Millis = time1.toGregorianCalendar().getTimeInMillis();
-    long time2Millis = time2.toGregorianCalendar().getTimeInMillis();
+    long time1Millis = toMillis(time1);
+    long time2Millis = toMillis(time2);
     return (time1Millis > time2Millis);
   }
 
@@ -322,10 +581,7 @@ public final class Tstamp {
    */
   public static boolean greaterThan(String timeString1, String timeString2) {
     try {
-      DatatypeFactory factory = DatatypeFactory.newInstance();
-      XMLGregorianCalendar time1 = factory.newXMLGregorianCalendar(timeString1);
-      XMLGregorianCalendar time2 = factory.newXMLGregorianCalendar(timeString2);
-      return greaterThan(time1, time2);
+      return parseMillis(timeString1) > parseMillis(timeString2);
     }
     catch (Exception e) {
       throw new IllegalArgumentException("Illegal timestring", e);
@@ -340,8 +596,8 @@ public final class Tstamp {
    * @return True if time1 < time2
    */
   public static boolean lessThan(XMLGregorianCalendar time1, XMLGregorianCalendar time2) {
-    long time1Millis = time1.toGregorianCalendar().getTimeInMillis();
-    long time2Millis = time2.toGregorianCalendar().getTimeInMillis();
+    long time1Millis = toMillis(time1);
+    long time2Millis = toMillis(time2);
     return (time1Millis < time2Millis);
   }
 
@@ -353,8 +609,8 @@ public final class Tstamp {
    * @return True if time1 equals time2
    */
   public static boolean equal(XMLGregorianCalendar time1, XMLGregorianCalendar time2) {
-    long millis1 = time1.toGregorianCalendar().getTimeInMillis();
-    long millis2 = time2.toGregorianCalendar().getTimeInMillis();
+    long millis1 = toMillis(time1);
+    long millis2 = toMillis(time2);
     return (millis1 == millis2);
   }
 
@@ -366,8 +622,8 @@ public final class Tstamp {
    * @return Difference between two times in milliseconds.
    */
   public static long diff(XMLGregorianCalendar time1, XMLGregorianCalendar time2) {
-    long millis1 = time1.toGregorianCalendar().getTimeInMillis();
-    long millis2 = time2.toGregorianCalendar().getTimeInMillis();
+    long millis1 = toMillis(time1);
+    long millis2 = toMillis(time2);
     return millis2 - millis1;
   }
 
@@ -432,8 +688,34 @@ public final class Tstamp {
    */
   public static List<XMLGregorianCalendar> getTimestampList(XMLGregorianCalendar startTime,
       XMLGregorianCalendar endTime, int intervalMinutes) {
+    long[] millis = getTimestampMillis(toMillis(startTime), toMillis(endTime), intervalMinutes);
+    if (millis == null) {
+      return null;
+    }
+    List<XMLGregorianCalendar> timestampList = new ArrayList<XMLGregorianCalendar>(millis.length);
+    timestampList.add(startTime);
+    for (int i = 1; i < millis.length - 1; i++) {
+      timestampList.add(makeTimestamp(millis[i]));
+    }
+    // add endTime to cover the last runt interval which is <= intervalMilliseconds
+    timestampList.add(endTime);
+    return timestampList;
+  }
+
+  /**
+   * Helper function that prepares an array of timestamps in milliseconds, between the start time
+   * and end time, at the given sampling interval. The last interval is shorter if the range is not
+   * a whole number of intervals.
+   * 
+   * @param startMillis The start of the range requested in milliseconds.
+   * @param endMillis The end of the range requested in milliseconds.
+   * @param intervalMinutes The sampling interval requested in minutes.
+   * @return The timestamps in milliseconds, starting with startMillis and ending with endMillis,
+   * or null if the range or interval is invalid.
+   */
+  public static long[] getTimestampMillis(long startMillis, long endMillis, int intervalMinutes) {
     long intervalMilliseconds;
-    long rangeLength = Tstamp.diff(startTime, endTime);
+    long rangeLength = endMillis - startMillis;
     long minutesToMilliseconds = 60L * 1000L;
 
     if (intervalMinutes < 0) {
@@ -444,8 +726,8 @@ public final class Tstamp {
       return null;
     }
     else if (intervalMinutes == 0) {
-      // use default interval
-      intervalMilliseconds = rangeLength / 10;
+      // use default interval, at least a millisecond so the list ends
+      intervalMilliseconds = Math.max(1, rangeLength / 10);
     }
     else if ((intervalMinutes * minutesToMilliseconds) > rangeLength) {
       // TODO BOGUS, should throw an exception so callers can distinguish between problems
@@ -460,16 +742,13 @@ public final class Tstamp {
     // intervalMilliseconds / minutesToMilliseconds);
 
     // Build list of timestamps, starting with startTime, separated by intervalMilliseconds
-    List<XMLGregorianCalendar> timestampList = new ArrayList<XMLGregorianCalendar>();
-    XMLGregorianCalendar timestamp = startTime;
-    while (Tstamp.lessThan(timestamp, endTime)) {
-      timestampList.add(timestamp);
-      // System.out.format("timestamp=%s%n", timestamp); // DEBUG
-      timestamp = Tstamp.incrementMilliseconds(timestamp, intervalMilliseconds);
+    int count = (int) ((rangeLength + intervalMilliseconds - 1) / intervalMilliseconds);
+    long[] timestamps = new long[count + 1];
+    for (int i = 0; i < count; i++) {
+      timestamps[i] = startMillis + i * intervalMilliseconds;
     }
     // add endTime to cover the last runt interval which is <= intervalMilliseconds
-    timestampList.add(endTime);
-    // System.out.format("timestamp=%s%n", endTime); // DEBUG
-    return timestampList;
+    timestamps[count] = endMillis;
+    return timestamps;
   }
 }
\ No newline at end of file
@@ -264,11 +264,11 @@ public class TestCarbonResource extends ServerTestHelper {
     afterTime = Tstamp.makeTimestamp("2009-10-12T01:15:00.000-10:00");
     afterData = SensorDataStraddle.makePowerSensorData(afterTime, source2, 6.4E7, 0, false);
     client.storeSensorData(afterData);
-    assertEquals("getCarbonEmitted on for simple gave wrong value", 178440,
+    assertEquals("getCarbonEmitted on for simple gave wrong value", 178500,
         client.getCarbonEmitted(source2Name, timestamp1, timestamp2, 0), 0.1);
 
     // Virtual source should get the sum of the two previous power values
-    assertEquals("energy for virtual source did not equal expected value", 193440,
+    assertEquals("energy for virtual source did not equal expected value", 193500,
         client.getCarbonEmitted(virtualSourceName, timestamp1, timestamp2, 0), 0.01);
 
     assertEquals(
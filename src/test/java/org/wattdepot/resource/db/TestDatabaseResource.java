@@ -51,6 +51,8 @@ public class TestDatabaseResource extends ServerTestHelper {
         .equals("true")) {
       WattDepotClient client = new WattDepotClient(getHostName(), adminEmail, adminPassword);
       assertTrue("Not able to create snapshot with admin credentials", client.makeSnapshot());
+      String status = client.getSnapshotStatus();
+      assertTrue("No snapshot status returned", status != null && status.startsWith("state: "));
     }
   }
 }
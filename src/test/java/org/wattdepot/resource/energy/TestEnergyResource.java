@@ -383,7 +383,7 @@ public class TestEnergyResource extends ServerTestHelper {
         removeEnergyCounterProperty(client, source2Name));
 
     // Virtual source should get the sum of the two previous power values
-    assertEquals("energy for virtual source did not equal expected value", 7.448E7,
+    assertEquals("energy for virtual source did not equal expected value", 7.45E7,
         client.getEnergyGenerated(virtualSourceName, timestamp1, timestamp2, 0), 0.01);
     assertTrue("Interpolated property not found",
         client.getEnergy(virtualSourceName, timestamp1, timestamp2, 0).isInterpolated());
@@ -5,6 +5,12 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Collections;
+import java.util.Comparator;
 import org.junit.Test;
 
 /**
@@ -97,6 +103,100 @@ public class TestPropertyJaxb {
         .isPropertyTrue("qux"));
   }
 
+  /**
+   * Tests that lookups see changes made after earlier lookups, through the index of a long list
+   * and the cached numbers of a short one.
+   */
+  @Test
+  public void testLookupsAfterChanges() {
+    Properties props = new Properties();
+    for (int i = 0; i < 20; i++) {
+      props.getProperty().add(new Property("key" + i, Integer.toString(i)));
+    }
+    props.getProperty().add(new Property("key3", "duplicate"));
+    assertEquals("Wrong value from long list", 3.0, props.getPropertyAsDouble("key3"), 0.0);
+    assertEquals("Wrong value from long list", 19, props.getPropertyAsInt("key19"));
+
+    // Changing a Property in place
+    props.getProperty().get(3).setValue("33.5");
+    assertEquals("Changed value not seen", 33.5, props.getPropertyAsDouble("key3"), 0.0);
+    props.getProperty().get(4).setKey("renamed");
+    assertEquals("Changed key not seen", "4", props.getProperty("renamed"));
+    assertNull("Old key still found", props.getProperty("key4"));
+
+    // Changing the list
+    props.getProperty().remove(3);
+    assertEquals("Removed Property still found", "duplicate", props.getProperty("key3"));
+    props.getProperty().add(0, new Property("key5", "55"));
+    assertEquals("Added Property not found first", 55, props.getPropertyAsLong("key5"));
+    props.getProperty().set(0, new Property("key5", "56"));
+    assertEquals("Replaced Property still found", 56, props.getPropertyAsLong("key5"));
+    props.getProperty().subList(0, 2).set(0, new Property("key5", "57"));
+    assertEquals("Property replaced through a sublist still found", 57, props
+        .getPropertyAsLong("key5"));
+    Collections.sort(props.getProperty(), new Comparator<Property>() {
+      @Override
+      public int compare(Property prop1, Property prop2) {
+        return prop1.getValue().compareTo(prop2.getValue());
+      }
+    });
+    assertEquals("Sorted list not reindexed", 5, props.getPropertyAsLong("key5"));
+
+    // A Property in two long lists is seen renamed in both
+    Properties otherProps = new Properties();
+    otherProps.getProperty().addAll(props.getProperty());
+    Property shared = props.getProperty().get(1);
+    String sharedKey = shared.getKey();
+    assertEquals("Wrong value from copied list", shared.getValue(), otherProps
+        .getProperty(sharedKey));
+    assertEquals("Wrong value from long list", shared.getValue(), props.getProperty(sharedKey));
+    shared.setKey("shared");
+    assertEquals("Changed key not seen in first list", shared.getValue(), props
+        .getProperty("shared"));
+    assertEquals("Changed key not seen in second list", shared.getValue(), otherProps
+        .getProperty("shared"));
+    props.getProperty().clear();
+    assertNull("Cleared Property still found", props.getProperty("key5"));
+
+    Properties shortProps = new Properties();
+    Property prop = new Property(this.key1, "1.5");
+    shortProps.getProperty().add(prop);
+    assertEquals("Wrong value from short list", 1.5, shortProps.getPropertyAsDouble(this.key1),
+        0.0);
+    prop.setValue("2");
+    assertEquals("Changed value not seen", 2.0, shortProps.getPropertyAsDouble(this.key1), 0.0);
+    assertEquals("Wrong int from changed value", 2, shortProps.getPropertyAsInt(this.key1));
+  }
+
+  /**
+   * Tests that Properties serializes its list as a plain ArrayList, and that a long list read back
+   * is still looked up correctly.
+   * 
+   * @throws Exception If there are problems serializing.
+   */
+  @Test
+  public void testSerialization() throws Exception {
+    Properties props = new Properties();
+    for (int i = 0; i < 20; i++) {
+      props.getProperty().add(new Property("key" + i, Integer.toString(i)));
+    }
+    assertEquals("Wrong value before serializing", 7, props.getPropertyAsInt("key7"));
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(props);
+    out.close();
+    assertFalse("Serialized form names the internal list class", new String(bytes.toByteArray(),
+        "ISO-8859-1").contains("PropertyList"));
+
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    Properties copy = (Properties) in.readObject();
+    assertEquals("Deserialized Properties differ", props, copy);
+    assertEquals("Wrong value after deserializing", 7, copy.getPropertyAsInt("key7"));
+    copy.getProperty().remove(7);
+    assertNull("Removed Property still found after deserializing", copy.getProperty("key7"));
+  }
+
   /**
    * Tests equals and hashCode for the Properties type.
    */
@@ -0,0 +1,173 @@
+package org.wattdepot.resource.sensordata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import java.util.concurrent.CountDownLatch;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+import org.junit.Test;
+import org.wattdepot.resource.property.jaxb.Property;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.util.tstamp.Tstamp;
+
+/**
+ * Tests the SensorDataRecord class.
+ */
+public class TestSensorDataRecord {
+
+  /** The source URI used in the tests. */
+  private static final String SOURCE =
+      "http://server.wattdepot.org:1234/wattdepot/sources/foo-source";
+
+  /**
+   * Tests that SensorData comes back unchanged from a record, including timestamps in other
+   * timezones or without milliseconds, values Double.toString would print differently, repeated
+   * keys, and the order of the properties.
+   *
+   * @throws Exception If there are problems creating timestamps.
+   */
+  @Test
+  public void testRoundTrip() throws Exception {
+    DatatypeFactory factory = DatatypeFactory.newInstance();
+    String[] timestamps =
+        { "2009-07-28T09:00:00.000-10:00", "2009-07-28T09:00:00+05:30", "2009-07-28T19:00:00Z",
+            "2009-07-28T09:00:00.123456-10:00" };
+    for (String timestamp : timestamps) {
+      XMLGregorianCalendar time = factory.newXMLGregorianCalendar(timestamp);
+      SensorData data = new SensorData(time, "JUnit", SOURCE);
+      data.addProperty(new Property("custom", "foo"));
+      data.addProperty(new Property(SensorData.POWER_GENERATED, "1234.5"));
+      data.addProperty(new Property(SensorData.POWER_CONSUMED, "100"));
+      data.addProperty(new Property(SensorData.POWER_GENERATED, "2.0"));
+      data.addProperty(new Property(SensorData.ENERGY_CONSUMED_TO_DATE, "NaN"));
+      data.setInterpolated(true);
+
+      SensorDataRecord record = SensorDataRecord.fromSensorData(data);
+      SensorData rebuilt = record.toSensorData();
+      assertEquals("SensorData changed by record", data, rebuilt);
+      assertEquals("Properties reordered by record", data.getProperties().toString(), rebuilt
+          .getProperties().toString());
+      assertEquals("Timestamp changed by record", time.toXMLFormat(), rebuilt.getTimestamp()
+          .toXMLFormat());
+      assertEquals("Wrong millis", Tstamp.toMillis(time), record.getMillis());
+      assertEquals("Wrong first powerGenerated", 1234.5,
+          record.getPropertyAsDouble(SensorData.POWER_GENERATED), 0.0);
+      assertEquals("Wrong powerConsumed", "100", record.getProperty(SensorData.POWER_CONSUMED));
+      assertEquals("Wrong powerConsumed", 100.0,
+          record.getPropertyAsDouble(SensorData.POWER_CONSUMED), 0.0);
+      assertTrue("Missing property", record.hasProperty(SensorData.ENERGY_CONSUMED_TO_DATE));
+      assertFalse("Extra property", record.hasProperty(SensorData.ENERGY_GENERATED_TO_DATE));
+      assertEquals("Wrong missing property", 0.0,
+          record.getPropertyAsDouble(SensorData.ENERGY_GENERATED_TO_DATE), 0.0);
+      assertNull("Wrong missing property", record.getProperty("missing"));
+      assertEquals("Records of equal SensorData differ", record,
+          SensorDataRecord.fromSensorData(rebuilt));
+    }
+
+    SensorData empty = new SensorData(Tstamp.makeTimestamp(), "JUnit", SOURCE);
+    assertEquals("SensorData without properties changed by record", empty, SensorDataRecord
+        .fromSensorData(empty).toSensorData());
+    assertNull("Record of null SensorData", SensorDataRecord.fromSensorData(null));
+  }
+
+  /**
+   * Tests that records made from equal but separate source strings share one copy of the string.
+   */
+  @Test
+  public void testSharedStrings() {
+    XMLGregorianCalendar time = Tstamp.makeTimestamp();
+    SensorDataRecord record1 =
+        SensorDataRecord.fromSensorData(new SensorData(time, "JUnit", new String(SOURCE)));
+    SensorDataRecord record2 =
+        SensorDataRecord.fromSensorData(new SensorData(time, "JUnit", new String(SOURCE)));
+    assertSame("Source string not shared", record1.getSource(), record2.getSource());
+  }
+
+  /**
+   * Tests that records made at once by several threads from equal but separate strings all share
+   * the same copy.
+   *
+   * @throws Exception If a thread is interrupted.
+   */
+  @Test
+  public void testConcurrentSharedStrings() throws Exception {
+    final XMLGregorianCalendar time = Tstamp.makeTimestamp();
+    final int threadCount = 8;
+    final int sourceCount = 100;
+    final String[][] shared = new String[threadCount][sourceCount];
+    final CountDownLatch ready = new CountDownLatch(1);
+    Thread[] threads = new Thread[threadCount];
+    for (int t = 0; t < threadCount; t++) {
+      final int index = t;
+      threads[t] = new Thread() {
+        /** Makes a record for each source once all the threads are ready. */
+        @Override
+        public void run() {
+          try {
+            ready.await();
+            for (int i = 0; i < sourceCount; i++) {
+              shared[index][i] =
+                  SensorDataRecord.fromSensorData(
+                      new SensorData(time, "JUnit", new String(SOURCE + "-concurrent-" + i)))
+                      .getSource();
+            }
+          }
+          catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      };
+      threads[t].start();
+    }
+    ready.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    for (int t = 1; t < threadCount; t++) {
+      for (int i = 0; i < sourceCount; i++) {
+        assertSame("Source string not shared between threads", shared[0][i], shared[t][i]);
+      }
+    }
+  }
+
+  /**
+   * Tests that straddles made from records interpolate and report like straddles made from
+   * SensorData.
+   *
+   * @throws Exception If there are problems creating timestamps.
+   */
+  @Test
+  public void testStraddleFromRecords() throws Exception {
+    XMLGregorianCalendar time1 = Tstamp.makeTimestamp("2009-07-28T09:00:00.000-10:00");
+    XMLGregorianCalendar time2 = Tstamp.makeTimestamp("2009-07-28T09:07:00.000-10:00");
+    XMLGregorianCalendar time3 = Tstamp.makeTimestamp("2009-07-28T09:15:00.000-10:00");
+    SensorData data1 = new SensorData(time1, "JUnit", SOURCE);
+    data1.addProperty(new Property(SensorData.POWER_GENERATED, 100.0));
+    data1.addProperty(new Property(SensorData.POWER_CONSUMED, "15"));
+    SensorData data3 = new SensorData(time3, "JUnit", SOURCE);
+    data3.addProperty(new Property(SensorData.POWER_GENERATED, 1000.0));
+    data3.addProperty(new Property(SensorData.POWER_CONSUMED, "45"));
+    SensorDataRecord record1 = SensorDataRecord.fromSensorData(data1);
+    SensorDataRecord record3 = SensorDataRecord.fromSensorData(data3);
+
+    SensorDataStraddle fromData = new SensorDataStraddle(time2, data1, data3);
+    SensorDataStraddle fromRecords = SensorDataStraddle.fromRecords(time2, record1, record3);
+    assertFalse("Straddle is degenerate", fromRecords.isDegenerate());
+    assertEquals("Wrong interpolated powerGenerated", fromData.getPowerGenerated(), fromRecords
+        .getPowerGenerated(), 0.0);
+    assertEquals("Wrong interpolated powerConsumed", fromData.getPowerConsumed(), fromRecords
+        .getPowerConsumed(), 0.0);
+    assertEquals("Wrong interpolated power", fromData.getPower(), fromRecords.getPower());
+    assertEquals("Wrong source", SOURCE, fromRecords.getSource());
+    assertEquals("Wrong beforeData", data1, fromRecords.getBeforeData());
+    assertEquals("Wrong afterData", data3, fromRecords.getAfterData());
+
+    SensorDataStraddle degenerate = SensorDataStraddle.fromRecords(time1, record1, record1);
+    assertTrue("Straddle is not degenerate", degenerate.isDegenerate());
+    assertEquals("Wrong degenerate power", data1, degenerate.getPower());
+    assertEquals("Wrong degenerate powerConsumed", 15.0, degenerate.getPowerConsumed(), 0.0);
+  }
+}
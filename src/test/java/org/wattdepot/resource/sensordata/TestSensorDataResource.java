@@ -901,6 +901,51 @@ public class TestSensorDataResource extends ServerTestHelper {
     assertFalse("Able to overwrite existing SensorData resource", client.storeSensorData(data));
   }
 
+  // Tests for PUT {host}/sources/{source}/sensordata
+
+  /**
+   * Tests storing a batch of SensorData, some of which already exists. Type: public Source with
+   * owner credentials.
+   *
+   * @throws Exception If problems are encountered.
+   */
+  @Test
+  public void testStoreSensorDatas() throws Exception {
+    WattDepotClient client =
+        new WattDepotClient(getHostName(), defaultOwnerUsername, defaultOwnerPassword);
+    SensorData data1 = makeTestSensorData1(), data2 = makeTestSensorData2(), data3 =
+        makeTestSensorData3();
+    assertTrue(DATA_STORE_FAILED, client.storeSensorData(data2));
+
+    List<SensorData> batch = new ArrayList<SensorData>();
+    batch.add(data1);
+    batch.add(data2);
+    batch.add(data3);
+    List<SensorDataRef> rejected =
+        client.storeSensorDatas(defaultPublicSource, batch).getSensorDataRef();
+    assertEquals("Wrong number of rejected SensorData", 1, rejected.size());
+    assertTrue("Existing SensorData not rejected", rejected.get(0).equalsSensorData(data2));
+    assertEquals("Some expected SensorData not stored", 3,
+        client.getSensorDataIndex(defaultPublicSource).getSensorDataRef().size());
+    assertEquals(RETRIEVED_DATA_DOESNT_MATCH, data3,
+        client.getSensorData(defaultPublicSource, data3.getTimestamp()));
+  }
+
+  /**
+   * Tests storing a batch of SensorData to a Source. Type: public Source with valid non-owner
+   * credentials.
+   *
+   * @throws Exception If problems are encountered.
+   */
+  @Test(expected = NotAuthorizedException.class)
+  public void testStoreSensorDatasNonOwnerCredentials() throws Exception {
+    WattDepotClient client =
+        new WattDepotClient(getHostName(), defaultNonOwnerUsername, defaultNonOwnerPassword);
+    List<SensorData> batch = new ArrayList<SensorData>();
+    batch.add(makeTestSensorData1());
+    client.storeSensorDatas(defaultPublicSource, batch);
+  }
+
   // @Test
   // public void bogusTest() {
   // assertTrue("Expected failure", false);
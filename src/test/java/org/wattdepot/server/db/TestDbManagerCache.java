@@ -1,9 +1,11 @@
 package org.wattdepot.server.db;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import org.wattdepot.resource.property.jaxb.Properties;
+import java.io.File;
 import javax.xml.datatype.XMLGregorianCalendar;
 import org.junit.Test;
 import org.wattdepot.resource.property.jaxb.Property;
@@ -13,6 +15,8 @@ import org.wattdepot.resource.sensordata.jaxb.SensorDataIndex;
 import org.wattdepot.resource.sensordata.jaxb.SensorDatas;
 import org.wattdepot.resource.source.jaxb.Source;
 import org.wattdepot.resource.user.jaxb.User;
+import org.wattdepot.server.cache.CacheWriteAheadLog;
+import org.wattdepot.server.cache.DataCache;
 import org.wattdepot.util.tstamp.Tstamp;
 
 public class TestDbManagerCache extends DbManagerTestHelper {
@@ -283,6 +287,54 @@ public class TestDbManagerCache extends DbManagerTestHelper {
         .size());
   }
 
+  /**
+   * Test that deleting a Source removes its SensorData from the cache as well as from storage, so
+   * none of it comes back if a Source with the same name is created again.
+   */
+  @Test
+  public void testCacheDeleteSource() {
+    createTestData();
+    assertEquals("Could not retrieve cached sensor data", this.data2,
+        manager.cache.getSensorData(this.source1name, this.data2.getTimestamp()));
+
+    assertTrue("Source could not be deleted", manager.deleteSource(this.source1name));
+    SensorDataIndex cacheIndex = manager.cache.getSensorDataIndex(this.source1name);
+    assertEquals("Cache index has wrong number of sensor datas", 0, cacheIndex.getSensorDataRef()
+        .size());
+    assertNull("Checkpoint of deleted Source kept",
+        manager.cache.getSourceCheckpointTimestamp(this.source1name));
+
+    assertTrue("Unable to store a Source in DB", manager.storeSource(this.source1));
+    assertNull("Cached sensor data of deleted Source came back",
+        manager.getSensorData(this.source1name, this.data2.getTimestamp()));
+    assertEquals("Full index has wrong number of sensor datas", 0,
+        manager.getSensorDataIndex(this.source1name).getSensorDataRef().size());
+  }
+
+  /**
+   * Test that deleting a User removes the SensorData of the Sources it owns from the cache and
+   * the latest SensorData, so none of it comes back if the User and Source are created again.
+   */
+  @Test
+  public void testCacheDeleteUser() {
+    createTestData();
+    assertNotNull("No latest sensor data", manager.getLatestSensorData(this.source1name));
+
+    assertTrue("User could not be deleted", manager.deleteUser(this.user1.getEmail()));
+    SensorDataIndex cacheIndex = manager.cache.getSensorDataIndex(this.source1name);
+    assertEquals("Cache index has wrong number of sensor datas", 0, cacheIndex.getSensorDataRef()
+        .size());
+    assertNull("Checkpoint of deleted Source kept",
+        manager.cache.getSourceCheckpointTimestamp(this.source1name));
+
+    assertTrue("Unable to store a User in DB", manager.storeUser(this.user1));
+    assertTrue("Unable to store a Source in DB", manager.storeSource(this.source1));
+    assertNull("Cached sensor data of deleted Source came back",
+        manager.getSensorData(this.source1name, this.data2.getTimestamp()));
+    assertNull("Latest sensor data of deleted Source came back",
+        manager.getLatestSensorData(this.source1name));
+  }
+
   /**
    * Test that the storage isn't used if a data point is found in the cache.
    */
@@ -309,6 +361,132 @@ public class TestDbManagerCache extends DbManagerTestHelper {
         manager.getLatestSensorData(source1name));
   }
 
+  /**
+   * Test that a cache over its byte budget evicts persisted sensor data oldest first across all
+   * sources, never evicts sensor data that has not been persisted, and still tracks the latest
+   * sensor data.
+   */
+  @Test
+  public void testCacheByteBudget() {
+    DataCache cache = new DataCache(1);
+    assertTrue("Unable to store a SensorData in cache", cache.storeSensorData(this.data1, 0));
+    assertTrue("Unable to store a SensorData in cache", cache.storeSensorData(this.data6, 0));
+    assertTrue("Unable to store a SensorData in cache", cache.storeSensorData(this.data2, 0));
+    assertEquals("Unpersisted sensor data was evicted", this.data1,
+        cache.getSensorData(this.source1name, this.data1.getTimestamp()));
+    assertEquals("Unpersisted sensor data was evicted", this.data6,
+        cache.getLatestSensorData(this.source2name));
+
+    cache.markPersisted(this.source1name, this.data1.getTimestamp());
+    cache.markPersisted(this.source2name, this.data6.getTimestamp());
+    assertNull("Oldest persisted sensor data was not evicted",
+        cache.getSensorData(this.source1name, this.data1.getTimestamp()));
+    assertEquals("Newly persisted sensor data was evicted", this.data6,
+        cache.getLatestSensorData(this.source2name));
+    cache.markPersisted(this.source1name, this.data2.getTimestamp());
+    assertNull("Other source's older persisted sensor data was not evicted",
+        cache.getLatestSensorData(this.source2name));
+    assertEquals("Newest sensor data was evicted", this.data2,
+        cache.getSensorData(this.source1name, this.data2.getTimestamp()));
+    assertEquals("Cache retrieved incorrect latest sensor data", this.data2,
+        cache.getLatestSensorData(this.source1name));
+
+    assertTrue("Could not delete sensor data",
+        cache.deleteSensorData(this.source1name, this.data2.getTimestamp()));
+    assertNull("Cache retrieved deleted latest sensor data",
+        cache.getLatestSensorData(this.source1name));
+  }
+
+  /**
+   * Test that the cache tracks the first sensor data of a source that has not been persisted, and
+   * the expiry of unpersisted sensor data in a range, as sensor data is persisted and deleted.
+   */
+  @Test
+  public void testCacheFirstUnpersisted() {
+    DataCache cache = new DataCache();
+    long millis1 = Tstamp.toMillis(this.data1.getTimestamp());
+    long millis2 = Tstamp.toMillis(this.data2.getTimestamp());
+    long millis3 = Tstamp.toMillis(this.data3.getTimestamp());
+    assertEquals("Empty cache has unpersisted sensor data", Long.MAX_VALUE,
+        cache.getFirstUnpersistedMillis(this.source1name));
+    assertTrue("Unable to store a SensorData in cache", cache.storeSensorData(this.data3, 0));
+    assertTrue("Unable to store a SensorData in cache", cache.storeSensorData(this.data1, 0));
+    assertTrue("Unable to store a SensorData in cache", cache.storeSensorData(this.data2, 0));
+    assertEquals("Wrong first unpersisted sensor data", millis1,
+        cache.getFirstUnpersistedMillis(this.source1name));
+
+    cache.markPersisted(this.source1name, this.data1.getTimestamp());
+    assertEquals("Persisted sensor data still unpersisted", millis2,
+        cache.getFirstUnpersistedMillis(this.source1name));
+    assertEquals("Persisted sensor data has an unpersisted expiry", Long.MAX_VALUE,
+        cache.getFirstUnpersistedExpiry(this.source1name, millis1, millis1));
+    assertEquals("Wrong unpersisted expiry", cache.getExpiry(this.source1name,
+        this.data2.getTimestamp()), cache.getFirstUnpersistedExpiry(this.source1name, millis1,
+        millis3));
+
+    assertTrue("Could not delete sensor data",
+        cache.deleteSensorData(this.source1name, this.data2.getTimestamp()));
+    assertEquals("Deleted sensor data still unpersisted", millis3,
+        cache.getFirstUnpersistedMillis(this.source1name));
+    cache.markPersisted(this.source1name, this.data3.getTimestamp());
+    assertEquals("Persisted sensor data still unpersisted", Long.MAX_VALUE,
+        cache.getFirstUnpersistedMillis(this.source1name));
+    assertEquals("Persisted sensor data has an unpersisted expiry", Long.MAX_VALUE,
+        cache.getFirstUnpersistedExpiry(this.source1name, millis1, millis3));
+  }
+
+  /**
+   * Test that SensorData logged by a cache is restored into a new cache, except where it was
+   * deleted, across several segments of the log.
+   * 
+   * @throws Exception If the log cannot be written or read.
+   */
+  @Test
+  public void testCacheWriteAheadLog() throws Exception {
+    File dir = File.createTempFile("cache-wal", "");
+    assertTrue("Unable to replace temporary file with directory", dir.delete());
+    CacheWriteAheadLog log = new CacheWriteAheadLog(dir, 512, server.getLogger());
+    log.clear();
+    DataCache cache = new DataCache();
+    cache.setWriteAheadLog(log);
+    SensorData[] datas = { this.data1, this.data2, this.data3, this.data4, this.data5 };
+    for (SensorData data : datas) {
+      assertTrue("Unable to store a SensorData in cache", cache.storeSensorData(data, 0));
+      cache.logSensorData(data, 0);
+    }
+    assertTrue("Unable to store a SensorData in cache", cache.storeSensorData(this.data6, 0));
+    cache.logSensorData(this.data6, 0);
+    assertTrue("Could not delete sensor data",
+        cache.deleteSensorData(this.source1name, this.data3.getTimestamp()));
+    assertTrue("Could not delete sensor data", cache.deleteSensorData(this.source2name));
+    log.close();
+    assertTrue("Log did not rotate to a new segment", dir.list().length > 1);
+
+    CacheWriteAheadLog reopened = new CacheWriteAheadLog(dir, 512, server.getLogger());
+    DataCache restored = new DataCache();
+    assertEquals("Wrong number of SensorData restored", 6, reopened.replay(restored));
+    for (SensorData data : datas) {
+      if (data == this.data3) {
+        assertNull("Deleted sensor data was restored",
+            restored.getSensorData(this.source1name, data.getTimestamp()));
+      }
+      else {
+        assertEquals("Sensor data not restored", data,
+            restored.getSensorData(this.source1name, data.getTimestamp()));
+      }
+    }
+    assertEquals("Cache restored incorrect latest sensor data", this.data5,
+        restored.getLatestSensorData(this.source1name));
+    assertNull("Sensor data of deleted source was restored",
+        restored.getLatestSensorData(this.source2name));
+    reopened.clear();
+    reopened.close();
+    for (File segment : dir.listFiles()) {
+      segment.delete();
+    }
+    dir.delete();
+  }
+
   /**
    * Creates a SensorData for use in testing, 1 in a series.
    * 
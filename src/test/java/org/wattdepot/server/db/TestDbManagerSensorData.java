@@ -5,12 +5,19 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 import javax.xml.datatype.XMLGregorianCalendar;
 import org.junit.Test;
 import org.wattdepot.resource.property.jaxb.Properties;
 import org.wattdepot.resource.property.jaxb.Property;
+import org.wattdepot.resource.sensordata.SensorDataEncoding;
 import org.wattdepot.resource.sensordata.SensorDataStraddle;
 import org.wattdepot.resource.sensordata.jaxb.SensorData;
 import org.wattdepot.resource.sensordata.jaxb.SensorDataRef;
@@ -612,6 +619,49 @@ public class TestDbManagerSensorData extends DbManagerTestHelper {
     assertFalse("Able to store null SensorData", manager.storeSensorDataNoCache(null));
   }
 
+  /**
+   * Tests the storeSensorDatas method.
+   *
+   * @throws Exception If there are timestamp conversion problems.
+   */
+  @Test
+  public void testStoreSensorDatas() throws Exception {
+    // Add test data.
+    createTestData();
+
+    // case #1: store a list of SensorData and retrieve each one
+    List<SensorData> batch = new ArrayList<SensorData>();
+    batch.add(this.data1);
+    batch.add(this.data2);
+    assertTrue("Batch of new SensorData had rejections",
+        manager.storeSensorDatas(batch, this.source1).isEmpty());
+    assertEquals(DATA_DOES_NOT_MATCH, this.data1,
+        manager.getSensorData(source1.getName(), this.data1.getTimestamp()));
+    assertEquals(DATA_DOES_NOT_MATCH, this.data2,
+        manager.getSensorData(source1.getName(), this.data2.getTimestamp()));
+
+    // case #2: conflicting SensorData is returned, but doesn't stop the rest being stored
+    batch.clear();
+    batch.add(this.data1);
+    batch.add(this.data3);
+    batch.add(this.data3);
+    List<SensorData> rejected = manager.storeSensorDatas(batch, this.source1);
+    assertEquals("Wrong number of rejected SensorData", 2, rejected.size());
+    assertEquals("Existing SensorData not rejected", this.data1, rejected.get(0));
+    assertEquals("Duplicate SensorData in batch not rejected", this.data3, rejected.get(1));
+    assertEquals(DATA_DOES_NOT_MATCH, this.data3,
+        manager.getSensorData(source1.getName(), this.data3.getTimestamp()));
+    assertSame("getSensorDataIndex returned wrong number of SensorDataRefs", 3, manager
+        .getSensorDataIndex(this.source1.getName()).getSensorDataRef().size());
+
+    // case #3: empty list
+    assertTrue("Empty batch had rejections",
+        manager.storeSensorDatas(new ArrayList<SensorData>(), this.source1).isEmpty());
+
+    // case #4: null list
+    assertNull("Able to store null list of SensorData", manager.storeSensorDatas(null, source1));
+  }
+
   /**
    * Tests the deleteSensorData method that takes a timestamp argument.
    * 
@@ -788,6 +838,71 @@ public class TestDbManagerSensorData extends DbManagerTestHelper {
     assertEquals("afterData not set correctly", straddle.getAfterData(), data5);
   }
 
+  /**
+   * Tests that getSensorDataStraddles returns the same straddles as getSensorDataStraddle would for
+   * each of an unordered list of timestamps, with null entries where there is no straddle.
+   * 
+   * @throws Exception If there are problems making timestamps.
+   */
+  @Test
+  @SuppressWarnings("PMD.AvoidDuplicateLiterals")
+  public void testGetSensorDataStraddles() throws Exception {
+    // Set up test data
+    createTestData();
+
+    XMLGregorianCalendar beforeAll = Tstamp.makeTimestamp("2009-07-27T09:00:00.000-10:00");
+    XMLGregorianCalendar source1Time1 = Tstamp.makeTimestamp("2009-07-28T09:00:00.000-10:00");
+    XMLGregorianCalendar source1Time1_2 = Tstamp.makeTimestamp("2009-07-28T09:07:00.000-10:00");
+    XMLGregorianCalendar source1Time2 = Tstamp.makeTimestamp("2009-07-28T09:15:00.000-10:00");
+    XMLGregorianCalendar source1Time3 = Tstamp.makeTimestamp("2009-07-28T09:30:00.000-10:00");
+    XMLGregorianCalendar source1Time3_4 = Tstamp.makeTimestamp("2009-07-28T09:37:00.000-10:00");
+    XMLGregorianCalendar source1Time4 = Tstamp.makeTimestamp("2009-07-28T09:45:00.000-10:00");
+    XMLGregorianCalendar afterAll = Tstamp.makeTimestamp("2009-07-29T10:00:00.000-10:00");
+
+    String tool = JUNIT;
+    String source1Uri = this.source1.toUri(server);
+
+    SensorData data1 = new SensorData(source1Time1, tool, source1Uri);
+    SensorData data2 = new SensorData(source1Time2, tool, source1Uri);
+    SensorData data3 = new SensorData(source1Time3, tool, source1Uri);
+    SensorData data4 = new SensorData(source1Time4, tool, source1Uri);
+
+    assertTrue(UNABLE_TO_STORE_DATA, this.manager.storeSensorDataNoCache(data1));
+    assertTrue(UNABLE_TO_STORE_DATA, this.manager.storeSensorDataNoCache(data2));
+    assertTrue(UNABLE_TO_STORE_DATA, this.manager.storeSensorDataNoCache(data3));
+    assertTrue(UNABLE_TO_STORE_DATA, this.manager.storeSensorDataNoCache(data4));
+
+    assertNull("Could getSensorDataStraddles with null source",
+        this.manager.getSensorDataStraddles(null, new ArrayList<XMLGregorianCalendar>()));
+    assertNull("Could getSensorDataStraddles with null timestamp list",
+        this.manager.getSensorDataStraddles(this.source1, null));
+
+    List<XMLGregorianCalendar> timestampList = new ArrayList<XMLGregorianCalendar>();
+    timestampList.add(source1Time3_4);
+    timestampList.add(beforeAll);
+    timestampList.add(source1Time2);
+    timestampList.add(source1Time1_2);
+    timestampList.add(afterAll);
+    List<SensorDataStraddle> straddles =
+        this.manager.getSensorDataStraddles(this.source1, timestampList);
+    assertEquals("Wrong number of straddles", timestampList.size(), straddles.size());
+    assertEquals("beforeData not set correctly", data3, straddles.get(0).getBeforeData());
+    assertEquals("afterData not set correctly", data4, straddles.get(0).getAfterData());
+    assertNull("Got straddle where timestamp is before all stored data", straddles.get(1));
+    assertEquals("timestamp equal to sensorData, but beforeData not set correctly", data2,
+        straddles.get(2).getBeforeData());
+    assertEquals("timestamp equal to beforeData, but afterData not set correctly", data2,
+        straddles.get(2).getAfterData());
+    assertEquals("beforeData not set correctly", data1, straddles.get(3).getBeforeData());
+    assertEquals("afterData not set correctly", data2, straddles.get(3).getAfterData());
+    assertNull("Got straddle where timestamp is after all stored data", straddles.get(4));
+
+    // virtual source has no SensorData directly
+    straddles = this.manager.getSensorDataStraddles(this.source3, timestampList);
+    assertEquals("Wrong number of straddles", timestampList.size(), straddles.size());
+    assertNull("Got straddle on virtual source", straddles.get(0));
+  }
+
   /**
    * Tests that after sensor data is added two non-virtual sources, with a virtual source that
    * includes both non-virtual sources, getSensorDataStraddleList for the virtual returns the
@@ -906,4 +1021,400 @@ public class TestDbManagerSensorData extends DbManagerTestHelper {
     straddleList = this.manager.getSensorDataStraddleList(this.source3, source2Time2_3);
     assertNull("straddle list was not null despite timestamp outside sensor data", straddleList);
   }
+
+  /**
+   * Tests that energy computed from rollups matches the stored readings, including readings
+   * stored out of order, and that deleting a reading falls back to the raw data until the rollups
+   * are rebuilt.
+   * 
+   * @throws Exception If there are problems making timestamps.
+   */
+  @Test
+  public void testGetRollupEnergy() throws Exception {
+    createTestData();
+    String sourceUri = this.source1.toUri(server);
+    XMLGregorianCalendar start = Tstamp.makeTimestamp("2009-07-28T00:00:00.000-10:00");
+    // Two days of readings every 15 minutes at a constant 1000 W consumed and 200 W generated,
+    // with the odd readings stored before the even ones.
+    int numReadings = 2 * 24 * 4 + 1;
+    for (int pass = 1; pass >= 0; pass--) {
+      for (int i = pass; i < numReadings; i += 2) {
+        SensorData data =
+            new SensorData(Tstamp.incrementMinutes(start, i * 15), JUNIT, sourceUri);
+        data.addProperty(new Property(SensorData.POWER_CONSUMED, 1000.0));
+        data.addProperty(new Property(SensorData.POWER_GENERATED, 200.0));
+        assertTrue(UNABLE_TO_STORE_DATA, manager.storeSensorDataNoCache(data));
+      }
+    }
+
+    XMLGregorianCalendar rangeStart = Tstamp.makeTimestamp("2009-07-28T06:07:00.000-10:00");
+    XMLGregorianCalendar rangeEnd = Tstamp.incrementDays(rangeStart, 1);
+    double[] energy = manager.getRollupEnergy(this.source1, rangeStart, rangeEnd);
+    assertEquals("Rollup energy generated is wrong", 4800.0, energy[0], 0.01);
+    assertEquals("Rollup energy consumed is wrong", 24000.0, energy[1], 0.01);
+
+    // Short ranges and ranges beyond the data are left to the raw computation
+    assertNull("Rollups used for a range shorter than the minimum", manager.getRollupEnergy(
+        this.source1, rangeStart, Tstamp.incrementHours(rangeStart, 1)));
+    assertNull("Rollups used for a range past the stored data", manager.getRollupEnergy(
+        this.source1, rangeStart, Tstamp.incrementDays(rangeStart, 2)));
+
+    // Deleting a reading invalidates the rollups around it until they are rebuilt
+    assertTrue("Unable to delete SensorData", manager.deleteSensorData(this.source1.getName(),
+        Tstamp.incrementMinutes(start, 12 * 60)));
+    assertNull("Rollups used after a deletion",
+        manager.getRollupEnergy(this.source1, rangeStart, rangeEnd));
+    assertTrue("Unable to rebuild rollups", manager.rebuildRollups(this.source1.getName()));
+    energy = manager.getRollupEnergy(this.source1, rangeStart, rangeEnd);
+    assertEquals("Rebuilt rollup energy consumed is wrong", 24000.0, energy[1], 0.01);
+  }
+
+  /**
+   * Tests that rollup energy includes SensorData that is only cached, although the rollups are
+   * computed from stored SensorData alone.
+   * 
+   * @throws Exception If there are problems making timestamps.
+   */
+  @Test
+  public void testGetRollupEnergyCached() throws Exception {
+    createTestData();
+    String sourceUri = this.source1.toUri(server);
+    // Cache every reading but only persist one every two hours
+    this.source1.addProperty(new Property(Source.CACHE_WINDOW_LENGTH, "100000"));
+    this.source1.addProperty(new Property(Source.CACHE_CHECKPOINT_INTERVAL, "120"));
+    XMLGregorianCalendar start = Tstamp.makeTimestamp("2009-07-28T00:00:00.000-10:00");
+    for (int i = 0; i < 2 * 24 * 4 + 1; i++) {
+      SensorData data = new SensorData(Tstamp.incrementMinutes(start, i * 15), JUNIT, sourceUri);
+      data.addProperty(new Property(SensorData.POWER_CONSUMED, 1000.0));
+      data.addProperty(new Property(SensorData.POWER_GENERATED, 200.0));
+      assertTrue(UNABLE_TO_STORE_DATA, manager.storeSensorData(data, this.source1));
+    }
+    manager.flushWriteBehind();
+
+    XMLGregorianCalendar rangeStart = Tstamp.makeTimestamp("2009-07-28T06:07:00.000-10:00");
+    double[] energy =
+        manager.getRollupEnergy(this.source1, rangeStart, Tstamp.incrementHours(rangeStart, 41));
+    assertEquals("Rollup energy generated is wrong", 8200.0, energy[0], 0.01);
+    assertEquals("Rollup energy consumed is wrong", 41000.0, energy[1], 0.01);
+  }
+
+  /**
+   * Tests that energy from the energy integral follows the linearly interpolated power between
+   * readings, and stays correct as readings are appended, inserted out of order and deleted.
+   * 
+   * @throws Exception If there are problems making timestamps.
+   */
+  @Test
+  public void testGetIntegratedEnergy() throws Exception {
+    createTestData();
+    String sourceUri = this.source1.toUri(server);
+    XMLGregorianCalendar start = Tstamp.makeTimestamp("2009-07-28T08:00:00.000-10:00");
+    XMLGregorianCalendar middle = Tstamp.incrementMinutes(start, 30);
+    XMLGregorianCalendar end = Tstamp.incrementMinutes(start, 60);
+    SensorData startData = new SensorData(start, JUNIT, sourceUri);
+    startData.addProperty(new Property(SensorData.POWER_CONSUMED, 1000.0));
+    SensorData endData = new SensorData(end, JUNIT, sourceUri);
+    endData.addProperty(new Property(SensorData.POWER_CONSUMED, 2000.0));
+    SensorData middleData = new SensorData(middle, JUNIT, sourceUri);
+    middleData.addProperty(new Property(SensorData.POWER_CONSUMED, 3000.0));
+
+    assertNull("Got energy with no SensorData",
+        manager.getIntegratedEnergy(this.source1, start, end));
+    assertTrue(UNABLE_TO_STORE_DATA, manager.storeSensorDataNoCache(startData));
+    assertTrue(UNABLE_TO_STORE_DATA, manager.storeSensorDataNoCache(endData));
+    assertEquals("Energy between two readings is wrong", 1500.0,
+        waitForIntegratedEnergy(start, end)[1], 0.001);
+    // Interpolated at both ends: power is 1250 W at 08:15 and 1750 W at 08:45
+    assertEquals("Interpolated energy is wrong", 750.0, manager.getIntegratedEnergy(this.source1,
+        Tstamp.incrementMinutes(start, 15), Tstamp.incrementMinutes(start, 45))[1], 0.001);
+    assertNull("Got energy for a range past the SensorData",
+        manager.getIntegratedEnergy(this.source1, start, Tstamp.incrementMinutes(end, 1)));
+
+    // Out of order insert
+    assertTrue(UNABLE_TO_STORE_DATA, manager.storeSensorDataNoCache(middleData));
+    assertEquals("Energy after out of order insert is wrong", 2250.0,
+        manager.getIntegratedEnergy(this.source1, start, end)[1], 0.001);
+    assertEquals("Energy after out of order insert is wrong", 1250.0,
+        manager.getIntegratedEnergy(this.source1, middle, end)[1], 0.001);
+
+    // Delete
+    assertTrue("Unable to delete SensorData",
+        manager.deleteSensorData(this.source1.getName(), middle));
+    assertEquals("Energy after delete is wrong", 1500.0,
+        manager.getIntegratedEnergy(this.source1, start, end)[1], 0.001);
+
+    // Six more hours of readings at a constant 1200 W, so energy comes from the hourly checkpoints
+    for (int i = 1; i <= 18; i++) {
+      SensorData data = new SensorData(Tstamp.incrementMinutes(end, i * 20), JUNIT, sourceUri);
+      data.addProperty(new Property(SensorData.POWER_CONSUMED, 1200.0));
+      assertTrue(UNABLE_TO_STORE_DATA, manager.storeSensorDataNoCache(data));
+    }
+    XMLGregorianCalendar rangeStart = Tstamp.incrementMinutes(end, 30);
+    XMLGregorianCalendar rangeEnd = Tstamp.incrementMinutes(end, 5 * 60 + 50);
+    XMLGregorianCalendar later = Tstamp.incrementHours(end, 3);
+    assertEquals("Energy across checkpoints is wrong", 6400.0,
+        manager.getIntegratedEnergy(this.source1, rangeStart, rangeEnd)[1], 0.001);
+    // A spike inserted out of order adds a triangle of 3000 W by 20 minutes
+    XMLGregorianCalendar spike = Tstamp.incrementMinutes(end, 2 * 60 + 10);
+    SensorData spikeData = new SensorData(spike, JUNIT, sourceUri);
+    spikeData.addProperty(new Property(SensorData.POWER_CONSUMED, 4200.0));
+    assertTrue(UNABLE_TO_STORE_DATA, manager.storeSensorDataNoCache(spikeData));
+    assertEquals("Energy across an out of order insert is wrong", 6900.0,
+        manager.getIntegratedEnergy(this.source1, rangeStart, rangeEnd)[1], 0.001);
+    assertEquals("Energy after an out of order insert is wrong", 3400.0,
+        manager.getIntegratedEnergy(this.source1, later, rangeEnd)[1], 0.001);
+    assertTrue("Unable to delete SensorData", manager.deleteSensorData(this.source1.getName(),
+        spike));
+    assertEquals("Energy across a delete is wrong", 6400.0,
+        manager.getIntegratedEnergy(this.source1, rangeStart, rangeEnd)[1], 0.001);
+    assertEquals("Energy after a delete is wrong", 3400.0,
+        manager.getIntegratedEnergy(this.source1, later, rangeEnd)[1], 0.001);
+    // Deleting the last reading shortens the range covered
+    assertTrue("Unable to delete SensorData", manager.deleteSensorData(this.source1.getName(),
+        Tstamp.incrementHours(end, 6)));
+    assertNull("Got energy for a range past the SensorData",
+        manager.getIntegratedEnergy(this.source1, rangeStart, rangeEnd));
+    assertEquals("Energy after deleting the last reading is wrong", 6000.0,
+        manager.getIntegratedEnergy(this.source1, rangeStart,
+            Tstamp.incrementMinutes(rangeEnd, -20))[1], 0.001);
+  }
+
+  /**
+   * Returns the integrated energy of source1 between the given times, waiting for its energy
+   * integral to be built in the background first.
+   * 
+   * @param startTime The start of the range.
+   * @param endTime The end of the range.
+   * @return The energy generated and consumed, or null if it was not built in time.
+   * @throws InterruptedException If interrupted while waiting.
+   */
+  private double[] waitForIntegratedEnergy(XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime) throws InterruptedException {
+    for (int i = 0; i < 100; i++) {
+      double[] energy = manager.getIntegratedEnergy(this.source1, startTime, endTime);
+      if (energy != null) {
+        return energy;
+      }
+      Thread.sleep(50);
+    }
+    return null;
+  }
+
+  /**
+   * Tests storing SensorData from many threads at once, which BerkeleyDB groups into shared
+   * commits. Each thread stores readings of its own, and all threads also try to store the same
+   * reading, which must be stored exactly once.
+   * 
+   * @throws Exception If there are problems making timestamps or joining threads.
+   */
+  @Test
+  public void testConcurrentStoreSensorData() throws Exception {
+    createTestData();
+    final String sourceUri = this.source1.toUri(server);
+    final XMLGregorianCalendar start = Tstamp.makeTimestamp("2009-07-28T08:00:00.000-10:00");
+    final int numThreads = 8, perThread = 25;
+    final AtomicInteger stored = new AtomicInteger(), sharedStored = new AtomicInteger();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < numThreads; t++) {
+      final int thread = t;
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < perThread; i++) {
+            SensorData data =
+                new SensorData(Tstamp.incrementMinutes(start, 1 + thread * perThread + i), JUNIT,
+                    sourceUri, new Property(SensorData.POWER_CONSUMED, 1000.0));
+            if (manager.storeSensorDataNoCache(data)) {
+              stored.incrementAndGet();
+            }
+          }
+          SensorData shared =
+              new SensorData(start, JUNIT, sourceUri, new Property(SensorData.POWER_CONSUMED,
+                  500.0));
+          if (manager.storeSensorDataNoCache(shared)) {
+            sharedStored.incrementAndGet();
+          }
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals("Not all concurrent SensorData was stored", numThreads * perThread, stored.get());
+    assertEquals("Shared SensorData stored more than once", 1, sharedStored.get());
+    assertEquals("Wrong number of SensorData after concurrent stores",
+        numThreads * perThread + 1, manager.getSensorDataIndex(this.source1.getName())
+            .getSensorDataRef().size());
+  }
+
+  /**
+   * Tests that SensorData added to a WriteBehindQueue reaches storage in order, that journal
+   * segments are dropped once stored, and that closing the queue stores everything still queued.
+   * 
+   * @throws Exception If there are problems making timestamps or opening the journal.
+   */
+  @Test
+  public void testWriteBehindQueue() throws Exception {
+    createTestData();
+    File journal = File.createTempFile("write-behind", ".journal");
+    journal.deleteOnExit();
+    WriteBehindQueue queue =
+        new WriteBehindQueue(manager.dbImpl, server.getLogger(), journal.getPath(), 2, 2, 1,
+            null, false);
+    String sourceUri = this.source1.toUri(server);
+    XMLGregorianCalendar start = Tstamp.makeTimestamp("2009-07-28T08:00:00.000-10:00");
+    for (int i = 0; i < 10; i++) {
+      SensorData data =
+          new SensorData(Tstamp.incrementMinutes(start, i), JUNIT, sourceUri, new Property(
+              "voltage", "12" + i));
+      assertTrue("Unable to queue SensorData", queue.add(data));
+    }
+    queue.flush();
+    assertEquals("Queue not empty after flush", 0, queue.getDepth());
+    assertEquals("Wrong number of SensorData stored", 10, queue.getStoredCount());
+    assertTrue("Queue exceeded its capacity", queue.getMaxDepth() <= 2);
+    assertEquals("Journal not emptied once everything was stored", 0, queue.getJournalBytes());
+    assertEquals("Stored journal segments not deleted", 1, queue.getSegmentCount());
+    assertEquals("Queued SensorData not stored", 10,
+        manager.getSensorDataIndex(this.source1.getName()).getSensorDataRef().size());
+    assertEquals("Properties of queued SensorData not stored", "129", manager
+        .getSensorData(this.source1.getName(), Tstamp.incrementMinutes(start, 9)).getProperties()
+        .getProperty("voltage"));
+
+    SensorData last =
+        new SensorData(Tstamp.incrementMinutes(start, 10), JUNIT, sourceUri, new Property(
+            SensorData.POWER_CONSUMED, 1.0));
+    assertTrue("Unable to queue SensorData", queue.add(last));
+    queue.close();
+    assertTrue("SensorData queued before close not stored",
+        manager.getSensorData(this.source1.getName(), last.getTimestamp()) != null);
+    assertFalse("SensorData queued after close", queue.add(last));
+  }
+
+  /**
+   * Tests that the listener of a WriteBehindQueue is told only about SensorData that was actually
+   * stored, so that SensorData storage rejects is never marked persisted in the cache.
+   * 
+   * @throws Exception If there are problems making timestamps or opening the journal.
+   */
+  @Test
+  public void testWriteBehindListener() throws Exception {
+    createTestData();
+    File journal = File.createTempFile("write-behind", ".journal");
+    journal.deleteOnExit();
+    final List<SensorData> stored = new ArrayList<SensorData>();
+    WriteBehindQueue queue =
+        new WriteBehindQueue(manager.dbImpl, server.getLogger(), journal.getPath(), 10, 10, 1024,
+            new WriteBehindQueue.Listener() {
+              public void stored(List<SensorData> datas) {
+                stored.addAll(datas);
+              }
+            }, false);
+    String sourceUri = this.source1.toUri(server);
+    XMLGregorianCalendar start = Tstamp.makeTimestamp("2009-07-28T08:00:00.000-10:00");
+    Property power = new Property(SensorData.POWER_CONSUMED, 1.0);
+    assertTrue(UNABLE_TO_STORE_DATA, manager.storeSensorDataNoCache(new SensorData(start, JUNIT,
+        sourceUri, power)));
+    SensorData data =
+        new SensorData(Tstamp.incrementMinutes(start, 1), JUNIT, sourceUri, power);
+    assertTrue("Unable to queue SensorData", queue.add(new SensorData(start, JUNIT, sourceUri,
+        power)));
+    assertTrue("Unable to queue SensorData", queue.add(data));
+    queue.close();
+    assertEquals("Listener told about rejected SensorData", 1, stored.size());
+    assertSame("Listener not told about stored SensorData", data, stored.get(0));
+  }
+
+  /**
+   * Tests that SensorData left in a journal segment by a previous run is stored when a new
+   * WriteBehindQueue is created, in batches, up to a record cut short by a crash.
+   * 
+   * @throws Exception If there are problems making timestamps or writing the journal.
+   */
+  @Test
+  public void testWriteBehindJournalReplay() throws Exception {
+    createTestData();
+    File journal = File.createTempFile("write-behind", ".journal");
+    journal.deleteOnExit();
+    File segment = new File(journal.getPath() + ".0");
+    segment.deleteOnExit();
+    String sourceUri = this.source1.toUri(server);
+    XMLGregorianCalendar start = Tstamp.makeTimestamp("2009-07-28T08:00:00.000-10:00");
+    DataOutputStream output = new DataOutputStream(new FileOutputStream(segment));
+    for (int i = 0; i < 3; i++) {
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      DataOutputStream bodyOutput = new DataOutputStream(body);
+      SensorDataEncoding.write(new SensorData(Tstamp.incrementMinutes(start, i), JUNIT,
+          sourceUri, new Property("voltage", "12" + i)), bodyOutput);
+      bodyOutput.flush();
+      CRC32 crc = new CRC32();
+      crc.update(body.toByteArray());
+      output.writeInt(body.size());
+      output.writeLong(crc.getValue());
+      output.write(body.toByteArray());
+    }
+    // A record cut short by a crash
+    output.writeInt(1000);
+    output.close();
+
+    WriteBehindQueue queue =
+        new WriteBehindQueue(manager.dbImpl, server.getLogger(), journal.getPath(), 2, 2, 1,
+            null, false);
+    assertEquals("Journaled SensorData not stored", 3,
+        manager.getSensorDataIndex(this.source1.getName()).getSensorDataRef().size());
+    assertEquals("Properties of journaled SensorData not stored", "122", manager
+        .getSensorData(this.source1.getName(), Tstamp.incrementMinutes(start, 2)).getProperties()
+        .getProperty("voltage"));
+    assertFalse("Replayed journal segment not deleted", segment.exists());
+    assertEquals("Journal not empty after replay", 0, queue.getJournalBytes());
+    queue.close();
+  }
+
+  /**
+   * Tests that the latest SensorData stays correct as SensorData is stored and deleted, including
+   * SensorData stored before the latest was first requested.
+   * 
+   * @throws Exception If timestamp creation throws exception.
+   */
+  @Test
+  public void testLatestSensorDataUpdates() throws Exception {
+    createTestData();
+    String sourceUri = this.source1.toUri(server);
+    XMLGregorianCalendar start = Tstamp.makeTimestamp("2009-07-28T08:00:00.000-10:00");
+    SensorData data1 =
+        new SensorData(start, JUNIT, sourceUri, new Property(SensorData.POWER_CONSUMED, 1.0));
+    SensorData data2 =
+        new SensorData(Tstamp.incrementMinutes(start, 1), JUNIT, sourceUri, new Property(
+            SensorData.POWER_CONSUMED, 2.0));
+    SensorData data3 =
+        new SensorData(Tstamp.incrementMinutes(start, 2), JUNIT, sourceUri, new Property(
+            SensorData.POWER_CONSUMED, 3.0));
+
+    // Stored before the latest is known
+    assertTrue(UNABLE_TO_STORE_DATA, manager.storeSensorDataNoCache(data2));
+    assertEquals(DATA_DOES_NOT_MATCH, data2, manager.getLatestSensorData(this.source1.getName()));
+    // Older data does not replace the latest, newer data does
+    assertTrue(UNABLE_TO_STORE_DATA, manager.storeSensorDataNoCache(data1));
+    assertEquals(DATA_DOES_NOT_MATCH, data2, manager.getLatestSensorData(this.source1.getName()));
+    List<SensorData> datas = new ArrayList<SensorData>();
+    datas.add(data3);
+    assertTrue("Unable to store SensorData list",
+        manager.storeSensorDatas(datas, this.source1).isEmpty());
+    assertEquals(DATA_DOES_NOT_MATCH, data3, manager.getLatestSensorData(this.source1.getName()));
+
+    // Deleting the latest falls back to the next latest
+    assertTrue("Unable to delete SensorData",
+        manager.deleteSensorData(this.source1.getName(), data3.getTimestamp()));
+    assertEquals(DATA_DOES_NOT_MATCH, data2, manager.getLatestSensorData(this.source1.getName()));
+    // Deleting other data leaves the latest alone
+    assertTrue("Unable to delete SensorData",
+        manager.deleteSensorData(this.source1.getName(), data1.getTimestamp()));
+    assertEquals(DATA_DOES_NOT_MATCH, data2, manager.getLatestSensorData(this.source1.getName()));
+    assertTrue("Unable to delete SensorData", manager.deleteSensorData(this.source1.getName()));
+    assertNull("Found latest SensorData after deleting all SensorData",
+        manager.getLatestSensorData(this.source1.getName()));
+  }
 }
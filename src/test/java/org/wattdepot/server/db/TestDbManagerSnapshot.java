@@ -1,5 +1,6 @@
 package org.wattdepot.server.db;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 
@@ -21,5 +22,25 @@ public class TestDbManagerSnapshot extends DbManagerTestHelper {
   @Test
   public void testMakeSnapshot() {
     assertTrue("Unable to create snapshot", manager.makeSnapshot());
+    assertEquals("Snapshot status not updated", SnapshotStatus.State.SUCCEEDED, manager
+        .getSnapshotStatus().getState());
+  }
+
+  /**
+   * Tests that a snapshot started in the background finishes and reports its result.
+   * 
+   * @throws InterruptedException If interrupted while waiting for the snapshot.
+   */
+  @Test
+  public void testStartSnapshot() throws InterruptedException {
+    assertTrue("Unable to start snapshot", manager.startSnapshot());
+    long deadline = System.currentTimeMillis() + 60000;
+    while ((manager.getSnapshotStatus().getState() != SnapshotStatus.State.SUCCEEDED)
+        && (manager.getSnapshotStatus().getState() != SnapshotStatus.State.FAILED)
+        && (System.currentTimeMillis() < deadline)) {
+      Thread.sleep(100);
+    }
+    assertEquals("Background snapshot did not succeed", SnapshotStatus.State.SUCCEEDED, manager
+        .getSnapshotStatus().getState());
   }
 }
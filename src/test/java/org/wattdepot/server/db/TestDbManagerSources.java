@@ -227,6 +227,56 @@ public class TestDbManagerSources extends DbManagerTestHelper {
     assertNull("Able to retrieve from null Source", manager.getSourceSummary(null));
   }
 
+  /**
+   * Tests that the SourceSummary follows SensorData as it is stored in batches and deleted.
+   * 
+   * @throws Exception if there are problems creating test data.
+   */
+  @Test
+  public void testSourceSummaryMaintenance() throws Exception {
+    storeTestUsers();
+    assertTrue(UNABLE_TO_STORE_SOURCE, manager.storeSource(this.source1));
+    SensorData data1 = makeTestSensorData1(), data2 = makeTestSensorData2(), data3 =
+        makeTestSensorData3();
+    List<SensorData> datas = new ArrayList<SensorData>();
+    datas.add(data3);
+    datas.add(data1);
+    datas.add(data2);
+    assertTrue(UNABLE_TO_STORE_DATA, manager.storeSensorDatas(datas, this.source1).isEmpty());
+    String name = this.source1.getName();
+    SourceSummary summary = manager.getSourceSummary(name);
+    assertEquals("Wrong count after batch store", 3, summary.getTotalSensorDatas());
+    assertEquals("Wrong first after batch store", data1.getTimestamp(),
+        summary.getFirstSensorData());
+    assertEquals("Wrong last after batch store", data3.getTimestamp(),
+        summary.getLastSensorData());
+
+    // Duplicates are not counted
+    assertFalse("Able to store duplicate SensorData", manager.storeSensorDataNoCache(data2));
+    assertEquals("Duplicate was counted", 3,
+        manager.getSourceSummary(name).getTotalSensorDatas());
+
+    // Deleting the first and last SensorData moves both ends of the summary
+    assertTrue("Unable to delete SensorData", manager.deleteSensorData(name, data1.getTimestamp()));
+    assertTrue("Unable to delete SensorData", manager.deleteSensorData(name, data3.getTimestamp()));
+    summary = manager.getSourceSummary(name);
+    assertEquals("Wrong count after deletes", 1, summary.getTotalSensorDatas());
+    assertEquals("Wrong first after deletes", data2.getTimestamp(), summary.getFirstSensorData());
+    assertEquals("Wrong last after deletes", data2.getTimestamp(), summary.getLastSensorData());
+
+    // Deleting everything empties the summary, and storing again starts it over
+    assertTrue("Unable to delete all SensorData", manager.deleteSensorData(name));
+    summary = manager.getSourceSummary(name);
+    assertEquals("Wrong count after deleting all", 0, summary.getTotalSensorDatas());
+    assertNull("First remains after deleting all", summary.getFirstSensorData());
+    assertNull("Last remains after deleting all", summary.getLastSensorData());
+    assertTrue(UNABLE_TO_STORE_DATA, manager.storeSensorDataNoCache(data3));
+    summary = manager.getSourceSummary(name);
+    assertEquals("Wrong count after storing again", 1, summary.getTotalSensorDatas());
+    assertEquals("Wrong first after storing again", data3.getTimestamp(),
+        summary.getFirstSensorData());
+  }
+
   /**
    * Tests that a virtual source with no subsources produces the correct source summary. Note that
    * the client doesn't allow this situation to happen, but if the sources are created in another
@@ -349,4 +399,139 @@ public class TestDbManagerSources extends DbManagerTestHelper {
     assertNull("Able to retrieve sensor data after deleting source",
         manager.getSensorData(UriUtils.getUriSuffix(s.getSource()), s.getTimestamp()));
   }
+
+  /**
+   * Tests that getAllNonVirtualSubSources follows changes to every Source in a hierarchy, even
+   * though the flattened hierarchy is cached.
+   */
+  @Test
+  public void testGetAllNonVirtualSubSources() {
+    storeTestUsers();
+    assertTrue(UNABLE_TO_STORE_SOURCE, manager.storeSource(source1));
+    assertTrue(UNABLE_TO_STORE_SOURCE, manager.storeSource(source2));
+    assertTrue(UNABLE_TO_STORE_SOURCE, manager.storeSource(source3));
+    SubSources subSources = new SubSources();
+    subSources.getHref().add(source1.toUri(server));
+    subSources.getHref().add(source3.toUri(server));
+    Source topSource =
+        new Source("virtual-top", user3.toUri(server), false, true, "31.30078,-157.819129,41",
+            "Made up location 4", "Virtual source of a virtual source", null, subSources);
+
+    List<Source> leaves = manager.getAllNonVirtualSubSources(source3);
+    assertEquals("Wrong number of subsources", 2, leaves.size());
+    assertEquals(SOURCE_DOES_NOT_MATCH, source2, leaves.get(0));
+    assertEquals(SOURCE_DOES_NOT_MATCH, source1, leaves.get(1));
+
+    assertTrue(UNABLE_TO_STORE_SOURCE, manager.storeSource(topSource));
+    leaves = manager.getAllNonVirtualSubSources(topSource);
+    assertEquals("Wrong number of nested subsources", 3, leaves.size());
+
+    // Changing an intermediate virtual Source is seen through the hierarchy
+    Source changedSource3 = makeTestSource3();
+    changedSource3.getSubSources().getHref().remove(source1.toUri(server));
+    assertTrue(UNABLE_TO_STORE_SOURCE, manager.storeSource(changedSource3, true));
+    assertEquals("Changed virtual subsource not seen", 2,
+        manager.getAllNonVirtualSubSources(topSource).size());
+    assertTrue(UNABLE_TO_STORE_SOURCE, manager.storeSource(source3, true));
+
+    // Changing a leaf is seen through the hierarchy
+    Source changedSource1 = makeTestSource1();
+    changedSource1.setDescription("Changed description");
+    assertTrue(UNABLE_TO_STORE_SOURCE, manager.storeSource(changedSource1, true));
+    leaves = manager.getAllNonVirtualSubSources(topSource);
+    assertEquals("Changed subsource not seen", "Changed description", leaves.get(2)
+        .getDescription());
+
+    // Deleting a leaf removes it
+    assertTrue("Unable to delete source2", manager.deleteSource(source2.getName()));
+    assertEquals("Deleted subsource still found", 2,
+        manager.getAllNonVirtualSubSources(topSource).size());
+    assertEquals("Deleted subsource still found", 1,
+        manager.getAllNonVirtualSubSources(source3).size());
+
+    // Returned lists are copies
+    manager.getAllNonVirtualSubSources(source3).clear();
+    assertEquals("Cached hierarchy was changed by caller", 1,
+        manager.getAllNonVirtualSubSources(source3).size());
+  }
+
+  /**
+   * Tests that Sources, Sources lists and SourceIndexes served from the Source cache follow stores
+   * and deletes.
+   */
+  @Test
+  public void testSourceCache() {
+    storeTestUsers();
+    assertTrue(UNABLE_TO_STORE_SOURCE, manager.storeSource(source1));
+    assertSame("Cached Source not reused", manager.getSource(source1.getName()),
+        manager.getSource(source1.getName()));
+    assertEquals("Wrong number of Sources", 1, manager.getSources().getSource().size());
+    assertEquals("Wrong number of SourceRefs", 1, manager.getSourceIndex().getSourceRef().size());
+
+    // Overwriting a Source is seen
+    Source changedSource1 = makeTestSource1();
+    changedSource1.setDescription("Changed description");
+    assertTrue(UNABLE_TO_STORE_SOURCE, manager.storeSource(changedSource1, true));
+    assertEquals("Changed Source not seen", "Changed description",
+        manager.getSource(source1.getName()).getDescription());
+    assertEquals("Changed Source not seen in list", "Changed description", manager.getSources()
+        .getSource().get(0).getDescription());
+
+    // Storing and deleting Sources is seen in the lists
+    assertTrue(UNABLE_TO_STORE_SOURCE, manager.storeSource(source2));
+    assertEquals("Stored Source not listed", 2, manager.getSources().getSource().size());
+    assertEquals("Stored Source not indexed", 2, manager.getSourceIndex().getSourceRef().size());
+    assertTrue("Unable to delete source1", manager.deleteSource(source1.getName()));
+    assertNull("Able to retrieve deleted Source", manager.getSource(source1.getName()));
+    assertEquals("Deleted Source still listed", 1, manager.getSources().getSource().size());
+    assertEquals("Deleted Source still indexed", 1, manager.getSourceIndex().getSourceRef()
+        .size());
+
+    // Returned lists are copies
+    manager.getSources().getSource().clear();
+    manager.getSourceIndex().getSourceRef().clear();
+    assertEquals("Cached Sources changed by caller", 1, manager.getSources().getSource().size());
+    assertEquals("Cached SourceIndex changed by caller", 1, manager.getSourceIndex()
+        .getSourceRef().size());
+  }
+
+  /**
+   * Tests that the SubSourceExecutor returns results in subsource order, and honors requireAll,
+   * both with a pool and after it has been shut down.
+   */
+  @Test
+  public void testSubSourceExecutor() {
+    List<Source> sources = new ArrayList<Source>();
+    for (int i = 0; i < 20; i++) {
+      sources.add(i % 2 == 0 ? source1 : source2);
+    }
+    SubSourceExecutor.SubSourceTask<String> nameTask =
+        new SubSourceExecutor.SubSourceTask<String>() {
+          @Override
+          public String call(Source source) {
+            return source.getName();
+          }
+        };
+    SubSourceExecutor.SubSourceTask<String> missingTask =
+        new SubSourceExecutor.SubSourceTask<String>() {
+          @Override
+          public String call(Source source) {
+            return source.equals(source2) ? null : source.getName();
+          }
+        };
+    SubSourceExecutor executor = new SubSourceExecutor(4);
+    for (int run = 0; run < 2; run++) {
+      List<String> names = executor.map(sources, nameTask, true);
+      assertEquals("Wrong number of results", sources.size(), names.size());
+      for (int i = 0; i < sources.size(); i++) {
+        assertEquals("Results out of order", sources.get(i).getName(), names.get(i));
+      }
+      assertNull("Missing result not reported", executor.map(sources, missingTask, true));
+      List<String> partial = executor.map(sources, missingTask, false);
+      assertEquals("Wrong number of partial results", sources.size(), partial.size());
+      assertNull("Missing result not kept", partial.get(1));
+      // Second run is done entirely on the calling thread
+      executor.shutdown();
+    }
+  }
 }
@@ -186,4 +186,45 @@ public class TestDbManagerUsers extends DbManagerTestHelper {
     assertTrue("Unable to delete user1", manager.deleteUser(this.user1.getEmail()));
     assertNull("Able to retrieve Source after deleting owner", manager.getSource(s.getName()));
   }
+
+  /**
+   * Tests that the credential cache only accepts matching secrets, and forgets Users as they are
+   * stored and deleted.
+   */
+  @Test
+  public void testCredentialCache() {
+    CredentialCache credentials = manager.getCredentialCache();
+    String username = this.user1.getEmail();
+    char[] secret = this.user1.getPassword().toCharArray();
+    assertFalse("Unknown credential accepted", credentials.isValid(username, secret));
+    assertNull("Unknown user has a role", credentials.isAdmin(username));
+
+    credentials.put(username, secret, false, credentials.getVersion());
+    assertTrue("Cached credential not accepted", credentials.isValid(username, secret));
+    assertFalse("Wrong secret accepted", credentials.isValid(username, "wrong".toCharArray()));
+    assertEquals("Wrong cached role", Boolean.FALSE, credentials.isAdmin(username));
+
+    // Storing or deleting the User drops its credential
+    assertTrue("Unable to store user1 in DB", manager.storeUser(this.user1));
+    assertFalse("Credential kept after storeUser", credentials.isValid(username, secret));
+    credentials.put(username, secret, false, credentials.getVersion());
+    assertTrue("Unable to delete user1", manager.deleteUser(username));
+    assertFalse("Credential kept after deleteUser", credentials.isValid(username, secret));
+
+    // A User read before an invalidation is not cached
+    long version = credentials.getVersion();
+    assertTrue("Unable to store user1 in DB", manager.storeUser(this.user1));
+    credentials.put(username, secret, false, version);
+    assertFalse("Stale credential cached", credentials.isValid(username, secret));
+
+    // Entries expire and are bounded
+    CredentialCache small = new CredentialCache(1, 60000);
+    small.put(username, secret, false, small.getVersion());
+    small.put(this.user2.getEmail(), secret, true, small.getVersion());
+    assertFalse("Least recently used credential kept", small.isValid(username, secret));
+    assertTrue("Newest credential dropped", small.isValid(this.user2.getEmail(), secret));
+    CredentialCache expiring = new CredentialCache(10, 0);
+    expiring.put(username, secret, false, expiring.getVersion());
+    assertFalse("Expired credential accepted", expiring.isValid(username, secret));
+  }
 }
@@ -0,0 +1,95 @@
+package org.wattdepot.server.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.util.List;
+import org.junit.Test;
+import org.wattdepot.resource.property.jaxb.Property;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.util.tstamp.Tstamp;
+
+/**
+ * Tests the encoding of SensorData properties stored inline in the SensorData row.
+ */
+public class TestInlineProperties {
+
+  /**
+   * Tests that only the properties without columns of their own are encoded, and that they decode
+   * to the same keys and values.
+   * 
+   * @throws Exception If the test SensorData cannot be created.
+   */
+  @Test
+  public void testRoundTrip() throws Exception {
+    SensorData data =
+        new SensorData(Tstamp.makeTimestamp("2009-07-28T09:00:00.000-10:00"), "JUnit",
+            "http://server.wattdepot.org/wattdepot/sources/foo");
+    assertNull("Encoded SensorData without properties", InlineProperties.encode(data));
+    data.addProperty(new Property(SensorData.POWER_CONSUMED, "10000"));
+    assertNull("Encoded a property with its own column", InlineProperties.encode(data));
+    data.addProperty(new Property("voltage", "120.1"));
+    data.addProperty(new Property("note", "a:b 12:c"));
+    data.addProperty(new Property("empty", ""));
+
+    List<Property> props = InlineProperties.decode(InlineProperties.encode(data));
+    assertEquals("Wrong number of decoded properties", 3, props.size());
+    assertEquals("Wrong decoded property", new Property("voltage", "120.1"), props.get(0));
+    assertEquals("Wrong decoded property", new Property("note", "a:b 12:c"), props.get(1));
+    assertEquals("Wrong decoded property", new Property("empty", ""), props.get(2));
+  }
+
+  /**
+   * Tests that encodings can be appended to, and concatenated, as the migration out of the
+   * SensorDataProperty table does.
+   */
+  @Test
+  public void testConcatenation() {
+    String first = InlineProperties.append(null, "voltage", "120.1");
+    String second = InlineProperties.append(InlineProperties.append(null, "a", "1"), "b", "2");
+    List<Property> props = InlineProperties.decode(first + second);
+    assertEquals("Wrong number of decoded properties", 3, props.size());
+    assertEquals("Wrong decoded property", new Property("b", "2"), props.get(2));
+  }
+
+  /**
+   * Tests that a property with a null value round trips as null rather than failing to encode, and
+   * is told apart from an empty value.
+   */
+  @Test
+  public void testNullValue() {
+    String encoded = InlineProperties.append(InlineProperties.append(null, "none", null), "empty",
+        "");
+    List<Property> props = InlineProperties.decode(encoded);
+    assertEquals("Wrong number of decoded properties", 2, props.size());
+    assertEquals("Wrong decoded key", "none", props.get(0).getKey());
+    assertNull("Null value not decoded as null", props.get(0).getValue());
+    assertEquals("Empty value not decoded as empty", "", props.get(1).getValue());
+  }
+
+  /**
+   * Tests decoding of null and malformed strings.
+   */
+  @Test
+  public void testBadInput() {
+    assertTrue("Decoded properties from null", InlineProperties.decode(null).isEmpty());
+    assertTrue("Power consumed is a column", InlineProperties.isColumn(SensorData.POWER_CONSUMED));
+    assertFalse("Voltage is not a column", InlineProperties.isColumn("voltage"));
+    try {
+      InlineProperties.decode("7:voltage9:120.1");
+      fail("Decoded a truncated value");
+    }
+    catch (IllegalArgumentException e) {
+      // Expected
+    }
+    try {
+      InlineProperties.decode("7:voltage-2:");
+      fail("Decoded a negative length");
+    }
+    catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+}
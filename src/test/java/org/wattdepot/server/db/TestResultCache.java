@@ -0,0 +1,138 @@
+package org.wattdepot.server.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import javax.xml.datatype.XMLGregorianCalendar;
+import org.junit.Test;
+import org.wattdepot.resource.property.jaxb.Property;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.resource.source.jaxb.Source;
+import org.wattdepot.util.tstamp.Tstamp;
+
+/**
+ * Tests that DbManager caches computed energy, and drops it only when SensorData that can change
+ * it is stored or expires from the cache.
+ */
+public class TestResultCache extends DbManagerTestHelper {
+
+  /**
+   * Stores readings every ten minutes, and checks that energy between two of them is cached, kept
+   * when a later reading arrives, and recomputed when a reading is stored inside its range.
+   *
+   * @throws Exception If there are problems making timestamps.
+   */
+  @Test
+  public void testRangeInvalidation() throws Exception {
+    assertTrue("Unable to store a User in DB", manager.storeUser(makeTestUser1()));
+    Source source = makeTestSource1();
+    assertTrue("Unable to store a Source in DB", manager.storeSource(source));
+    String sourceUri = source.toUri(server);
+    XMLGregorianCalendar start = Tstamp.makeTimestamp("2009-07-28T09:00:00.000-10:00");
+    for (int i = 0; i <= 30; i += 10) {
+      assertTrue("Unable to store SensorData",
+          manager.storeSensorDataNoCache(makeData(sourceUri, start, i, 1000)));
+    }
+    XMLGregorianCalendar rangeStart = Tstamp.incrementMinutes(start, 10);
+    XMLGregorianCalendar rangeEnd = Tstamp.incrementMinutes(start, 20);
+
+    SensorData energy = manager.getEnergy(source, rangeStart, rangeEnd, 0);
+    assertEquals("Wrong energy", 166.67, energy.getPropertyAsDouble(SensorData.ENERGY_CONSUMED),
+        0.01);
+    assertSame("Energy not cached", energy, manager.getEnergy(source, rangeStart, rangeEnd, 0));
+    assertEquals("Wrong number of results cached", 1, manager.getResultCache().size());
+
+    // The range reaching past the latest reading is still open, so it is not cached
+    manager.getEnergy(source, Tstamp.incrementMinutes(start, 30),
+        Tstamp.incrementMinutes(start, 35), 0);
+    assertEquals("Open range cached", 1, manager.getResultCache().size());
+
+    assertTrue("Unable to store SensorData",
+        manager.storeSensorDataNoCache(makeData(sourceUri, start, 40, 1000)));
+    assertSame("Later reading dropped cached energy", energy,
+        manager.getEnergy(source, rangeStart, rangeEnd, 0));
+
+    assertTrue("Unable to store SensorData",
+        manager.storeSensorDataNoCache(makeData(sourceUri, start, 15, 4000)));
+    SensorData changed = manager.getEnergy(source, rangeStart, rangeEnd, 0);
+    assertNotSame("Reading inside range kept cached energy", energy, changed);
+    assertEquals("Wrong energy", 416.67, changed.getPropertyAsDouble(SensorData.ENERGY_CONSUMED),
+        0.01);
+  }
+
+  /**
+   * Stores readings every ten minutes, caches energy over two ranges, and checks that a reading
+   * stored out of order drops only the range whose interpolation it can reach.
+   *
+   * @throws Exception If there are problems making timestamps.
+   */
+  @Test
+  public void testOutOfOrderInvalidation() throws Exception {
+    assertTrue("Unable to store a User in DB", manager.storeUser(makeTestUser1()));
+    Source source = makeTestSource1();
+    assertTrue("Unable to store a Source in DB", manager.storeSource(source));
+    String sourceUri = source.toUri(server);
+    XMLGregorianCalendar start = Tstamp.makeTimestamp("2009-07-28T09:00:00.000-10:00");
+    for (int i = 0; i <= 60; i += 10) {
+      assertTrue("Unable to store SensorData",
+          manager.storeSensorDataNoCache(makeData(sourceUri, start, i, 1000)));
+    }
+    XMLGregorianCalendar early = Tstamp.incrementMinutes(start, 5);
+    XMLGregorianCalendar late = Tstamp.incrementMinutes(start, 45);
+    SensorData earlyEnergy =
+        manager.getEnergy(source, early, Tstamp.incrementMinutes(start, 15), 0);
+    SensorData lateEnergy = manager.getEnergy(source, late, Tstamp.incrementMinutes(start, 55), 0);
+    assertEquals("Wrong number of results cached", 2, manager.getResultCache().size());
+
+    // Between the late range and the reading before it, so only interpolation there changes
+    assertTrue("Unable to store SensorData",
+        manager.storeSensorDataNoCache(makeData(sourceUri, start, 42, 4000)));
+    assertSame("Reading outside range dropped cached energy", earlyEnergy,
+        manager.getEnergy(source, early, Tstamp.incrementMinutes(start, 15), 0));
+    assertNotSame("Reading before range kept cached energy", lateEnergy,
+        manager.getEnergy(source, late, Tstamp.incrementMinutes(start, 55), 0));
+  }
+
+  /**
+   * Checks that a result computed from SensorData that is only in the DataCache is dropped once
+   * that SensorData expires.
+   *
+   * @throws Exception If interrupted while waiting.
+   */
+  @Test
+  public void testExpiry() throws Exception {
+    ResultCache cache = new ResultCache(10);
+    String[] leaves = { "leaf" };
+    long[] latest = { 2000 };
+    SensorData data = new SensorData();
+    long version = cache.begin(leaves, latest);
+    cache.put(ResultCache.Kind.ENERGY, "leaf", 1000, 2000, 0, leaves, new long[] { 500 },
+        latest, System.currentTimeMillis() + 50, version, data);
+    assertSame("Result not cached", data, cache.get(ResultCache.Kind.ENERGY, "leaf", 1000, 2000,
+        0));
+    Thread.sleep(100);
+    assertNull("Expired result returned", cache.get(ResultCache.Kind.ENERGY, "leaf", 1000, 2000,
+        0));
+    assertEquals("Expired result kept", 0, cache.size());
+  }
+
+  /**
+   * Makes a reading of power consumed.
+   *
+   * @param sourceUri The URI of the Source.
+   * @param start The timestamp the offset is from.
+   * @param minutes The offset of the reading in minutes.
+   * @param power The power consumed.
+   * @return The reading.
+   * @throws Exception If there are problems making the timestamp.
+   */
+  private static SensorData makeData(String sourceUri, XMLGregorianCalendar start, int minutes,
+      double power) throws Exception {
+    SensorData data =
+        new SensorData(Tstamp.incrementMinutes(start, minutes), "JUnit", sourceUri);
+    data.addProperty(new Property(SensorData.POWER_CONSUMED, power));
+    return data;
+  }
+}
@@ -0,0 +1,99 @@
+package org.wattdepot.server.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.util.List;
+import java.util.logging.Logger;
+import javax.xml.datatype.XMLGregorianCalendar;
+import org.junit.Test;
+import org.wattdepot.resource.property.jaxb.Property;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.resource.source.jaxb.Source;
+import org.wattdepot.util.tstamp.Tstamp;
+
+/**
+ * Tests that the RetentionScheduler downsamples SensorData older than the retention period of its
+ * Source without changing the energy it records, in storage or in its rollups.
+ */
+public class TestRetentionScheduler extends DbManagerTestHelper {
+
+  /**
+   * Stores two hours of readings every minute from ten days ago for a Source that keeps one day
+   * of raw data, and checks that each 20 minute interval is reduced to three readings with the
+   * same energy and counters, that the rollups stay complete, and that a second run changes
+   * nothing.
+   *
+   * @throws Exception If there are problems making timestamps.
+   */
+  @Test
+  public void testDownsample() throws Exception {
+    assertTrue("Unable to store a User in DB", manager.storeUser(makeTestUser1()));
+    Source source = makeTestSource1();
+    source.addProperty(new Property(Source.RAW_RETENTION_DAYS, "1"));
+    source.addProperty(new Property(Source.DOWNSAMPLE_INTERVAL, "20"));
+    assertTrue("Unable to store a Source in DB", manager.storeSource(source));
+    String sourceUri = source.toUri(server);
+
+    long hour = 60L * 60L * 1000L;
+    long startMillis = System.currentTimeMillis() - 10 * 24 * hour;
+    XMLGregorianCalendar start = Tstamp.makeTimestamp(startMillis - (startMillis % hour));
+    XMLGregorianCalendar end = Tstamp.incrementMinutes(start, 120);
+    double counter = 0;
+    double keptCounter = 0;
+    for (int i = 0; i <= 120; i++) {
+      double power = 1000.0 + 100.0 * (i % 7);
+      SensorData data = new SensorData(Tstamp.incrementMinutes(start, i), "JUnit", sourceUri);
+      data.addProperty(new Property(SensorData.POWER_CONSUMED, power));
+      data.addProperty(new Property(SensorData.ENERGY_CONSUMED_TO_DATE, counter));
+      assertTrue("Unable to store SensorData", manager.storeSensorDataNoCache(data));
+      if (i == 19) {
+        keptCounter = counter;
+      }
+      counter += power / 60;
+    }
+    double energy = manager.getIntegratedEnergy(source, start, end)[1];
+    // The energy integral is built in the background the first time it is asked for, and the
+    // answer must not change once it is
+    for (int i = 0; i < 20; i++) {
+      Thread.sleep(50);
+      assertEquals("Energy changed by building the integral", energy, manager.getIntegratedEnergy(
+          source, start, end)[1], 0.01);
+    }
+    double middleEnergy =
+        manager.getIntegratedEnergy(source, Tstamp.incrementMinutes(start, 19),
+            Tstamp.incrementMinutes(start, 80))[1];
+
+    RetentionScheduler retention =
+        new RetentionScheduler(manager, 60, 5, 0, Logger.getAnonymousLogger());
+    assertTrue("Retention run did not complete", retention.runOnce());
+    assertEquals("Wrong number of intervals downsampled", 6, retention.getIntervalsDownsampled());
+    assertEquals("Wrong number of readings deleted", 108, retention.getReadingsDeleted());
+    assertEquals("Wrong number of readings left", 19,
+        manager.getSensorDataIndex(source.getName()).getSensorDataRef().size());
+    assertEquals("Energy changed by downsampling", energy,
+        manager.getIntegratedEnergy(source, start, end)[1], 0.01);
+    // Between the last reading of one interval and the first reading of another
+    assertEquals("Energy between intervals changed by downsampling", middleEnergy,
+        manager.getIntegratedEnergy(source, Tstamp.incrementMinutes(start, 19),
+            Tstamp.incrementMinutes(start, 80))[1], 0.01);
+    // The rollups are patched rather than invalidated, so they still add up to the same energy
+    List<SensorDataRollup> rollups =
+        manager.dbImpl.getRollups(source.getName(), SensorDataRollup.HOUR, Tstamp.toMillis(start),
+            Tstamp.toMillis(end));
+    assertEquals("Wrong number of hourly rollups", 2, rollups.size());
+    assertEquals("Wrong number of readings in hourly rollup", 9, rollups.get(0).getCount());
+    double rollupEnergy = 0;
+    for (SensorDataRollup rollup : rollups) {
+      assertTrue("Rollup left incomplete by downsampling", rollup.isComplete());
+      rollupEnergy += rollup.getEnergyConsumed();
+    }
+    assertEquals("Rollup energy changed by downsampling", energy, rollupEnergy, 0.01);
+    SensorData kept = manager.getSensorData(source.getName(), Tstamp.incrementMinutes(start, 19));
+    assertEquals("Counter of a kept reading changed", keptCounter,
+        kept.getPropertyAsDouble(SensorData.ENERGY_CONSUMED_TO_DATE), 0.001);
+
+    // Nothing is left to downsample
+    assertTrue("Retention run did not complete", retention.runOnce());
+    assertEquals("Downsampled data downsampled again", 108, retention.getReadingsDeleted());
+  }
+}
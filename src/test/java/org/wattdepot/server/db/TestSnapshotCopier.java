@@ -0,0 +1,246 @@
+package org.wattdepot.server.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.logging.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that the SnapshotCopier copies only changed files and keeps the snapshot in step with the
+ * directory it copies.
+ */
+public class TestSnapshotCopier {
+
+  /** The directory being copied. */
+  private File sourceDir;
+
+  /** The snapshot directory. */
+  private File destDir;
+
+  /**
+   * Creates a source directory with a file and a subdirectory holding another file.
+   *
+   * @throws IOException If the files cannot be created.
+   */
+  @Before
+  public void makeFiles() throws IOException {
+    this.sourceDir = File.createTempFile("snapshot-source", "");
+    this.destDir = File.createTempFile("snapshot-dest", "");
+    assertTrue("Unable to replace temporary file", this.sourceDir.delete());
+    assertTrue("Unable to replace temporary file", this.destDir.delete());
+    assertTrue("Unable to create directory", new File(this.sourceDir, "sub").mkdirs());
+    write(new File(this.sourceDir, "a.dat"), 1000);
+    write(new File(this.sourceDir, "sub/b.dat"), 5000);
+  }
+
+  /**
+   * Deletes the directories.
+   */
+  @After
+  public void deleteFiles() {
+    delete(this.sourceDir);
+    delete(this.destDir);
+  }
+
+  /**
+   * Tests that a second snapshot copies only the files that changed, and drops deleted files.
+   *
+   * @throws IOException If the files cannot be changed.
+   */
+  @Test
+  public void testIncrementalMirror() throws IOException {
+    SnapshotStatus status = new SnapshotStatus();
+    SnapshotCopier copier = new SnapshotCopier(status, 2, false, Logger.getAnonymousLogger());
+    assertTrue("Snapshot started", status.start());
+    assertTrue("Unable to mirror directory", copier.mirror(this.sourceDir, this.destDir, null));
+    assertEquals("Wrong number of files copied", 2, status.getFilesCopied());
+    assertEquals("Wrong number of bytes copied", 6000, status.getBytesCopied());
+    assertEquals("Copy has wrong length", 5000, new File(this.destDir, "sub/b.dat").length());
+    status.finish(true);
+
+    write(new File(this.sourceDir, "a.dat"), 2000);
+    assertTrue("Unable to delete file", new File(this.sourceDir, "sub/b.dat").delete());
+    assertTrue("Snapshot started", status.start());
+    assertTrue("Unable to mirror directory", copier.mirror(this.sourceDir, this.destDir, null));
+    assertEquals("Wrong number of files copied", 1, status.getFilesCopied());
+    assertEquals("Copy has wrong length", 2000, new File(this.destDir, "a.dat").length());
+    assertFalse("Deleted file kept", new File(this.destDir, "sub/b.dat").exists());
+    status.finish(true);
+
+    assertTrue("Snapshot started", status.start());
+    assertTrue("Unable to mirror directory", copier.mirror(this.sourceDir, this.destDir, null));
+    assertEquals("Unchanged file copied", 0, status.getFilesCopied());
+    assertEquals("Unchanged file not skipped", 1, status.getFilesSkipped());
+    status.finish(true);
+  }
+
+  /**
+   * Tests that a file rewritten with the same size and modification time is copied again if it
+   * was modified shortly before its last copy, since the modification time cannot be trusted.
+   *
+   * @throws IOException If the files cannot be changed.
+   */
+  @Test
+  public void testSameTickChange() throws IOException {
+    SnapshotStatus status = new SnapshotStatus();
+    SnapshotCopier copier = new SnapshotCopier(status, 1, false, Logger.getAnonymousLogger());
+    File file = new File(this.sourceDir, "a.dat");
+    assertTrue("Snapshot started", status.start());
+    assertTrue("Unable to mirror directory", copier.mirror(this.sourceDir, this.destDir, null));
+    status.finish(true);
+
+    long modified = file.lastModified();
+    FileOutputStream output = new FileOutputStream(file);
+    try {
+      output.write(new byte[999]);
+      output.write(1);
+    }
+    finally {
+      output.close();
+    }
+    assertTrue("Unable to reset modification time", file.setLastModified(modified));
+    assertTrue("Snapshot started", status.start());
+    assertTrue("Unable to mirror directory", copier.mirror(this.sourceDir, this.destDir, null));
+    assertEquals("Changed file not copied", 1, status.getFilesCopied());
+    assertEquals("Unchanged file not skipped", 1, status.getFilesSkipped());
+    assertEquals("Copy has wrong contents", file.length(), new File(this.destDir, "a.dat")
+        .length());
+    status.finish(true);
+  }
+
+  /**
+   * Tests that a snapshot assembled in the staging directory replaces the published one only when
+   * published, and that the replaced snapshot is reused for the next one.
+   *
+   * @throws IOException If the files cannot be changed.
+   */
+  @Test
+  public void testPublish() throws IOException {
+    SnapshotStatus status = new SnapshotStatus();
+    SnapshotCopier copier = new SnapshotCopier(status, 1, false, Logger.getAnonymousLogger());
+    assertTrue("Snapshot started", status.start());
+    File staging = copier.stagingDir(this.destDir);
+    assertTrue("Unable to mirror directory", copier.mirror(this.sourceDir, staging, null));
+    assertFalse("Snapshot published before publish", this.destDir.exists());
+    assertTrue("Unable to publish snapshot", copier.publish(staging, this.destDir));
+    assertTrue("Snapshot not published", new File(this.destDir, "sub/b.dat").isFile());
+    assertFalse("Staging directory kept", staging.exists());
+    status.finish(true);
+
+    write(new File(this.sourceDir, "a.dat"), 2000);
+    assertTrue("Snapshot started", status.start());
+    staging = copier.stagingDir(this.destDir);
+    assertTrue("Unable to mirror directory", copier.mirror(this.sourceDir, staging, null));
+    assertEquals("Published snapshot changed", 1000, new File(this.destDir, "a.dat").length());
+    assertTrue("Unable to publish snapshot", copier.publish(staging, this.destDir));
+    assertEquals("Snapshot not replaced", 2000, new File(this.destDir, "a.dat").length());
+    status.finish(true);
+
+    write(new File(this.sourceDir, "a.dat"), 3000);
+    assertTrue("Snapshot started", status.start());
+    staging = copier.stagingDir(this.destDir);
+    assertEquals("Replaced snapshot not reused", 1000, new File(staging, "a.dat").length());
+    assertTrue("Unable to mirror directory", copier.mirror(this.sourceDir, staging, null));
+    assertEquals("Wrong number of files copied", 1, status.getFilesCopied());
+    assertEquals("Unchanged file not skipped", 1, status.getFilesSkipped());
+    status.finish(true);
+    delete(staging);
+  }
+
+  /**
+   * Tests that compressed copies are written, that a filter keeps files out of the snapshot, and
+   * that a compressed copy of a file modified just before it was copied is still skipped while
+   * the file is unchanged.
+   */
+  @Test
+  public void testCompressedMirror() {
+    SnapshotStatus status = new SnapshotStatus();
+    SnapshotCopier copier = new SnapshotCopier(status, 1, true, Logger.getAnonymousLogger());
+    assertTrue("Snapshot started", status.start());
+    assertTrue("Unable to mirror directory", copier.mirror(this.sourceDir, this.destDir,
+        new FileFilter() {
+          @Override
+          public boolean accept(File file) {
+            return !file.getName().equals("sub");
+          }
+        }));
+    File copy = new File(this.destDir, "a.dat" + SnapshotCopier.COMPRESSED_SUFFIX);
+    assertTrue("No compressed copy", copy.isFile());
+    assertTrue("Copy not compressed", copy.length() < 1000);
+    assertFalse("Filtered directory copied", new File(this.destDir, "sub").exists());
+    status.finish(true);
+
+    assertTrue("Snapshot started", status.start());
+    assertTrue("Unable to mirror directory", copier.mirror(this.sourceDir, this.destDir, null));
+    assertEquals("Wrong number of files copied", 1, status.getFilesCopied());
+    assertEquals("Unchanged compressed file not skipped", 1, status.getFilesSkipped());
+    status.finish(true);
+  }
+
+  /**
+   * Tests that a subdirectory mirrored on its own after its parent keeps its manifest when the
+   * parent is mirrored again, so that mirroring it again only copies what changed.
+   *
+   * @throws IOException If the files cannot be changed.
+   */
+  @Test
+  public void testSubdirectoryMirror() throws IOException {
+    SnapshotStatus status = new SnapshotStatus();
+    SnapshotCopier copier = new SnapshotCopier(status, 1, false, Logger.getAnonymousLogger());
+    File sub = new File(this.sourceDir, "sub");
+    File subCopy = new File(this.destDir, "sub");
+    assertTrue("Snapshot started", status.start());
+    assertTrue("Unable to mirror directory", copier.mirror(this.sourceDir, this.destDir, null));
+    write(new File(sub, "b.dat"), 6000);
+    assertTrue("Unable to mirror subdirectory", copier.mirror(sub, subCopy, null));
+    assertEquals("Subdirectory copy not updated", 6000, new File(subCopy, "b.dat").length());
+    status.finish(true);
+
+    assertTrue("Snapshot started", status.start());
+    assertTrue("Unable to mirror directory", copier.mirror(this.sourceDir, this.destDir, null));
+    status.finish(true);
+    assertTrue("Snapshot started", status.start());
+    assertTrue("Unable to mirror subdirectory", copier.mirror(sub, subCopy, null));
+    assertEquals("Unchanged file in subdirectory copied", 0, status.getFilesCopied());
+    status.finish(true);
+  }
+
+  /**
+   * Writes a file of zeros.
+   *
+   * @param file The file.
+   * @param length Its length in bytes.
+   * @throws IOException If the file cannot be written.
+   */
+  private static void write(File file, int length) throws IOException {
+    FileOutputStream output = new FileOutputStream(file);
+    try {
+      output.write(new byte[length]);
+    }
+    finally {
+      output.close();
+    }
+  }
+
+  /**
+   * Deletes a file or directory tree.
+   *
+   * @param file The file or directory.
+   */
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -1,11 +1,23 @@
 package org.wattdepot.server.db.berkeleydb;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import java.io.File;
+import javax.xml.datatype.XMLGregorianCalendar;
 import org.junit.Test;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.resource.source.jaxb.Source;
 import org.wattdepot.server.ServerProperties;
 import org.wattdepot.server.db.DbManagerTestHelper;
+import org.wattdepot.util.tstamp.Tstamp;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+import com.sleepycat.persist.EntityCursor;
+import com.sleepycat.persist.EntityStore;
+import com.sleepycat.persist.PrimaryIndex;
+import com.sleepycat.persist.StoreConfig;
 
 /**
  * Tests specifically for the BerkeleyDbImplementation.
@@ -36,4 +48,149 @@ public class TestBerkeleyDbImplementation extends DbManagerTestHelper {
     }
     assertTrue("Could not find any backed up files.", found);
   }
+
+  /**
+   * Tests that SensorData properties stored as separate entities, as older stores held them, are
+   * embedded in their SensorData when the store is reopened, including when a batch ends partway
+   * through the properties of one SensorData, and that properties of missing SensorData are
+   * dropped.
+   * 
+   * @throws Exception If there are problems creating timestamps.
+   */
+  @Test
+  public void testEmbedSensorDataProperties() throws Exception {
+    BerkeleyDbImplementation db = new BerkeleyDbImplementation(server, manager);
+    db.initialize(true);
+    String sourceName = "embed-source";
+    String sourceUri = Source.sourceToUri(sourceName, server);
+    XMLGregorianCalendar start = Tstamp.makeTimestamp("2009-07-28T08:00:00.000-10:00");
+    XMLGregorianCalendar[] timestamps = new XMLGregorianCalendar[4];
+    for (int i = 0; i < timestamps.length; i++) {
+      timestamps[i] = Tstamp.incrementMinutes(start, i);
+      if (i < 3) {
+        assertTrue("Unable to store SensorData",
+            db.storeSensorData(new SensorData(timestamps[i], "JUnit", sourceUri)));
+      }
+    }
+    // Three properties for each stored SensorData, and one for a SensorData that is missing
+    writeOldProperties(sourceName, timestamps, 3);
+    db.stop();
+
+    BerkeleyDbImplementation reopened = new BerkeleyDbImplementation(server, manager);
+    reopened.initialize(false);
+    assertEmbedded(reopened, sourceName, timestamps, 1);
+    assertEquals("Old properties left behind", 0, countOldProperties());
+
+    // A batch of 4 ends inside the second SensorData's properties
+    writeOldProperties(sourceName, timestamps, 3);
+    reopened.embedSensorDataProperties(4);
+    assertEmbedded(reopened, sourceName, timestamps, 2);
+    assertEquals("Old properties left behind", 0, countOldProperties());
+    reopened.stop();
+  }
+
+  /**
+   * Checks that the stored SensorData hold the old properties the given number of times, and that
+   * the SensorData missing from storage has not been created.
+   * 
+   * @param db The store.
+   * @param sourceName The name of the Source.
+   * @param timestamps The timestamps of the SensorData, the last of which was never stored.
+   * @param copies The number of times the old properties have been embedded.
+   */
+  private void assertEmbedded(BerkeleyDbImplementation db, String sourceName,
+      XMLGregorianCalendar[] timestamps, int copies) {
+    for (int i = 0; i < timestamps.length - 1; i++) {
+      SensorData data = db.getSensorData(sourceName, timestamps[i]);
+      assertEquals("Wrong number of embedded properties", 3 * copies, data.getProperties()
+          .getProperty().size());
+      for (int key = 0; key < 3; key++) {
+        assertEquals("Wrong embedded property", "value-" + i, data.getProperty("key-" + key));
+      }
+    }
+    assertNull("SensorData created for orphaned properties",
+        db.getSensorData(sourceName, timestamps[timestamps.length - 1]));
+  }
+
+  /**
+   * Writes SensorData properties as separate entities, the way stores did before they were
+   * embedded, using a separate handle on the store's environment.
+   * 
+   * @param sourceName The name of the Source.
+   * @param timestamps The timestamps of the SensorData to write properties for.
+   * @param count The number of properties to write for each SensorData.
+   */
+  private void writeOldProperties(String sourceName, XMLGregorianCalendar[] timestamps,
+      int count) {
+    Environment environment = openEnvironment();
+    EntityStore store = openStore(environment);
+    try {
+      PrimaryIndex<CompositeSensorDataPropertyKey, BerkeleyDbSensorDataProperty> index =
+          store.getPrimaryIndex(CompositeSensorDataPropertyKey.class,
+              BerkeleyDbSensorDataProperty.class);
+      for (int i = 0; i < timestamps.length; i++) {
+        for (int key = 0; key < count; key++) {
+          index.put(new BerkeleyDbSensorDataProperty(sourceName, timestamps[i], "key-" + key,
+              "value-" + i));
+        }
+      }
+    }
+    finally {
+      store.close();
+      environment.close();
+    }
+  }
+
+  /**
+   * Counts the SensorData properties stored as separate entities.
+   * 
+   * @return The number of properties.
+   */
+  private int countOldProperties() {
+    Environment environment = openEnvironment();
+    EntityStore store = openStore(environment);
+    int count = 0;
+    try {
+      EntityCursor<BerkeleyDbSensorDataProperty> cursor =
+          store.getPrimaryIndex(CompositeSensorDataPropertyKey.class,
+              BerkeleyDbSensorDataProperty.class).entities();
+      try {
+        while (cursor.next() != null) {
+          count++;
+        }
+      }
+      finally {
+        cursor.close();
+      }
+    }
+    finally {
+      store.close();
+      environment.close();
+    }
+    return count;
+  }
+
+  /**
+   * Opens another handle on the environment of the BerkeleyDB store.
+   * 
+   * @return The environment.
+   */
+  private Environment openEnvironment() {
+    EnvironmentConfig config = new EnvironmentConfig();
+    config.setTransactional(true);
+    return new Environment(new File(server.getServerProperties().get(
+        ServerProperties.BERKELEYDB_DIR_KEY)), config);
+  }
+
+  /**
+   * Opens the entity store holding SensorData properties in the given environment.
+   * 
+   * @param environment The environment.
+   * @return The store.
+   */
+  private EntityStore openStore(Environment environment) {
+    StoreConfig config = new StoreConfig();
+    config.setTransactional(true);
+    return new EntityStore(environment, "EntityStore", config);
+  }
 }
@@ -1,8 +1,19 @@
 package org.wattdepot.server.db.derby;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.xml.datatype.XMLGregorianCalendar;
 import org.junit.Test;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.resource.sensordata.jaxb.SensorDatas;
+import org.wattdepot.resource.source.jaxb.Source;
+import org.wattdepot.server.ServerProperties;
+import org.wattdepot.server.db.DbBadIntervalException;
 import org.wattdepot.server.db.DbManagerTestHelper;
+import org.wattdepot.util.tstamp.Tstamp;
 
 /**
  * Tests functionality that is specific to the DerbyStorageImplementation, that cannot be assumed at
@@ -48,4 +59,81 @@ public class TestDerbyStorageImplementation extends DbManagerTestHelper {
     // assertTrue("Backup log not modified", after.after(before));
     // }
   }
+
+  /**
+   * Tests that connections are returned to the pool. Runs the straddle, latest and range queries
+   * many more times than the pool has connections, first in turn and then from more threads than
+   * there are connections, and checks that every query is answered.
+   * 
+   * @throws Exception If there are problems creating timestamps or a thread is interrupted.
+   */
+  @Test
+  public void testPooledConnections() throws Exception {
+    final DerbyStorageImplementation db = new DerbyStorageImplementation(server, manager);
+    db.initialize(true);
+    try {
+      assertTrue("Unable to store a User", db.storeUser(makeTestUser1()));
+      final Source source = makeTestSource1();
+      assertTrue("Unable to store a Source", db.storeSource(source, true));
+      String sourceUri = source.toUri(server);
+      final XMLGregorianCalendar start = Tstamp.makeTimestamp("2009-07-28T08:00:00.000-10:00");
+      for (int i = 0; i < 3; i++) {
+        assertTrue("Unable to store SensorData", db.storeSensorData(new SensorData(Tstamp
+            .incrementMinutes(start, 10 * i), "JUnit", sourceUri)));
+      }
+      int maxActive =
+          Integer.parseInt(server.getServerProperties().get(
+              ServerProperties.DERBY_MAX_ACTIVE_KEY));
+
+      // A connection that is not returned would use up the pool long before this finishes
+      for (int i = 0; i < 3 * maxActive; i++) {
+        assertTrue("Query not answered", queryAll(db, source, start));
+      }
+
+      final AtomicInteger answered = new AtomicInteger();
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int t = 0; t < 2 * maxActive; t++) {
+        Thread thread = new Thread() {
+          /** Runs the queries, waiting for a connection if the pool is in use. */
+          @Override
+          public void run() {
+            if (queryAll(db, source, start)) {
+              answered.incrementAndGet();
+            }
+          }
+        };
+        threads.add(thread);
+        thread.start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      assertEquals("Concurrent queries not answered", 2 * maxActive, answered.get());
+    }
+    finally {
+      db.stop();
+    }
+  }
+
+  /**
+   * Runs the straddle, latest and range queries against three SensorData ten minutes apart.
+   * 
+   * @param db The DerbyStorageImplementation.
+   * @param source The Source of the SensorData.
+   * @param start The timestamp of the first SensorData.
+   * @return True if every query was answered correctly.
+   */
+  private static boolean queryAll(DerbyStorageImplementation db, Source source,
+      XMLGregorianCalendar start) {
+    SensorDatas datas;
+    try {
+      datas = db.getSensorDatas(source.getName(), start, Tstamp.incrementMinutes(start, 20));
+    }
+    catch (DbBadIntervalException e) {
+      return false;
+    }
+    return (datas != null) && (datas.getSensorData().size() == 3)
+        && (db.getSensorDataStraddle(source, Tstamp.incrementMinutes(start, 5)) != null)
+        && (db.getLatestNonVirtualSensorData(source.getName()) != null);
+  }
 }
@@ -0,0 +1,137 @@
+package org.wattdepot.server.db.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.xml.datatype.XMLGregorianCalendar;
+import org.junit.Test;
+import org.wattdepot.resource.sensordata.SensorDataStraddle;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.resource.sensordata.jaxb.SensorDataRef;
+import org.wattdepot.resource.source.jaxb.Source;
+import org.wattdepot.resource.source.summary.jaxb.SourceSummary;
+import org.wattdepot.server.db.DbManagerTestHelper;
+import org.wattdepot.util.tstamp.Tstamp;
+
+/**
+ * Tests functionality that is specific to the MemoryStorageImplementation, which keeps each
+ * Source's SensorData sorted by timestamp.
+ */
+public class TestMemoryStorageImplementation extends DbManagerTestHelper {
+
+  /**
+   * Stores SensorData out of timestamp order, and checks that ranges, the index, straddles, the
+   * latest SensorData and the summary all come out as if it had been stored in order.
+   * 
+   * @throws Exception If there are problems creating timestamps.
+   */
+  @Test
+  public void testOrderedReads() throws Exception {
+    MemoryStorageImplementation db = new MemoryStorageImplementation(server, manager);
+    db.initialize(true);
+    Source source = makeTestSource1();
+    assertTrue("Unable to store a Source", db.storeSource(source, false));
+    String sourceUri = source.toUri(server);
+    XMLGregorianCalendar start = Tstamp.makeTimestamp("2009-07-28T08:00:00.000-10:00");
+    int[] minutes = { 30, 0, 20, 10, 40 };
+    for (int minute : minutes) {
+      assertTrue("Unable to store SensorData", db.storeSensorData(new SensorData(Tstamp
+          .incrementMinutes(start, minute), "JUnit", sourceUri)));
+    }
+
+    List<SensorData> range =
+        db.getSensorDatas(source.getName(), Tstamp.incrementMinutes(start, 5),
+            Tstamp.incrementMinutes(start, 30)).getSensorData();
+    assertEquals("Wrong number of SensorData in range", 3, range.size());
+    for (int i = 0; i < range.size(); i++) {
+      assertEquals("Range out of order", Tstamp.incrementMinutes(start, 10 * (i + 1)),
+          range.get(i).getTimestamp());
+    }
+    List<SensorDataRef> refs = db.getSensorDataIndex(source.getName()).getSensorDataRef();
+    assertEquals("Wrong number of SensorDataRefs", minutes.length, refs.size());
+    for (int i = 0; i < refs.size(); i++) {
+      assertEquals("Index out of order", Tstamp.incrementMinutes(start, 10 * i), refs.get(i)
+          .getTimestamp());
+    }
+
+    SensorDataStraddle straddle = db.getSensorDataStraddle(source, Tstamp.incrementMinutes(start,
+        15));
+    assertEquals("Wrong SensorData before", Tstamp.incrementMinutes(start, 10), straddle
+        .getBeforeData().getTimestamp());
+    assertEquals("Wrong SensorData after", Tstamp.incrementMinutes(start, 20), straddle
+        .getAfterData().getTimestamp());
+    assertTrue("Straddle on a SensorData not degenerate",
+        db.getSensorDataStraddle(source, Tstamp.incrementMinutes(start, 20)).isDegenerate());
+    assertNull("Straddle before the first SensorData",
+        db.getSensorDataStraddle(source, Tstamp.incrementMinutes(start, -1)));
+    assertNull("Straddle after the last SensorData",
+        db.getSensorDataStraddle(source, Tstamp.incrementMinutes(start, 41)));
+
+    assertEquals("Wrong latest SensorData", Tstamp.incrementMinutes(start, 40), db
+        .getLatestNonVirtualSensorData(source.getName()).getTimestamp());
+    SourceSummary summary = db.getSourceSummary(source.getName());
+    assertEquals("Wrong first SensorData", start, summary.getFirstSensorData());
+    assertEquals("Wrong last SensorData", Tstamp.incrementMinutes(start, 40), summary
+        .getLastSensorData());
+    assertEquals("Wrong number of SensorData", minutes.length, summary.getTotalSensorDatas());
+  }
+
+  /**
+   * Stores the first SensorData of a Source from several threads at once, and checks that none of
+   * it is lost while the Source's map is being created.
+   * 
+   * @throws Exception If there are problems creating timestamps or a thread is interrupted.
+   */
+  @Test
+  public void testConcurrentFirstStore() throws Exception {
+    final MemoryStorageImplementation db = new MemoryStorageImplementation(server, manager);
+    db.initialize(true);
+    Source source = makeTestSource1();
+    assertTrue("Unable to store a Source", db.storeSource(source, false));
+    final String sourceUri = source.toUri(server);
+    final XMLGregorianCalendar start = Tstamp.makeTimestamp("2009-07-28T08:00:00.000-10:00");
+    final int threadCount = 8;
+    final int perThread = 50;
+    final CountDownLatch ready = new CountDownLatch(1);
+    final AtomicInteger stored = new AtomicInteger();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < threadCount; t++) {
+      final int offset = t;
+      Thread thread = new Thread() {
+        /** Stores this thread's share of the SensorData once all the threads are ready. */
+        @Override
+        public void run() {
+          try {
+            ready.await();
+            for (int i = 0; i < perThread; i++) {
+              SensorData data =
+                  new SensorData(Tstamp.incrementSeconds(start, i * threadCount + offset),
+                      "JUnit", sourceUri);
+              if (db.storeSensorData(data)) {
+                stored.incrementAndGet();
+              }
+            }
+          }
+          catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      };
+      threads.add(thread);
+      thread.start();
+    }
+    ready.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals("SensorData not stored", threadCount * perThread, stored.get());
+    assertEquals("SensorData lost", threadCount * perThread, db.getSensorDataIndex(
+        source.getName()).getSensorDataRef().size());
+    assertEquals("Wrong number of SensorData", threadCount * perThread, db.getSourceSummary(
+        source.getName()).getTotalSensorDatas());
+  }
+}
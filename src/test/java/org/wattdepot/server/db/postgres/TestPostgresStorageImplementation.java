@@ -1,12 +1,22 @@
 package org.wattdepot.server.db.postgres;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import java.io.File;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.xml.datatype.XMLGregorianCalendar;
 import org.junit.Ignore;
 import org.junit.Test;
+import org.wattdepot.resource.property.jaxb.Property;
+import org.wattdepot.resource.sensordata.SensorDataStraddle;
+import org.wattdepot.resource.sensordata.jaxb.SensorData;
+import org.wattdepot.resource.source.jaxb.Source;
 import org.wattdepot.server.ServerProperties;
 import org.wattdepot.server.db.DbManagerTestHelper;
+import org.wattdepot.util.tstamp.Tstamp;
 
 /**
  * Tests functionality that is specific to the PostgresStorageImplementation, that cannot be assumed
@@ -16,32 +26,104 @@ import org.wattdepot.server.db.DbManagerTestHelper;
  */
 public class TestPostgresStorageImplementation extends DbManagerTestHelper {
   /**
-   * Tests the makeSnapshot method. Checks to see if the modification date of the backup zip is
-   * updated by the method as a quick check that something happened.
+   * Tests the makeSnapshot method. Checks that the snapshot directory holds a copy of the data
+   * directory afterward, as a quick check that something happened.
    * 
    */
   @Test
   @Ignore("This doesn't work on all systems because of permissions")
   public void testMakeSnapshot() {
-    File backupZip =
-        new File(server.getServerProperties().get(ServerProperties.POSTGRES_SNAPSHOT_KEY) + ".zip");
-    Date before = null;
+    File snapshotDir =
+        new File(server.getServerProperties().get(ServerProperties.POSTGRES_SNAPSHOT_KEY));
+    assertTrue("Unable to create snapshot", manager.makeSnapshot());
+    assertTrue("No snapshot directory created", snapshotDir.isDirectory());
+    assertTrue("Snapshot directory is empty", snapshotDir.list().length > 0);
+    assertTrue("No files in snapshot", manager.getSnapshotStatus().getFilesTotal() > 0);
+  }
+
+  /**
+   * Tests that the range, single, straddle and latest reads, which join the properties into the
+   * same query, return each SensorData with exactly its own properties, and still return
+   * SensorData that has none.
+   * 
+   * @throws Exception If there are problems creating timestamps.
+   */
+  @Test
+  public void testSensorDataProperties() throws Exception {
+    PostgresStorageImplementation db = new PostgresStorageImplementation(server, manager);
+    db.initialize(true);
+    try {
+      assertTrue("Unable to store a User", db.storeUser(makeTestUser1()));
+      Source source = makeTestSource1();
+      assertTrue("Unable to store a Source", db.storeSource(source, true));
+      String sourceUri = source.toUri(server);
+      XMLGregorianCalendar start = Tstamp.makeTimestamp("2009-07-28T08:00:00.000-10:00");
+      for (int i = 0; i < 3; i++) {
+        SensorData data =
+            new SensorData(Tstamp.incrementMinutes(start, 10 * i), "JUnit", sourceUri);
+        for (Property p : makeProperties(i)) {
+          data.addProperty(p);
+        }
+        assertTrue("Unable to store SensorData", db.storeSensorData(data));
+      }
 
-    if (backupZip.exists()) {
-      assertTrue("Backup zip isn't a file!", backupZip.isFile());
-      before = new Date(backupZip.lastModified());
+      List<SensorData> range =
+          db.getSensorDatas(source.getName(), start, Tstamp.incrementMinutes(start, 20))
+              .getSensorData();
+      assertEquals("Wrong number of SensorData in range", 3, range.size());
+      for (int i = 0; i < range.size(); i++) {
+        assertProperties(range.get(i), i);
+      }
+      assertProperties(db.getSensorData(source.getName(), start), 0);
+      assertProperties(db.getSensorData(source.getName(), Tstamp.incrementMinutes(start, 10)), 1);
+      SensorDataStraddle straddle =
+          db.getSensorDataStraddle(source, Tstamp.incrementMinutes(start, 15));
+      assertProperties(straddle.getBeforeData(), 1);
+      assertProperties(straddle.getAfterData(), 2);
+      assertProperties(db.getLatestNonVirtualSensorData(source.getName()), 2);
     }
-    else {
-      System.out.println("before: [doesn't exist]");
+    finally {
+      db.stop();
     }
-    assertTrue("Unable to create snapshot", manager.makeSnapshot());
-    assertTrue("No backup zip created", backupZip.isFile());
-    assertTrue("Backup zip is empty", backupZip.length() > 0);
+  }
 
-    if (before != null) {
-      // Only need to check if modification time changed if there was a snapshot directory before
-      Date after = new Date(backupZip.lastModified());
-      assertTrue("Backup zip not modified", after.after(before));
+  /**
+   * Makes the properties of a SensorData stored by testSensorDataProperties. The middle SensorData
+   * has none, so only an outer join finds it; the others each have column backed properties and
+   * their own properties without columns, so a join that mixes up rows shows.
+   * 
+   * @param index The order the SensorData is stored in.
+   * @return The properties.
+   */
+  private static List<Property> makeProperties(int index) {
+    List<Property> props = new ArrayList<Property>();
+    if (index == 0) {
+      props.add(new Property(SensorData.POWER_CONSUMED, 1000.0));
+      props.add(new Property(SensorData.ENERGY_CONSUMED_TO_DATE, 100.0));
+      props.add(new Property("voltage", "120.0"));
+    }
+    else if (index == 2) {
+      props.add(new Property(SensorData.POWER_GENERATED, 3000.0));
+      props.add(new Property("voltage", "240.0"));
+      props.add(new Property("phase", "B"));
+    }
+    return props;
+  }
+
+  /**
+   * Checks that a SensorData stored by testSensorDataProperties came back with exactly its own
+   * properties.
+   * 
+   * @param data The SensorData read back.
+   * @param index The order it was stored in.
+   */
+  private static void assertProperties(SensorData data, int index) {
+    Set<Property> actual = new HashSet<Property>();
+    if (data.getProperties() != null) {
+      actual.addAll(data.getProperties().getProperty());
+      assertEquals("Duplicate properties", data.getProperties().getProperty().size(),
+          actual.size());
     }
+    assertEquals("Wrong properties", new HashSet<Property>(makeProperties(index)), actual);
   }
-}
\ No newline at end of file
+}
@@ -5,7 +5,10 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.GregorianCalendar;
 import java.util.List;
+import javax.xml.datatype.DatatypeFactory;
 import javax.xml.datatype.XMLGregorianCalendar;
 import org.junit.Test;
 
@@ -195,4 +198,48 @@ public class TestTstamp {
     assertEquals("getTimestampList didn't return expected list", timestampList, Tstamp
         .getTimestampList(startTime, endTime, interval));
   }
+
+  /**
+   * Tests that the hand-written conversions to and from milliseconds and strings agree with
+   * GregorianCalendar and DatatypeFactory.
+   * 
+   * @throws Exception If there are problems.
+   */
+  @Test
+  public void testMillisConversion() throws Exception {
+    DatatypeFactory factory = DatatypeFactory.newInstance();
+    String[] reps =
+        { "2009-07-28T09:00:00.000-10:00", "2008-02-29T23:59:59.999Z",
+            "2010-03-14T02:30:00.5+05:30", "2009-07-28T09:00:00.123456-10:00",
+            "2009-07-28T09:00:00", "2009-07-28" };
+    for (String rep : reps) {
+      long millis = factory.newXMLGregorianCalendar(rep).toGregorianCalendar().getTimeInMillis();
+      assertEquals("Wrong millis parsing " + rep, millis, Tstamp.parseMillis(rep));
+      assertEquals("Wrong millis converting " + rep, millis,
+          Tstamp.toMillis(factory.newXMLGregorianCalendar(rep)));
+      assertTrue("Timestamp not recognized " + rep, Tstamp.isTimestamp(rep));
+    }
+    assertFalse("Invalid day recognized", Tstamp.isTimestamp("2009-02-29T09:00:00.000Z"));
+    assertFalse("Empty fraction recognized", Tstamp.isTimestamp("2009-07-28T09:00:00.Z"));
+
+    // A year of hours, which crosses both DST changes in zones that have them
+    long start = Tstamp.parseMillis("2009-12-11T00:00:00.000-10:00");
+    for (int i = 0; i < 365 * 24; i++) {
+      long millis = start + i * 60L * 60L * 1000L + i;
+      GregorianCalendar calendar = new GregorianCalendar();
+      calendar.setTimeInMillis(millis);
+      XMLGregorianCalendar expected = factory.newXMLGregorianCalendar(calendar);
+      XMLGregorianCalendar timestamp = Tstamp.makeTimestamp(millis);
+      assertEquals("Wrong timestamp", expected, timestamp);
+      assertEquals("Wrong format", expected.toXMLFormat(), Tstamp.format(millis));
+      assertEquals("Wrong millis", millis, Tstamp.toMillis(timestamp));
+      assertEquals("Wrong round trip", millis, Tstamp.parseMillis(Tstamp.format(millis)));
+    }
+
+    long end = start + 60L * 60L * 1000L;
+    assertTrue("Wrong timestamp millis", Arrays.equals(new long[] { start,
+        start + 25L * 60L * 1000L, start + 50L * 60L * 1000L, end }, Tstamp.getTimestampMillis(
+        start, end, 25)));
+    assertNull("Timestamp millis with bad range", Tstamp.getTimestampMillis(end, start, 25));
+  }
 }